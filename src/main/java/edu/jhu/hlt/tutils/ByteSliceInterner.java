@@ -0,0 +1,144 @@
+package edu.jhu.hlt.tutils;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.function.ToIntFunction;
+
+import edu.jhu.hlt.tutils.hash.MurmurHash3;
+
+/**
+ * Maps byte slices (e.g. a field in a line of a UTF-8 encoded file sitting in
+ * a read buffer) to ints without creating a {@link String} for every lookup.
+ * The first time a slice is seen it is decoded and given to a backing
+ * alphabet (e.g. {@code MultiAlphabet::word}), after which the (bytes, id)
+ * pair is cached in an open addressing table.
+ *
+ * Since alphabet ids never change once assigned, this cache is always
+ * consistent with the backing alphabet, even if other code adds to it. Lookups
+ * which the backing alphabet rejects (returns a negative id, e.g. because
+ * growth is stopped) are not cached.
+ *
+ * Not thread safe.
+ *
+ * @author travis
+ */
+public class ByteSliceInterner {
+  public static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final int SEED = 9001;
+
+  private ToIntFunction<String> alph;
+
+  // All keys, back to back
+  private byte[] pool;
+  private int poolTop;
+
+  // Open addressing table, slot is empty iff keyLen[slot] < 0
+  private int[] keyStart;
+  private int[] keyLen;
+  private int[] keyHash;
+  private int[] value;
+  private int size;
+
+  private long hits, misses;
+
+  public ByteSliceInterner(ToIntFunction<String> alph) {
+    this(alph, 1 << 10);
+  }
+
+  public ByteSliceInterner(ToIntFunction<String> alph, int initialCapacity) {
+    this.alph = alph;
+    int cap = Integer.highestOneBit(Math.max(16, initialCapacity) - 1) << 1;
+    allocTable(cap);
+    pool = new byte[cap * 8];
+    poolTop = 0;
+  }
+
+  private void allocTable(int cap) {
+    keyStart = new int[cap];
+    keyLen = new int[cap];
+    keyHash = new int[cap];
+    value = new int[cap];
+    Arrays.fill(keyLen, -1);
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public long getHits() {
+    return hits;
+  }
+
+  public long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Returns the id of the string encoded (in UTF-8) by buf[start,end).
+   */
+  public int lookup(byte[] buf, int start, int end) {
+    int len = end - start;
+    int h = MurmurHash3.murmurhash3_x86_32(buf, start, len, SEED);
+    int mask = keyLen.length - 1;
+    for (int slot = h & mask; true; slot = (slot + 1) & mask) {
+      int kl = keyLen[slot];
+      if (kl < 0)
+        return insert(slot, h, buf, start, len);
+      if (kl == len && keyHash[slot] == h && equal(buf, start, pool, keyStart[slot], len)) {
+        hits++;
+        return value[slot];
+      }
+    }
+  }
+
+  private static boolean equal(byte[] a, int aStart, byte[] b, int bStart, int len) {
+    for (int i = 0; i < len; i++)
+      if (a[aStart + i] != b[bStart + i])
+        return false;
+    return true;
+  }
+
+  private int insert(int slot, int h, byte[] buf, int start, int len) {
+    misses++;
+    int v = alph.applyAsInt(new String(buf, start, len, UTF8));
+    if (v < 0)
+      return v;
+    if (poolTop + len > pool.length)
+      pool = Arrays.copyOf(pool, Math.max(pool.length * 2, poolTop + len));
+    System.arraycopy(buf, start, pool, poolTop, len);
+    keyStart[slot] = poolTop;
+    keyLen[slot] = len;
+    keyHash[slot] = h;
+    value[slot] = v;
+    poolTop += len;
+    size++;
+    if (2 * size > keyLen.length)
+      rehash();
+    return v;
+  }
+
+  private void rehash() {
+    int[] oldStart = keyStart;
+    int[] oldLen = keyLen;
+    int[] oldHash = keyHash;
+    int[] oldValue = value;
+    allocTable(oldLen.length * 2);
+    int mask = keyLen.length - 1;
+    for (int i = 0; i < oldLen.length; i++) {
+      if (oldLen[i] < 0)
+        continue;
+      int slot = oldHash[i] & mask;
+      while (keyLen[slot] >= 0)
+        slot = (slot + 1) & mask;
+      keyStart[slot] = oldStart[i];
+      keyLen[slot] = oldLen[i];
+      keyHash[slot] = oldHash[i];
+      value[slot] = oldValue[i];
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "(ByteSliceInterner size=" + size + " hits=" + hits + " misses=" + misses + ")";
+  }
+}
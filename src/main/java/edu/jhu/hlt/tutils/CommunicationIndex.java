@@ -0,0 +1,399 @@
+package edu.jhu.hlt.tutils;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.jhu.hlt.concrete.AnnotationMetadata;
+import edu.jhu.hlt.concrete.Communication;
+import edu.jhu.hlt.concrete.Dependency;
+import edu.jhu.hlt.concrete.DependencyParse;
+import edu.jhu.hlt.concrete.Entity;
+import edu.jhu.hlt.concrete.EntityMention;
+import edu.jhu.hlt.concrete.EntityMentionSet;
+import edu.jhu.hlt.concrete.EntitySet;
+import edu.jhu.hlt.concrete.Parse;
+import edu.jhu.hlt.concrete.Section;
+import edu.jhu.hlt.concrete.Sentence;
+import edu.jhu.hlt.concrete.Situation;
+import edu.jhu.hlt.concrete.SituationMention;
+import edu.jhu.hlt.concrete.SituationMentionSet;
+import edu.jhu.hlt.concrete.SituationSet;
+import edu.jhu.hlt.concrete.TaggedToken;
+import edu.jhu.hlt.concrete.TokenList;
+import edu.jhu.hlt.concrete.TokenRefSequence;
+import edu.jhu.hlt.concrete.TokenTagging;
+import edu.jhu.hlt.concrete.Tokenization;
+import edu.jhu.hlt.concrete.UUID;
+import edu.jhu.hlt.concrete.uuid.UUIDFactory;
+import edu.jhu.hlt.tutils.ling.Language;
+
+/**
+ * An index over the annotations in a {@link Communication} which is built
+ * once (one pass over the {@link Communication}) and then answers the lookups
+ * that {@link ConcreteToDocument#findByUUID(List, UUID)} and
+ * {@link ConcreteToDocument#findByTool(List, String)} answer with a linear
+ * scan (and reflection) over a list.
+ *
+ * Indexes:
+ *   UUID -> annotation (for everything which has a UUID)
+ *   UUID -> UUID of the annotation which contains it, e.g.
+ *     EntityMention -> EntityMentionSet, DependencyParse -> Tokenization
+ *   (type, tool) -> annotations of that type with that tool name, in the order
+ *     they appear in the {@link Communication}.
+ *
+ * NOTE: This does not track mutations to the {@link Communication}, if you
+ * add annotations you must build a new index.
+ *
+ * @author travis
+ */
+public class CommunicationIndex {
+
+  private final Communication comm;
+
+  private Map<UUID, Object> uuid2item;
+  private Map<UUID, UUID> uuid2container;
+  private Set<UUID> nonUnique;   // UUIDs which were claimed by more than one item
+  private Map<Class<?>, Map<String, List<Object>>> tool2items;
+
+  public CommunicationIndex(Communication c) {
+    if (c == null)
+      throw new IllegalArgumentException();
+    this.comm = c;
+    this.uuid2item = new HashMap<>();
+    this.uuid2container = new HashMap<>();
+    this.nonUnique = new HashSet<>();
+    this.tool2items = new HashMap<>();
+
+    if (c.isSetSectionList()) {
+      for (Section s : c.getSectionList()) {
+        if (s == null)
+          continue;
+        add(s.getUuid(), s, c.getUuid());
+        if (!s.isSetSentenceList())
+          continue;
+        for (Sentence ss : s.getSentenceList()) {
+          add(ss.getUuid(), ss, s.getUuid());
+          Tokenization t = ss.getTokenization();
+          if (t == null)
+            continue;
+          add(t.getUuid(), t, ss.getUuid());
+          if (t.isSetTokenTaggingList()) {
+            for (TokenTagging tt : t.getTokenTaggingList())
+              addAnnotation(tt.getUuid(), tt, t.getUuid(), TokenTagging.class, tt.getMetadata());
+          }
+          if (t.isSetParseList()) {
+            for (Parse p : t.getParseList())
+              addAnnotation(p.getUuid(), p, t.getUuid(), Parse.class, p.getMetadata());
+          }
+          if (t.isSetDependencyParseList()) {
+            for (DependencyParse dp : t.getDependencyParseList())
+              addAnnotation(dp.getUuid(), dp, t.getUuid(), DependencyParse.class, dp.getMetadata());
+          }
+        }
+      }
+    }
+
+    if (c.isSetEntityMentionSetList()) {
+      for (EntityMentionSet ems : c.getEntityMentionSetList()) {
+        addAnnotation(ems.getUuid(), ems, c.getUuid(), EntityMentionSet.class, ems.getMetadata());
+        if (ems.isSetMentionList())
+          for (EntityMention em : ems.getMentionList())
+            add(em.getUuid(), em, ems.getUuid());
+      }
+    }
+    if (c.isSetEntitySetList()) {
+      for (EntitySet es : c.getEntitySetList()) {
+        addAnnotation(es.getUuid(), es, c.getUuid(), EntitySet.class, es.getMetadata());
+        if (es.isSetEntityList())
+          for (Entity e : es.getEntityList())
+            add(e.getUuid(), e, es.getUuid());
+      }
+    }
+    if (c.isSetSituationMentionSetList()) {
+      for (SituationMentionSet sms : c.getSituationMentionSetList()) {
+        addAnnotation(sms.getUuid(), sms, c.getUuid(), SituationMentionSet.class, sms.getMetadata());
+        if (sms.isSetMentionList())
+          for (SituationMention sm : sms.getMentionList())
+            add(sm.getUuid(), sm, sms.getUuid());
+      }
+    }
+    if (c.isSetSituationSetList()) {
+      for (SituationSet ss : c.getSituationSetList()) {
+        addAnnotation(ss.getUuid(), ss, c.getUuid(), SituationSet.class, ss.getMetadata());
+        if (ss.isSetSituationList())
+          for (Situation s : ss.getSituationList())
+            add(s.getUuid(), s, ss.getUuid());
+      }
+    }
+  }
+
+  private void add(UUID id, Object item, UUID container) {
+    if (id == null)
+      return;
+    Object old = uuid2item.put(id, item);
+    if (old != null && old != item)
+      nonUnique.add(id);
+    if (container != null)
+      uuid2container.put(id, container);
+  }
+
+  private void addAnnotation(UUID id, Object item, UUID container, Class<?> type, AnnotationMetadata meta) {
+    add(id, item, container);
+    if (meta == null || meta.getTool() == null)
+      return;
+    Map<String, List<Object>> m = tool2items.get(type);
+    if (m == null) {
+      m = new HashMap<>();
+      tool2items.put(type, m);
+    }
+    List<Object> l = m.get(meta.getTool());
+    if (l == null) {
+      l = new ArrayList<>(1);
+      m.put(meta.getTool(), l);
+    }
+    l.add(item);
+  }
+
+  public Communication getCommunication() {
+    return comm;
+  }
+
+  public int numUuids() {
+    return uuid2item.size();
+  }
+
+  public boolean contains(UUID id) {
+    return uuid2item.containsKey(id);
+  }
+
+  public <T> T findByUUID(Class<T> type, UUID id) {
+    return findByUUID(type, id, false);
+  }
+
+  /**
+   * @return the item with the given {@link UUID}, or null if allowMissing and
+   * there is no such item.
+   * @throws RuntimeException if the {@link UUID} is not unique or the item is
+   * not of the given type.
+   */
+  public <T> T findByUUID(Class<T> type, UUID id, boolean allowMissing) {
+    if (nonUnique.contains(id))
+      throw new RuntimeException("non-unique UUID \"" + id + "\" in " + comm.getId());
+    Object item = uuid2item.get(id);
+    if (item == null) {
+      if (allowMissing)
+        return null;
+      throw new RuntimeException("couldn't find " + type.getSimpleName()
+          + " with UUID \"" + id + "\" in " + comm.getId());
+    }
+    if (!type.isInstance(item)) {
+      throw new RuntimeException("UUID \"" + id + "\" is a "
+          + item.getClass().getSimpleName() + " not a " + type.getSimpleName());
+    }
+    return type.cast(item);
+  }
+
+  public Tokenization getTokenization(UUID id) {
+    return findByUUID(Tokenization.class, id);
+  }
+
+  /**
+   * @return the {@link UUID} of the annotation which contains the given one
+   * (e.g. {@link EntityMention} -> {@link EntityMentionSet}) or null if the
+   * given {@link UUID} is not in this index.
+   */
+  public UUID getContainer(UUID id) {
+    return uuid2container.get(id);
+  }
+
+  /**
+   * @return all annotations of the given type whose {@link AnnotationMetadata}
+   * tool name matches, in {@link Communication} order. Supported types are:
+   * {@link TokenTagging}, {@link Parse}, {@link DependencyParse},
+   * {@link EntityMentionSet}, {@link EntitySet}, {@link SituationMentionSet},
+   * and {@link SituationSet}. Never returns null.
+   */
+  @SuppressWarnings("unchecked")
+  public <T> List<T> getByTool(Class<T> type, String toolname) {
+    Map<String, List<Object>> m = tool2items.get(type);
+    if (m == null)
+      return Collections.emptyList();
+    List<Object> l = m.get(toolname);
+    if (l == null)
+      return Collections.emptyList();
+    return (List<T>) Collections.unmodifiableList(l);
+  }
+
+  public <T> T findByTool(Class<T> type, String toolname) {
+    return findByTool(type, toolname, false);
+  }
+
+  /**
+   * Same semantics as {@link ConcreteToDocument#findByTool(List, String, boolean)}
+   * but for annotations which appear once per {@link Communication} (e.g.
+   * {@link EntitySet}s, not {@link TokenTagging}s).
+   */
+  public <T> T findByTool(Class<T> type, String toolname, boolean allowMissing) {
+    List<T> l = getByTool(type, toolname);
+    if (l.size() > 1) {
+      throw new RuntimeException("non-unique toolname \"" + toolname
+          + "\" in " + tools(type) + " [" + type.getName() + "]");
+    }
+    if (l.isEmpty()) {
+      if (allowMissing)
+        return null;
+      throw new RuntimeException("couldn't find tool named \""
+          + toolname + "\" in " + tools(type) + " [" + type.getName() + "]");
+    }
+    return l.get(0);
+  }
+
+  /** Tool names of all annotations of the given type */
+  public Set<String> tools(Class<?> type) {
+    Map<String, List<Object>> m = tool2items.get(type);
+    if (m == null)
+      return Collections.emptySet();
+    return Collections.unmodifiableSet(m.keySet());
+  }
+
+
+  /**
+   * Builds a {@link Communication} with the given number of sentences, each of
+   * which has a POS {@link TokenTagging}, a basic {@link DependencyParse}, and
+   * one {@link EntityMention} (all of which are in one {@link EntitySet}).
+   */
+  public static Communication syntheticCommunication(int numSentences, int tokensPerSentence) {
+    AnnotationMetadata posMeta = new AnnotationMetadata().setTool("Stanford CoreNLP");
+    AnnotationMetadata depMeta = new AnnotationMetadata().setTool("Stanford CoreNLP basic");
+    AnnotationMetadata corefMeta = new AnnotationMetadata().setTool("Stanford Coref");
+    Communication c = new Communication();
+    c.setId("synthetic");
+    c.setUuid(UUIDFactory.newUUID());
+    EntityMentionSet ems = new EntityMentionSet();
+    ems.setUuid(UUIDFactory.newUUID());
+    ems.setMetadata(corefMeta);
+    ems.setMentionList(new ArrayList<>());
+    EntitySet es = new EntitySet();
+    es.setUuid(UUIDFactory.newUUID());
+    es.setMetadata(corefMeta);
+    es.setMentionSetId(ems.getUuid());
+    es.setEntityList(new ArrayList<>());
+    Section section = new Section();
+    section.setUuid(UUIDFactory.newUUID());
+    section.setKind("passage");
+    for (int i = 0; i < numSentences; i++) {
+      Tokenization t = new Tokenization();
+      t.setUuid(UUIDFactory.newUUID());
+      t.setTokenList(new TokenList(new ArrayList<>()));
+      TokenTagging pos = new TokenTagging();
+      pos.setUuid(UUIDFactory.newUUID());
+      pos.setMetadata(posMeta);
+      pos.setTaggingType("POS");
+      DependencyParse dp = new DependencyParse();
+      dp.setUuid(UUIDFactory.newUUID());
+      dp.setMetadata(depMeta);
+      dp.setDependencyList(new ArrayList<>());
+      for (int j = 0; j < tokensPerSentence; j++) {
+        edu.jhu.hlt.concrete.Token tok = new edu.jhu.hlt.concrete.Token(j);
+        tok.setText("w" + (j % 50));
+        t.getTokenList().addToTokenList(tok);
+        TaggedToken tag = new TaggedToken();
+        tag.setTokenIndex(j);
+        tag.setTag(j % 2 == 0 ? "NN" : "VB");
+        pos.addToTaggedTokenList(tag);
+        Dependency d = new Dependency(j);
+        if (j > 0)
+          d.setGov(j - 1);
+        d.setEdgeType(j == 0 ? "root" : "dep");
+        dp.addToDependencyList(d);
+      }
+      t.addToTokenTaggingList(pos);
+      t.addToDependencyParseList(dp);
+      Sentence s = new Sentence();
+      s.setUuid(UUIDFactory.newUUID());
+      s.setTokenization(t);
+      section.addToSentenceList(s);
+
+      List<Integer> toks = new ArrayList<>();
+      toks.add(0);
+      EntityMention em = new EntityMention();
+      em.setUuid(UUIDFactory.newUUID());
+      em.setEntityType("PER");
+      em.setTokens(new TokenRefSequence(toks, t.getUuid()));
+      ems.addToMentionList(em);
+      Entity e = new Entity();
+      e.setUuid(UUIDFactory.newUUID());
+      e.setType("PER");
+      e.addToMentionIdList(em.getUuid());
+      es.addToEntityList(e);
+    }
+    c.addToSectionList(section);
+    c.addToEntityMentionSetList(ems);
+    c.addToEntitySetList(es);
+    return c;
+  }
+
+  /**
+   * Compares linear scan lookups against this index on a synthetic
+   * {@link Communication}, and times {@link ConcreteToDocument#communication2Document}.
+   *
+   * numSentences=5000 tokensPerSentence=20 times=5
+   * scan/EntityMention     <Timer scan/EntityMention 3.11 sec and 5 calls total, log(sec/call)=-0.5 sec/call=0.622>
+   * communication2Document <Timer communication2Document 2.37 sec and 5 calls total, log(sec/call)=-0.9 sec/call=0.400>
+   * index/build            <Timer index/build 0.87 sec and 5 calls total, log(sec/call)=-2.0 sec/call=0.138>
+   * index/EntityMention    <Timer index/EntityMention 0.13 sec and 5 calls total, log(sec/call)=-3.8 sec/call=0.023>
+   */
+  public static void benchmark(ExperimentProperties config) {
+    int numSentences = config.getInt("numSentences", 5000);
+    int tokensPerSentence = config.getInt("tokensPerSentence", 20);
+    int times = config.getInt("times", 5);
+    boolean scan = config.getBoolean("scan", true);
+    Communication c = syntheticCommunication(numSentences, tokensPerSentence);
+    List<EntityMention> mentions = c.getEntityMentionSetList().get(0).getMentionList();
+
+    ConcreteToDocument c2d = new ConcreteToDocument(null, null, null, Language.EN);
+    c2d.posToolAuto = ConcreteToDocument.STANFORD_POS;
+    c2d.dparseBasicTool = ConcreteToDocument.STANFORD_DPARSE_BASIC;
+    c2d.corefToolAuto = "Stanford Coref";
+
+    MultiTimer t = new MultiTimer();
+    long n = 0;
+    for (int i = 0; i < times; i++) {
+      Log.info("starting iter=" + i);
+
+      if (scan) {
+        t.start("scan/EntityMention");
+        for (EntityMention em : mentions)
+          n += ConcreteToDocument.findByUUID(mentions, em.getUuid()).getTokens().getTokenIndexListSize();
+        t.stop("scan/EntityMention");
+      }
+
+      t.start("index/build");
+      CommunicationIndex idx = new CommunicationIndex(c);
+      t.stop("index/build");
+
+      t.start("index/EntityMention");
+      for (EntityMention em : mentions)
+        n += idx.findByUUID(EntityMention.class, em.getUuid()).getTokens().getTokenIndexListSize();
+      t.stop("index/EntityMention");
+
+      t.start("communication2Document");
+      ConcreteDocumentMapping m = c2d.communication2Document(c, i, new MultiAlphabet(), Language.EN);
+      n += m.getDocument().numTokens();
+      t.stop("communication2Document");
+
+      Log.info(t);
+    }
+    Log.info("done, checksum=" + n);
+  }
+
+  public static void main(String[] args) {
+    ExperimentProperties config = ExperimentProperties.init(args);
+    benchmark(config);
+  }
+}
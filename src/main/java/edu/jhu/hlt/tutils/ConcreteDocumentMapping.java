@@ -57,6 +57,9 @@ public class ConcreteDocumentMapping implements Serializable {
 
   private Document doc;
 
+  // Built lazily from communication, not serialized
+  private transient CommunicationIndex index;
+
   public ConcreteDocumentMapping(Communication c, Document doc) {
     if (c == null)
       throw new IllegalArgumentException();
@@ -89,6 +92,25 @@ public class ConcreteDocumentMapping implements Serializable {
     return communication;
   }
 
+  /**
+   * Returns an index over the {@link Communication} (which must be kept, see
+   * {@link #dropCommunicationInFavorOfId()}), building it if needed.
+   */
+  public CommunicationIndex getIndex() {
+    if (communication == null)
+      throw new IllegalStateException("must have pointer to Communication");
+    if (index == null)
+      index = new CommunicationIndex(communication);
+    return index;
+  }
+
+  /** Lets you share an index which was already built for this {@link Communication} */
+  public void setIndex(CommunicationIndex index) {
+    if (communication == null || index.getCommunication() != communication)
+      throw new IllegalArgumentException("index is not for this Communication");
+    this.index = index;
+  }
+
   public void dropCommunicationInFavorOfId() {
     if (communication == null) {
       Log.warn("communication was already null!");
@@ -96,6 +118,7 @@ public class ConcreteDocumentMapping implements Serializable {
     }
     communicationUUID = communication.getUuid();
     communication = null;
+    index = null;
   }
 
   public Document getDocument() {
@@ -153,24 +176,6 @@ public class ConcreteDocumentMapping implements Serializable {
     return u;
   }
 
-  /**
-   * Used for figuring out what {@link EntityMentionSet} your
-   * {@link EntityMention}s belong to.
-   */
-  private Map<UUID, UUID> buildEntityMention2EntityMentionSetMapping() {
-    Map<UUID, UUID> m = new HashMap<>();
-    for (EntityMentionSet es : communication.getEntityMentionSetList()) {
-      for (EntityMention em : es.getMentionList()) {
-        UUID old = m.put(em.getUuid(), es.getUuid());
-        if (old != null) {
-          throw new RuntimeException("non-unique EntityMention UUID! "
-              + em.getUuid() + " appears in " + old + " and " + es.getUuid());
-        }
-      }
-    }
-    return m;
-  }
-
   /**
    * Assuming you have added {@link Constituent} -> {@link EntityMention}.UUID
    * mappings for all of the mentions provided, add them to the {@link Communication}
@@ -178,7 +183,7 @@ public class ConcreteDocumentMapping implements Serializable {
    * Don't do this twice (mutates underlying {@link Communication})!
    */
   public void addCorefToCommunication(List<List<Constituent>> entities, String toolname) {
-    if (communication != null)
+    if (communication == null)
       throw new IllegalStateException("must have pointer to Communication");
 
     /*
@@ -189,7 +194,8 @@ public class ConcreteDocumentMapping implements Serializable {
      * mapping.
      */
 
-    Map<UUID, UUID> em2ems = buildEntityMention2EntityMentionSetMapping();
+    // Used for figuring out what EntityMentionSet your EntityMentions belong to
+    CommunicationIndex idx = getIndex();
 
     EntitySet es = new EntitySet();
     es.setUuid(UUIDFactory.newUUID());
@@ -197,6 +203,7 @@ public class ConcreteDocumentMapping implements Serializable {
     es.getMetadata().setTimestamp(System.currentTimeMillis() / 1000);
     es.getMetadata().setTool(toolname);
     communication.addToEntitySetList(es);
+    index = null;   // communication has changed
     for (List<Constituent> ent : entities) {
       Entity cEnt = new Entity();
       cEnt.setUuid(UUIDFactory.newUUID());
@@ -213,9 +220,10 @@ public class ConcreteDocumentMapping implements Serializable {
         cEnt.addToMentionIdList(emId);
 
         // Update/check the EntityMentionSet
-        UUID emsId = em2ems.get(emId);
+        UUID emsId = idx.getContainer(emId);
         if (emsId == null)
           throw new RuntimeException();
+        idx.findByUUID(EntityMention.class, emId);   // checks uniqueness and type
         if (!es.isSetMentionSetId())
           es.setMentionSetId(emsId);
         else if (!es.getMentionSetId().equals(emsId))
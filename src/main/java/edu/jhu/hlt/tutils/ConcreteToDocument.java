@@ -35,14 +35,11 @@ import edu.jhu.hlt.tutils.Document.Constituent;
 import edu.jhu.hlt.tutils.Document.ConstituentItr;
 import edu.jhu.hlt.tutils.Document.Token;
 import edu.jhu.hlt.tutils.data.BrownClusters;
-import edu.jhu.hlt.tutils.data.WordNetPosUtil;
+import edu.jhu.hlt.tutils.data.WordNetSynsetCache;
 import edu.jhu.hlt.tutils.ling.Language;
 import edu.mit.jwi.IRAMDictionary;
 import edu.mit.jwi.RAMDictionary;
 import edu.mit.jwi.data.ILoadPolicy;
-import edu.mit.jwi.item.IIndexWord;
-import edu.mit.jwi.item.ISynsetID;
-import edu.mit.jwi.item.IWordID;
 
 /**
  * Ingests {@link Communication} into {@link Document}. You can specify tools
@@ -131,6 +128,16 @@ public class ConcreteToDocument {
   public Predicate<DependencyParse> dparseUDTool;     // universalDependencies
   public Predicate<DependencyParse> dparseParsey;     // Parsey McParseface, syntaxnet, Andor et al. (2016)
 
+  /**
+   * If true, dependency graphs are left as {@link LabeledDirectedGraph.Lazy}
+   * (e.g. {@link Document#stanfordDepsBasicLazy}) and only built when their
+   * getter (e.g. {@link Document#getStanfordDepsBasic()}) is called, which
+   * saves time and memory if you only use some of them. Code which reads the
+   * graph fields directly will see null unless it calls
+   * {@link Document#buildLazyGraphs()} first.
+   */
+  public boolean lazyDparses = false;
+
   /**
    * Assumes Propbank SRL is stored as a {@link SituationMention} using
    * {@link ConstituentRef}. See the documentation in {@link Document} for how
@@ -169,6 +176,7 @@ public class ConcreteToDocument {
 
   protected BrownClusters bc256, bc1000;
   protected IRAMDictionary wnDict;
+  protected WordNetSynsetCache wnCache;
 
   public Language lang;
     
@@ -252,6 +260,25 @@ public class ConcreteToDocument {
     this.lang = lang;
   }
 
+  /**
+   * The (lemma, pos) -> synset cache used to set wnSynset, made for the given
+   * alphabet (most recently used one if null). Null if there is no WordNet.
+   * When the alphabet changes (e.g. a new one per document) the new cache
+   * shares the dictionary results of the old one.
+   */
+  public WordNetSynsetCache getWordNetCache(MultiAlphabet alph) {
+    if (wnDict == null)
+      return null;
+    if (wnCache == null) {
+      if (alph == null)
+        return null;
+      wnCache = new WordNetSynsetCache(wnDict, alph, 1 << 16);
+    } else if (alph != null && wnCache.getAlphabet() != alph) {
+      wnCache = new WordNetSynsetCache(wnCache, alph);
+    }
+    return wnCache;
+  }
+
   private static void setTokenHelper(IntConsumer tokSet, ToIntFunction<String> alph, TokenTagging tags, int i, Tokenization toks) {
     int n = toks.getTokenList().getTokenListSize();
     if (tags == null)
@@ -313,18 +340,8 @@ public class ConcreteToDocument {
     if (wnDict != null && pos != null && lang == Language.EN) {
       assert pos.getTaggedTokenListSize() == t.getTokenList().getTokenListSize();
       String p = pos.getTaggedTokenList().get(tokenIdx).getTag();
-      token.setWnSynset(alph.wnSynset(MultiAlphabet.UNKNOWN));
-      edu.mit.jwi.item.POS wnPos = WordNetPosUtil.ptb2wordNet(p);
-      if (wnPos != null) {
-        String wd = token.getLemma() >= 0 ? alph.word(token.getLemma()) : token.getWordStr();
-        IIndexWord wnWord = wnDict.getIndexWord(wd, wnPos);
-        if (wnWord != null) {
-          IWordID wnWordId = wnWord.getWordIDs().get(0);
-          ISynsetID ssid = wnWordId.getSynsetID();
-          int ss = alph.wnSynset(ssid.toString());
-          token.setWnSynset(ss);
-        }
-      }
+      int wd = token.getLemma() >= 0 ? token.getLemma() : token.getWord();
+      token.setWnSynset(getWordNetCache(alph).synset(wd, alph.pos(p)));
     }
   }
   
@@ -651,7 +668,21 @@ public class ConcreteToDocument {
       ConcreteDocumentMapping mapping,
       MultiAlphabet alph,
       boolean addSituationMentionConsIdxToMapping) {
+    return addSituationMentionSetAsConstituents(new CommunicationIndex(c),
+        situationMentionSetToolName, constituentIndices, mapping, alph,
+        addSituationMentionConsIdxToMapping);
+  }
+
+  /** Same as above, but lookups go through an existing index. */
+  public int addSituationMentionSetAsConstituents(
+      CommunicationIndex cidx,
+      String situationMentionSetToolName,
+      Map<ConstituentRef, Integer> constituentIndices,  // TODO fold into mapping
+      ConcreteDocumentMapping mapping,
+      MultiAlphabet alph,
+      boolean addSituationMentionConsIdxToMapping) {
 
+    Communication c = cidx.getCommunication();
     Document doc = mapping.getDocument();
 
     if (debug_situations_to_cons) {
@@ -660,7 +691,7 @@ public class ConcreteToDocument {
     }
 
     boolean allowMissing = true;
-    SituationMentionSet sms = findByTool(c.getSituationMentionSetList(), situationMentionSetToolName, allowMissing);
+    SituationMentionSet sms = cidx.findByTool(SituationMentionSet.class, situationMentionSetToolName, allowMissing);
     if (sms == null) {
       System.err.println("failed to find SituationMentionSet by tool: " + situationMentionSetToolName);
 //        + " among: " + c.getSituationMentionSetList().stream().map(SituationMentionSet::getMetadata).collect(Collectors.toList()));
@@ -836,6 +867,9 @@ public class ConcreteToDocument {
     ConcreteDocumentMapping mapping = keepConcrete
         ? new ConcreteDocumentMapping(c, doc)
         : new ConcreteDocumentMapping(c.getUuid(), doc);
+    CommunicationIndex cidx = new CommunicationIndex(c);
+    if (keepConcrete)
+      mapping.setIndex(cidx);
     DocumentTester tester = new DocumentTester(doc, true);
 
     // Count the number of tokens and add the sentence sectioning
@@ -887,11 +921,11 @@ public class ConcreteToDocument {
     Map<ConstituentRef, Integer> constituentIndices = new HashMap<>();
     int prevParseG = Document.NONE;
     int prevParseH = Document.NONE;
-    LabeledDirectedGraph.Builder dparseBasic = new LabeledDirectedGraph().new Builder();
-    LabeledDirectedGraph.Builder dparseColl = new LabeledDirectedGraph().new Builder();
-    LabeledDirectedGraph.Builder dparseCollCC = new LabeledDirectedGraph().new Builder();
-    LabeledDirectedGraph.Builder dparseUD = new LabeledDirectedGraph().new Builder();
-    LabeledDirectedGraph.Builder dparseParsey = new LabeledDirectedGraph().new Builder();
+    LabeledDirectedGraph.Lazy dparseBasic = new LabeledDirectedGraph.Lazy();
+    LabeledDirectedGraph.Lazy dparseColl = new LabeledDirectedGraph.Lazy();
+    LabeledDirectedGraph.Lazy dparseCollCC = new LabeledDirectedGraph.Lazy();
+    LabeledDirectedGraph.Lazy dparseUD = new LabeledDirectedGraph.Lazy();
+    LabeledDirectedGraph.Lazy dparseParsey = new LabeledDirectedGraph.Lazy();
 
 //    // We use numToks (in the entire document) as the root for all dparses
 //    assert numToks > 0;
@@ -1005,15 +1039,17 @@ public class ConcreteToDocument {
     }
 
     if (dparseBasic.numEdges() > 0)
-      doc.stanfordDepsBasic = dparseBasic.freeze();
+      doc.stanfordDepsBasicLazy = dparseBasic;
     if (dparseColl.numEdges() > 0)
-      doc.stanfordDepsCollapsed = dparseColl.freeze();
+      doc.stanfordDepsCollapsedLazy = dparseColl;
     if (dparseCollCC.numEdges() > 0)
-      doc.stanfordDepsCollapsedCC = dparseCollCC.freeze();
+      doc.stanfordDepsCollapsedCCLazy = dparseCollCC;
     if (dparseUD.numEdges() > 0)
-      doc.universalDependencies = dparseUD.freeze();
+      doc.universalDependenciesLazy = dparseUD;
     if (dparseParsey.numEdges() > 0)
-      doc.parseyMcParseFace = dparseParsey.freeze();
+      doc.parseyMcParseFaceLazy = dparseParsey;
+    if (!lazyDparses)
+      doc.buildLazyGraphs();
 
     doc.computeDepths();
 
@@ -1024,7 +1060,7 @@ public class ConcreteToDocument {
       if (debug_situations_to_cons)
         Log.info("adding propbankToolGold=" + propbankToolGold);
       doc.cons_propbank_gold = addSituationMentionSetAsConstituents(
-          c, propbankToolGold, constituentIndices, mapping, alph, addSituationMentionConsIdxToMapping);
+          cidx, propbankToolGold, constituentIndices, mapping, alph, addSituationMentionConsIdxToMapping);
       if (doc.cons_propbank_gold == Document.UNINITIALIZED)
         throw new RuntimeException("couldn't find gold propbank: " + propbankToolGold);
     }
@@ -1032,7 +1068,7 @@ public class ConcreteToDocument {
       if (debug_situations_to_cons)
         Log.info("adding propbankToolAuto=" + propbankToolAuto);
       doc.cons_propbank_auto = addSituationMentionSetAsConstituents(
-          c, propbankToolAuto, constituentIndices, mapping, alph, addSituationMentionConsIdxToMapping);
+          cidx, propbankToolAuto, constituentIndices, mapping, alph, addSituationMentionConsIdxToMapping);
       if (doc.cons_propbank_auto == Document.UNINITIALIZED)
         throw new RuntimeException("couldn't find auto propbank: " + propbankToolAuto);
     }
@@ -1040,13 +1076,13 @@ public class ConcreteToDocument {
     // Add general-purpose SituationMentions
     if (situationMentionToolGold != null) {
       doc.cons_situationMentions_gold = addSituationMentionSetAsConstituents(
-          c, situationMentionToolGold, constituentIndices, mapping, alph, addSituationMentionConsIdxToMapping);
+          cidx, situationMentionToolGold, constituentIndices, mapping, alph, addSituationMentionConsIdxToMapping);
       if (doc.cons_situationMentions_gold == Document.UNINITIALIZED)
         throw new RuntimeException("couldn't find SituationMentions: " + situationMentionToolGold);
     }
     if (situationMentionToolAuto != null) {
       doc.cons_situationMentions_auto = addSituationMentionSetAsConstituents(
-          c, situationMentionToolAuto, constituentIndices, mapping, alph, addSituationMentionConsIdxToMapping);
+          cidx, situationMentionToolAuto, constituentIndices, mapping, alph, addSituationMentionConsIdxToMapping);
       if (doc.cons_situationMentions_auto == Document.UNINITIALIZED)
         throw new RuntimeException("couldn't find SituationMentions: " + situationMentionToolAuto);
     }
@@ -1055,26 +1091,26 @@ public class ConcreteToDocument {
     if (corefToolGold != null) {
       if (debug)
         Log.info("adding corefToolGold=" + corefToolGold);
-      EntitySet es = findByTool(c.getEntitySetList(), corefToolGold, true);
+      EntitySet es = cidx.findByTool(EntitySet.class, corefToolGold, true);
       if (es == null) {
         Log.warn("couldn't find corefToolGold=" + corefToolGold + " in " + c.getId());
       } else {
         if (!es.isSetMentionSetId())
           throw new RuntimeException("implement EntityMentionSet finder for when EntitySet doesn't provide one");
-        EntityMentionSet ems = findByUUID(c.getEntityMentionSetList(), es.getMentionSetId());
+        EntityMentionSet ems = cidx.findByUUID(EntityMentionSet.class, es.getMentionSetId());
         doc.cons_coref_gold = addCorefConstituents(es.getEntityList(), corefToolGold, ems, doc, mapping);
       }
     }
     if (corefToolAuto != null) {
       if (debug)
         Log.info("adding corefToolAuto=" + corefToolAuto);
-      EntitySet es = findByTool(c.getEntitySetList(), corefToolAuto, true);
+      EntitySet es = cidx.findByTool(EntitySet.class, corefToolAuto, true);
       if (es == null) {
         Log.warn("couldn't find corefToolAuto=" + corefToolAuto + " in " + c.getId());
       } else {
         if (!es.isSetMentionSetId())
           throw new RuntimeException("implement EntityMentionSet finder for when EntitySet doesn't provide one");
-        EntityMentionSet ems = findByUUID(c.getEntityMentionSetList(), es.getMentionSetId());
+        EntityMentionSet ems = cidx.findByUUID(EntityMentionSet.class, es.getMentionSetId());
         doc.cons_coref_auto = addCorefConstituents(es.getEntityList(), corefToolAuto, ems, doc, mapping);
       }
     }
@@ -1083,7 +1119,7 @@ public class ConcreteToDocument {
     if (corefMentionToolGold != null) {
       if (debug)
         Log.info("adding corefMentionToolGold=" + corefMentionToolGold);
-      EntityMentionSet ems = findByTool(c.getEntityMentionSetList(), corefMentionToolGold, true);
+      EntityMentionSet ems = cidx.findByTool(EntityMentionSet.class, corefMentionToolGold, true);
       if (ems == null) {
         Log.warn("couldn't find corefMentionToolGold=" + corefMentionToolGold + " in " + c.getId());
       } else {
@@ -1093,7 +1129,7 @@ public class ConcreteToDocument {
     if (corefMentionToolAuto != null) {
       if (debug)
         Log.info("adding corefMentionToolAuto=" + corefMentionToolAuto);
-      EntityMentionSet ems = findByTool(c.getEntityMentionSetList(), corefMentionToolAuto, true);
+      EntityMentionSet ems = cidx.findByTool(EntityMentionSet.class, corefMentionToolAuto, true);
       if (ems == null) {
         Log.warn("couldn't find corefMentionToolAuto=" + corefMentionToolAuto + " in " + c.getId());
       } else {
@@ -1194,73 +1230,124 @@ public class ConcreteToDocument {
     return io;
   }
 
-  public static <T> T findByUUID(List<T> items, UUID id) {
-    T match = null;
-    List<UUID> possible = new ArrayList<>();
-    for (T t : items) {
-
-      UUID am;
-      try {
-        am = (UUID) t.getClass().getMethod("getId").invoke(t);
-      } catch (Exception nsm1) {
+  /**
+   * Finds the method which returns an item's {@link UUID}, checking "getId",
+   * "getUuid", and "getUUID" in that order. Looked up once per class.
+   */
+  private static final ClassValue<Method> UUID_GETTER = new ClassValue<Method>() {
+    @Override
+    protected Method computeValue(Class<?> type) {
+      for (String name : new String[] {"getId", "getUuid", "getUUID"}) {
         try {
-          am = (UUID) t.getClass().getMethod("getUuid").invoke(t);
-        } catch (Exception nsm2) {
-          try {
-            am = (UUID) t.getClass().getMethod("getUUID").invoke(t);
-          } catch (Exception nsm3) {
-            throw new RuntimeException("couldn't figure out id for: " + t);
-          }
+          Method m = type.getMethod(name);
+          if (UUID.class.equals(m.getReturnType()))
+            return m;
+        } catch (NoSuchMethodException e) {
+          // try the next one
         }
       }
+      return null;
+    }
+  };
+
+  private static final ClassValue<Method> METADATA_GETTER = new ClassValue<Method>() {
+    @Override
+    protected Method computeValue(Class<?> type) {
+      try {
+        return type.getMethod("getMetadata");
+      } catch (NoSuchMethodException e) {
+        return null;
+      }
+    }
+  };
+
+  private static UUID getUUID(Object t) {
+    Method m = UUID_GETTER.get(t.getClass());
+    if (m == null)
+      throw new RuntimeException("couldn't figure out id for: " + t);
+    try {
+      return (UUID) m.invoke(t);
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
+
+  private static String getTool(Object t) {
+    Method m = METADATA_GETTER.get(t.getClass());
+    if (m == null)
+      throw new RuntimeException("no metadata for: " + t);
+    try {
+      AnnotationMetadata am = (AnnotationMetadata) m.invoke(t);
+      return am.getTool();
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+  }
 
-      possible.add(am);
-      if (id.equals(am)) {
+  /**
+   * Linear scan. If you are doing many of these over one {@link Communication},
+   * use a {@link CommunicationIndex} instead.
+   */
+  public static <T> T findByUUID(List<T> items, UUID id) {
+    T match = null;
+    for (T t : items) {
+      if (id.equals(getUUID(t))) {
         if (match != null) {
           throw new RuntimeException("non-unique UUID \""
-              + id + "\" in " + possible);
+              + id + "\" in " + uuids(items));
         }
         match = t;
       }
     }
     if (match == null) {
       throw new RuntimeException("couldn't find tool named \""
-          + id + "\" in " + possible);
+          + id + "\" in " + uuids(items));
     }
     return match;
   }
 
+  private static <T> List<UUID> uuids(List<T> items) {
+    List<UUID> possible = new ArrayList<>();
+    for (T t : items)
+      possible.add(getUUID(t));
+    return possible;
+  }
+
+  private static <T> List<String> tools(List<T> items) {
+    List<String> possible = new ArrayList<>();
+    if (items != null)
+      for (T t : items)
+        possible.add(getTool(t));
+    return possible;
+  }
+
   public static <T> T findByTool(List<T> items, String toolname) {
     return findByTool(items, toolname, false);
   }
+  /**
+   * Linear scan. If you are doing many of these over one {@link Communication},
+   * use a {@link CommunicationIndex} instead.
+   */
   public static <T> T findByTool(List<T> items, String toolname, boolean allowMissing) {
     T match = null;
-    List<String> possible = new ArrayList<>();
     if (items != null) {
       for (T t : items) {
-        try {
-          Method m = t.getClass().getMethod("getMetadata");
-          AnnotationMetadata am = (AnnotationMetadata) m.invoke(t);
-          possible.add(am.getTool());
-          if (toolname.equals(am.getTool())) {
-            if (match != null) {
-              throw new RuntimeException("non-unique toolname \""
-                  + toolname + "\" in " + possible
-                  + " [" + items.get(0).getClass() + "]");
-            }
-            match = t;
+        if (toolname.equals(getTool(t))) {
+          if (match != null) {
+            throw new RuntimeException("non-unique toolname \""
+                + toolname + "\" in " + tools(items)
+                + " [" + items.get(0).getClass() + "]");
           }
-        } catch (Exception e) {
-          throw new RuntimeException(e);
+          match = t;
         }
       }
     }
     if (match == null && !allowMissing) {
       String c = "???";
-      if (items != null)
+      if (items != null && !items.isEmpty())
         c = items.get(0).getClass().getName();
       throw new RuntimeException("couldn't find tool named \""
-          + toolname + "\" in " + possible + " [" + c + "]");
+          + toolname + "\" in " + tools(items) + " [" + c + "]");
     }
     return match;
   }
@@ -1268,33 +1355,30 @@ public class ConcreteToDocument {
   public static <T> T findByPredicate(List<T> items, Predicate<T> p) {
     if (p == null)
       return null;
-    List<T> possible = new ArrayList<>();
+    T match = null;
+    int matches = 0;
     for (T t : items) {
-      if (p.test(t))
-        possible.add(t);
+      if (p.test(t)) {
+        match = t;
+        matches++;
+      }
     }
-    if (possible.size() != 1) {
+    if (matches != 1) {
+      List<T> possible = new ArrayList<>();
+      for (T t : items)
+        if (p.test(t))
+          possible.add(t);
       throw new RuntimeException("not exactly one match:\n"
           + StringUtils.join("\n", possible));
     }
-//    if (possible.size() == 0)
-//      return null;
-    return possible.get(0);
+    return match;
   }
 
   public static <T> Map<UUID, T> indexByUUID(List<T> items) {
     Map<UUID, T> map = new HashMap<>();
     for (T t : items) {
-      try {
-        Method m = t.getClass().getMethod("getUuid");
-        if (m == null)
-          m = t.getClass().getMethod("getId");
-        UUID id = (UUID) m.invoke(t);
-        T old = map.put(id, t);
-        assert old == null;
-      } catch (Exception e) {
-        throw new RuntimeException(e);
-      }
+      T old = map.put(getUUID(t), t);
+      assert old == null;
     }
     return map;
   }
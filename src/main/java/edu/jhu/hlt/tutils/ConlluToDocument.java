@@ -1,6 +1,5 @@
 package edu.jhu.hlt.tutils;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 
@@ -53,42 +52,48 @@ public class ConlluToDocument {
   }
 
   /**
-   * Using 0 as ROOT
+   * Dependencies are 0-indexed and do not include edges from ROOT. Sentences
+   * are stored in {@link Document#cons_sentences}, and each token gets a
+   * constituent (in one list after the sentences) whose children are its
+   * FEATS (lhs from {@link MultiAlphabet#feat(String)}).
    */
   public Document parse(String id, File conlluFile) throws IOException {
     if (showReads)
       Log.info("reading from " + conlluFile.getPath());
     
-    Document d = new Document(null, -1, alph);
-    Constituent prev = null;
-    
+    Document d = new Document(id, -1, alph);
     LabeledDirectedGraph.Builder deps = new LabeledDirectedGraph().new Builder();
     
     int sentenceOffset = 0;
-    try (BufferedReader r = FileUtil.getReader(conlluFile)) {
-      for (String line = r.readLine(); line != null; line = r.readLine()) {
-        if (line.isEmpty()) {
-          throw new RuntimeException("implmeent me");
+    Constituent prevSent = null;
+    Constituent prev = null;
+    try (ConllxStreamReader r = new ConllxStreamReader(conlluFile, alph)) {
+      r.posColumn = ConllxStreamReader.CPOSTAG;   // universal POS tag
+      r.readLemmas = true;
+      r.readFeats = true;
+      for (int n = r.nextSentence(); n > 0; n = r.nextSentence()) {
+        Constituent sent = d.newConstituent();
+        sent.setOnlyChild(Document.NONE);
+        sent.setFirstToken(sentenceOffset);
+        sent.setLastToken(sentenceOffset + n - 1);
+        if (prevSent == null) {
+          d.cons_sentences = sent.getIndex();
         } else {
-          
-          String[] toks = line.split("\t");
-          assert toks.length == 10;
+          prevSent.setRightSib(sent.getIndex());
+          sent.setLeftSib(prevSent.getIndex());
+        }
+        prevSent = sent;
+      
+        for (int i = 0; i < n; i++) {
           Token t = d.newToken();
-          
-          int uPos = alph.pos(toks[3]); // universal POS tag
-//          int xPos = alph.pos(toks[4]); // language specific POS tag
+          t.setWord(r.getWord(i));
+          t.setLemma(r.getLemma(i));
+          t.setPosG(r.getPos(i));
+
+          int head = r.getHead(i);
+          if (head >= 0)
+            deps.add(sentenceOffset + head, sentenceOffset + i, r.getDeprel(i));
 
-          t.setWord(alph.word(toks[1]));
-          t.setLemma(alph.word(toks[2]));
-          t.setPosG(uPos);
-          
-          int head = Integer.parseInt(toks[6]);
-          int modifier = Integer.parseInt(toks[0]);
-          int deprel = alph.dep(toks[7]);
-          head += sentenceOffset;
-          modifier += sentenceOffset;
-          deps.add(head, modifier, deprel);
-          
           // Have a constituent for every feature type?
           // They aren't "dense", as in the features which fire on any given token are sparse
           /*
@@ -108,6 +113,8 @@ public class ConlluToDocument {
            * each cons has a child corresponding to each feature
            */
           Constituent c = d.newConstituent();
+          c.setFirstToken(t.getIndex());
+          c.setLastToken(t.getIndex());
           c.setRightSib(Document.NONE);
           if (prev != null) {
             prev.setRightSib(c.getIndex());
@@ -115,25 +122,33 @@ public class ConlluToDocument {
           } else {
             c.setLeftSib(Document.NONE);
           }
-          
-          String[] feats = toks[5].split("|");
-          Constituent[] featsC = new Constituent[feats.length];
-          for (int i = 0; i < feats.length; i++) {
-//            String[] fvt = feats[i].split("=");
-//            assert fvt.length == 2;
-            featsC[i] = d.newConstituent();
-            featsC[i].setParent(c.getIndex());
-            featsC[i].setLhs(alph.pos(feats[i]));
-            featsC[i].setOnlyChild(Document.NONE);
-            featsC[i].setLeftSib(Document.NONE);
-            featsC[i].setRightSib(Document.NONE);
+          prev = c;
+
+          int nf = r.numFeats(i);
+          Constituent prevF = null;
+          for (int k = 0; k < nf; k++) {
+            Constituent f = d.newConstituent();
+            f.setParent(c.getIndex());
+            f.setLhs(r.getFeat(i, k));
+            f.setFirstToken(t.getIndex());
+            f.setLastToken(t.getIndex());
+            f.setOnlyChild(Document.NONE);
+            f.setRightSib(Document.NONE);
+            if (prevF == null) {
+              c.setLeftChild(f.getIndex());
+              f.setLeftSib(Document.NONE);
+            } else {
+              prevF.setRightSib(f.getIndex());
+              f.setLeftSib(prevF.getIndex());
+            }
+            prevF = f;
           }
-          for (int i = 1; i < feats.length; i++)
-            featsC[i].setLeftChild(featsC[i-1].getIndex());
-          for (int i = 0; i < feats.length-1; i++)
-            featsC[i].setRightChild(featsC[i+1].getIndex());
-          
+          if (prevF == null)
+            c.setOnlyChild(Document.NONE);
+          else
+            c.setRightChild(prevF.getIndex());
         }
+        sentenceOffset += n;
       }
     }
     d.universalDependencies = deps.freeze();
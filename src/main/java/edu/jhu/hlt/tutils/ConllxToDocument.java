@@ -1,6 +1,5 @@
 package edu.jhu.hlt.tutils;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 
@@ -60,45 +59,32 @@ public class ConllxToDocument {
       throw new RuntimeException("implement me");
     Document d = new Document(id, -1, alph);
     LabeledDirectedGraph.Builder g = new LabeledDirectedGraph().new Builder();
-    try (BufferedReader r = FileUtil.getReader(conllxFile)) {
+    try (ConllxStreamReader r = new ConllxStreamReader(conllxFile, alph)) {
       int sentenceOffset = 0;   // index of first token in this sentence
-      int token = 0;
       Document.Constituent prevSent = null;
-      for (String line = r.readLine(); line != null; line = r.readLine()) {
-        if (line.isEmpty()) {
-          // Sentence boundary
-          Document.Constituent sent = d.newConstituent();
-          sent.setOnlyChild(Document.NONE);
-          if (prevSent == null) {
-            d.cons_sentences = sent.index;
-          } else {
-            prevSent.setRightSib(sent.index);
-            sent.setLeftSib(prevSent.index);
-          }
-          sent.setFirstToken(sentenceOffset);
-          assert token > 0;
-          sent.setLastToken(token-1);
-          sentenceOffset = token;
-          prevSent = sent;
-        } else {
-          // New token
-          token++;
-          String[] toks = line.split("\t");
-
+      for (int n = r.nextSentence(); n > 0; n = r.nextSentence()) {
+        for (int i = 0; i < n; i++) {
           Document.Token t = d.newToken();
-          t.setWord(alph.word(toks[1]));
-          t.setPosH(alph.pos(toks[4]));
-//          Log.info(toks[1] + "\t" + toks[4]);
+          t.setWord(r.getWord(i));
+          t.setPosH(r.getPos(i));
+          int parent = r.getHead(i);
+          if (parent >= 0)
+            g.add(sentenceOffset + parent, sentenceOffset + i, r.getDeprel(i));
+        }
 
-          int parent = sentenceOffset + Integer.parseInt(toks[6]) - 1;
-          if (parent >= 0) {
-            int child = sentenceOffset + Integer.parseInt(toks[0]) - 1;
-            int edgeLabel = alph.dep(toks[7]);
-            g.add(parent, child, edgeLabel);
-          } else {
-            assert "ROOT".equals(toks[7]);
-          }
+        // Sentence boundary
+        Document.Constituent sent = d.newConstituent();
+        sent.setOnlyChild(Document.NONE);
+        if (prevSent == null) {
+          d.cons_sentences = sent.index;
+        } else {
+          prevSent.setRightSib(sent.index);
+          sent.setLeftSib(prevSent.index);
         }
+        sent.setFirstToken(sentenceOffset);
+        sent.setLastToken(sentenceOffset + n - 1);
+        sentenceOffset += n;
+        prevSent = sent;
       }
     }
     d.parseyMcParseFace = g.freeze();
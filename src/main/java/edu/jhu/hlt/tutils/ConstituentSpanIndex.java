@@ -0,0 +1,263 @@
+package edu.jhu.hlt.tutils;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+import edu.jhu.hlt.tutils.Document.ConstituentItr;
+
+/**
+ * Answers span queries over a fixed set of constituents (the "universe") in a
+ * {@link Document}, without boxing:
+ * - {@link #find(int, int)}: constituent with exactly the span [i,j]
+ * - {@link #forEachStartingAt(int, IntConsumer)}: constituents with firstToken=i
+ * - {@link #forEachCovering(int, int, IntConsumer)}: constituents with
+ *   firstToken <= i and lastToken >= j
+ * - {@link #smallestCovering(int, int)}: the narrowest such constituent
+ *
+ * Constituents are sorted by (firstToken asc, lastToken desc, universe order),
+ * so a lookup by start is a binary search. Covering queries take the prefix
+ * with firstToken <= i and pull out every item with lastToken >= j by
+ * repeatedly splitting on the range max (sparse table, O(1) per max), which is
+ * O(log n + k) for k results. Build is O(n log n) time and space.
+ *
+ * The universe may contain overlapping/crossing spans (e.g. entity mentions),
+ * there is no laminar (tree) assumption. When several constituents share a
+ * span, the one earliest in the universe order wins, which for
+ * {@link #fromCparse(Document, int)} is the shallowest, matching
+ * {@link Document#getSpanToConstituentMapping(int)}.
+ *
+ * @author travis
+ */
+public class ConstituentSpanIndex {
+
+  private static final int TOK_BITS = 21;
+  private static final int POS_BITS = 63 - 2 * TOK_BITS;   // keep keys positive
+  private static final long TOK_MASK = (1L << TOK_BITS) - 1;
+
+  private Document doc;
+  private int n;
+
+  // Sorted by (first asc, last desc, universe order)
+  private int[] first;
+  private int[] last;
+  private int[] cons;
+
+  // argMaxLast[k][p] = index of max last in [p, p + 2^k)
+  private int[][] argMaxLast;
+
+  public ConstituentSpanIndex(Document doc, int[] constituents) {
+    this(doc, constituents, constituents.length);
+  }
+
+  /**
+   * @param constituents indices of constituents in doc, only the first n are used.
+   */
+  public ConstituentSpanIndex(Document doc, int[] constituents, int n) {
+    if (n >= (1 << POS_BITS))
+      throw new IllegalArgumentException("too many constituents: " + n);
+    this.doc = doc;
+    this.n = n;
+    long[] keys = new long[n];
+    for (int i = 0; i < n; i++) {
+      int c = constituents[i];
+      int f = doc.getFirstToken(c);
+      int l = doc.getLastToken(c);
+      if (f < 0 || l < f)
+        throw new IllegalArgumentException("malformed constituent, index=" + c + " firstToken=" + f + " lastToken=" + l);
+      if (l > TOK_MASK)
+        throw new IllegalArgumentException("token index too large: " + l);
+      keys[i] = ((long) f << (TOK_BITS + POS_BITS)) | ((TOK_MASK - l) << POS_BITS) | i;
+    }
+    Arrays.sort(keys);
+    first = new int[n];
+    last = new int[n];
+    cons = new int[n];
+    long posMask = (1L << POS_BITS) - 1;
+    for (int i = 0; i < n; i++) {
+      int c = constituents[(int) (keys[i] & posMask)];
+      cons[i] = c;
+      first[i] = doc.getFirstToken(c);
+      last[i] = doc.getLastToken(c);
+    }
+    buildSparseTable();
+  }
+
+  private void buildSparseTable() {
+    int levels = 1;
+    while ((1 << levels) <= n)
+      levels++;
+    argMaxLast = new int[levels][];
+    argMaxLast[0] = new int[n];
+    for (int i = 0; i < n; i++)
+      argMaxLast[0][i] = i;
+    for (int k = 1; k < levels; k++) {
+      int w = 1 << k;
+      int[] prev = argMaxLast[k - 1];
+      int[] cur = new int[n - w + 1];
+      for (int i = 0; i + w <= n; i++) {
+        int a = prev[i], b = prev[i + (w >> 1)];
+        cur[i] = last[b] > last[a] ? b : a;
+      }
+      argMaxLast[k] = cur;
+    }
+  }
+
+  /**
+   * Index of all cparse constituents under the given linked list, which is
+   * the same set of constituents as in
+   * {@link Document#getSpanToConstituentMapping(int)}.
+   */
+  public static ConstituentSpanIndex fromCparse(Document doc, int firstConsIdx) {
+    IntList u = new IntList();
+    for (ConstituentItr ci = doc.getConstituentItr(firstConsIdx); ci.isValid(); ci.gotoRightSib())
+      for (int root = ci.getLeftChild(); root != Document.NONE; root = doc.getRightSib(root))
+        addPreorder(doc, root, u);
+    return new ConstituentSpanIndex(doc, u.items, u.size);
+  }
+
+  private static void addPreorder(Document doc, int c, IntList addTo) {
+    addTo.add(c);
+    for (int child = doc.getLeftChild(c); child != Document.NONE; child = doc.getRightSib(child))
+      addPreorder(doc, child, addTo);
+  }
+
+  /**
+   * Index of every constituent in a linked list (not their children), e.g.
+   * {@link Document#cons_sentences}.
+   */
+  public static ConstituentSpanIndex fromList(Document doc, int firstConsIdx) {
+    IntList u = new IntList();
+    for (int c = firstConsIdx; c != Document.NONE; c = doc.getRightSib(c))
+      u.add(c);
+    return new ConstituentSpanIndex(doc, u.items, u.size);
+  }
+
+  private static class IntList {
+    int[] items = new int[16];
+    int size;
+    void add(int i) {
+      if (size == items.length)
+        items = Arrays.copyOf(items, size * 2);
+      items[size++] = i;
+    }
+  }
+
+  public Document getDocument() {
+    return doc;
+  }
+
+  public int size() {
+    return n;
+  }
+
+  /** Number of sorted positions with firstToken < i */
+  private int lowerBound(int i) {
+    int lo = 0, hi = n;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (first[mid] < i)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo;
+  }
+
+  /**
+   * @return the constituent with span [i,j] (inclusive), or
+   * {@link Document#NONE} if there isn't one.
+   */
+  public int find(int i, int j) {
+    // Within a run of first==i, last is descending
+    int lo = lowerBound(i), hi = lowerBound(i + 1);
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (last[mid] > j)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    if (lo < n && first[lo] == i && last[lo] == j)
+      return cons[lo];
+    return Document.NONE;
+  }
+
+  /**
+   * Calls f on every constituent with firstToken=i, widest first.
+   * @return the number of constituents visited.
+   */
+  public int forEachStartingAt(int i, IntConsumer f) {
+    int lo = lowerBound(i), hi = lowerBound(i + 1);
+    for (int p = lo; p < hi; p++)
+      f.accept(cons[p]);
+    return hi - lo;
+  }
+
+  public int countStartingAt(int i) {
+    return lowerBound(i + 1) - lowerBound(i);
+  }
+
+  /**
+   * Calls f on every constituent which covers [i,j], i.e. firstToken <= i and
+   * lastToken >= j, in no particular order.
+   * @return the number of constituents visited.
+   */
+  public int forEachCovering(int i, int j, IntConsumer f) {
+    return covering(0, lowerBound(i + 1) - 1, j, f);
+  }
+
+  public int countCovering(int i, int j) {
+    return covering(0, lowerBound(i + 1) - 1, j, null);
+  }
+
+  private int covering(int lo, int hi, int j, IntConsumer f) {
+    if (lo > hi)
+      return 0;
+    int m = argMax(lo, hi);
+    if (last[m] < j)
+      return 0;
+    if (f != null)
+      f.accept(cons[m]);
+    return 1 + covering(lo, m - 1, j, f) + covering(m + 1, hi, j, f);
+  }
+
+  /** index in [lo,hi] of the max lastToken */
+  private int argMax(int lo, int hi) {
+    int k = 31 - Integer.numberOfLeadingZeros(hi - lo + 1);
+    int a = argMaxLast[k][lo];
+    int b = argMaxLast[k][hi - (1 << k) + 1];
+    return last[b] > last[a] ? b : a;
+  }
+
+  /**
+   * @return the narrowest constituent which covers [i,j] (ties go to the
+   * earlier start, then universe order), or {@link Document#NONE} if there
+   * isn't one.
+   */
+  public int smallestCovering(int i, int j) {
+    int p = smallest(0, lowerBound(i + 1) - 1, j, -1);
+    return p < 0 ? Document.NONE : cons[p];
+  }
+
+  /** Returns the sorted position of the best constituent, or -1 */
+  private int smallest(int lo, int hi, int j, int best) {
+    if (lo > hi)
+      return best;
+    int m = argMax(lo, hi);
+    if (last[m] < j)
+      return best;
+    if (best < 0 || better(m, best))
+      best = m;
+    best = smallest(lo, m - 1, j, best);
+    return smallest(m + 1, hi, j, best);
+  }
+
+  /** Narrower, then earlier start, then earlier in universe order (sorted position) */
+  private boolean better(int a, int b) {
+    int wa = last[a] - first[a];
+    int wb = last[b] - first[b];
+    if (wa != wb)
+      return wa < wb;
+    return a < b;
+  }
+}
@@ -1,10 +1,8 @@
 package edu.jhu.hlt.tutils;
 
-import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.Serializable;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
@@ -31,6 +29,9 @@ import edu.jhu.prim.tuple.Pair;
  * 
  * Can read from CoNLL-X (e.g. parsey).
  *
+ * If you are keeping a lot of parses around, see {@link DepParseCorpus}, which
+ * doesn't need an object per token.
+ *
  * @author travis
  */
 public class DepNode implements Serializable {
@@ -614,27 +615,27 @@ public class DepNode implements Serializable {
     }
   }
   
+  /**
+   * Iterates over parses in a CoNLL-X file, see {@link ConllxStreamReader}.
+   */
   public static class ConllxFileReader implements Iterator<DepNode[]>, AutoCloseable {
     
-    private MultiAlphabet a;
-    private BufferedReader r;
-    private List<String> curLines;
+    private ConllxStreamReader r;
+    private DepNode[] cur;
     
     public final boolean hideDeprels;
     
     public ConllxFileReader(File f, MultiAlphabet a, boolean hideDeprels) throws IOException {
-      this.hideDeprels = hideDeprels;
-      this.a = a;
-      r = FileUtil.getReader(f);
-      curLines = new ArrayList<>();
-      advance();
+      this(new ConllxStreamReader(f, a), hideDeprels);
     }
     
     public ConllxFileReader(InputStream is, MultiAlphabet a, boolean hideDeprels) throws IOException {
+      this(new ConllxStreamReader(is, a), hideDeprels);
+    }
+    
+    public ConllxFileReader(ConllxStreamReader r, boolean hideDeprels) throws IOException {
       this.hideDeprels = hideDeprels;
-      this.a = a;
-      r = new BufferedReader(new InputStreamReader(is));
-      curLines = new ArrayList<>();
+      this.r = r;
       advance();
     }
     
@@ -646,39 +647,24 @@ public class DepNode implements Serializable {
     }
     
     public MultiAlphabet getAlphabet() {
-      return a;
+      return r.getAlphabet();
     }
     
     private void advance() throws IOException {
-      curLines.clear();
-      for (String line = r.readLine(); true; line = r.readLine()) {
-        if (line == null) {
-          curLines = null;    // EOF
-          return;
-        } else if (line.isEmpty()) {
-          return;
-        } else {
-          curLines.add(line);
-        }
-      }
-//      assert false : "malformed";
+      if (r.nextSentence() > 0)
+        cur = r.toDepNodes(hideDeprels);
+      else
+        cur = null;   // EOF
     }
 
     @Override
     public boolean hasNext() {
-//      return !curLines.isEmpty();
-      return curLines != null;
+      return cur != null;
     }
 
     @Override
     public DepNode[] next() {
-      DepNode[] t = readConllx_0IndexedNoRoot(curLines, a);
-      if (hideDeprels) {
-        int edge = a.dep("unk");
-        assert edge <= Byte.MAX_VALUE && edge >= 0;
-        for (int i = 0; i < t.length; i++)
-          t[i].depParentLabel = (byte) edge;
-      }
+      DepNode[] t = cur;
       try {
         advance();
       } catch (Exception e) {
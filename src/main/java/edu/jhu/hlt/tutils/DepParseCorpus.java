@@ -0,0 +1,443 @@
+package edu.jhu.hlt.tutils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntFunction;
+
+import edu.jhu.hlt.tutils.DepNode.Edge;
+import edu.jhu.hlt.tutils.hash.Hash;
+
+/**
+ * The same information as a list of {@link DepNode}[] parses, stored as
+ * parallel primitive arrays over every token in a corpus (struct of arrays).
+ * A {@link DepNode} costs 12 bytes of fields + a 12-16 byte object header +
+ * a pointer from its array (~28 bytes/token measured with compressed oops),
+ * this costs 12 bytes/token + 4 bytes/sentence. 300k length-33 sentences take
+ * ~120 MB instead of ~280 MB.
+ *
+ * Token indices are sentence-local, the same as the index into a
+ * {@link DepNode}[], and -1 means none/root for parent/child/sibling pointers.
+ * Static helpers in {@link DepNode} have equivalents here which take a
+ * sentence index, e.g. {@link #getExtent(int, int)}, {@link #depths(int)},
+ * and {@link ShortestPath}.
+ *
+ * Sentences can only be appended.
+ *
+ * @author travis
+ */
+public class DepParseCorpus implements Serializable {
+  private static final long serialVersionUID = 2186386017718569553L;
+
+  // Indexed by global token index, sentStart[s] + i
+  private int[] word;
+  private byte[] pos;
+  private byte[] depParentLabel;
+  private short[] depParentNode;
+  private short[] depLeftChildNode;
+  private short[] depRightSibNode;
+  private int numTokens;
+
+  // sentence s is tokens [sentStart[s], sentStart[s+1])
+  private int[] sentStart;
+  private int numSentences;
+
+  public DepParseCorpus() {
+    this(1 << 10, 1 << 15);
+  }
+
+  public DepParseCorpus(int numSentences, int numTokens) {
+    numSentences = Math.max(1, numSentences);
+    numTokens = Math.max(1, numTokens);
+    word = new int[numTokens];
+    pos = new byte[numTokens];
+    depParentLabel = new byte[numTokens];
+    depParentNode = new short[numTokens];
+    depLeftChildNode = new short[numTokens];
+    depRightSibNode = new short[numTokens];
+    sentStart = new int[numSentences + 1];
+  }
+
+  private void ensureCapacity(int moreTokens) {
+    if (numSentences + 2 > sentStart.length)
+      sentStart = Arrays.copyOf(sentStart, (int) (sentStart.length * 1.6 + 2.5));
+    int need = numTokens + moreTokens;
+    if (need > word.length) {
+      int c = (int) Math.max(need, word.length * 1.6 + 2.5);
+      word = Arrays.copyOf(word, c);
+      pos = Arrays.copyOf(pos, c);
+      depParentLabel = Arrays.copyOf(depParentLabel, c);
+      depParentNode = Arrays.copyOf(depParentNode, c);
+      depLeftChildNode = Arrays.copyOf(depLeftChildNode, c);
+      depRightSibNode = Arrays.copyOf(depRightSibNode, c);
+    }
+  }
+
+  /** Shrinks the backing arrays to fit, call after you're done adding */
+  public void trimToSize() {
+    word = Arrays.copyOf(word, numTokens);
+    pos = Arrays.copyOf(pos, numTokens);
+    depParentLabel = Arrays.copyOf(depParentLabel, numTokens);
+    depParentNode = Arrays.copyOf(depParentNode, numTokens);
+    depLeftChildNode = Arrays.copyOf(depLeftChildNode, numTokens);
+    depRightSibNode = Arrays.copyOf(depRightSibNode, numTokens);
+    sentStart = Arrays.copyOf(sentStart, numSentences + 1);
+  }
+
+  /** Appends a copy of parse, returns its sentence index */
+  public int add(DepNode[] parse) {
+    ensureCapacity(parse.length);
+    int o = numTokens;
+    for (int i = 0; i < parse.length; i++) {
+      DepNode d = parse[i];
+      word[o + i] = d.word;
+      pos[o + i] = d.pos;
+      depParentLabel[o + i] = d.depParentLabel;
+      depParentNode[o + i] = d.depParentNode;
+      depLeftChildNode[o + i] = d.depLeftChildNode;
+      depRightSibNode[o + i] = d.depRightSibNode;
+    }
+    return endSentence(parse.length);
+  }
+
+  /**
+   * Appends the current sentence in r (without building any {@link DepNode}s),
+   * same as add(r.toDepNodes(hideDeprels)). Returns its sentence index.
+   */
+  public int add(ConllxStreamReader r, boolean hideDeprels) {
+    int n = r.numTokens();
+    ensureCapacity(n);
+    int o = numTokens;
+    int unk = hideDeprels ? r.getAlphabet().dep("unk") : -1;
+    for (int i = 0; i < n; i++) {
+      word[o + i] = r.getWord(i);
+      pos[o + i] = DepNode.i2b(r.getPos(i));
+      depParentLabel[o + i] = DepNode.i2b(hideDeprels ? unk : r.getDeprel(i));
+      depParentNode[o + i] = DepNode.i2s(r.getHead(i));
+      depLeftChildNode[o + i] = -1;
+      depRightSibNode[o + i] = -1;
+    }
+    // Going right to left, the last child seen for a parent is its left-most
+    for (int i = n - 1; i >= 0; i--) {
+      int p = depParentNode[o + i];
+      if (p >= 0) {
+        depRightSibNode[o + i] = depLeftChildNode[o + p];
+        depLeftChildNode[o + p] = (short) i;
+      }
+    }
+    return endSentence(n);
+  }
+
+  private int endSentence(int n) {
+    numTokens += n;
+    sentStart[++numSentences] = numTokens;
+    return numSentences - 1;
+  }
+
+  /** Reads every sentence in a CoNLL-X file */
+  public static DepParseCorpus read(File conll, MultiAlphabet a, boolean hideDeprels) throws IOException {
+    DepParseCorpus c = new DepParseCorpus();
+    try (ConllxStreamReader r = new ConllxStreamReader(conll, a)) {
+      while (r.nextSentence() >= 0)
+        c.add(r, hideDeprels);
+    }
+    c.trimToSize();
+    return c;
+  }
+
+  /** Builds a new {@link DepNode}[] for sentence s */
+  public DepNode[] get(int s) {
+    int o = sentStart[s];
+    DepNode[] p = new DepNode[length(s)];
+    for (int i = 0; i < p.length; i++) {
+      DepNode d = new DepNode();
+      d.word = word[o + i];
+      d.pos = pos[o + i];
+      d.depParentLabel = depParentLabel[o + i];
+      d.depParentNode = depParentNode[o + i];
+      d.depLeftChildNode = depLeftChildNode[o + i];
+      d.depRightSibNode = depRightSibNode[o + i];
+      p[i] = d;
+    }
+    return p;
+  }
+
+  public int numSentences() {
+    return numSentences;
+  }
+
+  public int numTokens() {
+    return numTokens;
+  }
+
+  /** Number of tokens in sentence s */
+  public int length(int s) {
+    return sentStart[s + 1] - sentStart[s];
+  }
+
+  /** Global index of the first token in sentence s */
+  public int tokenOffset(int s) {
+    return sentStart[s];
+  }
+
+  /** Bytes used by the backing arrays (ignoring array headers) */
+  public long sizeInBytes() {
+    return word.length * (4L + 1 + 1 + 2 + 2 + 2) + sentStart.length * 4L;
+  }
+
+  public int word(int s, int i) { return word[sentStart[s] + i]; }
+  public int pos(int s, int i) { return pos[sentStart[s] + i]; }
+  public int depParentLabel(int s, int i) { return depParentLabel[sentStart[s] + i]; }
+  public int depParentNode(int s, int i) { return depParentNode[sentStart[s] + i]; }
+  public int depLeftChildNode(int s, int i) { return depLeftChildNode[sentStart[s] + i]; }
+  public int depRightSibNode(int s, int i) { return depRightSibNode[sentStart[s] + i]; }
+
+  /** Same as {@link DepNode#equals(DepNode[], DepNode[])} */
+  public boolean equals(int s, DepNode[] parse) {
+    if (parse.length != length(s))
+      return false;
+    int o = sentStart[s];
+    for (int i = 0; i < parse.length; i++) {
+      DepNode d = parse[i];
+      if (d == null
+          || d.word != word[o + i]
+          || d.pos != pos[o + i]
+          || d.depParentLabel != depParentLabel[o + i]
+          || d.depParentNode != depParentNode[o + i]
+          || d.depLeftChildNode != depLeftChildNode[o + i]
+          || d.depRightSibNode != depRightSibNode[o + i])
+        return false;
+    }
+    return true;
+  }
+
+  /** Same as {@link DepNode#hash64(DepNode[], long, boolean, boolean, boolean, boolean)} */
+  public long hash64(int s, long seed, boolean hashWord, boolean hashPos, boolean hashHead, boolean hashLabel) {
+    assert !(hashLabel && !hashHead);
+    assert hashWord || hashPos || hashHead || hashLabel;
+    int from = sentStart[s], to = sentStart[s + 1];
+    long h = seed;
+    if (hashPos) {
+      for (int i = from; i < to; i++)
+        h = Hash.mix64(h, pos[i]);
+    }
+    if (hashLabel) {
+      for (int i = from; i < to; i++)
+        h = Hash.mix64(h, depParentLabel[i]);
+    }
+    if (hashHead) {
+      for (int i = from; i < to; i++)
+        h = Hash.mix64(h, depParentNode[i]);
+    }
+    if (hashWord) {
+      for (int i = from; i < to; i++)
+        h = Hash.mix64(h, word[i]);
+    }
+    return h;
+  }
+
+  /** Same as {@link DepNode#depths(DepNode[])} */
+  public int[] depths(int s) {
+    return depths(s, new int[length(s)]);
+  }
+
+  /**
+   * Same as {@link DepNode#depths(DepNode[])}, writing into buf (which must
+   * have room for {@link #length(int)} ints).
+   */
+  public int[] depths(int s, int[] buf) {
+    int o = sentStart[s];
+    int n = length(s);
+    for (int i = 0; i < n; i++) {
+      int d = 0;
+      for (int p = i; p >= 0; p = depParentNode[o + p])
+        d++;
+      buf[i] = d;
+    }
+    return buf;
+  }
+
+  /** Same as {@link DepNode#getShallowest(Span, DepNode[])} */
+  public int getShallowest(int s, Span span) {
+    return DepNode.getShallowest(span, depths(s));
+  }
+
+  /** Same as {@link DepNode#getExtent(int, DepNode[])} */
+  public Span getExtent(int s, int node) {
+    int o = sentStart[s];
+    int left = node;
+    int right = node;
+    for (int cur = depLeftChildNode[o + node]; cur >= 0; cur = depLeftChildNode[o + cur]) {
+      left = Math.min(left, cur);
+      int rm = rightmostSibling(s, cur);
+      right = Math.max(right, rm);
+    }
+    return Span.getSpan(left, right + 1);
+  }
+
+  /** Same as {@link DepNode#rightmostSibling(int, DepNode[])} */
+  public int rightmostSibling(int s, int node) {
+    int o = sentStart[s];
+    int prev = node;
+    for (int i = node; i >= 0; i = depRightSibNode[o + i])
+      prev = i;
+    return prev;
+  }
+
+  /** Same as {@link DepNode#getEdgesLeavingSpan(int, int, DepNode[], MultiAlphabet)} */
+  public List<Edge> getEdgesLeavingSpan(int s, int start, int end, MultiAlphabet a) {
+    int o = sentStart[s];
+    int n = length(s);
+    List<Edge> out = new ArrayList<>();
+    for (int i = 0; i < n; i++) {
+      int h = depParentNode[o + i];
+      boolean ic = start <= i && i < end;
+      boolean hc = start <= h && h < end;
+      if (hc != ic) {
+        String lab = a.dep(depParentLabel[o + i]);
+        String head = hc ? "SOURCE" : (h < 0 ? "ROOT" : a.word(word[o + h]));
+        String mod = ic ? "SOURCE" : a.word(word[o + i]);
+        out.add(new Edge(lab, head, mod, h, i));
+      }
+    }
+    return out;
+  }
+
+  /** Same as {@link DepNode.ShortestPath}, for one sentence in a corpus */
+  public static class ShortestPath {
+    public final int source, target;
+    public final DepParseCorpus corpus;
+    public final int sentence;
+    private int offset;
+    private int commonParent;
+
+    public ShortestPath(int source, int target, DepParseCorpus corpus, int sentence) {
+      int n = corpus.length(sentence);
+      if (source < 0 || target < 0 || source >= n || target >= n)
+        throw new IllegalArgumentException("source=" + source + " target=" + target + " n=" + n);
+      this.source = source;
+      this.target = target;
+      this.corpus = corpus;
+      this.sentence = sentence;
+      this.offset = corpus.sentStart[sentence];
+      this.commonParent = -1;
+      short[] par = corpus.depParentNode;
+      BitSet parentOfFirst = new BitSet(n);
+      for (int p = source; p >= 0; p = par[offset + p])
+        parentOfFirst.set(p);
+      for (int p = target; p >= 0; p = par[offset + p]) {
+        if (parentOfFirst.get(p)) {
+          commonParent = p;
+          break;
+        }
+      }
+    }
+
+    public int getCommonParent() {
+      return commonParent;
+    }
+
+    /** t must be a grand*-parent of s */
+    private List<Edge> pathHelper(int s, int t, MultiAlphabet a, IntFunction<String> showNode, boolean starTheEdges) {
+      List<Edge> e = new ArrayList<>();
+      if (s == t)
+        return e;
+      short[] par = corpus.depParentNode;
+      for (int p = s; p >= 0; p = par[offset + p]) {
+        int h = par[offset + p];
+        int m = p;
+        String hs = showNode.apply(h);
+        String ms = showNode.apply(m);
+        String es = a.dep(corpus.depParentLabel[offset + m]);
+        if (starTheEdges)
+          es = es + "*";
+        e.add(new Edge(es, hs, ms, h, m));
+        if (h == t)
+          break;
+      }
+      return e;
+    }
+
+    /** Same as {@link DepNode.ShortestPath#buildPath(MultiAlphabet, boolean, boolean, boolean)} */
+    public List<Edge> buildPath(MultiAlphabet a, boolean hideEndpoints, boolean usePosInsteadOfWords, boolean lowercaseWords) {
+      IntFunction<String> showNode = i -> {
+        if (i < 0)
+          return "ROOT";
+        if (hideEndpoints) {
+          if (i == source)
+            return "SOURCE";
+          if (i == target)
+            return "TARGET";
+        }
+        if (usePosInsteadOfWords)
+          return a.pos(corpus.pos[offset + i]);
+        if (lowercaseWords)
+          return a.word(corpus.word[offset + i]).toLowerCase();
+        return a.word(corpus.word[offset + i]);
+      };
+      // s -> c
+      List<Edge> path = pathHelper(source, commonParent, a, showNode, true);
+      // c -> t
+      List<Edge> rev = pathHelper(target, commonParent, a, showNode, false);
+      Collections.reverse(rev);
+      path.addAll(rev);
+      return path;
+    }
+  }
+
+  /**
+   * Compares the heap used by a List of {@link DepNode}[] to a
+   * {@link DepParseCorpus} on the file written by
+   * {@link ConllxStreamReader#benchmark(ExperimentProperties)}.
+   *
+   * 200k synthetic sentences (4.9M tokens):
+   * DepNode[]=138.9MB DepParseCorpus=56.8MB, both read in 1.66 sec
+   */
+  public static void benchmark(ExperimentProperties config) throws IOException {
+    File f = config.getFile("conll", new File("/tmp/ConllxStreamReader-benchmark.conll"));
+    if (!f.isFile())
+      ConllxStreamReader.writeSynthetic(f, config.getInt("numSentences", 200_000), new java.util.Random(9001));
+    MultiTimer t = new MultiTimer();
+
+    long m0 = usedMemory();
+    t.start("read/DepNode[]");
+    List<DepNode[]> parses = new ArrayList<>();
+    try (DepNode.ConllxFileReader r = new DepNode.ConllxFileReader(f, new MultiAlphabet(), false)) {
+      while (r.hasNext())
+        parses.add(r.next());
+    }
+    t.stop("read/DepNode[]");
+    long m1 = usedMemory();
+    int n = parses.size();
+    parses = null;
+
+    long m2 = usedMemory();
+    t.start("read/DepParseCorpus");
+    DepParseCorpus c = read(f, new MultiAlphabet(), false);
+    t.stop("read/DepParseCorpus");
+    long m3 = usedMemory();
+    if (c.numSentences() != n)
+      throw new RuntimeException("mismatch: " + n + " vs " + c.numSentences());
+
+    Log.info(String.format("numSentences=%d numTokens=%d DepNode[]=%.1fMB DepParseCorpus=%.1fMB (sizeInBytes=%.1fMB)\n%s",
+        n, c.numTokens(), (m1 - m0) / (1024 * 1024d), (m3 - m2) / (1024 * 1024d),
+        c.sizeInBytes() / (1024 * 1024d), t));
+  }
+
+  private static long usedMemory() {
+    Runtime r = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++)
+      System.gc();
+    return r.totalMemory() - r.freeMemory();
+  }
+
+  public static void main(String[] args) throws IOException {
+    ExperimentProperties config = ExperimentProperties.init(args);
+    benchmark(config);
+  }
+}
@@ -0,0 +1,541 @@
+package edu.jhu.hlt.tutils;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+
+import edu.jhu.hlt.tutils.DepNode.Edge;
+import edu.jhu.hlt.tutils.hash.Hash;
+import edu.jhu.hlt.tutils.hash.MurmurHash3;
+
+/**
+ * Inverted index from dependency path n-grams to the sentences which contain
+ * them, for finding every sentence in a corpus which matches a pattern
+ * without scanning the corpus.
+ *
+ * Terms are strings in the same format as
+ * {@link DepNode.Edge#ngramStr(Edge[])} applied to
+ * {@link DepNode.ShortestPath#ngrams(int, List)} of a path from
+ * {@link DepNode.ShortestPath#buildPath(MultiAlphabet, boolean, boolean, boolean)}
+ * (with hideEndpoints=false), e.g. "nsubj*(loves,John)-dobj(loves,Mary)",
+ * and optionally the output of {@link DepNode.ShortestPath#stripLexPath(String)}
+ * for those, e.g. "nsubj*(#1,John)-dobj(#1,Mary)". Every path of 1 to maxN
+ * edges in every sentence is indexed (any sub-path of a shortest path goes up
+ * zero or more edges and then down zero or more edges), for each
+ * {@link NodeRep}.
+ *
+ * Terms are stored as 64 bit hashes (the strings aren't kept). Postings are
+ * sorted sentence ids, delta + varint encoded in one byte[], with a skip
+ * entry every {@link #SKIP} postings. {@link #and(String...)} decodes the
+ * rarest term and advances a cursor over the others with the skips, so a
+ * query costs about (size of the rarest posting list) * (number of terms) *
+ * log.
+ *
+ * @author travis
+ */
+public class DepPathIndex implements Serializable {
+  private static final long serialVersionUID = 5361624125286604121L;
+
+  /** How a node (token) is shown in a term */
+  public enum NodeRep {
+    WORD,
+    LOWERCASE_WORD,
+    POS,
+  }
+
+  public static final int SKIP = 64;
+  private static final int SEED = 9001;
+
+  private final int maxN;
+  private final NodeRep[] reps;
+  private final boolean stripLex;
+  private int numSentences;
+
+  // Indexed by term, sorted by termHash
+  private long[] termHash;
+  private int[] df;
+  private int[] postStart;    // numTerms+1, into postings
+  private int[] skipStart;    // numTerms+1, into skipPrev/skipOff
+  private byte[] postings;
+  private int[] skipPrev;     // doc id before the block (-1 for the first block)
+  private int[] skipOff;      // offset into postings of the block
+
+  private DepPathIndex(int maxN, NodeRep[] reps, boolean stripLex) {
+    this.maxN = maxN;
+    this.reps = reps;
+    this.stripLex = stripLex;
+  }
+
+  public int numSentences() {
+    return numSentences;
+  }
+
+  public int numTerms() {
+    return termHash.length;
+  }
+
+  public long postingsBytes() {
+    return postings.length;
+  }
+
+  public static long hash(String term) {
+    return ((long) Hash.hash(term) << 32)
+        | (MurmurHash3.murmurhash3_x86_32(term, 0, term.length(), SEED) & 0xFFFFFFFFL);
+  }
+
+  private int find(String term) {
+    return Arrays.binarySearch(termHash, hash(term));
+  }
+
+  /** Number of sentences which contain term */
+  public int df(String term) {
+    int t = find(term);
+    return t < 0 ? 0 : df[t];
+  }
+
+  /** Sorted ids of sentences which contain term */
+  public int[] postings(String term) {
+    int t = find(term);
+    if (t < 0)
+      return new int[0];
+    return decode(t);
+  }
+
+  private int[] decode(int t) {
+    int[] out = new int[df[t]];
+    Cursor c = new Cursor(t);
+    for (int i = 0; i < out.length; i++)
+      out[i] = c.next();
+    return out;
+  }
+
+  /** Sorted ids of sentences which contain every term */
+  public int[] and(String... terms) {
+    if (terms.length == 0)
+      return new int[0];
+    int[] ts = new int[terms.length];
+    for (int i = 0; i < terms.length; i++) {
+      ts[i] = find(terms[i]);
+      if (ts[i] < 0)
+        return new int[0];
+    }
+    // Rarest first
+    long[] byDf = new long[ts.length];
+    for (int i = 0; i < ts.length; i++)
+      byDf[i] = ((long) df[ts[i]] << 32) | ts[i];
+    Arrays.sort(byDf);
+    int[] cand = decode((int) byDf[0]);
+    int n = cand.length;
+    for (int i = 1; i < byDf.length && n > 0; i++) {
+      int t = (int) byDf[i];
+      if (t == (int) byDf[i - 1])
+        continue;
+      Cursor c = new Cursor(t);
+      int m = 0;
+      for (int j = 0; j < n; j++) {
+        if (c.advance(cand[j]) == cand[j])
+          cand[m++] = cand[j];
+      }
+      n = m;
+    }
+    return Arrays.copyOf(cand, n);
+  }
+
+  /**
+   * Sentences which contain every n-gram (n = min(maxN, path length)) of a
+   * path built with {@link DepNode.ShortestPath#buildPath(MultiAlphabet, boolean, boolean, boolean)}
+   * (hideEndpoints=false, and words/pos matching one of this index's
+   * {@link NodeRep}s). These are candidates, a sentence may contain every
+   * n-gram but not the whole path.
+   */
+  public int[] candidates(List<Edge> path) {
+    int n = Math.min(maxN, path.size());
+    List<Edge[]> ng = DepNode.ShortestPath.ngrams(n, path);
+    String[] terms = new String[ng.size()];
+    for (int i = 0; i < terms.length; i++)
+      terms[i] = Edge.ngramStr(ng.get(i));
+    return and(terms);
+  }
+
+  /** Walks one term's postings */
+  private class Cursor {
+    private final int t;
+    private int pos, end;
+    private int block;      // next block to consider skipping to (relative to skipStart[t])
+    private int numBlocks;
+    private int doc;        // last doc returned
+
+    Cursor(int t) {
+      this.t = t;
+      pos = postStart[t];
+      end = postStart[t + 1];
+      numBlocks = skipStart[t + 1] - skipStart[t];
+      block = 1;
+      doc = -1;
+    }
+
+    /** Next doc or Integer.MAX_VALUE if there are no more */
+    int next() {
+      if (pos >= end)
+        return doc = Integer.MAX_VALUE;
+      int v = 0;
+      for (int shift = 0; ; shift += 7) {
+        byte b = postings[pos++];
+        v |= (b & 0x7F) << shift;
+        if (b >= 0)
+          break;
+      }
+      return doc += v;
+    }
+
+    /** First doc &ge; target, or Integer.MAX_VALUE */
+    int advance(int target) {
+      if (doc >= target)
+        return doc;
+      // Jump to the last block which starts after a doc < target
+      int s = skipStart[t];
+      int b = -1;
+      while (block < numBlocks && skipPrev[s + block] < target)
+        b = block++;
+      if (b >= 0 && skipOff[s + b] > pos) {
+        pos = skipOff[s + b];
+        doc = skipPrev[s + b];
+      }
+      while (doc < target)
+        next();
+      return doc;
+    }
+  }
+
+  /**
+   * Calls f on every term for a sentence (possibly with repeats), see the
+   * class javadoc.
+   */
+  public static void terms(DepNode[] parse, MultiAlphabet a, int maxN, NodeRep[] reps, boolean stripLex, Consumer<String> f) {
+    int n = parse.length;
+    int[] path = new int[maxN + 1];       // nodes
+    boolean[] up = new boolean[maxN];     // whether edge i goes child -> parent
+    for (int s = 0; s < n; s++) {
+      path[0] = s;
+      walk(parse, a, path, up, 0, true, maxN, reps, stripLex, f);
+    }
+  }
+
+  private static void walk(DepNode[] parse, MultiAlphabet a, int[] path, boolean[] up, int d,
+      boolean canGoUp, int maxN, NodeRep[] reps, boolean stripLex, Consumer<String> f) {
+    if (d > 0) {
+      for (NodeRep r : reps) {
+        String term = termString(parse, a, path, up, d, r);
+        f.accept(term);
+        if (stripLex)
+          f.accept(DepNode.ShortestPath.stripLexPath(term));
+      }
+    }
+    if (d == maxN)
+      return;
+    int u = path[d];
+    if (canGoUp) {
+      int p = parse[u].depParentNode;
+      if (p >= 0) {
+        path[d + 1] = p;
+        up[d] = true;
+        walk(parse, a, path, up, d + 1, true, maxN, reps, stripLex, f);
+      }
+    }
+    // Going down, don't go back to where we came from
+    int from = d > 0 ? path[d - 1] : -1;
+    for (int c = parse[u].depLeftChildNode; c >= 0; c = parse[c].depRightSibNode) {
+      if (c == from)
+        continue;
+      path[d + 1] = c;
+      up[d] = false;
+      walk(parse, a, path, up, d + 1, false, maxN, reps, stripLex, f);
+    }
+  }
+
+  private static String show(DepNode[] parse, MultiAlphabet a, int i, NodeRep r) {
+    switch (r) {
+    case WORD:
+      return a.word(parse[i].word);
+    case LOWERCASE_WORD:
+      return a.word(parse[i].word).toLowerCase();
+    case POS:
+      return a.pos(parse[i].pos);
+    default:
+      throw new RuntimeException("unknown: " + r);
+    }
+  }
+
+  /** Same format as Edge.ngramStr of edges built by ShortestPath.buildPath */
+  private static String termString(DepNode[] parse, MultiAlphabet a, int[] path, boolean[] up, int d, NodeRep r) {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < d; i++) {
+      int h = up[i] ? path[i + 1] : path[i];
+      int m = up[i] ? path[i] : path[i + 1];
+      if (i > 0)
+        sb.append('-');
+      sb.append(a.dep(parse[m].depParentLabel));
+      if (up[i])
+        sb.append('*');
+      sb.append('(').append(show(parse, a, h, r)).append(',').append(show(parse, a, m, r)).append(')');
+    }
+    return sb.toString();
+  }
+
+  public static class Builder {
+    private final int maxN;
+    private final NodeRep[] reps;
+    private final boolean stripLex;
+
+    // term hash -> term id, open addressing
+    private long[] tableKeys;
+    private int[] tableVals;
+    private long[] termHashes;
+    private int numTerms;
+
+    // (termId << 32) | sentence
+    private long[] pairs;
+    private int numPairs;
+    private int numSentences;
+
+    // per-sentence scratch
+    private int[] sentTerms;
+    private int numSentTerms;
+
+    /**
+     * @param maxN is the longest path n-gram (in edges) to index
+     * @param stripLex also index {@link DepNode.ShortestPath#stripLexPath(String)} of every term
+     */
+    public Builder(int maxN, boolean stripLex, NodeRep... reps) {
+      if (maxN < 1 || reps.length == 0)
+        throw new IllegalArgumentException("maxN=" + maxN + " reps=" + Arrays.toString(reps));
+      this.maxN = maxN;
+      this.reps = reps;
+      this.stripLex = stripLex;
+      tableKeys = new long[1 << 16];
+      tableVals = new int[1 << 16];
+      Arrays.fill(tableVals, -1);
+      termHashes = new long[1 << 10];
+      pairs = new long[1 << 16];
+      sentTerms = new int[256];
+    }
+
+    private int termId(long h) {
+      int mask = tableKeys.length - 1;
+      int i = (int) (h ^ (h >>> 29)) & mask;
+      while (tableVals[i] >= 0) {
+        if (tableKeys[i] == h)
+          return tableVals[i];
+        i = (i + 1) & mask;
+      }
+      if (numTerms == termHashes.length)
+        termHashes = Arrays.copyOf(termHashes, numTerms * 2);
+      termHashes[numTerms] = h;
+      tableKeys[i] = h;
+      tableVals[i] = numTerms;
+      if (2 * (numTerms + 1) > tableKeys.length)
+        rehash();
+      return numTerms++;
+    }
+
+    private void rehash() {
+      long[] ok = tableKeys;
+      int[] ov = tableVals;
+      tableKeys = new long[ok.length * 2];
+      tableVals = new int[ok.length * 2];
+      Arrays.fill(tableVals, -1);
+      int mask = tableKeys.length - 1;
+      for (int j = 0; j < ok.length; j++) {
+        if (ov[j] < 0)
+          continue;
+        int i = (int) (ok[j] ^ (ok[j] >>> 29)) & mask;
+        while (tableVals[i] >= 0)
+          i = (i + 1) & mask;
+        tableKeys[i] = ok[j];
+        tableVals[i] = ov[j];
+      }
+    }
+
+    private void addSentTerm(String term) {
+      if (numSentTerms == sentTerms.length)
+        sentTerms = Arrays.copyOf(sentTerms, numSentTerms * 2);
+      sentTerms[numSentTerms++] = termId(hash(term));
+    }
+
+    /** Indexes a sentence, returns its id (sentences are numbered in the order added) */
+    public int add(DepNode[] parse, MultiAlphabet a) {
+      if (pairs == null)
+        throw new RuntimeException("you can't add after freeze!");
+      numSentTerms = 0;
+      terms(parse, a, maxN, reps, stripLex, this::addSentTerm);
+      Arrays.sort(sentTerms, 0, numSentTerms);
+      int s = numSentences++;
+      for (int i = 0; i < numSentTerms; i++) {
+        if (i > 0 && sentTerms[i] == sentTerms[i - 1])
+          continue;
+        if (numPairs == pairs.length)
+          pairs = Arrays.copyOf(pairs, (int) Math.min(Integer.MAX_VALUE - 8, pairs.length * 1.6 + 2.5));
+        pairs[numPairs++] = ((long) sentTerms[i] << 32) | s;
+      }
+      return s;
+    }
+
+    public DepPathIndex freeze() {
+      DepPathIndex idx = new DepPathIndex(maxN, reps, stripLex);
+      idx.numSentences = numSentences;
+
+      // Renumber terms by hash so lookups can binary search
+      long[] byHash = new long[numTerms];
+      for (int t = 0; t < numTerms; t++)
+        byHash[t] = termHashes[t];
+      Arrays.parallelSort(byHash);
+      int[] rank = new int[numTerms];
+      for (int t = 0; t < numTerms; t++)
+        rank[t] = Arrays.binarySearch(byHash, termHashes[t]);
+      tableKeys = null;
+      tableVals = null;
+      termHashes = null;
+      long[] p = pairs;
+      pairs = null;
+      for (int i = 0; i < numPairs; i++)
+        p[i] = ((long) rank[(int) (p[i] >>> 32)] << 32) | (p[i] & 0xFFFFFFFFL);
+      Arrays.parallelSort(p, 0, numPairs);
+
+      idx.termHash = byHash;
+      idx.df = new int[numTerms];
+      idx.postStart = new int[numTerms + 1];
+      idx.skipStart = new int[numTerms + 1];
+      byte[] post = new byte[Math.max(16, numPairs * 2)];
+      int top = 0;
+      int[] sPrev = new int[Math.max(16, numPairs / SKIP + numTerms)];
+      int[] sOff = new int[sPrev.length];
+      int numSkips = 0;
+      int i = 0;
+      for (int t = 0; t < numTerms; t++) {
+        idx.postStart[t] = top;
+        idx.skipStart[t] = numSkips;
+        int prev = -1;
+        int k = 0;
+        for (; i < numPairs && (int) (p[i] >>> 32) == t; i++, k++) {
+          int doc = (int) p[i];
+          if (k % SKIP == 0) {
+            if (numSkips == sPrev.length) {
+              sPrev = Arrays.copyOf(sPrev, numSkips * 2);
+              sOff = Arrays.copyOf(sOff, numSkips * 2);
+            }
+            sPrev[numSkips] = prev;
+            sOff[numSkips] = top;
+            numSkips++;
+          }
+          if (top + 5 > post.length) {
+            long ns = Math.max(top + 5, (long) (post.length * 1.6 + 2.5));
+            if (ns > Integer.MAX_VALUE - 8)
+              throw new RuntimeException("postings are too big for a byte[]");
+            post = Arrays.copyOf(post, (int) ns);
+          }
+          int v = doc - prev;
+          while ((v & ~0x7F) != 0) {
+            post[top++] = (byte) ((v & 0x7F) | 0x80);
+            v >>>= 7;
+          }
+          post[top++] = (byte) v;
+          prev = doc;
+        }
+        idx.df[t] = k;
+      }
+      idx.postStart[numTerms] = top;
+      idx.skipStart[numTerms] = numSkips;
+      idx.postings = Arrays.copyOf(post, top);
+      idx.skipPrev = Arrays.copyOf(sPrev, numSkips);
+      idx.skipOff = Arrays.copyOf(sOff, numSkips);
+      return idx;
+    }
+  }
+
+  /**
+   * Indexes random sentences and compares queries for pairs of frequent
+   * terms to a scan which regenerates every sentence's terms.
+   */
+  public static void benchmark(ExperimentProperties config) {
+    int numSentences = config.getInt("numSentences", 100_000);
+    int maxN = config.getInt("maxN", 2);
+    int numQueries = config.getInt("numQueries", 200);
+    MultiAlphabet a = new MultiAlphabet();
+    String[] pos = new String[] {"NN", "NNS", "VB", "VBZ", "DT", "IN", "JJ", "RB", "PRP"};
+    String[] dep = new String[] {"nsubj", "dobj", "det", "prep", "pobj", "amod", "advmod", "aux", "conj"};
+    Random rand = new Random(9001);
+    List<DepNode[]> parses = new ArrayList<>();
+    for (int s = 0; s < numSentences; s++) {
+      int n = 5 + rand.nextInt(30);
+      int[] head = new int[n];
+      for (int i = 1; i < n; i++)
+        head[i] = rand.nextInt(i);
+      head[0] = -1;
+      DepNode[] p = new DepNode[n];
+      for (int i = 0; i < n; i++) {
+        p[i] = new DepNode();
+        p[i].word = a.word("w" + Math.abs((int) (rand.nextGaussian() * 500)));
+        p[i].pos = DepNode.i2b(a.pos(pos[rand.nextInt(pos.length)]));
+        p[i].depParentNode = DepNode.i2s(head[i]);
+        p[i].depParentLabel = DepNode.i2b(a.dep(dep[rand.nextInt(dep.length)]));
+        p[i].depLeftChildNode = -1;
+        p[i].depRightSibNode = -1;
+      }
+      for (int i = n - 1; i > 0; i--) {
+        p[i].depRightSibNode = p[head[i]].depLeftChildNode;
+        p[head[i]].depLeftChildNode = (short) i;
+      }
+      parses.add(p);
+    }
+
+    NodeRep[] reps = new NodeRep[] {NodeRep.WORD, NodeRep.POS};
+    MultiTimer t = new MultiTimer();
+    t.start("build");
+    Builder b = new Builder(maxN, false, reps);
+    for (DepNode[] p : parses)
+      b.add(p, a);
+    DepPathIndex idx = b.freeze();
+    t.stop("build");
+    Log.info("numSentences=" + numSentences + " numTerms=" + idx.numTerms()
+        + " postingsBytes=" + idx.postingsBytes());
+
+    // Queries: a POS path and a lexical edge from random sentences
+    for (int q = 0; q < numQueries; q++) {
+      DepNode[] p = parses.get(rand.nextInt(parses.size()));
+      List<String> ts = new ArrayList<>();
+      terms(p, a, maxN, reps, false, ts::add);
+      String q1 = ts.get(rand.nextInt(ts.size()));
+      String q2 = ts.get(rand.nextInt(ts.size()));
+
+      t.start("query/index");
+      int[] r = idx.and(q1, q2);
+      t.stop("query/index");
+
+      if (q < 5) {
+        t.start("query/scan");
+        int c = 0;
+        for (DepNode[] pp : parses) {
+          boolean[] has = new boolean[2];
+          terms(pp, a, maxN, reps, false, x -> {
+            if (x.equals(q1)) has[0] = true;
+            if (x.equals(q2)) has[1] = true;
+          });
+          if (has[0] && has[1])
+            c++;
+        }
+        t.stop("query/scan");
+        if (c != r.length)
+          throw new RuntimeException("mismatch for " + q1 + " AND " + q2 + ": " + c + " vs " + r.length);
+      }
+    }
+    Log.info(t);
+  }
+
+  public static void main(String[] args) {
+    ExperimentProperties config = ExperimentProperties.init(args);
+    benchmark(config);
+  }
+}
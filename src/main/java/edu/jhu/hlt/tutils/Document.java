@@ -183,6 +183,26 @@ public final class Document implements Serializable {
     return t2c_sentence;
   }
 
+  // Span -> constituent(s), see ConstituentSpanIndex
+
+  transient ConstituentSpanIndex spans_ptb_gold;
+  public ConstituentSpanIndex getSpansPtbGold() {
+    if (spans_ptb_gold == null)
+      spans_ptb_gold = ConstituentSpanIndex.fromCparse(this, cons_ptb_gold);
+    return spans_ptb_gold;
+  }
+
+  transient ConstituentSpanIndex spans_ptb_auto;
+  public ConstituentSpanIndex getSpansPtbAuto() {
+    if (spans_ptb_auto == null)
+      spans_ptb_auto = ConstituentSpanIndex.fromCparse(this, cons_ptb_auto);
+    return spans_ptb_auto;
+  }
+
+  public ConstituentSpanIndex getSpansPtb(boolean gold) {
+    return gold ? getSpansPtbGold() : getSpansPtbAuto();
+  }
+
   /* GRAPHS *******************************************************************/
   
   // These graphs all have nodes which correspond to token indices (0-indexed).
@@ -198,6 +218,64 @@ public final class Document implements Serializable {
 
   public LabeledDirectedGraph parseyMcParseFace;
 
+  // Graphs which haven't been built yet (see LabeledDirectedGraph.Lazy), the
+  // getters below build them the first time they're called. Code which reads
+  // the fields above directly should call buildLazyGraphs first.
+  public LabeledDirectedGraph.Lazy stanfordDepsBasicLazy;
+  public LabeledDirectedGraph.Lazy stanfordDepsCollapsedLazy;
+  public LabeledDirectedGraph.Lazy stanfordDepsCollapsedCCLazy;
+  public LabeledDirectedGraph.Lazy universalDependenciesLazy;
+  public LabeledDirectedGraph.Lazy parseyMcParseFaceLazy;
+
+  public LabeledDirectedGraph getStanfordDepsBasic() {
+    if (stanfordDepsBasic == null && stanfordDepsBasicLazy != null) {
+      stanfordDepsBasic = stanfordDepsBasicLazy.build();
+      stanfordDepsBasicLazy = null;
+    }
+    return stanfordDepsBasic;
+  }
+
+  public LabeledDirectedGraph getStanfordDepsCollapsed() {
+    if (stanfordDepsCollapsed == null && stanfordDepsCollapsedLazy != null) {
+      stanfordDepsCollapsed = stanfordDepsCollapsedLazy.build();
+      stanfordDepsCollapsedLazy = null;
+    }
+    return stanfordDepsCollapsed;
+  }
+
+  public LabeledDirectedGraph getStanfordDepsCollapsedCC() {
+    if (stanfordDepsCollapsedCC == null && stanfordDepsCollapsedCCLazy != null) {
+      stanfordDepsCollapsedCC = stanfordDepsCollapsedCCLazy.build();
+      stanfordDepsCollapsedCCLazy = null;
+    }
+    return stanfordDepsCollapsedCC;
+  }
+
+  public LabeledDirectedGraph getUniversalDependencies() {
+    if (universalDependencies == null && universalDependenciesLazy != null) {
+      universalDependencies = universalDependenciesLazy.build();
+      universalDependenciesLazy = null;
+    }
+    return universalDependencies;
+  }
+
+  public LabeledDirectedGraph getParseyMcParseFace() {
+    if (parseyMcParseFace == null && parseyMcParseFaceLazy != null) {
+      parseyMcParseFace = parseyMcParseFaceLazy.build();
+      parseyMcParseFaceLazy = null;
+    }
+    return parseyMcParseFace;
+  }
+
+  /** Builds any graphs which haven't been built yet, so the fields are set */
+  public void buildLazyGraphs() {
+    getStanfordDepsBasic();
+    getStanfordDepsCollapsed();
+    getStanfordDepsCollapsedCC();
+    getUniversalDependencies();
+    getParseyMcParseFace();
+  }
+
   /* CONVENIENCE METHODS ******************************************************/
 
   private transient int beforeDoc = -1, afterDoc = -1;
@@ -218,6 +296,10 @@ public final class Document implements Serializable {
    * the Constituents are from a cparse, and therefore everything under the
    * items in the linked list are cparse constituents with first and last tokens
    * set.
+   *
+   * This builds a new map every call, prefer
+   * {@link ConstituentSpanIndex#fromCparse(Document, int)} (or
+   * {@link #getSpansPtb(boolean)}) if you're going to make many queries.
    */
   public Map<IntPair, Integer> getSpanToConstituentMapping(int firstConsIdx) {
     Map<IntPair, Integer> cons = new HashMap<>();
@@ -264,7 +346,55 @@ public final class Document implements Serializable {
     return bs;
   }
 
+  // Optional indices for stringOccurrences and posOccurrences. Not
+  // maintained: if you change tokens after building these, call
+  // clearSuffixArrays().
+  private transient TokenSuffixArray sa_word, sa_wordNocase, sa_posG, sa_posH;
+
   /**
+   * Returns a suffix array over word (or wordNocase) for all tokens, building
+   * it if needed. Once built, {@link #stringOccurrences(IntPair, IntPair, List, boolean)}
+   * will use it instead of a linear scan.
+   */
+  public TokenSuffixArray getWordSuffixArray(boolean ignoreCase) {
+    if (ignoreCase) {
+      if (sa_wordNocase == null)
+        sa_wordNocase = new TokenSuffixArray(wordNocase, 0, tokTop);
+      return sa_wordNocase;
+    }
+    if (sa_word == null)
+      sa_word = new TokenSuffixArray(word, 0, tokTop);
+    return sa_word;
+  }
+
+  /**
+   * Returns a suffix array over posG (or posH) for all tokens, building
+   * it if needed. Once built, {@link #posOccurrences(int, IntPair, List, boolean)}
+   * will use it instead of a linear scan.
+   */
+  public TokenSuffixArray getPosSuffixArray(boolean gold) {
+    if (gold) {
+      if (sa_posG == null)
+        sa_posG = new TokenSuffixArray(posG, 0, tokTop);
+      return sa_posG;
+    }
+    if (sa_posH == null)
+      sa_posH = new TokenSuffixArray(posH, 0, tokTop);
+    return sa_posH;
+  }
+
+  public void clearSuffixArrays() {
+    sa_word = sa_wordNocase = sa_posG = sa_posH = null;
+  }
+
+  /**
+   * Note that needle and area are treated as half-open intervals:
+   * needle.second - needle.first tokens are matched, and matches must end
+   * before area.second.
+   *
+   * If {@link #getWordSuffixArray(boolean)} has been called this takes
+   * O(m log n + k) instead of a scan over area.
+   *
    * @param needle is (first,last) tokens to match
    * @param area is the area to search
    * @param d
@@ -277,8 +407,21 @@ public final class Document implements Serializable {
       throw new IllegalArgumentException();
     if (area.first > area.second || area.first < 0)
       throw new IllegalArgumentException();
-    int occ = 0;
     int w = needle.second - needle.first;
+    TokenSuffixArray sa = ignoreCase ? sa_wordNocase : sa_word;
+    if (sa != null && w > 0) {
+      int[] col = ignoreCase ? wordNocase : word;
+      if (addTo == null)
+        return sa.forEachOccurrence(col, needle.first, needle.second, area.first, area.second, null);
+      int[] starts = new int[sa.count(col, needle.first, needle.second)];
+      int[] occ = new int[1];
+      sa.forEachOccurrence(col, needle.first, needle.second, area.first, area.second, s -> starts[occ[0]++] = s);
+      Arrays.sort(starts, 0, occ[0]);
+      for (int j = 0; j < occ[0]; j++)
+        addTo.add(new IntPair(starts[j], starts[j] + w - 1));
+      return occ[0];
+    }
+    int occ = 0;
     search:
     for (int i = area.first; i <= area.second - w; i++) {
       int matchingToks = 0;
@@ -302,7 +445,26 @@ public final class Document implements Serializable {
     return occ;
   }
 
+  /**
+   * Finds tokens in area (inclusive) with the same POS tag as token i.
+   *
+   * If {@link #getPosSuffixArray(boolean)} has been called this takes
+   * O(log n + k) instead of a scan over area.
+   */
   public int posOccurrences(int i, IntPair area, List<Integer> addTo, boolean gold) {
+    TokenSuffixArray sa = gold ? sa_posG : sa_posH;
+    if (sa != null) {
+      int[] col = gold ? posG : posH;
+      if (addTo == null)
+        return sa.forEachOccurrence(col, i, i + 1, area.first, area.second + 1, null);
+      int[] starts = new int[sa.count(col, i, i + 1)];
+      int[] occ = new int[1];
+      sa.forEachOccurrence(col, i, i + 1, area.first, area.second + 1, s -> starts[occ[0]++] = s);
+      Arrays.sort(starts, 0, occ[0]);
+      for (int j = 0; j < occ[0]; j++)
+        addTo.add(starts[j]);
+      return occ[0];
+    }
     int occ = 0;
     int p = gold ? getPosG(i) : getPosH(i);
     for (int j = area.first; j <= area.second; j++) {
@@ -0,0 +1,373 @@
+package edu.jhu.hlt.tutils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import edu.jhu.hlt.tutils.EffSent.Mention;
+
+/**
+ * Binary format for a list of {@link EffSent}s, much faster to read than Java
+ * serialization or the raw CoNLL + mention text (see
+ * {@link EffSent#benchmark(ExperimentProperties)}).
+ *
+ * Layout (all ints are unsigned LEB128 varints unless noted):
+ * <pre>
+ * header:    "EFFS" version:int32
+ * sentence:  numTokens
+ *            numTokens * (word pos depParentLabel depParentNode+1 depLeftChildNode+1 depRightSibNode+1)
+ *            numMentions+1 (0 means null)
+ *            numMentions * (midLength mid:bytes head+1 start end)
+ * footer:    numSentences * offset:int64, numSentences:int32, footerStart:int64, "EFFS"
+ * </pre>
+ * The footer is a sentence offset index, so a {@link Reader} can
+ * {@link Reader#seek(int)} to any sentence. Writing and reading are both
+ * streaming, only the offsets are kept in memory.
+ *
+ * Word/pos/dep ids refer to one {@link MultiAlphabet} shared by every
+ * sentence, which {@link Writer} can save next to the data file (see
+ * {@link #alphabetFile(File)}).
+ *
+ * @author travis
+ */
+public class EffSentCodec {
+
+  public static final int MAGIC = 0x45464653;   // "EFFS"
+  public static final int VERSION = 1;
+  private static final int BUF_SIZE = 1 << 16;
+
+  /** Where {@link Writer} saves the alphabet for a data file */
+  public static File alphabetFile(File data) {
+    return new File(data.getPath() + ".alph.gz");
+  }
+
+  public static void write(List<EffSent> sentences, MultiAlphabet a, File f) throws IOException {
+    try (Writer w = new Writer(f, a)) {
+      for (EffSent s : sentences)
+        w.write(s);
+    }
+  }
+
+  public static List<EffSent> readAll(File f) throws IOException {
+    try (Reader r = new Reader(f)) {
+      List<EffSent> l = new ArrayList<>(r.numSentences());
+      while (r.hasNext())
+        l.add(r.next());
+      return l;
+    }
+  }
+
+  public static class Writer implements AutoCloseable {
+    private File file;
+    private MultiAlphabet alph;
+    private FileChannel ch;
+    private ByteBuffer bb;
+    private byte[] buf;
+    private int top;
+    private long flushed;     // bytes written to ch
+    private long[] offsets;
+    private int numSentences;
+
+    /**
+     * @param alph if not null, this is written to {@link EffSentCodec#alphabetFile(File)}
+     * when this is closed.
+     */
+    public Writer(File f, MultiAlphabet alph) throws IOException {
+      this.file = f;
+      this.alph = alph;
+      @SuppressWarnings("resource")
+      RandomAccessFile raf = new RandomAccessFile(f, "rw");
+      raf.setLength(0);
+      ch = raf.getChannel();
+      buf = new byte[BUF_SIZE];
+      bb = ByteBuffer.wrap(buf);
+      offsets = new long[1024];
+      writeInt32(MAGIC);
+      writeInt32(VERSION);
+    }
+
+    public int numSentences() {
+      return numSentences;
+    }
+
+    private void flush() throws IOException {
+      bb.clear();
+      bb.limit(top);
+      while (bb.hasRemaining())
+        ch.write(bb);
+      flushed += top;
+      top = 0;
+    }
+
+    private void ensure(int bytes) throws IOException {
+      if (top + bytes > buf.length)
+        flush();
+    }
+
+    private void writeVarint(int v) {
+      while ((v & ~0x7F) != 0) {
+        buf[top++] = (byte) ((v & 0x7F) | 0x80);
+        v >>>= 7;
+      }
+      buf[top++] = (byte) v;
+    }
+
+    private void writeInt32(int v) throws IOException {
+      ensure(4);
+      buf[top++] = (byte) (v >>> 24);
+      buf[top++] = (byte) (v >>> 16);
+      buf[top++] = (byte) (v >>> 8);
+      buf[top++] = (byte) v;
+    }
+
+    private void writeInt64(long v) throws IOException {
+      writeInt32((int) (v >>> 32));
+      writeInt32((int) v);
+    }
+
+    public void write(EffSent s) throws IOException {
+      if (numSentences == offsets.length)
+        offsets = Arrays.copyOf(offsets, (int) (offsets.length * 1.6 + 2.5));
+      offsets[numSentences++] = flushed + top;
+
+      DepNode[] p = s.parse();
+      ensure(5);
+      writeVarint(p.length);
+      for (int i = 0; i < p.length; i++) {
+        DepNode d = p[i];
+        ensure(6 * 5);
+        writeVarint(d.word);
+        writeVarint(d.pos);
+        writeVarint(d.depParentLabel);
+        writeVarint(d.depParentNode + 1);
+        writeVarint(d.depLeftChildNode + 1);
+        writeVarint(d.depRightSibNode + 1);
+      }
+
+      int nm = s.hasMentions() ? s.numMentions() : -1;
+      ensure(5);
+      writeVarint(nm + 1);
+      for (int i = 0; i < nm; i++) {
+        Mention m = s.mention(i);
+        ensure(5 * 5 + m.mid.length);
+        writeVarint(m.mid.length);
+        if (m.mid.length > buf.length - top) {
+          flush();
+          ByteBuffer mb = ByteBuffer.wrap(m.mid);
+          while (mb.hasRemaining())
+            ch.write(mb);
+          flushed += m.mid.length;
+        } else {
+          System.arraycopy(m.mid, 0, buf, top, m.mid.length);
+          top += m.mid.length;
+        }
+        writeVarint(m.head + 1);
+        writeVarint(m.start);
+        writeVarint(m.end);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (ch == null)
+        return;
+      long footerStart = flushed + top;
+      for (int i = 0; i < numSentences; i++)
+        writeInt64(offsets[i]);
+      writeInt32(numSentences);
+      writeInt64(footerStart);
+      writeInt32(MAGIC);
+      flush();
+      ch.close();
+      ch = null;
+      if (alph != null)
+        alph.serialize(alphabetFile(file));
+    }
+  }
+
+  /**
+   * Reads sentences in order, or from any point via {@link #seek(int)}.
+   */
+  public static class Reader implements Iterator<EffSent>, AutoCloseable {
+    private FileChannel ch;
+    private long[] offsets;
+    private long dataEnd;
+    private int next;         // index of the sentence next() will return
+
+    private ByteBuffer bb;
+    private byte[] buf;
+    private int pos, lim;
+    private long bufStart;    // file offset of buf[0]
+
+    public Reader(File f) throws IOException {
+      @SuppressWarnings("resource")
+      RandomAccessFile raf = new RandomAccessFile(f, "r");
+      ch = raf.getChannel();
+      buf = new byte[BUF_SIZE];
+      bb = ByteBuffer.wrap(buf);
+
+      // Footer
+      long size = ch.size();
+      if (size < 8 + 16)
+        throw new IOException("too small to be an EffSentCodec file: " + f.getPath());
+      ByteBuffer tail = ByteBuffer.allocate(16);
+      readFully(tail, size - 16);
+      int n = tail.getInt(0);
+      long footerStart = tail.getLong(4);
+      if (tail.getInt(12) != MAGIC)
+        throw new IOException("bad footer, not an EffSentCodec file? " + f.getPath());
+      ByteBuffer head = ByteBuffer.allocate(8);
+      readFully(head, 0);
+      if (head.getInt(0) != MAGIC)
+        throw new IOException("bad header, not an EffSentCodec file? " + f.getPath());
+      if (head.getInt(4) != VERSION)
+        throw new IOException("unsupported version " + head.getInt(4) + " in " + f.getPath());
+      ByteBuffer idx = ByteBuffer.allocate(8 * n);
+      readFully(idx, footerStart);
+      offsets = new long[n];
+      idx.flip();
+      idx.asLongBuffer().get(offsets);
+      dataEnd = footerStart;
+      seek(0);
+    }
+
+    private void readFully(ByteBuffer b, long position) throws IOException {
+      while (b.hasRemaining()) {
+        if (ch.read(b, position + b.position()) < 0)
+          throw new IOException("unexpected EOF");
+      }
+    }
+
+    public int numSentences() {
+      return offsets.length;
+    }
+
+    /** The next call to {@link #next()} will return sentence i */
+    public void seek(int i) throws IOException {
+      if (i < 0 || i > offsets.length)
+        throw new IndexOutOfBoundsException("i=" + i + " numSentences=" + offsets.length);
+      next = i;
+      long o = i < offsets.length ? offsets[i] : dataEnd;
+      if (o >= bufStart && o <= bufStart + lim) {
+        pos = (int) (o - bufStart);
+      } else {
+        bufStart = o;
+        pos = lim = 0;
+      }
+    }
+
+    /** Random access, same as seek(i) followed by next() */
+    public EffSent get(int i) throws IOException {
+      seek(i);
+      return next();
+    }
+
+    private void fill() throws IOException {
+      // Move the un-read bytes to the front and read more
+      int rem = lim - pos;
+      System.arraycopy(buf, pos, buf, 0, rem);
+      bufStart += pos;
+      pos = 0;
+      lim = rem;
+      bb.clear();
+      bb.position(lim);
+      int want = (int) Math.min(buf.length - lim, dataEnd - (bufStart + lim));
+      bb.limit(lim + want);
+      while (bb.hasRemaining()) {
+        if (ch.read(bb, bufStart + bb.position()) < 0)
+          break;
+      }
+      lim = bb.position();
+    }
+
+    /** Makes sure buf[pos, pos+bytes) is valid, or as much as is left of the data */
+    private void ensure(int bytes) throws IOException {
+      if (lim - pos < bytes)
+        fill();
+    }
+
+    private int readVarint() throws IOException {
+      int v = 0;
+      for (int shift = 0; ; shift += 7) {
+        if (pos == lim) {
+          fill();
+          if (pos == lim)
+            throw new IOException("unexpected EOF");
+        }
+        byte b = buf[pos++];
+        v |= (b & 0x7F) << shift;
+        if (b >= 0)
+          return v;
+      }
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next < offsets.length;
+    }
+
+    @Override
+    public EffSent next() {
+      if (!hasNext())
+        throw new NoSuchElementException();
+      try {
+        ensure(6 * 5);
+        int n = readVarint();
+        DepNode[] p = new DepNode[n];
+        for (int i = 0; i < n; i++) {
+          ensure(6 * 5);
+          DepNode d = new DepNode();
+          d.word = readVarint();
+          d.pos = (byte) readVarint();
+          d.depParentLabel = (byte) readVarint();
+          d.depParentNode = (short) (readVarint() - 1);
+          d.depLeftChildNode = (short) (readVarint() - 1);
+          d.depRightSibNode = (short) (readVarint() - 1);
+          p[i] = d;
+        }
+        EffSent s = new EffSent(p);
+
+        int nm = readVarint() - 1;
+        if (nm >= 0) {
+          Mention[] ms = new Mention[nm];
+          for (int i = 0; i < nm; i++) {
+            Mention m = new Mention();
+            int len = readVarint();
+            m.mid = new byte[len];
+            for (int j = 0; j < len; ) {
+              ensure(len - j);
+              int c = Math.min(len - j, lim - pos);
+              if (c == 0)
+                throw new IOException("unexpected EOF");
+              System.arraycopy(buf, pos, m.mid, j, c);
+              pos += c;
+              j += c;
+            }
+            ensure(3 * 5);
+            m.head = (short) (readVarint() - 1);
+            m.start = (short) readVarint();
+            m.end = (short) readVarint();
+            ms[i] = m;
+          }
+          s.setEntities(ms);
+        }
+        next++;
+        return s;
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      ch.close();
+    }
+  }
+}
@@ -1,6 +1,7 @@
 package edu.jhu.hlt.tutils;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -8,22 +9,35 @@ import java.io.InputStreamReader;
 import java.util.Iterator;
 
 public class EffSentIter implements Iterator<EffSent>, AutoCloseable {
-  private DepNode.ConllxFileReader iter;
+  private Iterator<DepNode[]> iter;
+  private Closeable iterClose;
   private BufferedReader r;
   private EffSent cur;
   private MultiAlphabet parseAlph;
 
   public EffSentIter(File parses, File mentions, MultiAlphabet a, boolean hideDeprels) throws IOException {
     //      Log.info("parses=" + parses.getPath() + " mentions=" + mentions.getPath());
-    iter = new DepNode.ConllxFileReader(parses, a, hideDeprels);
-    r = FileUtil.getReader(mentions);
-    this.parseAlph = a;
-    if (iter.hasNext())
-      advance();
+    this(new DepNode.ConllxFileReader(parses, a, hideDeprels), FileUtil.getInputStream(mentions), a);
+  }
+
+  /**
+   * Parses are read with a {@link ParallelConllxReader} using numThreads.
+   */
+  public EffSentIter(File parses, File mentions, MultiAlphabet a, boolean hideDeprels, int numThreads) throws IOException {
+    this(new ParallelConllxReader(parses, a, hideDeprels, numThreads), FileUtil.getInputStream(mentions), a);
   }
 
   public EffSentIter(DepNode.ConllxFileReader parses, InputStream mentions, MultiAlphabet a) throws IOException {
+    this(parses, parses::close, mentions, a);
+  }
+
+  public EffSentIter(ParallelConllxReader parses, InputStream mentions, MultiAlphabet a) throws IOException {
+    this(parses, parses::close, mentions, a);
+  }
+
+  private EffSentIter(Iterator<DepNode[]> parses, Closeable parsesClose, InputStream mentions, MultiAlphabet a) throws IOException {
     iter = parses;
+    iterClose = parsesClose;
     r = new BufferedReader(new InputStreamReader(mentions));
     this.parseAlph = a;
     if (iter.hasNext())
@@ -49,7 +63,7 @@ public class EffSentIter implements Iterator<EffSent>, AutoCloseable {
 
   @Override
   public void close() throws IOException {
-    iter.close();
+    iterClose.close();
     r.close();
   }
 
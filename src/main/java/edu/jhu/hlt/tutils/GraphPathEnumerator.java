@@ -0,0 +1,279 @@
+package edu.jhu.hlt.tutils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Enumerates paths in a {@link LabeledDirectedGraph} which is not necessarily
+ * a tree (e.g. collapsed CC dependencies):
+ * - {@link #allPaths(int, int, int, boolean, Visitor)}: every simple path
+ *   from a source (to a sink, or anywhere) with at most maxLength edges
+ * - {@link #kShortestPaths(int, int, int, boolean, Visitor)}: the k shortest
+ *   simple paths between two nodes (Yen's algorithm, unit edge weights)
+ *
+ * Paths are reported to a {@link Visitor} as the nodes along the path and the
+ * edges taken, which are packed longs from {@link LabeledDirectedGraph#getEdge(int)}
+ * whose node is the node the edge is taken from (so the conode is the next
+ * node on the path, and {@link LabeledDirectedGraph#unpackDirection(long)}
+ * says whether the edge was followed from parent to child).
+ *
+ * All path enumeration is a DFS with one shared stack and a {@link BitSet} of
+ * the nodes on the stack (no allocation per path). The arrays given to the
+ * visitor are re-used, copy them if you need to keep them.
+ *
+ * Not thread safe (the stacks are re-used across calls).
+ *
+ * @author travis
+ */
+public class GraphPathEnumerator {
+
+  public interface Visitor {
+    /**
+     * @param nodes are the nodes on the path, nodes[0] is the source and nodes[length] is the end
+     * @param edges edges[i] goes from nodes[i] to nodes[i+1]
+     * @param length is the number of edges on the path
+     * @return false to stop enumerating paths
+     */
+    boolean visit(int[] nodes, long[] edges, int length);
+  }
+
+  private LabeledDirectedGraph graph;
+  private int numNodes;
+  // edges incident to node n are graph.getEdge(i) for i in [nodeStart[n], nodeStart[n+1])
+  private int[] nodeStart;
+
+  // DFS stack
+  private int[] nodeStack;
+  private long[] edgeStack;
+  private int[] cursor;   // next edge index to try out of nodeStack[d]
+  private BitSet onPath;
+
+  // BFS scratch for k-shortest paths
+  private int[] queue;
+  private int[] predEdge;   // edge index used to reach a node
+  private int[] seenStamp;
+  private int stamp;
+  private BitSet blockedNodes;
+  private BitSet blockedEdges;
+
+  public GraphPathEnumerator(LabeledDirectedGraph graph) {
+    this.graph = graph;
+    this.numNodes = graph.getNumNodes();
+    int m = graph.getNumEdges();
+    nodeStart = new int[numNodes + 1];
+    for (int i = 0; i < m; i++) {
+      int n = LabeledDirectedGraph.unpackNode(graph.getEdge(i));
+      if (n < numNodes)
+        nodeStart[n + 1]++;
+    }
+    for (int n = 0; n < numNodes; n++)
+      nodeStart[n + 1] += nodeStart[n];
+    nodeStack = new int[16];
+    edgeStack = new long[16];
+    cursor = new int[16];
+    onPath = new BitSet(numNodes);
+  }
+
+  public LabeledDirectedGraph getGraph() {
+    return graph;
+  }
+
+  private boolean follow(long edge, boolean bidirectional) {
+    return bidirectional || LabeledDirectedGraph.unpackDirection(edge);
+  }
+
+  private void ensureDepth(int d) {
+    if (d >= nodeStack.length) {
+      int c = Math.max(d + 1, nodeStack.length * 2);
+      nodeStack = Arrays.copyOf(nodeStack, c);
+      edgeStack = Arrays.copyOf(edgeStack, c);
+      cursor = Arrays.copyOf(cursor, c);
+    }
+  }
+
+  /**
+   * Visits every simple path (no repeated nodes) starting at source with
+   * between 1 and maxLength edges, in DFS order.
+   *
+   * @param sink if non-negative, only paths ending at sink are visited (and
+   * paths aren't extended through sink), otherwise every path is visited.
+   * @param bidirectional if false, only follow parent->child edges
+   * @return the number of paths visited
+   */
+  public long allPaths(int source, int sink, int maxLength, boolean bidirectional, Visitor v) {
+    if (source < 0 || source >= numNodes)
+      return 0;
+    long visited = 0;
+    ensureDepth(0);
+    int d = 0;
+    nodeStack[0] = source;
+    cursor[0] = nodeStart[source];
+    onPath.set(source);
+    while (d >= 0) {
+      int u = nodeStack[d];
+      if (d == maxLength || cursor[d] == nodeStart[u + 1] || (u == sink && d > 0)) {
+        // Pop
+        onPath.clear(u);
+        d--;
+        continue;
+      }
+      long e = graph.getEdge(cursor[d]++);
+      if (!follow(e, bidirectional))
+        continue;
+      int w = LabeledDirectedGraph.unpackConode(e);
+      if (onPath.get(w) || w >= numNodes)
+        continue;
+      // Push
+      ensureDepth(d + 1);
+      edgeStack[d] = e;
+      d++;
+      nodeStack[d] = w;
+      cursor[d] = nodeStart[w];
+      onPath.set(w);
+      if (sink < 0 || w == sink) {
+        visited++;
+        if (!v.visit(nodeStack, edgeStack, d)) {
+          onPath.clear();
+          return visited;
+        }
+      }
+    }
+    return visited;
+  }
+
+  /**
+   * Visits the k shortest simple paths from source to sink in order of
+   * increasing length, using Yen's algorithm with BFS for the spur paths.
+   * Among paths of the same length, earlier discovered paths come first.
+   *
+   * @param bidirectional if false, only follow parent->child edges
+   * @return the number of paths visited (less than k if there aren't k paths)
+   */
+  public int kShortestPaths(int source, int sink, int k, boolean bidirectional, Visitor v) {
+    if (source < 0 || source >= numNodes || sink < 0 || sink >= numNodes || k <= 0)
+      return 0;
+    if (queue == null) {
+      queue = new int[numNodes];
+      predEdge = new int[numNodes];
+      seenStamp = new int[numNodes];
+      blockedNodes = new BitSet(numNodes);
+      blockedEdges = new BitSet(graph.getNumEdges());
+    }
+
+    // Paths are stored as edge indices
+    List<int[]> found = new ArrayList<>();
+    List<int[]> candidates = new ArrayList<>();
+    blockedNodes.clear();
+    blockedEdges.clear();
+    int[] first = bfs(source, sink, bidirectional, null, 0);
+    if (first == null)
+      return 0;
+    found.add(first);
+    if (!report(source, first, v))
+      return 1;
+
+    while (found.size() < k) {
+      int[] prev = found.get(found.size() - 1);
+      for (int i = 0; i < prev.length; i++) {
+        // Root path is prev[0..i), spur node is where it ends
+        int spur = i == 0 ? source : LabeledDirectedGraph.unpackConode(graph.getEdge(prev[i - 1]));
+        blockedNodes.clear();
+        blockedEdges.clear();
+        for (int[] p : found)
+          if (p.length > i && samePrefix(p, prev, i))
+            blockedEdges.set(p[i]);
+        blockedNodes.set(source);
+        for (int j = 0; j < i; j++)
+          blockedNodes.set(LabeledDirectedGraph.unpackConode(graph.getEdge(prev[j])));
+        blockedNodes.clear(spur);
+        int[] p = bfs(spur, sink, bidirectional, prev, i);
+        if (p != null && !contains(found, p) && !contains(candidates, p))
+          candidates.add(p);
+      }
+      blockedNodes.clear();
+      blockedEdges.clear();
+      if (candidates.isEmpty())
+        break;
+      int best = 0;
+      for (int j = 1; j < candidates.size(); j++)
+        if (candidates.get(j).length < candidates.get(best).length)
+          best = j;
+      int[] p = candidates.remove(best);
+      found.add(p);
+      if (!report(source, p, v))
+        break;
+    }
+    return found.size();
+  }
+
+  private static boolean samePrefix(int[] a, int[] b, int len) {
+    for (int i = 0; i < len; i++)
+      if (a[i] != b[i])
+        return false;
+    return true;
+  }
+
+  private static boolean contains(List<int[]> paths, int[] p) {
+    for (int[] q : paths)
+      if (Arrays.equals(p, q))
+        return true;
+    return false;
+  }
+
+  /**
+   * BFS from start to sink avoiding blockedNodes/blockedEdges.
+   * @return rootPrefix[0..rootLen) followed by the edge indices of the path
+   * found, or null if there isn't one.
+   */
+  private int[] bfs(int start, int sink, boolean bidirectional, int[] rootPrefix, int rootLen) {
+    if (++stamp == 0) {
+      Arrays.fill(seenStamp, 0);
+      stamp = 1;
+    }
+    int head = 0, tail = 0;
+    queue[tail++] = start;
+    seenStamp[start] = stamp;
+    predEdge[start] = -1;
+    while (head < tail) {
+      int u = queue[head++];
+      if (u == sink)
+        break;
+      for (int ei = nodeStart[u]; ei < nodeStart[u + 1]; ei++) {
+        long e = graph.getEdge(ei);
+        if (!follow(e, bidirectional) || blockedEdges.get(ei))
+          continue;
+        int w = LabeledDirectedGraph.unpackConode(e);
+        if (w >= numNodes || seenStamp[w] == stamp || blockedNodes.get(w))
+          continue;
+        seenStamp[w] = stamp;
+        predEdge[w] = ei;
+        queue[tail++] = w;
+      }
+    }
+    if (seenStamp[sink] != stamp)
+      return null;
+    int len = 0;
+    for (int u = sink; u != start; u = LabeledDirectedGraph.unpackNode(graph.getEdge(predEdge[u])))
+      len++;
+    int[] p = new int[rootLen + len];
+    if (rootLen > 0)
+      System.arraycopy(rootPrefix, 0, p, 0, rootLen);
+    int i = p.length - 1;
+    for (int u = sink; u != start; u = LabeledDirectedGraph.unpackNode(graph.getEdge(predEdge[u])))
+      p[i--] = predEdge[u];
+    return p;
+  }
+
+  private boolean report(int source, int[] path, Visitor v) {
+    ensureDepth(path.length);
+    nodeStack[0] = source;
+    for (int i = 0; i < path.length; i++) {
+      long e = graph.getEdge(path[i]);
+      edgeStack[i] = e;
+      nodeStack[i + 1] = LabeledDirectedGraph.unpackConode(e);
+    }
+    return v.visit(nodeStack, edgeStack, path.length);
+  }
+}
@@ -0,0 +1,353 @@
+package edu.jhu.hlt.tutils;
+
+import java.util.Arrays;
+
+import edu.jhu.hlt.tutils.LabeledDirectedGraph.Node;
+
+/**
+ * Precomputed shortest path queries between nodes in a range (e.g. the tokens
+ * in one sentence) of a {@link LabeledDirectedGraph}, for when you need paths
+ * between many pairs of nodes. Edges leaving the range are ignored.
+ *
+ * If every node in the range has at most one parent in the range (a forest,
+ * e.g. a basic dependency parse) this uses LCA queries (Euler tour + sparse
+ * table): O(n log n) to build, O(1) distance queries. Otherwise (e.g.
+ * collapsed dependencies) it runs a BFS from every node and stores distance
+ * and predecessor tables, O(n^2) space, built lazily for each of the
+ * directed/bidirectional cases.
+ *
+ * Paths are written into a caller provided buffer in O(path length) with no
+ * allocation, and are the same as
+ * {@link LabeledDirectedGraph#shortestPath(int, int, boolean, boolean)}
+ * (including how ties are broken).
+ *
+ * Node indices given to and returned by this class are graph node indices
+ * (not relative to the start of the range).
+ *
+ * @author travis
+ */
+public class GraphPathOracle {
+
+  /** Refuse to build all-pairs tables for more nodes than this */
+  public static int MAX_DENSE_NODES = 2048;
+
+  private LabeledDirectedGraph graph;
+  private int first;    // node index of local node 0
+  private int n;
+
+  // Forest representation, parent == -1 for roots, null if not a forest
+  private int[] parent;
+  private int[] depth;
+  private int[] tree;       // which tree a node is in
+  private int[] firstVisit; // position in euler of a node's first visit
+  private int[] euler;      // local node indices
+  private int[][] minDepth; // minDepth[k][i] = position in euler of min depth in [i, i + 2^k)
+
+  // All pairs, dist[s*n+t] = -1 if no path, pred[s*n+t] = node before t on the path from s
+  private int[] distDirected, predDirected;
+  private int[] distBidir, predBidir;
+
+  /**
+   * @param firstNode is the first node in the range (inclusive)
+   * @param lastNode is the last node in the range (inclusive)
+   */
+  public GraphPathOracle(LabeledDirectedGraph graph, int firstNode, int lastNode) {
+    if (firstNode < 0 || lastNode < firstNode)
+      throw new IllegalArgumentException("firstNode=" + firstNode + " lastNode=" + lastNode);
+    this.graph = graph;
+    this.first = firstNode;
+    this.n = lastNode - firstNode + 1;
+    buildForest();
+  }
+
+  public LabeledDirectedGraph getGraph() {
+    return graph;
+  }
+
+  public boolean isForest() {
+    return parent != null;
+  }
+
+  private boolean inRange(int node) {
+    return node >= first && node < first + n;
+  }
+
+  private Node node(int local) {
+    int i = first + local;
+    return i < graph.getNumNodes() ? graph.getNode(i) : null;
+  }
+
+  /** Sets parent etc if this is a forest, otherwise leaves them null */
+  private void buildForest() {
+    int[] par = new int[n];
+    Arrays.fill(par, -1);
+    for (int i = 0; i < n; i++) {
+      Node nd = node(i);
+      if (nd == null)
+        continue;
+      int np = nd.numParents();
+      for (int j = 0; j < np; j++) {
+        int p = nd.getParent(j);
+        if (!inRange(p))
+          continue;
+        if (par[i] >= 0)
+          return;   // more than one parent
+        par[i] = p - first;
+      }
+    }
+
+    // Children in CSR form
+    int[] childStart = new int[n + 1];
+    for (int i = 0; i < n; i++)
+      if (par[i] >= 0)
+        childStart[par[i] + 1]++;
+    for (int i = 0; i < n; i++)
+      childStart[i + 1] += childStart[i];
+    int[] children = new int[childStart[n]];
+    int[] fill = Arrays.copyOf(childStart, n);
+    for (int i = 0; i < n; i++)
+      if (par[i] >= 0)
+        children[fill[par[i]]++] = i;
+
+    // Euler tour from every root, iterative DFS
+    int[] dep = new int[n];
+    int[] tr = new int[n];
+    int[] fv = new int[n];
+    Arrays.fill(fv, -1);
+    int[] eul = new int[Math.max(1, 2 * n - 1)];
+    int[] stack = new int[n];
+    int[] next = new int[n];    // next child (offset into children) to visit
+    int top = 0, e = 0, trees = 0, visited = 0;
+    for (int r = 0; r < n; r++) {
+      if (par[r] >= 0)
+        continue;
+      dep[r] = 0;
+      tr[r] = trees++;
+      stack[top++] = r;
+      next[r] = childStart[r];
+      fv[r] = e;
+      eul[e++] = r;
+      visited++;
+      while (top > 0) {
+        int u = stack[top - 1];
+        if (next[u] < childStart[u + 1]) {
+          int c = children[next[u]++];
+          dep[c] = dep[u] + 1;
+          tr[c] = tr[u];
+          next[c] = childStart[c];
+          stack[top++] = c;
+          fv[c] = e;
+          eul[e++] = c;
+          visited++;
+        } else {
+          top--;
+          if (top > 0)
+            eul[e++] = stack[top - 1];
+        }
+      }
+    }
+    if (visited < n)
+      return;   // cycle: some nodes aren't reachable from a root
+
+    // Sparse table over euler (only within a tree are ranges meaningful)
+    int levels = 1;
+    while ((1 << levels) <= e)
+      levels++;
+    int[][] md = new int[levels][];
+    md[0] = new int[e];
+    for (int i = 0; i < e; i++)
+      md[0][i] = i;
+    for (int k = 1; k < levels; k++) {
+      int w = 1 << k;
+      int[] prev = md[k - 1];
+      int[] cur = new int[e - w + 1];
+      for (int i = 0; i + w <= e; i++) {
+        int a = prev[i], b = prev[i + (w >> 1)];
+        cur[i] = dep[eul[b]] < dep[eul[a]] ? b : a;
+      }
+      md[k] = cur;
+    }
+
+    parent = par;
+    depth = dep;
+    tree = tr;
+    firstVisit = fv;
+    euler = eul;
+    minDepth = md;
+  }
+
+  /**
+   * Lowest common ancestor, only works if this is a forest.
+   * @return a node index or -1 if they are in different trees.
+   */
+  public int lca(int a, int b) {
+    if (parent == null)
+      throw new IllegalStateException("not a forest");
+    int l = lcaLocal(a - first, b - first);
+    return l < 0 ? -1 : l + first;
+  }
+
+  private int lcaLocal(int a, int b) {
+    if (tree[a] != tree[b])
+      return -1;
+    int i = firstVisit[a], j = firstVisit[b];
+    if (i > j) {
+      int t = i; i = j; j = t;
+    }
+    int k = 31 - Integer.numberOfLeadingZeros(j - i + 1);
+    int x = minDepth[k][i];
+    int y = minDepth[k][j - (1 << k) + 1];
+    return depth[euler[y]] < depth[euler[x]] ? euler[y] : euler[x];
+  }
+
+  private void checkNode(int node) {
+    if (!inRange(node))
+      throw new IllegalArgumentException("node " + node + " is not in [" + first + ", " + (first + n - 1) + "]");
+  }
+
+  /**
+   * @param bidirectional if false, only follow parent->child edges
+   * @return the number of edges on the shortest path from source to sink, or
+   * -1 if there is no path.
+   */
+  public int distance(int source, int sink, boolean bidirectional) {
+    checkNode(source);
+    checkNode(sink);
+    int s = source - first, t = sink - first;
+    if (parent != null) {
+      int l = lcaLocal(s, t);
+      if (l < 0 || (!bidirectional && l != s))
+        return -1;
+      return depth[s] + depth[t] - 2 * depth[l];
+    }
+    return dist(bidirectional)[s * n + t];
+  }
+
+  /**
+   * Writes the shortest path from source to sink into buf.
+   * @param includeEndpoints says whether source and sink appear as the first and last items in the path
+   * @param buf must have room for {@link #distance(int, int, boolean)} + 1 nodes.
+   * @return the number of nodes written, or -1 if there is no path.
+   */
+  public int path(int source, int sink, boolean bidirectional, boolean includeEndpoints, int[] buf) {
+    int d = distance(source, sink, bidirectional);
+    if (d < 0)
+      return -1;
+    int s = source - first, t = sink - first;
+    // i is the position in the full path (d+1 nodes), buf[i-lo] for i in [lo,hi]
+    int lo = includeEndpoints ? 0 : 1;
+    int hi = includeEndpoints ? d : d - 1;
+    if (parent != null) {
+      int l = lcaLocal(s, t);
+      int up = depth[s] - depth[l];
+      for (int i = 0, u = s; i <= up; i++, u = parent[u])
+        if (i >= lo && i <= hi)
+          buf[i - lo] = u + first;
+      for (int i = d, u = t; i > up; i--, u = parent[u])
+        if (i >= lo && i <= hi)
+          buf[i - lo] = u + first;
+    } else {
+      int[] pred = pred(bidirectional);
+      for (int i = d, u = t; i >= 0; i--, u = pred[s * n + u])
+        if (i >= lo && i <= hi)
+          buf[i - lo] = u + first;
+    }
+    return Math.max(0, hi - lo + 1);
+  }
+
+  /**
+   * Same as {@link LabeledDirectedGraph#shortestPath(int, int, boolean, boolean)},
+   * allocates the returned path.
+   */
+  public int[] shortestPath(int source, int sink, boolean bidirectional, boolean includeEndpoints) {
+    int d = distance(source, sink, bidirectional);
+    if (d < 0)
+      return null;
+    int[] p = new int[includeEndpoints ? d + 1 : Math.max(0, d - 1)];
+    path(source, sink, bidirectional, includeEndpoints, p);
+    return p;
+  }
+
+  private int[] dist(boolean bidirectional) {
+    if (bidirectional) {
+      if (distBidir == null)
+        allPairs(true);
+      return distBidir;
+    }
+    if (distDirected == null)
+      allPairs(false);
+    return distDirected;
+  }
+
+  private int[] pred(boolean bidirectional) {
+    dist(bidirectional);
+    return bidirectional ? predBidir : predDirected;
+  }
+
+  /** BFS from every node in the same order as LabeledDirectedGraph.shortestPath */
+  private void allPairs(boolean bidirectional) {
+    if (n > MAX_DENSE_NODES)
+      throw new IllegalArgumentException("too many nodes for all pairs tables: " + n + " > " + MAX_DENSE_NODES);
+    // Adjacency in CSR form, children then (maybe) parents
+    int[] adjStart = new int[n + 1];
+    int[] adj = new int[16];
+    int m = 0;
+    for (int i = 0; i < n; i++) {
+      adjStart[i] = m;
+      Node nd = node(i);
+      if (nd == null)
+        continue;
+      int nc = nd.numChildren();
+      for (int j = 0; j < nc; j++) {
+        int c = nd.getChild(j);
+        if (!inRange(c))
+          continue;
+        if (m == adj.length)
+          adj = Arrays.copyOf(adj, m * 2);
+        adj[m++] = c - first;
+      }
+      if (bidirectional) {
+        int np = nd.numParents();
+        for (int j = 0; j < np; j++) {
+          int p = nd.getParent(j);
+          if (!inRange(p))
+            continue;
+          if (m == adj.length)
+            adj = Arrays.copyOf(adj, m * 2);
+          adj[m++] = p - first;
+        }
+      }
+    }
+    adjStart[n] = m;
+
+    int[] dist = new int[n * n];
+    int[] pred = new int[n * n];
+    Arrays.fill(dist, -1);
+    int[] q = new int[n];
+    for (int s = 0; s < n; s++) {
+      int o = s * n;
+      int head = 0, tail = 0;
+      q[tail++] = s;
+      dist[o + s] = 0;
+      pred[o + s] = -1;
+      while (head < tail) {
+        int u = q[head++];
+        for (int k = adjStart[u]; k < adjStart[u + 1]; k++) {
+          int v = adj[k];
+          if (dist[o + v] < 0) {
+            dist[o + v] = dist[o + u] + 1;
+            pred[o + v] = u;
+            q[tail++] = v;
+          }
+        }
+      }
+    }
+    if (bidirectional) {
+      distBidir = dist;
+      predBidir = pred;
+    } else {
+      distDirected = dist;
+      predDirected = pred;
+    }
+  }
+}
@@ -37,18 +37,12 @@ import edu.jhu.hlt.tutils.hash.Hash;
  * Only allows non-negative node indices for now, so you have to use N as a root
  * index (where there are N valid tokens which are 0-indexed).
  *
- * TODO: Add the following
-   Shortest path queries:
-   - general tool for shortest path given two endpoints: http://en.wikipedia.org/wiki/Bidirectional_search
-   - may be faster to just do Dijkstra twice, each time going in the "parent" direction (near-trees will have branching factor of 1)
-     make sure you use the fibonacci heap version: http://people.cs.kuleuven.be/~jon.sneyers/presentations/dijkstra_chr.pdf
-   - loops/cycles?!
-     just keep a bitset around for these algorithms to detect loops
-
-   All path queries:
-   - similar algorithms as above, but you need to keep a stack of nodes from source with you
-     always read from the stack (when you complete a path, need to copy the whole thing off)
-     on exploration out of a node, can push/pop on items on/off the stack to just use one stack (avoid copying)
+ * Shortest path queries: {@link #shortestPath(int, int, boolean, boolean)}
+ * does a BFS per call, use {@link #getPathOracle(int, int)} if you need paths
+ * between many pairs of nodes (LCA for trees, all pairs BFS tables otherwise).
+ *
+ * All path queries (simple paths up to a length, k shortest paths): see
+ * {@link GraphPathEnumerator}.
  *
  * @author travis
  */
@@ -72,6 +66,12 @@ public class LabeledDirectedGraph implements Serializable {
   // Index is a token (node) index, value is the first index in edges s.t. the edge
   // label direction is node -> conode.
   private int[] splitPoints;
+
+  // This graph may be a view of arrays shared with other graphs (see
+  // LabeledDirectedGraphCorpus): its edges are edges[edgeStart,edgeEnd) and
+  // node i's split point is splitPoints[nodeStart + i] (an index into edges).
+  private int edgeStart, edgeEnd;
+  private int nodeStart, numNodes;
   
   // Just have two booleans?
   enum Mode {
@@ -113,6 +113,50 @@ public class LabeledDirectedGraph implements Serializable {
       splitPoints = computeSplitPoints(edges);
     this.edges = edges;
     this.splitPoints = splitPoints;
+    this.edgeEnd = edges.length;
+    this.numNodes = splitPoints.length;
+  }
+
+  /**
+   * View of edges[edgeStart,edgeEnd) with split points (indices into edges,
+   * not relative to edgeStart) in splitPoints[nodeStart,nodeStart+numNodes).
+   * Nothing is copied.
+   */
+  LabeledDirectedGraph(long[] edges, int edgeStart, int edgeEnd, int[] splitPoints, int nodeStart, int numNodes) {
+    this.edges = edges;
+    this.edgeStart = edgeStart;
+    this.edgeEnd = edgeEnd;
+    this.splitPoints = splitPoints;
+    this.nodeStart = nodeStart;
+    this.numNodes = numNodes;
+  }
+
+  /** True if this graph doesn't own all of its backing arrays */
+  public boolean isView() {
+    return edgeStart != 0 || edgeEnd != edges.length
+        || nodeStart != 0 || numNodes != splitPoints.length;
+  }
+
+  /** Serializes views as a (compact) copy rather than the backing arrays */
+  private Object writeReplace() {
+    if (!isView())
+      return this;
+    long[] e = Arrays.copyOfRange(edges, edgeStart, edgeEnd);
+    int[] sp = new int[numNodes];
+    for (int i = 0; i < numNodes; i++) {
+      int s = splitPoints[nodeStart + i];
+      sp[i] = s < 0 ? s : s - edgeStart;
+    }
+    return new LabeledDirectedGraph(e, sp);
+  }
+
+  private void readObject(java.io.ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    // Graphs serialized before views existed (and all graphs, see writeReplace)
+    // own all of their arrays.
+    edgeStart = nodeStart = 0;
+    edgeEnd = edges == null ? 0 : edges.length;
+    numNodes = splitPoints == null ? 0 : splitPoints.length;
   }
 
   public LabeledDirectedGraph() {}
@@ -122,21 +166,21 @@ public class LabeledDirectedGraph implements Serializable {
    * stores incident and adjacent edges.
    */
   public int getNumEdges() {
-    return edges.length;
+    return edgeEnd - edgeStart;
   }
 
   public int getNumNodes() {
-    return splitPoints.length;
+    return numNodes;
   }
 
   public Node getNode(int nodeIndex) {
-    if (nodeIndex >= splitPoints.length)
+    if (nodeIndex >= numNodes)
       return null;
     return this.new Node(nodeIndex);
   }
 
   public long getEdge(int edgeIndex) {
-    return edges[edgeIndex];
+    return edges[edgeStart + edgeIndex];
   }
 
   public String toString(MultiAlphabet alph) {
@@ -199,14 +243,14 @@ public class LabeledDirectedGraph implements Serializable {
     private int numChildren;
 
     public Node(int nodeIndex) {
-      if (nodeIndex >= splitPoints.length) {
+      if (nodeIndex >= numNodes) {
         throw new RuntimeException("either this graph was constructed "
             + "improperly (likely if there are no edges) or nodeIndex="
-            + nodeIndex + " is illegal, splitPoints.length="
-            + splitPoints.length + " edges.length=" + edges.length);
+            + nodeIndex + " is illegal, numNodes="
+            + numNodes + " numEdges=" + getNumEdges());
       }
       this.node = nodeIndex;
-      this.split = splitPoints[nodeIndex];
+      this.split = splitPoints[nodeStart + nodeIndex];
       this.numParents = -1;
       this.numChildren = -1;
     }
@@ -244,7 +288,7 @@ public class LabeledDirectedGraph implements Serializable {
     public int numParents() {
       if (numParents < 0) {
         numParents = 0;
-        for (int i = split - 1; i >= 0; i--) {
+        for (int i = split - 1; i >= edgeStart; i--) {
           int n = unpackNode(edges[i]);
           if (n == node) {
             assert !unpackDirection(edges[i]);
@@ -286,7 +330,7 @@ public class LabeledDirectedGraph implements Serializable {
       int oldNode = node;
       long e = getParentEdge(i);
       this.node = unpackConode(e);
-      this.split = splitPoints[this.node];
+      this.split = splitPoints[nodeStart + this.node];
       this.numParents = -1;
       this.numChildren = -1;
       return oldNode;
@@ -295,7 +339,7 @@ public class LabeledDirectedGraph implements Serializable {
     public int numChildren() {
       if (numChildren < 0) {
         numChildren = 0;
-        for (int i = split; i >= 0 && i < edges.length; i++) {
+        for (int i = split; i >= edgeStart && i < edgeEnd; i++) {
           int n = unpackNode(edges[i]);
           if (n == node) {
             numChildren++;
@@ -338,7 +382,7 @@ public class LabeledDirectedGraph implements Serializable {
       int oldNode = node;
       long e = getChildEdge(i);
       this.node = unpackConode(e);
-      this.split = splitPoints[this.node];
+      this.split = splitPoints[nodeStart + this.node];
       this.numParents = -1;
       this.numChildren = -1;
       return oldNode;
@@ -361,6 +405,8 @@ public class LabeledDirectedGraph implements Serializable {
    * The node indices of the returned graph are shifted down by firstNode.
    * This is useful, e.g. for converting a graph for the dependency parses for an entire document (tutils style)
    * to a sentence-relative graph (conll/fnparse/etc) style.
+   * This copies, see {@link LabeledDirectedGraphCorpus} for sentence graphs
+   * which share one set of arrays.
    * 
    * TODO Test this!
    */
@@ -420,6 +466,9 @@ public class LabeledDirectedGraph implements Serializable {
 
       // Compute splitPoints
       splitPoints = computeSplitPoints(edges);
+      edgeStart = nodeStart = 0;
+      edgeEnd = edges.length;
+      numNodes = splitPoints.length;
 
       // Disallow future adds
       top = -1;
@@ -442,35 +491,92 @@ public class LabeledDirectedGraph implements Serializable {
      * (concrete uses sentence-specific indexes, this uses document/global indices).
      */
     public void addFromConcrete(DependencyParse p, int offset, int n, int root, MultiAlphabet alph) {
-      if (p == null)
-        return;
-      assert n > 0;
-      assert offset >= 0;
-      for (Dependency d : p.getDependencyList()) {
-        int e = alph.dep(d.getEdgeType());
-        int gov;
-        if (d.isSetGov() && d.getGov() >= 0) {
-          gov = d.getGov() + offset;
-          assert root <= 0 || gov < root;
-          assert d.getGov() < n;
-        } else if (root > 0) {
-          gov = root;
-        } else {
-          continue;
-        }
-        int dep = d.getDep() + offset;
-        assert root <= 0 || dep < root;
-        assert d.getDep() < n;
-        assert gov >= 0 && dep >= 0;
+      LabeledDirectedGraph.addFromConcrete(p, offset, n, root, alph, this::add);
+    }
+
+    public void addFromConcrete(DependencyParse p, int offset, int n, MultiAlphabet alph) {
+      addFromConcrete(p, offset, n, -1, alph);
+    }
+  }
+
+  interface ArcConsumer {
+    void add(int parent, int child, int edgeLabel);
+  }
+
+  /**
+   * See {@link Builder#addFromConcrete(DependencyParse, int, int, int, MultiAlphabet)}.
+   */
+  static void addFromConcrete(DependencyParse p, int offset, int n, int root, MultiAlphabet alph, ArcConsumer add) {
+    if (p == null)
+      return;
+    assert n > 0;
+    assert offset >= 0;
+    for (Dependency d : p.getDependencyList()) {
+      int e = alph.dep(d.getEdgeType());
+      int gov;
+      if (d.isSetGov() && d.getGov() >= 0) {
+        gov = d.getGov() + offset;
+        assert root <= 0 || gov < root;
+        assert d.getGov() < n;
+      } else if (root > 0) {
+        gov = root;
+      } else {
+        continue;
+      }
+      int dep = d.getDep() + offset;
+      assert root <= 0 || dep < root;
+      assert d.getDep() < n;
+      assert gov >= 0 && dep >= 0;
 //        System.out.println("gov=" + gov + " dep=" + dep + " offset=" + offset
 //            + " n=" + n + " root=" + root
 //            + " gov+offset=" + (gov+offset) + " dep+offset=" + (dep+offset));
-        add(gov, dep, e);
-      }
+      add.add(gov, dep, e);
     }
+  }
 
-    public void addFromConcrete(DependencyParse p, int offset, int n, MultiAlphabet alph) {
-      addFromConcrete(p, offset, n, -1, alph);
+  /**
+   * The edges of a graph which hasn't been built yet: one packed long per
+   * edge (half of what a {@link LabeledDirectedGraph} uses), unsorted and
+   * without split points. {@link #build()} does the rest of the work (what
+   * {@link Builder#freeze()} does), so graphs which may never be used (e.g.
+   * some of the parses in a {@link Document}) are cheap to hold on to.
+   */
+  public static class Lazy implements Serializable {
+    private static final long serialVersionUID = -1805001564452547214L;
+
+    private long[] arcs;  // parent -> child
+    private int size;
+
+    public Lazy() {
+      arcs = new long[16];
+    }
+
+    public void add(int parent, int child, int edgeLabel) {
+      if (size == arcs.length)
+        arcs = Arrays.copyOf(arcs, (int) (arcs.length * 1.6 + 2.5));
+      arcs[size++] = pack(parent, edgeLabel, child, true);
+    }
+
+    /** See {@link Builder#addFromConcrete(DependencyParse, int, int, int, MultiAlphabet)} */
+    public void addFromConcrete(DependencyParse p, int offset, int n, int root, MultiAlphabet alph) {
+      LabeledDirectedGraph.addFromConcrete(p, offset, n, root, alph, this::add);
+    }
+
+    /** Same as {@link Builder#numEdges()}, two per call to add */
+    public int numEdges() {
+      return 2 * size;
+    }
+
+    /** Builds a new graph, the same as adding these edges to a {@link Builder} */
+    public LabeledDirectedGraph build() {
+      long[] edges = new long[2 * size];
+      for (int i = 0; i < size; i++) {
+        long a = arcs[i];
+        edges[2 * i] = a;
+        edges[2 * i + 1] = pack(unpackConode(a), unpackEdge(a), unpackNode(a), false);
+      }
+      Arrays.sort(edges);
+      return new LabeledDirectedGraph(edges, null);
     }
   }
 
@@ -478,8 +584,28 @@ public class LabeledDirectedGraph implements Serializable {
    * @param edges must be sorted by node, ascending
    */
   public static int[] computeSplitPoints(long[] edges) {
+    return computeSplitPoints(edges, 0, edges.length, null, 0);
+  }
+
+  /** Number of nodes in the graph with edges[from,to), i.e. max node + 1 */
+  public static int computeNumNodes(long[] edges, int from, int to) {
+    int n = 0;
+    for (int i = from; i < to; i++) {
+      long e = edges[i];
+      n = Math.max(n, Math.max(unpackNode(e), unpackConode(e)) + 1);
+    }
+    return n;
+  }
+
+  /**
+   * Computes split points for the graph with edges[from,to), which must be
+   * sorted by node. Split points are indices into edges (not relative to from).
+   * @param splitPoints where to write the split points, starting at offset. If
+   * null, a new array is allocated (and offset must be 0).
+   */
+  public static int[] computeSplitPoints(long[] edges, int from, int to, int[] splitPoints, int offset) {
     BitSet nodes = new BitSet();
-    for (int i = 0; i < edges.length; i++) {
+    for (int i = from; i < to; i++) {
       long e = edges[i];
       nodes.set(unpackNode(e));
       nodes.set(unpackConode(e));
@@ -488,8 +614,9 @@ public class LabeledDirectedGraph implements Serializable {
     if (DEBUG) {
       System.out.println("[computeSplitPoints] numNodes=" + numNodes + " nodes=" + nodes);
     }
-    int[] splitPoints = new int[numNodes];
-    int ptr = 0;
+    if (splitPoints == null)
+      splitPoints = new int[numNodes];
+    int ptr = from;
     for (int i = 0; i < numNodes; i++) {
       if (DEBUG)
         System.out.println("[computeSplitPoints] i=" + i);
@@ -498,7 +625,7 @@ public class LabeledDirectedGraph implements Serializable {
         // Find the first edge where node==i and is node->conode.
         if (DEBUG)
           System.out.println("looking for node=" + i + " ptr=" + ptr);
-        while (ptr < edges.length) {
+        while (ptr < to) {
           long e = edges[ptr];
           int n = unpackNode(e);
           boolean d = unpackDirection(e);
@@ -515,18 +642,18 @@ public class LabeledDirectedGraph implements Serializable {
         }
         if (DEBUG)
           System.out.println("[computeSplitPoints] setting splitPoints[" + i +"] = " + ptr);
-        splitPoints[i] = ptr;
+        splitPoints[offset + i] = ptr;
       } else {
         if (DEBUG)
           System.out.println("[computeSplitPoints] setting splitPoints[" + i +"] = -1");
-        splitPoints[i] = -1;
+        splitPoints[offset + i] = -1;
       }
     }
     if (DEBUG) System.out.println("[computeSplitPoints] done");
     return splitPoints;
   }
 
-  private static long pack(int node, int edge, int conode, boolean nodeIsParentOfConode) {
+  static long pack(int node, int edge, int conode, boolean nodeIsParentOfConode) {
     if (node < 0 || edge < 0 || conode < 0) {
       throw new IllegalArgumentException("all values must be >=0,"
           + " node=" + node + " edge=" + edge + " conode=" + conode);
@@ -674,6 +801,14 @@ public class LabeledDirectedGraph implements Serializable {
     return null;
   }
   
+  /**
+   * Precomputes shortest paths between all nodes in [firstNode, lastNode]
+   * (inclusive), e.g. the tokens in one sentence. See {@link GraphPathOracle}.
+   */
+  public GraphPathOracle getPathOracle(int firstNode, int lastNode) {
+    return new GraphPathOracle(this, firstNode, lastNode);
+  }
+
   /**
    * Uses 0-indexes for tokens with n as root/wall (where n is the length of the
    * sentence).
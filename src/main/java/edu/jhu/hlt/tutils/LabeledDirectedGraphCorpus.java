@@ -0,0 +1,217 @@
+package edu.jhu.hlt.tutils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Many {@link LabeledDirectedGraph}s (e.g. one dependency parse per sentence
+ * in a corpus) packed into one long[] of edges and one int[] of split points,
+ * with per-sentence offsets. {@link #get(int)} returns a view over the shared
+ * arrays (nothing is copied), unlike
+ * {@link LabeledDirectedGraph#slice(int, int)}.
+ *
+ * Node indices are sentence-local (each sentence starts at node 0), so the
+ * 24 bit limit on node indices applies per sentence rather than to the whole
+ * corpus.
+ *
+ * Views are serialized as (compact) copies, serialize the corpus if you want
+ * to keep the sharing.
+ *
+ * @author travis
+ */
+public class LabeledDirectedGraphCorpus implements Serializable {
+  private static final long serialVersionUID = -3383711570364622466L;
+
+  /** Sentences with at least this many edges are sorted with {@link Arrays#parallelSort(long[], int, int)} */
+  public static int PARALLEL_SORT_MIN_EDGES = 1 << 13;
+
+  private long[] edges;
+  private int[] edgeOffsets;    // sentence i's edges are edges[edgeOffsets[i], edgeOffsets[i+1])
+  private int[] splitPoints;    // indices into edges
+  private int[] nodeOffsets;    // sentence i's split points are splitPoints[nodeOffsets[i], nodeOffsets[i+1])
+
+  private LabeledDirectedGraphCorpus(long[] edges, int[] edgeOffsets, int[] splitPoints, int[] nodeOffsets) {
+    this.edges = edges;
+    this.edgeOffsets = edgeOffsets;
+    this.splitPoints = splitPoints;
+    this.nodeOffsets = nodeOffsets;
+  }
+
+  public int numSentences() {
+    return edgeOffsets.length - 1;
+  }
+
+  /** Sum of {@link LabeledDirectedGraph#getNumEdges()} over all sentences */
+  public int getNumEdges() {
+    return edges.length;
+  }
+
+  /** Sum of {@link LabeledDirectedGraph#getNumNodes()} over all sentences */
+  public int getNumNodes() {
+    return splitPoints.length;
+  }
+
+  /**
+   * @return a view of the graph for the given sentence, which shares this
+   * corpus's arrays. O(1), allocates one small object.
+   */
+  public LabeledDirectedGraph get(int sentence) {
+    int ns = nodeOffsets[sentence];
+    return new LabeledDirectedGraph(
+        edges, edgeOffsets[sentence], edgeOffsets[sentence + 1],
+        splitPoints, ns, nodeOffsets[sentence + 1] - ns);
+  }
+
+  /** Copies (already frozen) graphs into a corpus */
+  public static LabeledDirectedGraphCorpus fromGraphs(List<LabeledDirectedGraph> graphs) {
+    Builder b = new Builder();
+    for (LabeledDirectedGraph g : graphs)
+      b.addSentence(g);
+    return b.freeze();
+  }
+
+  /**
+   * Add edges for one sentence at a time with sentence-local node indices,
+   * calling {@link #endSentence()} after each one (including empty ones).
+   */
+  public static class Builder {
+    private long[] edges;
+    private int top;
+    private int[] edgeOffsets;
+    private int numSentences;
+
+    public Builder() {
+      this(1 << 10);
+    }
+
+    /** @param numEdges is a guess at the number of (directed) edges that will be added */
+    public Builder(int numEdges) {
+      edges = new long[Math.max(16, 2 * numEdges)];
+      edgeOffsets = new int[16];
+    }
+
+    private void ensureCapacity(int extra) {
+      if (edges == null)
+        throw new RuntimeException("you can't add after freeze!");
+      if (top + extra > edges.length) {
+        int newSize = (int) Math.max(top + extra, edges.length * 1.6 + 2.5);
+        edges = Arrays.copyOf(edges, newSize);
+      }
+    }
+
+    /** Same as {@link LabeledDirectedGraph.Builder#add(int, int, int)}, for the current sentence */
+    public void add(int parent, int child, int edgeLabel) {
+      ensureCapacity(2);
+      edges[top++] = LabeledDirectedGraph.pack(parent, edgeLabel, child, true);
+      edges[top++] = LabeledDirectedGraph.pack(child, edgeLabel, parent, false);
+    }
+
+    /** Adds all the edges in g as a new sentence (ends any current sentence first) */
+    public void addSentence(LabeledDirectedGraph g) {
+      if (top > edgeOffsets[numSentences])
+        endSentence();
+      int m = g.getNumEdges();
+      ensureCapacity(m);
+      for (int i = 0; i < m; i++)
+        edges[top++] = g.getEdge(i);
+      endSentence();
+    }
+
+    public void endSentence() {
+      if (edges == null)
+        throw new RuntimeException("you can't add after freeze!");
+      numSentences++;
+      if (numSentences + 1 > edgeOffsets.length)
+        edgeOffsets = Arrays.copyOf(edgeOffsets, (int) (edgeOffsets.length * 1.6 + 2.5));
+      edgeOffsets[numSentences] = top;
+    }
+
+    public int numSentences() {
+      return numSentences;
+    }
+
+    /**
+     * Sorts each sentence's edges and computes split points, both in parallel
+     * across sentences. An un-ended sentence with edges is ended first.
+     */
+    public LabeledDirectedGraphCorpus freeze() {
+      if (top > edgeOffsets[numSentences])
+        endSentence();
+      final long[] e = top == edges.length ? edges : Arrays.copyOf(edges, top);
+      final int[] eo = Arrays.copyOf(edgeOffsets, numSentences + 1);
+      edges = null;
+      edgeOffsets = null;
+
+      // Edges can't carry a sentence key (all the bits are in use), so sort
+      // each sentence's segment separately.
+      int[] nodesPer = new int[numSentences];
+      IntStream.range(0, numSentences).parallel().forEach(s -> {
+        int from = eo[s], to = eo[s + 1];
+        if (to - from >= PARALLEL_SORT_MIN_EDGES)
+          Arrays.parallelSort(e, from, to);
+        else
+          Arrays.sort(e, from, to);
+        nodesPer[s] = LabeledDirectedGraph.computeNumNodes(e, from, to);
+      });
+
+      final int[] no = new int[numSentences + 1];
+      for (int s = 0; s < numSentences; s++)
+        no[s + 1] = no[s] + nodesPer[s];
+      final int[] sp = new int[no[numSentences]];
+      IntStream.range(0, numSentences).parallel().forEach(s -> {
+        LabeledDirectedGraph.computeSplitPoints(e, eo[s], eo[s + 1], sp, no[s]);
+      });
+      return new LabeledDirectedGraphCorpus(e, eo, sp, no);
+    }
+  }
+
+  /**
+   * Compares building one {@link LabeledDirectedGraph} per sentence to building
+   * a corpus, for random trees.
+   */
+  public static void benchmark(ExperimentProperties config) {
+    int numSentences = config.getInt("numSentences", 200_000);
+    int times = config.getInt("times", 3);
+    Random rand = new Random(9001);
+    int[][] heads = new int[numSentences][];
+    for (int s = 0; s < numSentences; s++) {
+      int n = 5 + rand.nextInt(40);
+      heads[s] = new int[n];
+      for (int i = 1; i < n; i++)
+        heads[s][i] = rand.nextInt(i);
+    }
+    MultiTimer t = new MultiTimer();
+    for (int k = 0; k < times; k++) {
+      long e1 = 0;
+      t.start("perSentence");
+      for (int s = 0; s < numSentences; s++) {
+        LabeledDirectedGraph.Builder b = new LabeledDirectedGraph().new Builder();
+        for (int i = 1; i < heads[s].length; i++)
+          b.add(heads[s][i], i, i % 40);
+        e1 += b.freeze().getNumEdges();
+      }
+      t.stop("perSentence");
+
+      t.start("corpus");
+      Builder b = new Builder((int) (e1 / 2));
+      for (int s = 0; s < numSentences; s++) {
+        for (int i = 1; i < heads[s].length; i++)
+          b.add(heads[s][i], i, i % 40);
+        b.endSentence();
+      }
+      LabeledDirectedGraphCorpus c = b.freeze();
+      t.stop("corpus");
+      if (e1 != c.getNumEdges())
+        throw new RuntimeException("mismatch: " + e1 + " vs " + c.getNumEdges());
+    }
+    Log.info("numSentences=" + numSentences + "\n" + t);
+  }
+
+  public static void main(String[] args) {
+    ExperimentProperties config = ExperimentProperties.init(args);
+    benchmark(config);
+  }
+}
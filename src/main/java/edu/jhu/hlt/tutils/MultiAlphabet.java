@@ -182,6 +182,9 @@ public class MultiAlphabet implements Serializable {
       return "NONE";
     return depAlph.lookupObject(i);
   }
+  public int numDep() {
+    return depAlph.size();
+  }
 
   public int srl(String srlLabel) {
     return srlAlph.lookupIndex(srlLabel, true);
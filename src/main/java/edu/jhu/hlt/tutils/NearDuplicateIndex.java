@@ -0,0 +1,316 @@
+package edu.jhu.hlt.tutils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Random;
+
+import edu.jhu.hlt.tutils.hash.Hash;
+import edu.jhu.hlt.tutils.hash.MurmurHash3;
+
+/**
+ * Streaming near-duplicate detection for parsed sentences ({@link DepNode}[],
+ * e.g. from {@link EffSent}) using MinHash + LSH banding, where
+ * {@link EffSent.HashEqOnParse} only finds exact duplicates.
+ *
+ * A sentence is a set of shingles, either token n-grams (of word ids) or
+ * dependency edges (head word, label, modifier word). Its MinHash signature
+ * has bands*rows 32 bit values; two sentences with Jaccard similarity s agree
+ * on a value with probability s. The signature is cut into bands of rows
+ * values and each band is hashed to a 64 bit key, so two sentences become
+ * candidates (share a band key) with probability 1 - (1 - s^rows)^bands.
+ *
+ * Band keys go into one Bloom filter of a fixed number of bits rather than a
+ * table of sentences, so memory doesn't grow with the stream: 100M sentences
+ * with 16 bands and 2^34 bits (2GB) is ~10.7 bits/key. The cost is that a
+ * query can only say "seen something similar" (not what), and false positives
+ * grow as the filter fills, see {@link #bloomFalsePositiveRate()}.
+ *
+ * Shingles are hashed with {@link Hash#mix64(long, long)} and the k MinHash
+ * functions are derived from two hashes as h1 + i * h2, where h2 comes from
+ * {@link MurmurHash3} (Kirsch and Mitzenmacher), so each shingle costs two
+ * real hashes rather than bands*rows.
+ *
+ * Not thread safe.
+ *
+ * @author travis
+ */
+public class NearDuplicateIndex implements Serializable {
+  private static final long serialVersionUID = -6185062227117283302L;
+
+  public enum Shingles {
+    TOKENS,       // n-grams of word ids
+    DEP_EDGES,    // (head word, dep label, mod word) for every token
+  }
+
+  // Don't change this or else you will jumble all serialized indices
+  private static final int SEED = 9001;
+
+  private final int bands, rows;
+  private final int shingleSize;
+  private final Shingles shingles;
+
+  // Bloom filter over (band, band key)
+  private final long[] bits;
+  private final long numBits;
+  private final int numProbes;
+  private long numBandKeys;
+  private long numSentences;
+
+  // Scratch
+  private transient int[] sig;
+  private transient byte[] b8;
+
+  /**
+   * @param bands number of LSH bands
+   * @param rows number of MinHash values per band
+   * @param shingleSize n-gram length for {@link Shingles#TOKENS} (ignored for DEP_EDGES)
+   * @param log2Bits the Bloom filter has 2^log2Bits bits, at most 36 (2^30 longs, 8GB)
+   * @param numProbes how many bits are set per band key
+   */
+  public NearDuplicateIndex(int bands, int rows, Shingles shingles, int shingleSize, int log2Bits, int numProbes) {
+    if (bands < 1 || rows < 1 || shingleSize < 1 || numProbes < 1)
+      throw new IllegalArgumentException("bands=" + bands + " rows=" + rows + " shingleSize=" + shingleSize + " numProbes=" + numProbes);
+    if (log2Bits < 6 || log2Bits > 36)
+      throw new IllegalArgumentException("log2Bits must be in [6,36]: " + log2Bits);
+    this.bands = bands;
+    this.rows = rows;
+    this.shingles = shingles;
+    this.shingleSize = shingleSize;
+    this.numBits = 1L << log2Bits;
+    this.bits = new long[(int) (numBits >>> 6)];
+    this.numProbes = numProbes;
+  }
+
+  /** 16 bands of 4 rows of token trigrams (~50% chance at s=0.5, ~99% at s=0.8), 2^30 bits (128MB), 4 probes */
+  public NearDuplicateIndex() {
+    this(16, 4, Shingles.TOKENS, 3, 30, 4);
+  }
+
+  public int signatureLength() {
+    return bands * rows;
+  }
+
+  public long numSentences() {
+    return numSentences;
+  }
+
+  /** Probability that two sentences with Jaccard similarity s share a band */
+  public double probCandidate(double s) {
+    return 1 - Math.pow(1 - Math.pow(s, rows), bands);
+  }
+
+  /**
+   * Probability that a new band key looks like it's already in the filter
+   * given what has been added so far. A never-before-seen sentence gets a
+   * false "seen similar" with probability ~bands times this.
+   */
+  public double bloomFalsePositiveRate() {
+    double fill = 1 - Math.exp(-(double) numProbes * numBandKeys / numBits);
+    return Math.pow(fill, numProbes);
+  }
+
+  /** Estimate of the Jaccard similarity of the shingle sets behind two signatures */
+  public static double estimateJaccard(int[] sig1, int[] sig2) {
+    if (sig1.length != sig2.length)
+      throw new IllegalArgumentException();
+    int agree = 0;
+    for (int i = 0; i < sig1.length; i++)
+      if (sig1[i] == sig2[i])
+        agree++;
+    return agree / (double) sig1.length;
+  }
+
+  private long shingle(DepNode[] parse, int i) {
+    switch (shingles) {
+    case TOKENS:
+      long h = SEED;
+      for (int j = 0; j < shingleSize && i + j < parse.length; j++)
+        h = Hash.mix64(h, parse[i + j].word);
+      return h;
+    case DEP_EDGES:
+      DepNode d = parse[i];
+      long head = d.depParentNode < 0 ? -1 : parse[d.depParentNode].word;
+      return Hash.mix64(Hash.mix64(head, d.depParentLabel), d.word);
+    default:
+      throw new RuntimeException("unknown shingles: " + shingles);
+    }
+  }
+
+  private int numShingles(DepNode[] parse) {
+    if (shingles == Shingles.TOKENS)
+      return Math.max(1, parse.length - shingleSize + 1);
+    return parse.length;
+  }
+
+  /**
+   * Computes the MinHash signature of a sentence.
+   * @param buf is written to and returned if it's not null, must have length
+   * {@link #signatureLength()}.
+   */
+  public int[] signature(DepNode[] parse, int[] buf) {
+    int k = bands * rows;
+    if (buf == null)
+      buf = new int[k];
+    Arrays.fill(buf, Integer.MAX_VALUE);
+    if (parse.length == 0)
+      return buf;
+    if (b8 == null)
+      b8 = new byte[8];
+    int n = numShingles(parse);
+    for (int i = 0; i < n; i++) {
+      long s = shingle(parse, i);
+      for (int j = 0; j < 8; j++)
+        b8[j] = (byte) (s >>> (8 * j));
+      int h1 = (int) (s ^ (s >>> 32));
+      int h2 = MurmurHash3.murmurhash3_x86_32(b8, 0, 8, SEED) | 1;
+      int h = h1;
+      for (int j = 0; j < k; j++, h += h2) {
+        // mask off the sign bit so that MAX_VALUE is an upper bound
+        int v = h & Integer.MAX_VALUE;
+        if (v < buf[j])
+          buf[j] = v;
+      }
+    }
+    return buf;
+  }
+
+  private long bandKey(int[] sig, int band) {
+    long h = Hash.mix64(SEED, band);
+    int o = band * rows;
+    for (int r = 0; r < rows; r++)
+      h = Hash.mix64(h, sig[o + r]);
+    return h;
+  }
+
+  private boolean bloomContains(long key) {
+    long h2 = (key >>> 32) | 1;
+    for (int p = 0; p < numProbes; p++) {
+      long b = (key + p * h2) & (numBits - 1);
+      if ((bits[(int) (b >>> 6)] & (1L << b)) == 0)
+        return false;
+    }
+    return true;
+  }
+
+  private void bloomAdd(long key) {
+    long h2 = (key >>> 32) | 1;
+    for (int p = 0; p < numProbes; p++) {
+      long b = (key + p * h2) & (numBits - 1);
+      bits[(int) (b >>> 6)] |= 1L << b;
+    }
+    numBandKeys++;
+  }
+
+  private int[] sig(DepNode[] parse) {
+    if (sig == null)
+      sig = new int[bands * rows];
+    return signature(parse, sig);
+  }
+
+  /** True if a sentence which shares a band with this one was added */
+  public boolean seenSimilar(DepNode[] parse) {
+    int[] s = sig(parse);
+    for (int b = 0; b < bands; b++)
+      if (bloomContains(bandKey(s, b)))
+        return true;
+    return false;
+  }
+
+  public void add(DepNode[] parse) {
+    int[] s = sig(parse);
+    for (int b = 0; b < bands; b++)
+      bloomAdd(bandKey(s, b));
+    numSentences++;
+  }
+
+  /**
+   * Same as calling {@link #seenSimilar(DepNode[])} and then
+   * {@link #add(DepNode[])} (computes the signature once).
+   * @return true if nothing similar was seen before this call.
+   */
+  public boolean addIfNew(DepNode[] parse) {
+    int[] s = sig(parse);
+    boolean seen = false;
+    for (int b = 0; b < bands; b++) {
+      long k = bandKey(s, b);
+      if (!seen && bloomContains(k))
+        seen = true;
+      bloomAdd(k);
+    }
+    numSentences++;
+    return !seen;
+  }
+
+  public boolean seenSimilar(EffSent s) {
+    return seenSimilar(s.parse());
+  }
+
+  public void add(EffSent s) {
+    add(s.parse());
+  }
+
+  public boolean addIfNew(EffSent s) {
+    return addIfNew(s.parse());
+  }
+
+  /**
+   * Streams random sentences, a fraction of which are copies of an earlier
+   * sentence with one token changed, and reports the throughput, how many
+   * near-duplicates were caught, and how many new sentences were flagged.
+   */
+  public static void benchmark(ExperimentProperties config) {
+    int n = config.getInt("numSentences", 1_000_000);
+    double dupRate = config.getDouble("dupRate", 0.2);
+    NearDuplicateIndex idx = new NearDuplicateIndex(
+        config.getInt("bands", 16), config.getInt("rows", 4),
+        Shingles.valueOf(config.getString("shingles", "TOKENS")),
+        config.getInt("shingleSize", 3),
+        config.getInt("log2Bits", 30), config.getInt("numProbes", 4));
+    Random rand = new Random(9001);
+    DepNode[][] recent = new DepNode[1024][];
+    int dups = 0, dupsCaught = 0, news = 0, newsFlagged = 0;
+    MultiTimer t = new MultiTimer();
+    for (int i = 0; i < n; i++) {
+      DepNode[] p;
+      boolean dup = i >= recent.length && rand.nextDouble() < dupRate;
+      if (dup) {
+        DepNode[] orig = recent[rand.nextInt(recent.length)];
+        p = new DepNode[orig.length];
+        for (int j = 0; j < p.length; j++) {
+          p[j] = new DepNode();
+          p[j].word = orig[j].word;
+          p[j].depParentNode = orig[j].depParentNode;
+        }
+        p[rand.nextInt(p.length)].word = rand.nextInt(100_000);
+      } else {
+        p = new DepNode[15 + rand.nextInt(30)];
+        for (int j = 0; j < p.length; j++) {
+          p[j] = new DepNode();
+          p[j].word = rand.nextInt(100_000);
+          p[j].depParentNode = (short) (j == 0 ? -1 : rand.nextInt(j));
+        }
+      }
+      recent[i % recent.length] = p;
+      t.start("addIfNew");
+      boolean isNew = idx.addIfNew(p);
+      t.stop("addIfNew");
+      if (dup) {
+        dups++;
+        if (!isNew)
+          dupsCaught++;
+      } else {
+        news++;
+        if (!isNew)
+          newsFlagged++;
+      }
+    }
+    Log.info(String.format("n=%d dupsCaught=%d/%d (%.3f) newFlagged=%d/%d (%.4f) bloomFP=%.2g\n%s",
+        n, dupsCaught, dups, dupsCaught / (double) dups, newsFlagged, news,
+        newsFlagged / (double) news, idx.bloomFalsePositiveRate(), t));
+  }
+
+  public static void main(String[] args) {
+    ExperimentProperties config = ExperimentProperties.init(args);
+    benchmark(config);
+  }
+}
@@ -0,0 +1,558 @@
+package edu.jhu.hlt.tutils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Parses a CoNLL-X/CoNLL-U file on many threads, returning the same parses in
+ * the same order as {@link DepNode.ConllxFileReader}.
+ *
+ * The file is cut into chunks of roughly {@link #chunkBytes} (uncompressed)
+ * bytes, where every cut is placed right after a blank line. Each chunk is
+ * parsed by a {@link ConllxStreamReader} with its own {@link MultiAlphabet},
+ * and when the consumer gets to a chunk its ids are mapped into the shared
+ * alphabet in order of first occurrence, so ids come out the same as reading
+ * the file serially. Only a bounded number of chunks are read ahead.
+ *
+ * Works on uncompressed files and block gzipped (BGZF, e.g. from bgzip) files.
+ * Any other compressed file can't be split, and is read serially.
+ *
+ * @author travis
+ */
+public class ParallelConllxReader implements Iterator<DepNode[]>, AutoCloseable {
+
+  public static final int DEFAULT_CHUNK_BYTES = 32 * 1024 * 1024;
+
+  private File file;
+  private FileChannel fc;
+  private Source src;
+  private DepNode.ConllxFileReader serial;    // if src == null
+  private MultiAlphabet alph;
+  public final boolean hideDeprels;
+  public final int chunkBytes;
+
+  // chunk i is uncompressed bytes [chunkStarts[i], chunkStarts[i+1])
+  private long[] chunkStarts;
+  private int nextChunkToSubmit;
+
+  private ExecutorService pool;
+  private int maxPending;
+  private Deque<Future<Chunk>> pending;
+
+  private List<DepNode[]> cur;
+  private int curIdx;
+  private MultiAlphabet curAlph;
+
+  // local -> shared alphabet ids for the current chunk, -1 for not yet mapped
+  private int[] wordMap = new int[0];
+  private int[] posMap = new int[0];
+  private int[] depMap = new int[0];
+
+  public ParallelConllxReader(File f, MultiAlphabet a, boolean hideDeprels, int numThreads) throws IOException {
+    this(f, a, hideDeprels, numThreads, DEFAULT_CHUNK_BYTES);
+  }
+
+  public ParallelConllxReader(File f, MultiAlphabet a, boolean hideDeprels, int numThreads, int chunkBytes) throws IOException {
+    if (numThreads < 1)
+      throw new IllegalArgumentException("numThreads=" + numThreads);
+    if (chunkBytes < 1)
+      throw new IllegalArgumentException("chunkBytes=" + chunkBytes);
+    this.file = f;
+    this.alph = a;
+    this.hideDeprels = hideDeprels;
+    this.chunkBytes = chunkBytes;
+    this.fc = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+    String n = f.getName().toLowerCase();
+    if (!n.endsWith(".gz") && !n.endsWith(".bz2"))
+      src = new PlainSource(fc);
+    else if (n.endsWith(".gz") && BgzfSource.isBgzf(fc))
+      src = new BgzfSource(fc);
+    if (src == null) {
+      Log.warn("can't split " + f.getPath() + ", reading serially");
+      serial = new DepNode.ConllxFileReader(f, a, hideDeprels);
+      fc.close();
+      return;
+    }
+    this.chunkStarts = findChunkStarts(src, chunkBytes);
+    this.pool = Executors.newFixedThreadPool(numThreads, r -> {
+      Thread t = new Thread(r, "ParallelConllxReader");
+      t.setDaemon(true);
+      return t;
+    });
+    this.maxPending = 2 * numThreads;
+    this.pending = new ArrayDeque<>();
+    advance();
+  }
+
+  public MultiAlphabet getAlphabet() {
+    return alph;
+  }
+
+  public int numChunks() {
+    return serial != null ? 1 : chunkStarts.length - 1;
+  }
+
+  /** Ordered, sequential stream over all parses */
+  public Stream<DepNode[]> stream() {
+    int c = Spliterator.ORDERED | Spliterator.NONNULL;
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(this, c), false);
+  }
+
+  public List<DepNode[]> readAll() {
+    List<DepNode[]> a = new ArrayList<>();
+    while (hasNext())
+      a.add(next());
+    return a;
+  }
+
+  @Override
+  public boolean hasNext() {
+    if (serial != null)
+      return serial.hasNext();
+    return cur != null;
+  }
+
+  @Override
+  public DepNode[] next() {
+    if (serial != null)
+      return serial.next();
+    if (cur == null)
+      throw new NoSuchElementException();
+    DepNode[] t = cur.get(curIdx);
+    cur.set(curIdx, null);
+    curIdx++;
+    remap(t);
+    if (curIdx == cur.size())
+      advance();
+    return t;
+  }
+
+  /** Maps ids from the chunk's alphabet to {@link #alph}, in token order */
+  private void remap(DepNode[] t) {
+    for (int i = 0; i < t.length; i++) {
+      DepNode d = t[i];
+      int w = wordMap[d.word];
+      if (w < 0)
+        w = wordMap[d.word] = alph.word(curAlph.word(d.word));
+      d.word = w;
+      int p = posMap[d.pos];
+      if (p < 0)
+        p = posMap[d.pos] = alph.pos(curAlph.pos(d.pos));
+      d.pos = DepNode.i2b(p);
+      int e = depMap[d.depParentLabel];
+      if (e < 0)
+        e = depMap[d.depParentLabel] = alph.dep(curAlph.dep(d.depParentLabel));
+      d.depParentLabel = DepNode.i2b(e);
+    }
+    if (hideDeprels) {
+      byte unk = DepNode.i2b(alph.dep("unk"));
+      for (int i = 0; i < t.length; i++)
+        t[i].depParentLabel = unk;
+    }
+  }
+
+  private void advance() {
+    cur = null;
+    while (true) {
+      while (pending.size() < maxPending && nextChunkToSubmit < numChunks()) {
+        long s = chunkStarts[nextChunkToSubmit];
+        long e = chunkStarts[nextChunkToSubmit + 1];
+        nextChunkToSubmit++;
+        pending.addLast(pool.submit(() -> parse(s, e)));
+      }
+      if (pending.isEmpty())
+        return;
+      Chunk c;
+      try {
+        c = pending.removeFirst().get();
+      } catch (InterruptedException | ExecutionException e) {
+        throw new RuntimeException("failed to parse " + file.getPath(), e);
+      }
+      if (c.sents.isEmpty())
+        continue;
+      cur = c.sents;
+      curIdx = 0;
+      curAlph = c.alph;
+      wordMap = reset(wordMap, curAlph.numWord());
+      posMap = reset(posMap, curAlph.numPos());
+      depMap = reset(depMap, curAlph.numDep());
+      return;
+    }
+  }
+
+  private static int[] reset(int[] m, int size) {
+    if (m.length < size)
+      m = new int[Math.max(size, m.length * 2)];
+    Arrays.fill(m, 0, size, -1);
+    return m;
+  }
+
+  private static class Chunk {
+    List<DepNode[]> sents = new ArrayList<>();
+    MultiAlphabet alph = new MultiAlphabet();
+  }
+
+  private Chunk parse(long start, long end) throws IOException {
+    Chunk c = new Chunk();
+    try (ConllxStreamReader r = new ConllxStreamReader(src.open(start, end - start), c.alph)) {
+      while (r.nextSentence() > 0)
+        c.sents.add(r.toDepNodes(false));
+    }
+    return c;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (serial != null) {
+      serial.close();
+      return;
+    }
+    pool.shutdownNow();
+    pending.clear();
+    cur = null;
+    fc.close();
+  }
+
+  /* CHUNKING *****************************************************************/
+
+  /**
+   * Returns chunk boundaries (uncompressed offsets, first is 0, last is
+   * the length) which all fall right after a blank line.
+   */
+  static long[] findChunkStarts(Source src, int chunkBytes) throws IOException {
+    long len = src.length();
+    List<Long> starts = new ArrayList<>();
+    starts.add(0L);
+    byte[] buf = new byte[1 << 16];
+    long prev = 0;
+    while (true) {
+      long target = prev + chunkBytes;
+      if (target >= len)
+        break;
+      long b = findBlankLineAfter(src, target - 1, len, buf);
+      if (b >= len)
+        break;
+      starts.add(b);
+      prev = b;
+    }
+    starts.add(len);
+    long[] a = new long[starts.size()];
+    for (int i = 0; i < a.length; i++)
+      a[i] = starts.get(i);
+    return a;
+  }
+
+  /**
+   * Returns the offset just past the first "\n\n" (or "\n\r\n") starting at or
+   * after from, or len if there is none.
+   */
+  private static long findBlankLineAfter(Source src, long from, long len, byte[] buf) throws IOException {
+    int state = 0;    // 1 = just saw '\n', 2 = just saw "\n\r"
+    for (long off = from; off < len; ) {
+      int r = src.read(off, buf);
+      if (r <= 0)
+        break;
+      for (int i = 0; i < r; i++) {
+        byte b = buf[i];
+        if (b == '\n') {
+          if (state > 0)
+            return off + i + 1;
+          state = 1;
+        } else if (b == '\r' && state == 1) {
+          state = 2;
+        } else {
+          state = 0;
+        }
+      }
+      off += r;
+    }
+    return len;
+  }
+
+  /** Random access to the uncompressed contents of a file */
+  interface Source {
+    long length();
+    /** Reads some bytes starting at the given uncompressed offset, returns how many */
+    int read(long offset, byte[] buf) throws IOException;
+    ReadableByteChannel open(long offset, long length) throws IOException;
+  }
+
+  static class PlainSource implements Source {
+    private FileChannel fc;
+
+    public PlainSource(FileChannel fc) {
+      this.fc = fc;
+    }
+
+    @Override
+    public long length() {
+      try {
+        return fc.size();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public int read(long offset, byte[] buf) throws IOException {
+      return fc.read(ByteBuffer.wrap(buf), offset);
+    }
+
+    @Override
+    public ReadableByteChannel open(long offset, long length) {
+      return new RangeChannel(fc, offset, offset + length);
+    }
+  }
+
+  /**
+   * A BGZF file is a series of gzip members (blocks) of at most 64KB each,
+   * whose headers store the compressed size of the block and whose footers
+   * store the uncompressed size. Walking the headers gives an index from
+   * uncompressed offsets to blocks.
+   */
+  static class BgzfSource implements Source {
+    private FileChannel fc;
+    private long[] compOffset;    // of block i
+    private long[] uncompOffset;  // of block i, with a sentinel at the end
+
+    public BgzfSource(FileChannel fc) throws IOException {
+      this.fc = fc;
+      long size = fc.size();
+      long[] co = new long[1024];
+      long[] uo = new long[1025];
+      int n = 0;
+      ByteBuffer hdr = ByteBuffer.allocate(18).order(ByteOrder.LITTLE_ENDIAN);
+      ByteBuffer isize = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+      long c = 0, u = 0;
+      while (c < size) {
+        readFully(fc, hdr, c);
+        int bsize = blockSize(hdr);
+        if (bsize < 0)
+          throw new IOException("not a BGZF block at offset " + c);
+        readFully(fc, isize, c + bsize - 4);
+        if (n == co.length) {
+          co = Arrays.copyOf(co, n * 2);
+          uo = Arrays.copyOf(uo, n * 2 + 1);
+        }
+        co[n] = c;
+        uo[n] = u;
+        n++;
+        c += bsize;
+        u += isize.getInt(0) & 0xffffffffL;
+      }
+      uo[n] = u;
+      compOffset = Arrays.copyOf(co, n);
+      uncompOffset = Arrays.copyOf(uo, n + 1);
+    }
+
+    public static boolean isBgzf(FileChannel fc) throws IOException {
+      if (fc.size() < 18)
+        return false;
+      ByteBuffer hdr = ByteBuffer.allocate(18).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(fc, hdr, 0);
+      return blockSize(hdr) > 0;
+    }
+
+    /** Returns the total size of the block given its header, or -1 if not BGZF */
+    private static int blockSize(ByteBuffer hdr) {
+      if ((hdr.get(0) & 0xff) != 0x1f || (hdr.get(1) & 0xff) != 0x8b || hdr.get(2) != 8)
+        return -1;
+      if ((hdr.get(3) & 4) == 0)  // FEXTRA
+        return -1;
+      if (hdr.get(12) != 'B' || hdr.get(13) != 'C' || hdr.getShort(14) != 2)
+        return -1;
+      return (hdr.getShort(16) & 0xffff) + 1;
+    }
+
+    private static void readFully(FileChannel fc, ByteBuffer bb, long offset) throws IOException {
+      bb.clear();
+      while (bb.hasRemaining()) {
+        int r = fc.read(bb, offset + bb.position());
+        if (r < 0)
+          throw new IOException("unexpected EOF at " + (offset + bb.position()));
+      }
+    }
+
+    /** Index of the block containing the given uncompressed offset */
+    private int block(long offset) {
+      int i = Arrays.binarySearch(uncompOffset, offset);
+      if (i < 0)
+        i = -(i + 1) - 1;
+      // Skip empty blocks (e.g. the EOF marker)
+      while (i < compOffset.length - 1 && uncompOffset[i + 1] == uncompOffset[i])
+        i++;
+      return i;
+    }
+
+    @Override
+    public long length() {
+      return uncompOffset[uncompOffset.length - 1];
+    }
+
+    @Override
+    public int read(long offset, byte[] buf) throws IOException {
+      try (InputStream is = open(offset, buf.length, buf.length)) {
+        int n = 0;
+        while (n < buf.length) {
+          int r = is.read(buf, n, buf.length - n);
+          if (r < 0)
+            break;
+          n += r;
+        }
+        return n;
+      }
+    }
+
+    @Override
+    public ReadableByteChannel open(long offset, long length) throws IOException {
+      return Channels.newChannel(open(offset, length, 1 << 16));
+    }
+
+    private InputStream open(long offset, long length, int bufSize) throws IOException {
+      int b = block(offset);
+      RangeChannel rc = new RangeChannel(fc, compOffset[b], fc.size());
+      InputStream is = new GZIPInputStream(Channels.newInputStream(rc), bufSize);
+      long skip = offset - uncompOffset[b];
+      while (skip > 0) {
+        long s = is.skip(skip);
+        if (s <= 0)
+          throw new IOException("could not seek to " + offset);
+        skip -= s;
+      }
+      return new LimitInputStream(is, length);
+    }
+  }
+
+  /** Reads bytes [start,end) of a file using positional reads (thread safe) */
+  static class RangeChannel implements ReadableByteChannel {
+    private FileChannel fc;
+    private long pos, end;
+
+    public RangeChannel(FileChannel fc, long start, long end) {
+      this.fc = fc;
+      this.pos = start;
+      this.end = end;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+      if (pos >= end)
+        return -1;
+      int lim = dst.limit();
+      if (dst.remaining() > end - pos)
+        dst.limit(dst.position() + (int) (end - pos));
+      int r = fc.read(dst, pos);
+      dst.limit(lim);
+      if (r > 0)
+        pos += r;
+      return r;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return fc.isOpen();
+    }
+
+    /** Does not close the underlying (shared) channel */
+    @Override
+    public void close() {}
+  }
+
+  private static class LimitInputStream extends InputStream {
+    private InputStream is;
+    private long remaining;
+
+    public LimitInputStream(InputStream is, long limit) {
+      this.is = is;
+      this.remaining = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining <= 0)
+        return -1;
+      int b = is.read();
+      if (b >= 0)
+        remaining--;
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0)
+        return -1;
+      int r = is.read(b, off, (int) Math.min(len, remaining));
+      if (r > 0)
+        remaining -= r;
+      return r;
+    }
+
+    @Override
+    public void close() throws IOException {
+      is.close();
+    }
+  }
+
+  /**
+   * Compares {@link DepNode.ConllxFileReader} to this reader on the file
+   * written by {@link ConllxStreamReader#benchmark(ExperimentProperties)}.
+   */
+  public static void benchmark(ExperimentProperties config) throws IOException {
+    File f = config.getFile("conll", new File("/tmp/ConllxStreamReader-benchmark.conll"));
+    if (!f.isFile())
+      ConllxStreamReader.writeSynthetic(f, config.getInt("numSentences", 200_000), new java.util.Random(9001));
+    int threads = config.getInt("threads", Runtime.getRuntime().availableProcessors());
+    int times = config.getInt("times", 3);
+    MultiTimer t = new MultiTimer();
+    for (int i = 0; i < times; i++) {
+      long toks = 0;
+      MultiAlphabet a1 = new MultiAlphabet();
+      t.start("serial");
+      try (DepNode.ConllxFileReader r = new DepNode.ConllxFileReader(f, a1, false)) {
+        while (r.hasNext())
+          toks += r.next().length;
+      }
+      t.stop("serial");
+
+      long ptoks = 0;
+      MultiAlphabet a2 = new MultiAlphabet();
+      t.start("parallel");
+      try (ParallelConllxReader r = new ParallelConllxReader(f, a2, false, threads)) {
+        while (r.hasNext())
+          ptoks += r.next().length;
+      }
+      t.stop("parallel");
+      if (toks != ptoks || a1.numWord() != a2.numWord())
+        throw new RuntimeException("mismatch: toks=" + toks + " ptoks=" + ptoks);
+    }
+    Log.info("threads=" + threads + "\n" + t);
+  }
+
+  public static void main(String[] args) throws IOException {
+    ExperimentProperties config = ExperimentProperties.init(args);
+    benchmark(config);
+  }
+}
@@ -0,0 +1,167 @@
+package edu.jhu.hlt.tutils;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * Suffix array over a column of int ids (e.g. {@link Document#getWord(int)}
+ * for every token), for finding all occurrences of an n-gram in
+ * O(m log n) time plus the number of matches.
+ *
+ * Built by prefix doubling with counting sorts, O(n log n) time and 3 int[n]
+ * of space, without boxing. The column is copied, so the index doesn't see
+ * later changes to the source.
+ *
+ * @author travis
+ */
+public class TokenSuffixArray {
+
+  private int offset;
+  private int[] seq;  // seq[i] is the source at offset+i
+  private int[] sa;   // sa[r] is the start of the r-th smallest suffix (in seq)
+
+  public TokenSuffixArray(int[] seq) {
+    this(seq, 0, seq.length);
+  }
+
+  /**
+   * Indexes seq[start,end). Positions taken and returned by this class are
+   * indices into seq (not relative to start).
+   */
+  public TokenSuffixArray(int[] seq, int start, int end) {
+    this.offset = start;
+    this.seq = Arrays.copyOfRange(seq, start, end);
+    this.sa = build(this.seq);
+  }
+
+  public int size() {
+    return sa.length;
+  }
+
+  private static int[] build(int[] s) {
+    int n = s.length;
+    int[] sa = new int[n];
+    if (n == 0)
+      return sa;
+
+    // Initial ranks: compress ids to [0,m)
+    int[] sorted = s.clone();
+    Arrays.sort(sorted);
+    int m = 0;
+    for (int i = 0; i < n; i++)
+      if (i == 0 || sorted[i] != sorted[i - 1])
+        sorted[m++] = sorted[i];
+    int[] rank = new int[n];
+    for (int i = 0; i < n; i++)
+      rank[i] = Arrays.binarySearch(sorted, 0, m, s[i]);
+
+    int[] tmp = new int[n];
+    int[] count = new int[Math.max(m, n) + 1];
+    for (int i = 0; i < n; i++)
+      tmp[i] = i;
+    countingSort(tmp, sa, rank, count, m);
+
+    for (int k = 1; ; k <<= 1) {
+      // Order by second key (rank[i+k], with missing smallest)...
+      int p = 0;
+      for (int i = n - k; i < n; i++)
+        tmp[p++] = i;
+      for (int r = 0; r < n; r++)
+        if (sa[r] >= k)
+          tmp[p++] = sa[r] - k;
+      // ...then stable sort by first key
+      countingSort(tmp, sa, rank, count, m);
+
+      // Re-rank
+      int[] nr = tmp;
+      nr[sa[0]] = 0;
+      int classes = 1;
+      for (int r = 1; r < n; r++) {
+        int a = sa[r - 1], b = sa[r];
+        int a2 = a + k < n ? rank[a + k] : -1;
+        int b2 = b + k < n ? rank[b + k] : -1;
+        if (rank[a] != rank[b] || a2 != b2)
+          classes++;
+        nr[b] = classes - 1;
+      }
+      tmp = rank;
+      rank = nr;
+      m = classes;
+      if (classes == n || k >= n)
+        break;
+    }
+    return sa;
+  }
+
+  /** Stable sort of in by key[in[i]] (in [0,m)) into out */
+  private static void countingSort(int[] in, int[] out, int[] key, int[] count, int m) {
+    Arrays.fill(count, 0, m + 1, 0);
+    for (int i : in)
+      count[key[i] + 1]++;
+    for (int i = 1; i <= m; i++)
+      count[i] += count[i - 1];
+    for (int i : in)
+      out[count[key[i]]++] = i;
+  }
+
+  /**
+   * Compares the suffix starting at s to pattern[pStart,pEnd) up to the
+   * length of the pattern.
+   */
+  private int compare(int s, int[] pattern, int pStart, int pEnd) {
+    for (int i = pStart; i < pEnd; i++, s++) {
+      if (s >= seq.length)
+        return -1;
+      int a = seq[s], b = pattern[i];
+      if (a != b)
+        return a < b ? -1 : 1;
+    }
+    return 0;
+  }
+
+  /** First rank whose suffix is >= pattern (or > if strict) */
+  private int bound(int[] pattern, int pStart, int pEnd, boolean strict) {
+    int lo = 0, hi = sa.length;
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      int c = compare(sa[mid], pattern, pStart, pEnd);
+      if (c < 0 || (strict && c == 0))
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo;
+  }
+
+  /**
+   * @return the number of occurrences of pattern[pStart,pEnd) anywhere in the
+   * indexed range. O(m log n).
+   */
+  public int count(int[] pattern, int pStart, int pEnd) {
+    return bound(pattern, pStart, pEnd, true) - bound(pattern, pStart, pEnd, false);
+  }
+
+  /**
+   * Calls f with the starting position of every occurrence of
+   * pattern[pStart,pEnd) which lies entirely within [from,to) (in no
+   * particular order). O(m log n + k) where k is the number of occurrences
+   * anywhere, so restricting to a small area doesn't make this faster.
+   * @param f may be null if you only want a count.
+   * @return the number of such occurrences.
+   */
+  public int forEachOccurrence(int[] pattern, int pStart, int pEnd, int from, int to, IntConsumer f) {
+    int lo = bound(pattern, pStart, pEnd, false);
+    int hi = bound(pattern, pStart, pEnd, true);
+    int w = pEnd - pStart;
+    int occ = 0;
+    for (int r = lo; r < hi; r++) {
+      int s = sa[r] + offset;
+      if (s >= from && s + w <= to) {
+        occ++;
+        if (f != null)
+          f.accept(s);
+      }
+    }
+    return occ;
+  }
+}
@@ -2,8 +2,24 @@ package edu.jhu.hlt.tutils.data;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.WeakHashMap;
 
 import edu.jhu.hlt.tutils.Document;
 import edu.jhu.hlt.tutils.Document.Token;
@@ -12,20 +28,82 @@ import edu.jhu.hlt.tutils.FileUtil;
 import edu.jhu.hlt.tutils.Log;
 import edu.jhu.hlt.tutils.MultiAlphabet;
 import edu.jhu.hlt.tutils.StringUtils;
+import edu.jhu.hlt.tutils.hash.MurmurHash3;
 
 /**
  * Thin wrapper around the output of Percy Liang's brown clustering code output
  *
+ * The first time a (directory, minCount) is used, the text "paths" file is
+ * compiled into a binary file next to it (see {@link #binaryFile()}), which is
+ * memory mapped from then on: later instances and other processes share its
+ * pages rather than each building a HashMap (3.8M words).
+ *
+ * A path is packed into a long (see {@link #pack(String)}): the length in the
+ * top 6 bits and the path as a binary number in the rest, so prefixes are a
+ * shift (see {@link #prefix(long, int)}) rather than a substring.
+ * {@link #getPath(MultiAlphabet, int)} caches packed paths by word id and
+ * {@link #setClusters(Document, BrownClusters, BrownClusters)} caches cluster
+ * (shape) ids by word id (one cache per alphabet), so after the first time a
+ * word is seen it costs one array read per token.
+ *
  * @author travis
  */
 public class BrownClusters {
   public static boolean DEBUG = false;
   public static boolean LAZY_LOAD = true;
 
-  private Map<String, String> word2path;
+  /** Packed path for words without a path */
+  public static final long MISSING = -1;
+  /** Longest path which can be packed */
+  public static final int MAX_PATH_LENGTH = 58;
+
+  public static final int BINARY_MAGIC = 0x4252574e;   // "BRWN"
+  public static final int BINARY_VERSION = 1;
+  private static final int BINARY_HEADER_BYTES = 64;
+  private static final int SEED = 9001;
+
   private File pathToPercyOutput;
   private int minCount;
 
+  // Mapped binary file
+  private int numWords;
+  private ByteBuffer vocab;           // UTF-8 words, concatenated
+  private IntBuffer wordOffsets;      // word i is vocab[wordOffsets[i], wordOffsets[i+1])
+  private IntBuffer table;            // open addressing, hash(word) -> 1 + word index, 0 for empty
+  private int tableMask;
+  // Written last by map(), so a non-null value means the fields above are set
+  private volatile LongBuffer paths;  // word index -> packed path
+
+  // Caches keyed by word id, one per alphabet
+  private static final long NOT_CACHED = -2;
+  private final Map<MultiAlphabet, Cache> caches = new WeakHashMap<>();
+  private volatile Cache lastCache;   // most recently used, checked before taking the lock
+
+  /**
+   * Word id caches for one alphabet. Only the arrays' contents change, a
+   * larger Cache replaces this one when a word id doesn't fit, so callers
+   * read the Cache once and only use that.
+   */
+  private static final class Cache {
+    final WeakReference<MultiAlphabet> alph;  // not strong, Caches are values in a WeakHashMap
+    final long[] paths;
+    final int[] shapes;   // shape id of the full path + 1, 0 means not cached
+
+    Cache(MultiAlphabet alph, int size) {
+      this.alph = new WeakReference<>(alph);
+      this.paths = new long[size];
+      this.shapes = new int[size];
+      Arrays.fill(paths, NOT_CACHED);
+    }
+
+    Cache grow(int minSize) {
+      Cache c = new Cache(alph.get(), Math.max(minSize, (int) (paths.length * 1.6 + 2.5)));
+      System.arraycopy(paths, 0, c.paths, 0, paths.length);
+      System.arraycopy(shapes, 0, c.shapes, 0, shapes.length);
+      return c;
+    }
+  }
+
   // TODO Consider filtering by frequency:
   // /home/travis/code/fnparse/data/embeddings/bc_out_256/full.txt_en_256
   // head paths
@@ -73,30 +151,254 @@ public class BrownClusters {
     return new File(pathToPercyOutput, "paths");
   }
 
-  private void init() {
-    Log.info("loading path=" + pathToPercyOutput.getPath() + " minCount=" + minCount);
-    int discarded = 0;
-    File pathFile = pathFile();
-    word2path = new HashMap<>();
-    try (BufferedReader r = FileUtil.getReader(pathFile)) {
+  /** Where the compiled "paths" file for this minCount lives */
+  public File binaryFile() {
+    return new File(pathToPercyOutput, "paths.minCount" + minCount + ".bin");
+  }
+
+  private synchronized void init() {
+    if (paths != null)
+      return;
+    File bin = binaryFile();
+    if (!bin.isFile() || bin.lastModified() < pathFile().lastModified()) {
+      try {
+        compile(pathFile(), minCount, bin);
+      } catch (IOException e) {
+        // e.g. a read-only directory
+        Log.warn("couldn't write " + bin.getPath() + ", using a temp file: " + e.getMessage());
+        try {
+          bin = File.createTempFile("brown-paths", ".bin");
+          bin.deleteOnExit();
+          compile(pathFile(), minCount, bin);
+        } catch (IOException e2) {
+          throw new RuntimeException(e2);
+        }
+      }
+    }
+    try {
+      map(bin);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    Log.info("mapped " + bin.getPath() + " numWords=" + numWords);
+  }
+
+  /**
+   * Reads a "paths" file (lines of "path\tword\tcount") and writes the words
+   * with count >= minCount in the binary format. Layout (little-endian):
+   * <pre>
+   * header:      magic:int32 version:int32 numWords:int32 minCount:int32
+   *              tableSize:int32 pad:int32 vocabOffset:int64
+   *              wordOffsetsOffset:int64 tableOffset:int64 pathsOffset:int64
+   *              zeros up to 64 bytes
+   * vocab:       UTF-8 words, concatenated
+   * wordOffsets: (numWords+1) * int32, into vocab
+   * table:       tableSize * int32, 1 + word index or 0, linear probing on
+   *              murmurhash3_x86_32(word bytes, seed=9001)
+   * paths:       numWords * int64, packed paths
+   * </pre>
+   * Sections start at multiples of 8 bytes.
+   */
+  public static void compile(File pathFile, int minCount, File output) throws IOException {
+    Log.info("compiling path=" + pathFile.getPath() + " minCount=" + minCount + " to " + output.getPath());
+    int discarded = 0, truncated = 0;
+    List<byte[]> words = new ArrayList<>();
+    long[] packed = new long[1 << 16];
+    // Words are hashed as UTF-8 bytes, so don't read with the platform charset
+    try (BufferedReader r = new BufferedReader(new InputStreamReader(
+        FileUtil.getInputStream(pathFile), StandardCharsets.UTF_8))) {
       for (String line = r.readLine(); line != null; line = r.readLine()) {
         String[] toks = line.split("\t");
-        String path = toks[0].intern();
-        String word = toks[1];
         int frequency = Integer.parseInt(toks[2]);
-        if (frequency >= minCount) {
-          String old = word2path.put(word, path);
-          assert old == null;
-        } else {
+        if (frequency < minCount) {
           discarded++;
+          continue;
         }
+        String path = toks[0];
+        if (path.length() > MAX_PATH_LENGTH) {
+          path = path.substring(0, MAX_PATH_LENGTH);
+          truncated++;
+        }
+        if (words.size() == packed.length)
+          packed = Arrays.copyOf(packed, (int) (packed.length * 1.6 + 2.5));
+        packed[words.size()] = pack(path);
+        words.add(toks[1].getBytes(StandardCharsets.UTF_8));
       }
-    } catch (Exception e) {
-      throw new RuntimeException(e);
     }
-    long estStrSize = 2 * 7;
-    long estBytes = (long) (word2path.size() * (estStrSize + 8) * 1.6d);
-    Log.info("with minCount=" + minCount + " discarded=" + discarded + " kept=" + word2path.size() + " estSize=" + (estBytes/(1L << 20) + "MB"));
+    if (truncated > 0)
+      Log.warn("truncated " + truncated + " paths longer than " + MAX_PATH_LENGTH);
+
+    int n = words.size();
+    long vocabBytes = 0;
+    for (byte[] w : words)
+      vocabBytes += w.length;
+    int tableSize = Integer.highestOneBit(Math.max(2, n * 2 - 1)) << 1;
+    int[] table = new int[tableSize];
+    for (int i = 0; i < n; i++) {
+      byte[] w = words.get(i);
+      int h = MurmurHash3.murmurhash3_x86_32(w, 0, w.length, SEED) & (tableSize - 1);
+      while (table[h] != 0) {
+        byte[] o = words.get(table[h] - 1);
+        if (Arrays.equals(o, w))
+          throw new RuntimeException("duplicate word in " + pathFile.getPath() + ": " + new String(w, StandardCharsets.UTF_8));
+        h = (h + 1) & (tableSize - 1);
+      }
+      table[h] = i + 1;
+    }
+
+    long vocabOffset = BINARY_HEADER_BYTES;
+    long wordOffsetsOffset = align8(vocabOffset + vocabBytes);
+    long tableOffset = align8(wordOffsetsOffset + 4L * (n + 1));
+    long pathsOffset = align8(tableOffset + 4L * tableSize);
+    long size = pathsOffset + 8L * n;
+    // Written to a temp file which is moved into place once it is complete, so
+    // other processes never map a partial file and a crash never leaves one
+    File tmp = File.createTempFile(output.getName(), ".tmp", output.getAbsoluteFile().getParentFile());
+    try {
+      try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+          FileChannel ch = raf.getChannel()) {
+        raf.setLength(size);
+        MappedByteBuffer v = ch.map(FileChannel.MapMode.READ_WRITE, vocabOffset, vocabBytes);
+        MappedByteBuffer wo = ch.map(FileChannel.MapMode.READ_WRITE, wordOffsetsOffset, 4L * (n + 1));
+        IntBuffer woi = wo.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        int off = 0;
+        for (byte[] w : words) {
+          woi.put(off);
+          v.put(w);
+          off += w.length;
+        }
+        woi.put(off);
+        MappedByteBuffer t = ch.map(FileChannel.MapMode.READ_WRITE, tableOffset, 4L * tableSize);
+        t.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().put(table);
+        MappedByteBuffer p = ch.map(FileChannel.MapMode.READ_WRITE, pathsOffset, 8L * n);
+        p.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer().put(packed, 0, n);
+        v.force();
+        wo.force();
+        t.force();
+        p.force();
+        // Header (with the magic) last
+        MappedByteBuffer h = ch.map(FileChannel.MapMode.READ_WRITE, 0, vocabOffset);
+        h.order(ByteOrder.LITTLE_ENDIAN);
+        h.putInt(BINARY_MAGIC).putInt(BINARY_VERSION).putInt(n).putInt(minCount);
+        h.putInt(tableSize).putInt(0);
+        h.putLong(vocabOffset).putLong(wordOffsetsOffset).putLong(tableOffset).putLong(pathsOffset);
+        h.force();
+      }
+      Files.move(tmp.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      tmp.delete();
+    }
+    Log.info("with minCount=" + minCount + " discarded=" + discarded + " kept=" + n
+        + " size=" + (size / (1L << 20)) + "MB");
+  }
+
+  private static long align8(long x) {
+    return (x + 7) & ~7L;
+  }
+
+  private void map(File bin) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(bin, "r");
+        FileChannel ch = raf.getChannel()) {
+      MappedByteBuffer h = ch.map(FileChannel.MapMode.READ_ONLY, 0, BINARY_HEADER_BYTES);
+      h.order(ByteOrder.LITTLE_ENDIAN);
+      if (h.getInt(0) != BINARY_MAGIC)
+        throw new IOException("not a compiled brown clusters file: " + bin.getPath());
+      if (h.getInt(4) != BINARY_VERSION)
+        throw new IOException("unsupported version " + h.getInt(4) + " in " + bin.getPath());
+      int n = h.getInt(8);
+      int tableSize = h.getInt(16);
+      long vocabOffset = h.getLong(24);
+      long wordOffsetsOffset = h.getLong(32);
+      long tableOffset = h.getLong(40);
+      long pathsOffset = h.getLong(48);
+      FileChannel.MapMode ro = FileChannel.MapMode.READ_ONLY;
+      vocab = ch.map(ro, vocabOffset, wordOffsetsOffset - vocabOffset);
+      wordOffsets = ch.map(ro, wordOffsetsOffset, 4L * (n + 1)).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+      table = ch.map(ro, tableOffset, 4L * tableSize).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+      tableMask = tableSize - 1;
+      numWords = n;
+      paths = ch.map(ro, pathsOffset, 8L * n).order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+    }
+  }
+
+  public int numWords() {
+    if (paths == null)
+      init();
+    return numWords;
+  }
+
+  /* Packed paths ***********************************************************/
+
+  /** Packs a path of '0's and '1's (at most {@link #MAX_PATH_LENGTH} long) */
+  public static long pack(String path) {
+    int len = path.length();
+    if (len > MAX_PATH_LENGTH)
+      throw new IllegalArgumentException("path too long: " + path);
+    long bits = 0;
+    for (int i = 0; i < len; i++) {
+      char c = path.charAt(i);
+      if (c != '0' && c != '1')
+        throw new IllegalArgumentException("not a path: " + path);
+      bits = (bits << 1) | (c - '0');
+    }
+    return ((long) len << MAX_PATH_LENGTH) | bits;
+  }
+
+  /** Number of bits in the path, or -1 if MISSING */
+  public static int length(long packed) {
+    return packed == MISSING ? -1 : (int) (packed >>> MAX_PATH_LENGTH);
+  }
+
+  /** The path as a binary number */
+  public static long bits(long packed) {
+    return packed & ((1L << MAX_PATH_LENGTH) - 1);
+  }
+
+  /** The first k bits of a path (the whole path if it's not longer than k) */
+  public static long prefix(long packed, int k) {
+    int len = length(packed);
+    if (len <= k)
+      return packed;    // includes MISSING
+    if (k <= 0)
+      return 0;
+    return ((long) k << MAX_PATH_LENGTH) | (bits(packed) >>> (len - k));
+  }
+
+  /** The path as a string of '0's and '1's, "???" if MISSING */
+  public static String toString(long packed) {
+    if (packed == MISSING)
+      return "???";
+    int len = length(packed);
+    long bits = bits(packed);
+    char[] c = new char[len];
+    for (int i = 0; i < len; i++)
+      c[i] = (char) ('0' + ((bits >>> (len - 1 - i)) & 1));
+    return new String(c);
+  }
+
+  /* Lookup *****************************************************************/
+
+  /** Looks a word up in the mapped hash table, returns the packed path or MISSING */
+  public long lookup(String word) {
+    if (paths == null)
+      init();
+    byte[] w = word.getBytes(StandardCharsets.UTF_8);
+    int h = MurmurHash3.murmurhash3_x86_32(w, 0, w.length, SEED) & tableMask;
+    while (true) {
+      int e = table.get(h);
+      if (e == 0)
+        return MISSING;
+      int i = e - 1;
+      int from = wordOffsets.get(i), to = wordOffsets.get(i + 1);
+      if (to - from == w.length) {
+        boolean eq = true;
+        for (int j = 0; j < w.length && eq; j++)
+          eq = vocab.get(from + j) == w[j];
+        if (eq)
+          return paths.get(i);
+      }
+      h = (h + 1) & tableMask;
+    }
   }
 
   public String getPath(String word) {
@@ -104,15 +406,59 @@ public class BrownClusters {
   }
 
   public String getPath(String word, int maxLen) {
-    if (word2path == null)
-      init();
-    String p = word2path.get(word);
-    if (p == null) p = "???";
+    String p = toString(lookup(word));
     if (p.length() > maxLen)
       return p.substring(0, maxLen);
     return p;
   }
 
+  /** The cache for alph with room for word id word */
+  private Cache cache(MultiAlphabet alph, int word) {
+    Cache c = lastCache;
+    if (c != null && c.alph.get() == alph && word < c.paths.length)
+      return c;
+    synchronized (caches) {
+      c = caches.get(alph);
+      if (c == null) {
+        c = new Cache(alph, Math.max(16, Math.max(word + 1, alph.numWord())));
+        caches.put(alph, c);
+      } else if (word >= c.paths.length) {
+        c = c.grow(word + 1);
+        caches.put(alph, c);
+      }
+      lastCache = c;
+      return c;
+    }
+  }
+
+  /**
+   * Packed path for a word id in alph, cached by word id (one cache per
+   * alphabet). Concurrent calls may both do the lookup, which is harmless.
+   */
+  public long getPath(MultiAlphabet alph, int word) {
+    if (word < 0)
+      return MISSING;
+    long[] pc = cache(alph, word).paths;
+    long p = pc[word];
+    if (p == NOT_CACHED) {
+      p = lookup(alph.word(word));
+      pc[word] = p;
+    }
+    return p;
+  }
+
+  /** alph.shape(full path string) for a word id, cached by word id */
+  private int getShape(MultiAlphabet alph, int word) {
+    if (word < 0)
+      return alph.shape(toString(MISSING));
+    int[] sc = cache(alph, word).shapes;
+    if (sc[word] != 0)
+      return sc[word] - 1;
+    int s = alph.shape(toString(getPath(alph, word)));
+    sc[word] = s + 1;
+    return s;
+  }
+
   /** Populates the bc256 and bc1000 fields using the word field */
   public static void setClusters(Document doc, BrownClusters bc256, BrownClusters bc1000) {
     if (bc256 == null || bc1000 == null)
@@ -123,11 +469,16 @@ public class BrownClusters {
     int n = doc.numTokens();
     for (int i = 0; i < n; i++) {
       Token t = doc.getToken(i);
-      String ws = t.getWordStr();
-      if (bc256 != null)
+      int w = t.getWord();
+      if (w < 0) {
+        // No word id, fall back on the string
+        String ws = t.getWordStr();
         t.setBc256(alph.shape(bc256.getPath(ws)));
-      if (bc1000 != null)
         t.setBc1000(alph.shape(bc1000.getPath(ws)));
+      } else {
+        t.setBc256(bc256.getShape(alph, w));
+        t.setBc1000(bc1000.getShape(alph, w));
+      }
     }
   }
 
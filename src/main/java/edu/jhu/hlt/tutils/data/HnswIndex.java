@@ -0,0 +1,619 @@
+package edu.jhu.hlt.tutils.data;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Random;
+
+import edu.jhu.hlt.tutils.ExperimentProperties;
+import edu.jhu.hlt.tutils.FileUtil;
+import edu.jhu.hlt.tutils.Log;
+import edu.jhu.hlt.tutils.MultiTimer;
+
+/**
+ * Approximate nearest neighbor search (by cosine similarity) over
+ * {@link Embeddings}, using a Hierarchical Navigable Small World graph
+ * (Malkov and Yashunin, 2016).
+ *
+ * Every vector is a node, linked to ~M similar nodes on layer 0 and, for a
+ * geometrically shrinking subset of nodes, on layers above that. A query does
+ * a greedy walk down from the top layer and a best-first search with a beam
+ * of efSearch on layer 0. Knobs:
+ * <ul>
+ * <li>M: links per node (2M on layer 0), more is better recall and more memory</li>
+ * <li>efConstruction: beam width when building, more is a better graph and a slower build</li>
+ * <li>efSearch: beam width when querying (can be changed at any time with
+ * {@link #setEfSearch(int)}), the main recall vs latency trade-off</li>
+ * </ul>
+ *
+ * The index keeps its own copy of the (L2 normalized) vectors, so it doesn't
+ * need the {@link Embeddings} it was built from. Save it with
+ * {@link #save(File)} and {@link #load(File)}.
+ *
+ * Building is single threaded. Once built, searching is thread safe.
+ *
+ * {@link #benchmark(ExperimentProperties)} on 100k x 100 clustered vectors,
+ * M=16 efConstruction=100 (72s to build), recall@10 vs brute force:
+ * efSearch=10 0.913 at 142us/query, efSearch=20 0.988 at 165us,
+ * efSearch=50 1.000 at 345us, brute force 8.9ms.
+ *
+ * @author travis
+ */
+public class HnswIndex implements Serializable {
+  private static final long serialVersionUID = 2797451744089837311L;
+
+  public static final int MAX_LEVEL = 16;
+
+  private final int dim;
+  private final int M, M0;
+  private final int efConstruction;
+  private int efSearch;
+  private final double levelMult;
+
+  private final int n;
+  private final float[] vecs;     // row-major, L2 normalized
+  private final int[] words;      // row -> word in the Embeddings' alphabet, -1 if none
+  private int[] wordRows;         // word -> row, -1 if none
+
+  private final int[] links0;     // row i's layer 0 neighbors are links0[i*M0, i*M0+numLinks0[i])
+  private final int[] numLinks0;
+  private final int[][] linksUp;  // row i's layer l>0 neighbors are linksUp[i][(l-1)*(M+1)+1, ...], count at (l-1)*(M+1)
+  private final byte[] level;
+  private int entry = -1;
+  private int maxLevel = -1;
+
+  // Lazily created (also after deserialization), volatile for the double
+  // checked locking in scratch()
+  private transient volatile ThreadLocal<Search> scratch;
+
+  /** Results of a query, sorted by decreasing similarity */
+  public static class Neighbors {
+    public final int[] rows;
+    public final int[] words;
+    public final float[] sims;
+
+    Neighbors(int[] rows, int[] words, float[] sims) {
+      this.rows = rows;
+      this.words = words;
+      this.sims = sims;
+    }
+
+    public int size() {
+      return rows.length;
+    }
+  }
+
+  /** Builds an index over every row in e */
+  public static HnswIndex build(Embeddings e, int M, int efConstruction) {
+    int d = e.dimension();
+    int n = e.numRows();
+    float[] v = new float[n * d];
+    float[] row = new float[d];
+    for (int i = 0; i < n; i++) {
+      e.getRow(i, row);
+      System.arraycopy(row, 0, v, i * d, d);
+    }
+    return new HnswIndex(v, e.rowWords(), d, M, efConstruction, new Random(9001));
+  }
+
+  /**
+   * @param vecs is row-major with numRows * dim values. This is normalized in
+   * place and kept (not copied).
+   * @param words is the word for every row, may be null.
+   */
+  public HnswIndex(float[] vecs, int[] words, int dim, int M, int efConstruction, Random rand) {
+    if (M < 2 || efConstruction < 1 || dim < 1 || vecs.length % dim != 0)
+      throw new IllegalArgumentException("M=" + M + " efConstruction=" + efConstruction
+          + " dim=" + dim + " vecs.length=" + vecs.length);
+    this.dim = dim;
+    this.M = M;
+    this.M0 = 2 * M;
+    this.efConstruction = efConstruction;
+    this.efSearch = Math.max(10, M);
+    this.levelMult = 1 / Math.log(M);
+    this.n = vecs.length / dim;
+    this.vecs = vecs;
+    if (words == null) {
+      words = new int[n];
+      Arrays.fill(words, -1);
+    }
+    if (words.length != n)
+      throw new IllegalArgumentException("words.length=" + words.length + " numRows=" + n);
+    this.words = words;
+    buildWordRows();
+    for (int i = 0; i < n; i++)
+      normalize(vecs, i * dim, dim);
+
+    links0 = new int[n * M0];
+    numLinks0 = new int[n];
+    linksUp = new int[n][];
+    level = new byte[n];
+    Log.info("building over " + n + " vectors, dim=" + dim + " M=" + M + " efConstruction=" + efConstruction);
+    Search sc = new Search(n);
+    for (int i = 0; i < n; i++) {
+      int l = Math.min(MAX_LEVEL, (int) (-Math.log(1 - rand.nextDouble()) * levelMult));
+      insert(i, l, sc);
+      if ((i + 1) % 100_000 == 0)
+        Log.info("inserted " + (i + 1) + " of " + n);
+    }
+  }
+
+  private void buildWordRows() {
+    int max = -1;
+    for (int w : words)
+      max = Math.max(max, w);
+    wordRows = new int[max + 1];
+    Arrays.fill(wordRows, -1);
+    for (int i = 0; i < n; i++)
+      if (words[i] >= 0)
+        wordRows[words[i]] = i;
+  }
+
+  private static void normalize(float[] v, int off, int d) {
+    double l2 = Math.sqrt(Embeddings.dot(v, off, v, off, d));
+    if (l2 > 1e-10)
+      Embeddings.scale(v, off, d, (float) (1 / l2));
+  }
+
+  public int numRows() {
+    return n;
+  }
+
+  public int dimension() {
+    return dim;
+  }
+
+  public int getEfSearch() {
+    return efSearch;
+  }
+
+  /** Beam width for queries: higher is better recall and slower */
+  public void setEfSearch(int efSearch) {
+    if (efSearch < 1)
+      throw new IllegalArgumentException("efSearch=" + efSearch);
+    this.efSearch = efSearch;
+  }
+
+  public void save(File f) {
+    FileUtil.serialize(this, f);
+  }
+
+  public static HnswIndex load(File f) {
+    return (HnswIndex) FileUtil.deserialize(f);
+  }
+
+  /* Links ******************************************************************/
+
+  private int numLinks(int i, int layer) {
+    if (layer == 0)
+      return numLinks0[i];
+    return linksUp[i][(layer - 1) * (M + 1)];
+  }
+
+  private int link(int i, int layer, int k) {
+    if (layer == 0)
+      return links0[i * M0 + k];
+    return linksUp[i][(layer - 1) * (M + 1) + 1 + k];
+  }
+
+  private void setLinks(int i, int layer, int[] nbs, int count) {
+    if (layer == 0) {
+      System.arraycopy(nbs, 0, links0, i * M0, count);
+      numLinks0[i] = count;
+    } else {
+      int o = (layer - 1) * (M + 1);
+      linksUp[i][o] = count;
+      System.arraycopy(nbs, 0, linksUp[i], o + 1, count);
+    }
+  }
+
+  private int maxLinks(int layer) {
+    return layer == 0 ? M0 : M;
+  }
+
+  /* Heap keys ***************************************************************/
+  // A (similarity, row) pair is packed into a long which sorts by similarity.
+
+  private static long key(float sim, int row) {
+    int b = Float.floatToRawIntBits(sim);
+    b ^= (b >> 31) & 0x7fffffff;
+    return ((long) b << 32) | (row & 0xffffffffL);
+  }
+
+  private static float sim(long key) {
+    int b = (int) (key >> 32);
+    b ^= (b >> 31) & 0x7fffffff;
+    return Float.intBitsToFloat(b);
+  }
+
+  private static int row(long key) {
+    return (int) key;
+  }
+
+  /** Binary min-heap of longs */
+  private static final class LongHeap {
+    long[] h = new long[64];
+    int size;
+
+    void clear() {
+      size = 0;
+    }
+
+    long peek() {
+      return h[0];
+    }
+
+    void push(long v) {
+      if (size == h.length)
+        h = Arrays.copyOf(h, (int) (h.length * 1.6 + 2.5));
+      int i = size++;
+      while (i > 0) {
+        int p = (i - 1) >>> 1;
+        if (h[p] <= v)
+          break;
+        h[i] = h[p];
+        i = p;
+      }
+      h[i] = v;
+    }
+
+    long pop() {
+      long top = h[0];
+      long v = h[--size];
+      int i = 0;
+      while (true) {
+        int c = 2 * i + 1;
+        if (c >= size)
+          break;
+        if (c + 1 < size && h[c + 1] < h[c])
+          c++;
+        if (v <= h[c])
+          break;
+        h[i] = h[c];
+        i = c;
+      }
+      h[i] = v;
+      return top;
+    }
+  }
+
+  /** Per-thread search state */
+  private static final class Search {
+    int[] visited;
+    int epoch;
+    LongHeap candidates = new LongHeap();   // ~key, so best first
+    LongHeap results = new LongHeap();      // key, so worst first
+    int[] nbs = new int[64];
+    float[] q;
+
+    Search(int n) {
+      visited = new int[n];
+    }
+
+    void newEpoch() {
+      if (++epoch == Integer.MAX_VALUE) {
+        Arrays.fill(visited, 0);
+        epoch = 1;
+      }
+    }
+  }
+
+  private Search scratch() {
+    ThreadLocal<Search> s = scratch;
+    if (s == null) {
+      synchronized (this) {
+        s = scratch;
+        if (s == null)
+          scratch = s = ThreadLocal.withInitial(() -> new Search(n));
+      }
+    }
+    return s.get();
+  }
+
+  /* Search *****************************************************************/
+
+  private float sim(float[] q, int qOff, int row) {
+    return (float) Embeddings.dot(q, qOff, vecs, row * dim, dim);
+  }
+
+  /** Greedy walk on one layer, returns the key of the local best */
+  private long greedy(float[] q, int qOff, long cur, int layer) {
+    boolean changed = true;
+    while (changed) {
+      changed = false;
+      int c = row(cur);
+      int m = numLinks(c, layer);
+      for (int k = 0; k < m; k++) {
+        int nb = link(c, layer, k);
+        float s = sim(q, qOff, nb);
+        if (s > sim(cur)) {
+          cur = key(s, nb);
+          changed = true;
+        }
+      }
+    }
+    return cur;
+  }
+
+  /**
+   * Best-first search on one layer starting at ep, leaves the (at most ef)
+   * best nodes in sc.results.
+   */
+  private void searchLayer(float[] q, int qOff, long ep, int ef, int layer, Search sc) {
+    sc.newEpoch();
+    sc.candidates.clear();
+    sc.results.clear();
+    sc.visited[row(ep)] = sc.epoch;
+    sc.candidates.push(~ep);
+    sc.results.push(ep);
+    while (sc.candidates.size > 0) {
+      long c = ~sc.candidates.pop();
+      if (sc.results.size >= ef && sim(c) < sim(sc.results.peek()))
+        break;
+      int cr = row(c);
+      int m = numLinks(cr, layer);
+      for (int k = 0; k < m; k++) {
+        int nb = link(cr, layer, k);
+        if (sc.visited[nb] == sc.epoch)
+          continue;
+        sc.visited[nb] = sc.epoch;
+        float s = sim(q, qOff, nb);
+        if (sc.results.size < ef || s > sim(sc.results.peek())) {
+          long kn = key(s, nb);
+          sc.candidates.push(~kn);
+          sc.results.push(kn);
+          if (sc.results.size > ef)
+            sc.results.pop();
+        }
+      }
+    }
+  }
+
+  /** Drains sc.results into an array sorted by decreasing similarity */
+  private static long[] drainResults(Search sc) {
+    long[] r = new long[sc.results.size];
+    for (int i = r.length - 1; i >= 0; i--)
+      r[i] = sc.results.pop();
+    return r;
+  }
+
+  /**
+   * Picks up to m of the candidates (sorted by decreasing similarity to the
+   * node being linked) with the heuristic from the paper: a candidate is
+   * skipped if it's more similar to an already selected node than to the
+   * node being linked, which keeps links pointing in different directions.
+   * Skipped candidates fill any remaining slots.
+   * @return the number selected, written to out.
+   */
+  private int selectNeighbors(long[] cands, int numCands, int m, int[] out) {
+    int sel = 0;
+    boolean[] skipped = null;
+    for (int i = 0; i < numCands && sel < m; i++) {
+      int c = row(cands[i]);
+      float sc = sim(cands[i]);
+      boolean good = true;
+      for (int j = 0; j < sel && good; j++)
+        if (sim(vecs, c * dim, out[j]) > sc)
+          good = false;
+      if (good) {
+        out[sel++] = c;
+      } else {
+        if (skipped == null)
+          skipped = new boolean[numCands];
+        skipped[i] = true;
+      }
+    }
+    for (int i = 0; i < numCands && sel < m && skipped != null; i++)
+      if (skipped[i])
+        out[sel++] = row(cands[i]);
+    return sel;
+  }
+
+  private void insert(int i, int l, Search sc) {
+    level[i] = (byte) l;
+    if (l > 0)
+      linksUp[i] = new int[l * (M + 1)];
+    if (entry < 0) {
+      entry = i;
+      maxLevel = l;
+      return;
+    }
+    int qOff = i * dim;
+    long cur = key(sim(vecs, qOff, entry), entry);
+    for (int layer = maxLevel; layer > l; layer--)
+      cur = greedy(vecs, qOff, cur, layer);
+    int[] sel = new int[M0 + 1];
+    for (int layer = Math.min(l, maxLevel); layer >= 0; layer--) {
+      searchLayer(vecs, qOff, cur, efConstruction, layer, sc);
+      long[] cands = drainResults(sc);
+      cur = cands[0];
+      int ns = selectNeighbors(cands, cands.length, M, sel);
+      setLinks(i, layer, sel, ns);
+      for (int k = 0; k < ns; k++)
+        addLink(sel[k], i, layer, sc);
+    }
+    if (l > maxLevel) {
+      maxLevel = l;
+      entry = i;
+    }
+  }
+
+  /** Adds a link from a to b, re-selecting a's links if it has too many */
+  private void addLink(int a, int b, int layer, Search sc) {
+    int m = numLinks(a, layer);
+    int max = maxLinks(layer);
+    if (m < max) {
+      if (layer == 0) {
+        links0[a * M0 + m] = b;
+        numLinks0[a]++;
+      } else {
+        int o = (layer - 1) * (M + 1);
+        linksUp[a][o + 1 + m] = b;
+        linksUp[a][o]++;
+      }
+      return;
+    }
+    long[] cands = new long[m + 1];
+    int aOff = a * dim;
+    for (int k = 0; k < m; k++) {
+      int nb = link(a, layer, k);
+      cands[k] = key(sim(vecs, aOff, nb), nb);
+    }
+    cands[m] = key(sim(vecs, aOff, b), b);
+    Arrays.sort(cands);
+    for (int x = 0, y = cands.length - 1; x < y; x++, y--) {
+      long t = cands[x];
+      cands[x] = cands[y];
+      cands[y] = t;
+    }
+    if (sc.nbs.length < max)
+      sc.nbs = new int[max];
+    int ns = selectNeighbors(cands, cands.length, max, sc.nbs);
+    setLinks(a, layer, sc.nbs, ns);
+  }
+
+  /**
+   * @return (approximately) the k rows most similar to vec, using a beam of
+   * max(k, efSearch).
+   */
+  public Neighbors search(float[] vec, int k) {
+    return search(vec, k, -1);
+  }
+
+  /**
+   * @return (approximately) the k words most similar to the given word (in
+   * the alphabet of the {@link Embeddings} this was built from), not
+   * including itself, or null if there is no vector for the word.
+   */
+  public Neighbors searchWord(int word, int k) {
+    int r = word < 0 || word >= wordRows.length ? -1 : wordRows[word];
+    if (r < 0)
+      return null;
+    return search(Arrays.copyOfRange(vecs, r * dim, (r + 1) * dim), k, r);
+  }
+
+  private Neighbors search(float[] vec, int k, int skipRow) {
+    if (vec.length != dim)
+      throw new IllegalArgumentException("vec.length=" + vec.length + " dimension=" + dim);
+    if (entry < 0 || k < 1)
+      return new Neighbors(new int[0], new int[0], new float[0]);
+    Search sc = scratch();
+    if (sc.q == null)
+      sc.q = new float[dim];
+    float[] q = sc.q;
+    System.arraycopy(vec, 0, q, 0, dim);
+    normalize(q, 0, dim);
+    int kk = skipRow >= 0 ? k + 1 : k;
+    long cur = key(sim(q, 0, entry), entry);
+    for (int layer = maxLevel; layer > 0; layer--)
+      cur = greedy(q, 0, cur, layer);
+    searchLayer(q, 0, cur, Math.max(kk, efSearch), 0, sc);
+    long[] r = drainResults(sc);
+    int m = 0;
+    for (int i = 0; i < r.length && m < k; i++)
+      if (row(r[i]) != skipRow)
+        r[m++] = r[i];
+    int[] rows = new int[m];
+    int[] ws = new int[m];
+    float[] sims = new float[m];
+    for (int i = 0; i < m; i++) {
+      rows[i] = row(r[i]);
+      ws[i] = words[rows[i]];
+      sims[i] = sim(r[i]);
+    }
+    return new Neighbors(rows, ws, sims);
+  }
+
+  /** Exact top k by scanning every row, for measuring recall */
+  public Neighbors bruteForce(float[] vec, int k) {
+    float[] q = Arrays.copyOf(vec, dim);
+    normalize(q, 0, dim);
+    LongHeap h = new LongHeap();
+    for (int i = 0; i < n; i++) {
+      float s = sim(q, 0, i);
+      if (h.size < k || s > sim(h.peek())) {
+        h.push(key(s, i));
+        if (h.size > k)
+          h.pop();
+      }
+    }
+    int m = h.size;
+    int[] rows = new int[m];
+    int[] ws = new int[m];
+    float[] sims = new float[m];
+    for (int i = m - 1; i >= 0; i--) {
+      long t = h.pop();
+      rows[i] = row(t);
+      ws[i] = words[rows[i]];
+      sims[i] = sim(t);
+    }
+    return new Neighbors(rows, ws, sims);
+  }
+
+  /**
+   * Clustered random vectors (as word vectors are), reports build time, and
+   * recall@k and latency vs brute force for a range of efSearch.
+   */
+  public static void benchmark(ExperimentProperties config) {
+    int n = config.getInt("numRows", 100_000);
+    int dim = config.getInt("dim", 100);
+    int numClusters = config.getInt("numClusters", 1000);
+    int numQueries = config.getInt("numQueries", 1000);
+    int k = config.getInt("k", 10);
+    int M = config.getInt("M", 16);
+    int efC = config.getInt("efConstruction", 100);
+    float noise = (float) config.getDouble("noise", 1);
+    Random rand = new Random(9001);
+    float[][] centers = new float[numClusters][dim];
+    for (float[] c : centers)
+      for (int j = 0; j < dim; j++)
+        c[j] = (float) rand.nextGaussian();
+    float[] v = new float[n * dim];
+    for (int i = 0; i < n; i++) {
+      float[] c = centers[rand.nextInt(numClusters)];
+      for (int j = 0; j < dim; j++)
+        v[i * dim + j] = c[j] + noise * (float) rand.nextGaussian();
+    }
+    float[][] queries = new float[numQueries][dim];
+    for (float[] q : queries) {
+      float[] c = centers[rand.nextInt(numClusters)];
+      for (int j = 0; j < dim; j++)
+        q[j] = c[j] + noise * (float) rand.nextGaussian();
+    }
+
+    MultiTimer t = new MultiTimer();
+    t.start("build");
+    HnswIndex idx = new HnswIndex(v, null, dim, M, efC, rand);
+    t.stop("build");
+
+    int[][] truth = new int[numQueries][];
+    t.start("bruteForce");
+    for (int i = 0; i < numQueries; i++)
+      truth[i] = idx.bruteForce(queries[i], k).rows;
+    t.stop("bruteForce");
+
+    for (int ef : new int[] {10, 20, 50, 100, 200}) {
+      idx.setEfSearch(ef);
+      for (int i = 0; i < numQueries; i++)   // warm up
+        idx.search(queries[i], k);
+      int hits = 0;
+      String tk = "search/ef=" + ef;
+      t.start(tk);
+      for (int i = 0; i < numQueries; i++) {
+        int[] r = idx.search(queries[i], k).rows;
+        for (int a : r)
+          for (int b : truth[i])
+            if (a == b)
+              hits++;
+      }
+      t.stop(tk);
+      Log.info(String.format("efSearch=%d recall@%d=%.3f", ef, k, hits / (double) (numQueries * k)));
+    }
+    Log.info("n=" + n + " dim=" + dim + " numQueries=" + numQueries + "\n" + t);
+  }
+
+  public static void main(String[] args) {
+    ExperimentProperties config = ExperimentProperties.init(args);
+    benchmark(config);
+  }
+}
@@ -0,0 +1,140 @@
+package edu.jhu.hlt.tutils.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Reads a stream as blocks of whole lines on a background thread, one block
+ * ahead of the consumer, for the parallel line-oriented parsers in this
+ * package. The consumer cuts a block into pieces with {@link #cut(Block, int)}
+ * and parses the pieces concurrently while the next block is being read (and
+ * decompressed, for .gz/.bz2 input from {@link edu.jhu.hlt.tutils.FileUtil}).
+ *
+ * @author travis
+ */
+class LineBlockReader implements AutoCloseable {
+
+  static class Block {
+    final byte[] b;
+    final int len;        // b[0, len) is whole lines (the last may have no '\n')
+    final long offset;    // (uncompressed) offset of b[0] in the stream
+
+    Block(byte[] b, int len, long offset) {
+      this.b = b;
+      this.len = len;
+      this.offset = offset;
+    }
+  }
+
+  public final int blockBytes;
+  private InputStream is;
+  private ExecutorService io;
+  private Future<Block> next;
+  private byte[] carry = new byte[0];   // start of a line which didn't fit in the last block
+  private int carryLen;
+  private long bytesRead;
+
+  LineBlockReader(InputStream is, int blockBytes, String threadName) {
+    if (blockBytes < 1)
+      throw new IllegalArgumentException("blockBytes=" + blockBytes);
+    this.is = is;
+    this.blockBytes = blockBytes;
+    this.io = Executors.newSingleThreadExecutor(r -> {
+      Thread t = new Thread(r, threadName);
+      t.setDaemon(true);
+      return t;
+    });
+    this.next = io.submit(this::read);
+  }
+
+  /** Runs on the io thread */
+  private Block read() throws IOException {
+    byte[] b = new byte[Math.max(blockBytes, carryLen + 1)];
+    System.arraycopy(carry, 0, b, 0, carryLen);
+    int len = carryLen;
+    boolean eof = false;
+    int lastNewline = -1;
+    while (true) {
+      int r = is.read(b, len, b.length - len);
+      if (r < 0) {
+        eof = true;
+        break;
+      }
+      for (int i = len + r - 1; i >= len && lastNewline < len; i--)
+        if (b[i] == '\n')
+          lastNewline = i;
+      len += r;
+      if (len == b.length) {
+        if (lastNewline >= 0)
+          break;
+        // One line longer than the block
+        b = Arrays.copyOf(b, (int) Math.min(Integer.MAX_VALUE - 8, b.length * 1.6 + 2.5));
+      }
+    }
+    int blen = eof ? len : lastNewline + 1;
+    carryLen = len - blen;
+    if (carry.length < carryLen)
+      carry = new byte[Math.max(carryLen, 1024)];
+    System.arraycopy(b, blen, carry, 0, carryLen);
+    Block blk = new Block(b, blen, bytesRead);
+    bytesRead += blen;
+    return blk;
+  }
+
+  /** Returns the next block, or null at the end of the stream */
+  Block next() {
+    if (next == null)
+      return null;
+    Block b;
+    try {
+      b = next.get();
+    } catch (InterruptedException | ExecutionException e) {
+      throw new RuntimeException(e);
+    }
+    if (b.len == 0) {
+      next = null;
+      return null;
+    }
+    next = io.submit(this::read);
+    return b;
+  }
+
+  /** True if {@link #next()} has returned null */
+  boolean done() {
+    return next == null;
+  }
+
+  /**
+   * Cuts a block into at most 4 pieces per core of at least minPieceBytes.
+   * Piece p is b[starts[p], starts[p+1]), and each starts at the beginning of
+   * a line.
+   */
+  static int[] cut(Block blk, int minPieceBytes) {
+    int maxPieces = 4 * Runtime.getRuntime().availableProcessors();
+    int n = Math.max(1, Math.min(maxPieces, blk.len / Math.max(1, minPieceBytes)));
+    int[] starts = new int[n + 1];
+    starts[n] = blk.len;
+    for (int p = 1; p < n; p++) {
+      int s = Math.max(starts[p - 1], (int) ((long) blk.len * p / n));
+      while (s < blk.len && (s == 0 || blk.b[s - 1] != '\n'))
+        s++;
+      starts[p] = s;
+    }
+    return starts;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (io == null)
+      return;
+    io.shutdownNow();
+    io = null;
+    next = null;
+    is.close();
+  }
+}
@@ -0,0 +1,517 @@
+package edu.jhu.hlt.tutils.data;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import edu.jhu.hlt.tutils.ExperimentProperties;
+import edu.jhu.hlt.tutils.Log;
+import edu.jhu.hlt.tutils.MultiAlphabet;
+import edu.jhu.hlt.tutils.MultiTimer;
+
+/**
+ * Compressed copy of {@link Embeddings}, for when several sets of vectors
+ * have to fit in one JVM. Two modes:
+ * <ul>
+ * <li>{@link Mode#INT8}: each component is a byte, scaled per row by
+ * max|v_j|/127. 4x smaller than floats. Dot products between rows are done
+ * on the bytes with an int accumulator.</li>
+ * <li>{@link Mode#PQ}: product quantization (Jegou et al., 2011). The
+ * dimensions are cut into numSubspaces groups, each with 256 centroids
+ * learned by k-means, and a row is one byte (centroid index) per group.
+ * d*4/numSubspaces times smaller than floats (16x with 4 dimensions per
+ * group). Dot products with a query vector use a table of query/centroid dot
+ * products, see {@link #queryTable(float[])}.</li>
+ * </ul>
+ * The L2 norm of every (reconstructed) row is kept as a float so cosine
+ * similarity doesn't need a second pass.
+ *
+ * Use {@link #accuracyReport(Embeddings, int, int, Random)} to see how much
+ * similarities change. On 400k x 300 random clustered vectors (see
+ * {@link #benchmark(ExperimentProperties)}):
+ * <pre>
+ *               size   mean|cos err|  max    recall@10  1M cosines
+ * float         1x     0              0      1          1.01s
+ * INT8          3.9x   0.0005         0.003  0.988      0.73s
+ * PQ (75 subs)  15x    0.021          0.115  0.651      0.66s
+ * </pre>
+ * PQ is good for a first pass (re-rank its top few hundred with floats or
+ * INT8) but not as a drop in replacement.
+ *
+ * @author travis
+ */
+public class QuantizedEmbeddings implements Serializable {
+  private static final long serialVersionUID = -4390715911346245271L;
+
+  public enum Mode {
+    INT8,
+    PQ,
+  }
+
+  private final Mode mode;
+  private final int n;
+  private final int dim;
+  private final MultiAlphabet alph;
+  private final int[] wordRows;     // word (I1) -> row, -1 if none
+  private final float[] norms;      // row -> L2 norm of the reconstructed vector
+
+  // INT8
+  private byte[] codes8;            // row-major n * dim
+  private float[] scales;           // row -> scale
+
+  // PQ
+  private int numSub;
+  private int[] subStart;           // subspace s is dimensions [subStart[s], subStart[s+1])
+  private float[][] centroids;      // subspace -> 256 centroids, row-major 256 * (width of s)
+  private byte[] codesPQ;           // row-major n * numSub
+
+  private QuantizedEmbeddings(Mode mode, Embeddings e) {
+    this.mode = mode;
+    this.n = e.numRows();
+    this.dim = e.dimension();
+    this.alph = e.getAlphabet();
+    this.norms = new float[n];
+    int[] rowWords = e.rowWords();
+    int max = -1;
+    for (int w : rowWords)
+      max = Math.max(max, w);
+    wordRows = new int[max + 1];
+    Arrays.fill(wordRows, -1);
+    for (int i = 0; i < n; i++)
+      if (rowWords[i] >= 0)
+        wordRows[rowWords[i]] = i;
+  }
+
+  /** Scalar quantizes every row in e to int8 with a per-row scale */
+  public static QuantizedEmbeddings int8(Embeddings e) {
+    QuantizedEmbeddings q = new QuantizedEmbeddings(Mode.INT8, e);
+    int d = q.dim;
+    q.codes8 = new byte[q.n * d];
+    q.scales = new float[q.n];
+    float[] row = new float[d];
+    for (int i = 0; i < q.n; i++) {
+      e.getRow(i, row);
+      float m = 0;
+      for (int j = 0; j < d; j++)
+        m = Math.max(m, Math.abs(row[j]));
+      float scale = m / 127;
+      q.scales[i] = scale;
+      long nn = 0;
+      for (int j = 0; j < d; j++) {
+        int c = scale == 0 ? 0 : Math.round(row[j] / scale);
+        q.codes8[i * d + j] = (byte) c;
+        nn += c * c;
+      }
+      q.norms[i] = (float) (Math.sqrt(nn) * scale);
+    }
+    return q;
+  }
+
+  /**
+   * Product quantizes every row in e.
+   * @param numSubspaces is the number of bytes per row. The dimensions are
+   * split as evenly as possible if it doesn't divide the dimension.
+   * @param trainSize is how many (random) rows to learn centroids from.
+   * @param iters is the number of k-means iterations.
+   */
+  public static QuantizedEmbeddings productQuantized(Embeddings e, int numSubspaces, int trainSize, int iters, Random rand) {
+    QuantizedEmbeddings q = new QuantizedEmbeddings(Mode.PQ, e);
+    int d = q.dim;
+    if (numSubspaces < 1 || numSubspaces > d)
+      throw new IllegalArgumentException("numSubspaces=" + numSubspaces + " dimension=" + d);
+    q.numSub = numSubspaces;
+    q.subStart = new int[numSubspaces + 1];
+    for (int s = 0; s <= numSubspaces; s++)
+      q.subStart[s] = (int) ((long) s * d / numSubspaces);
+
+    // Training sample
+    int t = Math.min(trainSize, q.n);
+    int[] perm = new int[q.n];
+    for (int i = 0; i < q.n; i++)
+      perm[i] = i;
+    for (int i = 0; i < t; i++) {
+      int j = i + rand.nextInt(q.n - i);
+      int tmp = perm[i]; perm[i] = perm[j]; perm[j] = tmp;
+    }
+    float[] train = new float[t * d];
+    float[] row = new float[d];
+    for (int i = 0; i < t; i++) {
+      e.getRow(perm[i], row);
+      System.arraycopy(row, 0, train, i * d, d);
+    }
+
+    Log.info("learning " + numSubspaces + " x 256 centroids from " + t + " rows, iters=" + iters);
+    q.centroids = new float[numSubspaces][];
+    long[] seeds = new long[numSubspaces];
+    for (int s = 0; s < numSubspaces; s++)
+      seeds[s] = rand.nextLong();
+    IntStream.range(0, numSubspaces).parallel().forEach(s -> {
+      q.centroids[s] = kmeans(train, t, d, q.subStart[s], q.subStart[s + 1], 256, iters, new Random(seeds[s]));
+    });
+
+    Log.info("encoding " + q.n + " rows");
+    q.codesPQ = new byte[q.n * numSubspaces];
+    IntStream.range(0, q.n).parallel().forEach(i -> {
+      float[] r = new float[d];
+      e.getRow(i, r);
+      double nn = 0;
+      for (int s = 0; s < numSubspaces; s++) {
+        int c = nearest(q.centroids[s], r, q.subStart[s], q.subStart[s + 1]);
+        q.codesPQ[i * numSubspaces + s] = (byte) c;
+        int w = q.subStart[s + 1] - q.subStart[s];
+        nn += Embeddings.dot(q.centroids[s], c * w, q.centroids[s], c * w, w);
+      }
+      q.norms[i] = (float) Math.sqrt(nn);
+    });
+    return q;
+  }
+
+  /** Index of the centroid closest (L2) to x[from, to) */
+  private static int nearest(float[] cents, float[] x, int from, int to) {
+    int w = to - from;
+    int k = cents.length / w;
+    int best = 0;
+    float bestD = Float.POSITIVE_INFINITY;
+    for (int c = 0; c < k; c++) {
+      float dd = 0;
+      int o = c * w;
+      for (int j = 0; j < w; j++) {
+        float diff = cents[o + j] - x[from + j];
+        dd += diff * diff;
+      }
+      if (dd < bestD) {
+        bestD = dd;
+        best = c;
+      }
+    }
+    return best;
+  }
+
+  /** Lloyd's algorithm on dimensions [from, to) of the t rows of x */
+  private static float[] kmeans(float[] x, int t, int d, int from, int to, int k, int iters, Random rand) {
+    int w = to - from;
+    float[] cents = new float[k * w];
+    float[] sub = new float[w];
+    for (int c = 0; c < k; c++)
+      System.arraycopy(x, rand.nextInt(t) * d + from, cents, c * w, w);
+    int[] assign = new int[t];
+    double[] sums = new double[k * w];
+    int[] counts = new int[k];
+    for (int it = 0; it < iters; it++) {
+      for (int i = 0; i < t; i++) {
+        System.arraycopy(x, i * d + from, sub, 0, w);
+        assign[i] = nearest(cents, sub, 0, w);
+      }
+      Arrays.fill(sums, 0);
+      Arrays.fill(counts, 0);
+      for (int i = 0; i < t; i++) {
+        int c = assign[i];
+        counts[c]++;
+        for (int j = 0; j < w; j++)
+          sums[c * w + j] += x[i * d + from + j];
+      }
+      for (int c = 0; c < k; c++) {
+        if (counts[c] == 0) {
+          // Empty cluster, re-seed with a random row
+          System.arraycopy(x, rand.nextInt(t) * d + from, cents, c * w, w);
+        } else {
+          for (int j = 0; j < w; j++)
+            cents[c * w + j] = (float) (sums[c * w + j] / counts[c]);
+        }
+      }
+    }
+    return cents;
+  }
+
+  public Mode mode() {
+    return mode;
+  }
+
+  public int numRows() {
+    return n;
+  }
+
+  public int dimension() {
+    return dim;
+  }
+
+  public MultiAlphabet getAlphabet() {
+    return alph;
+  }
+
+  /** Approximate size of the vectors (codes, scales, norms, centroids) */
+  public long bytesUsed() {
+    long b = 4L * n;
+    if (mode == Mode.INT8) {
+      b += codes8.length + 4L * scales.length;
+    } else {
+      b += codesPQ.length;
+      for (float[] c : centroids)
+        b += 4L * c.length;
+    }
+    return b;
+  }
+
+  /** @return the row of the vector for word i1, or -1 if there isn't one */
+  public int row(int i1) {
+    return i1 < 0 || i1 >= wordRows.length ? -1 : wordRows[i1];
+  }
+
+  /** Writes the reconstructed (approximate) vector for a row into buf */
+  public void getRow(int row, float[] buf) {
+    if (mode == Mode.INT8) {
+      float scale = scales[row];
+      int o = row * dim;
+      for (int j = 0; j < dim; j++)
+        buf[j] = codes8[o + j] * scale;
+    } else {
+      for (int s = 0; s < numSub; s++) {
+        int w = subStart[s + 1] - subStart[s];
+        int c = codesPQ[row * numSub + s] & 0xff;
+        System.arraycopy(centroids[s], c * w, buf, subStart[s], w);
+      }
+    }
+  }
+
+  /** Approximate dot product between two rows */
+  public double dotRows(int a, int b) {
+    if (mode == Mode.INT8) {
+      int oa = a * dim, ob = b * dim;
+      int s0 = 0, s1 = 0;
+      int j = 0;
+      for (; j + 1 < dim; j += 2) {
+        s0 += codes8[oa + j] * codes8[ob + j];
+        s1 += codes8[oa + j + 1] * codes8[ob + j + 1];
+      }
+      if (j < dim)
+        s0 += codes8[oa + j] * codes8[ob + j];
+      return (double) (s0 + s1) * scales[a] * scales[b];
+    }
+    double dot = 0;
+    for (int s = 0; s < numSub; s++) {
+      int w = subStart[s + 1] - subStart[s];
+      int ca = codesPQ[a * numSub + s] & 0xff;
+      int cb = codesPQ[b * numSub + s] & 0xff;
+      dot += Embeddings.dot(centroids[s], ca * w, centroids[s], cb * w, w);
+    }
+    return dot;
+  }
+
+  /** Approximate cosine similarity between two rows, 0 if either is all zeros */
+  public double cosineSimRows(int a, int b) {
+    double nn = (double) norms[a] * norms[b];
+    if (nn < 1e-20)
+      return 0;
+    return dotRows(a, b) / nn;
+  }
+
+  /**
+   * @return the approximate cosine similarity of the vectors for two words,
+   * or 0 if either doesn't have a vector.
+   */
+  public double cosineSim(int i1a, int i1b) {
+    int a = row(i1a), b = row(i1b);
+    if (a < 0 || b < 0)
+      return 0;
+    return cosineSimRows(a, b);
+  }
+
+  /**
+   * Pre-computes what {@link #dot(float[], int)} needs for a query vector:
+   * for PQ a numSubspaces x 256 table of dot products between the query and
+   * every centroid, for INT8 just the query.
+   */
+  public float[] queryTable(float[] query) {
+    if (query.length != dim)
+      throw new IllegalArgumentException("query.length=" + query.length + " dimension=" + dim);
+    if (mode == Mode.INT8)
+      return query;
+    float[] table = new float[numSub * 256];
+    for (int s = 0; s < numSub; s++) {
+      int w = subStart[s + 1] - subStart[s];
+      for (int c = 0; c < 256; c++)
+        table[s * 256 + c] = (float) Embeddings.dot(query, subStart[s], centroids[s], c * w, w);
+    }
+    return table;
+  }
+
+  /** Approximate dot product between a query (see {@link #queryTable(float[])}) and a row */
+  public double dot(float[] queryTable, int row) {
+    if (mode == Mode.INT8) {
+      int o = row * dim;
+      float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+      int j = 0;
+      for (; j + 3 < dim; j += 4) {
+        s0 += queryTable[j] * codes8[o + j];
+        s1 += queryTable[j + 1] * codes8[o + j + 1];
+        s2 += queryTable[j + 2] * codes8[o + j + 2];
+        s3 += queryTable[j + 3] * codes8[o + j + 3];
+      }
+      for (; j < dim; j++)
+        s0 += queryTable[j] * codes8[o + j];
+      return ((s0 + s1) + (s2 + s3)) * (double) scales[row];
+    }
+    int o = row * numSub;
+    float s0 = 0, s1 = 0;
+    int s = 0;
+    for (; s + 1 < numSub; s += 2) {
+      s0 += queryTable[s * 256 + (codesPQ[o + s] & 0xff)];
+      s1 += queryTable[(s + 1) * 256 + (codesPQ[o + s + 1] & 0xff)];
+    }
+    if (s < numSub)
+      s0 += queryTable[s * 256 + (codesPQ[o + s] & 0xff)];
+    return s0 + s1;
+  }
+
+  /** Approximate cosine similarity between a query (see {@link #queryTable(float[])}) with the given norm and a row */
+  public double cosineSim(float[] queryTable, double queryNorm, int row) {
+    double nn = queryNorm * norms[row];
+    if (nn < 1e-20)
+      return 0;
+    return dot(queryTable, row) / nn;
+  }
+
+  /** Brute force top k rows by approximate cosine similarity to query, best first */
+  public int[] mostSimilar(float[] query, int k) {
+    float[] table = queryTable(query);
+    double qn = Math.sqrt(Embeddings.dot(query, 0, query, 0, dim));
+    return topK(n, k, r -> cosineSim(table, qn, r));
+  }
+
+  private interface RowScore {
+    double score(int row);
+  }
+
+  private static int[] topK(int n, int k, RowScore f) {
+    k = Math.min(k, n);
+    int[] best = new int[k];
+    double[] bestS = new double[k];
+    int m = 0;
+    for (int r = 0; r < n; r++) {
+      double s = f.score(r);
+      if (m < k || s > bestS[m - 1]) {
+        int i = m < k ? m++ : m - 1;
+        while (i > 0 && bestS[i - 1] < s) {
+          best[i] = best[i - 1];
+          bestS[i] = bestS[i - 1];
+          i--;
+        }
+        best[i] = r;
+        bestS[i] = s;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Compares cosine similarities against the float vectors in e (which this
+   * must have been built from): mean and max absolute error over random row
+   * pairs and over each query row's true top 10, and recall@10 of
+   * {@link #mostSimilar(float[], int)} for numQueries random rows.
+   * @return a human readable report
+   */
+  public String accuracyReport(Embeddings e, int numPairs, int numQueries, Random rand) {
+    if (e.numRows() != n || e.dimension() != dim)
+      throw new IllegalArgumentException("not built from these embeddings");
+    float[] va = new float[dim], vb = new float[dim];
+    double sumErr = 0, maxErr = 0;
+    for (int p = 0; p < numPairs; p++) {
+      int a = rand.nextInt(n), b = rand.nextInt(n);
+      e.getRow(a, va);
+      e.getRow(b, vb);
+      double err = Math.abs(Embeddings.cosineSim(va, 0, vb, 0, dim) - cosineSimRows(a, b));
+      sumErr += err;
+      maxErr = Math.max(maxErr, err);
+    }
+
+    int k = 10;
+    double sumErrNear = 0, maxErrNear = 0;
+    int hits = 0;
+    float[] flat = new float[n * dim];
+    for (int r = 0; r < n; r++) {
+      e.getRow(r, va);
+      System.arraycopy(va, 0, flat, r * dim, dim);
+    }
+    for (int qi = 0; qi < numQueries; qi++) {
+      int q = rand.nextInt(n);
+      float[] qv = Arrays.copyOfRange(flat, q * dim, (q + 1) * dim);
+      int[] truth = topK(n, k, r -> Embeddings.cosineSim(flat, q * dim, flat, r * dim, dim));
+      int[] approx = mostSimilar(qv, k);
+      for (int a : approx)
+        for (int t : truth)
+          if (a == t)
+            hits++;
+      for (int t : truth) {
+        double err = Math.abs(Embeddings.cosineSim(flat, q * dim, flat, t * dim, dim) - cosineSimRows(q, t));
+        sumErrNear += err;
+        maxErrNear = Math.max(maxErrNear, err);
+      }
+    }
+    long floatBytes = 4L * n * dim;
+    return String.format("%s n=%d dim=%d bytes=%d (%.1fx smaller than floats)\n"
+        + "  random pairs: mean |cos err|=%.4f max=%.4f\n"
+        + "  top %d pairs: mean |cos err|=%.4f max=%.4f\n"
+        + "  recall@%d=%.3f",
+        mode, n, dim, bytesUsed(), floatBytes / (double) bytesUsed(),
+        sumErr / numPairs, maxErr,
+        k, sumErrNear / (numQueries * k), maxErrNear,
+        k, hits / (double) (numQueries * k));
+  }
+
+  /**
+   * Random clustered vectors, prints {@link #accuracyReport(Embeddings, int, int, Random)}
+   * and times cosine similarity for both modes and floats.
+   */
+  public static void benchmark(ExperimentProperties config) {
+    int n = config.getInt("numRows", 400_000);
+    int dim = config.getInt("dim", 300);
+    int numClusters = config.getInt("numClusters", 2000);
+    int numSub = config.getInt("numSubspaces", dim / 4);
+    int numPairs = config.getInt("numPairs", 1_000_000);
+    Random rand = new Random(9001);
+    Embeddings e = Embeddings.randomClustered(n, dim, numClusters, 1, rand);
+
+    MultiTimer t = new MultiTimer();
+    t.start("build/int8");
+    QuantizedEmbeddings q8 = int8(e);
+    t.stop("build/int8");
+    t.start("build/pq");
+    QuantizedEmbeddings pq = productQuantized(e, numSub,
+        config.getInt("trainSize", 20_000), config.getInt("iters", 10), rand);
+    t.stop("build/pq");
+
+    int[] pa = new int[numPairs], pb = new int[numPairs];
+    for (int i = 0; i < numPairs; i++) {
+      pa[i] = rand.nextInt(n);
+      pb[i] = rand.nextInt(n);
+    }
+    float[] va = new float[dim], vb = new float[dim];
+    double c0 = 0, c1 = 0, c2 = 0;
+    for (int k = 0; k < 3; k++) {
+      t.start("cosine/float");
+      for (int i = 0; i < numPairs; i++) {
+        e.getRow(pa[i], va);
+        e.getRow(pb[i], vb);
+        c0 += Embeddings.cosineSim(va, 0, vb, 0, dim);
+      }
+      t.stop("cosine/float");
+      t.start("cosine/int8");
+      for (int i = 0; i < numPairs; i++)
+        c1 += q8.cosineSimRows(pa[i], pb[i]);
+      t.stop("cosine/int8");
+      t.start("cosine/pq");
+      for (int i = 0; i < numPairs; i++)
+        c2 += pq.cosineSimRows(pa[i], pb[i]);
+      t.stop("cosine/pq");
+    }
+    Log.info(q8.accuracyReport(e, 100_000, config.getInt("numQueries", 100), rand));
+    Log.info(pq.accuracyReport(e, 100_000, config.getInt("numQueries", 100), rand));
+    Log.info(String.format("checksums %.3f %.3f %.3f\n%s", c0, c1, c2, t));
+  }
+
+  public static void main(String[] args) {
+    ExperimentProperties config = ExperimentProperties.init(args);
+    benchmark(config);
+  }
+}
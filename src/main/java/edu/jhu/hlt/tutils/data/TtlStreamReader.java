@@ -0,0 +1,670 @@
+package edu.jhu.hlt.tutils.data;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+import java.util.stream.IntStream;
+
+import edu.jhu.hlt.tutils.Alphabet;
+import edu.jhu.hlt.tutils.ByteSliceInterner;
+import edu.jhu.hlt.tutils.ExperimentProperties;
+import edu.jhu.hlt.tutils.FileUtil;
+import edu.jhu.hlt.tutils.Log;
+import edu.jhu.hlt.tutils.MultiTimer;
+import edu.jhu.hlt.tutils.data.DbpediaToken.Type;
+import edu.jhu.hlt.tutils.hash.MurmurHash3;
+
+/**
+ * Reads N-Triples/TTL lines (e.g. DBpedia dumps) one triple at a time,
+ * scanning bytes in a read buffer rather than making a {@link DbpediaTtl}
+ * (three {@link DbpediaToken}s and their substrings) per line.
+ *
+ * After {@link #next()} the current triple is available as slices of
+ * {@link #buf()} (valid until the next call), e.g.
+ * buf[{@link #start(int)}, {@link #end(int)}) for {@link #SUBJ}, {@link #PRED}
+ * and {@link #OBJ}, where the brackets/quotes and literal types are already
+ * stripped (same values as {@link DbpediaToken#getValue()}). If an alphabet is
+ * set (see {@link #setAlphabet(ToIntFunction)}) terms can be read as ids
+ * without creating a {@link String} for anything that's been seen before.
+ *
+ * A predicate filter (see {@link #setPredicateFilter(Collection)}) is checked
+ * right after the predicate is found, so the object of an unwanted triple is
+ * never looked at.
+ *
+ * Big dumps can be read on many threads with
+ * {@link #forEachParallel(File, Collection, Consumer)} or
+ * {@link #readIdsParallel(File, ToIntFunction, Collection, IdBlockHandler)}.
+ *
+ * Differences from {@link DbpediaTtl.LineIterator}: escaped quotes inside
+ * literals are handled (the value is left escaped), "@en-US" etc are
+ * {@link Type#OTHER} rather than an invalid line, any whitespace may separate
+ * terms and precede the final '.', and lines with blank nodes are skipped
+ * rather than throwing an exception.
+ *
+ * Not thread safe.
+ *
+ * @author travis
+ */
+public class TtlStreamReader implements AutoCloseable {
+
+  public static final int SUBJ = 0;
+  public static final int PRED = 1;
+  public static final int OBJ = 2;
+
+  public static final int DEFAULT_BLOCK_BYTES = 32 * 1024 * 1024;
+  private static final int MIN_PIECE_BYTES = 1024 * 1024;
+
+  private static final byte[] INT_TYPE = DbpediaToken.INT_TYPE_STR.getBytes(ByteSliceInterner.UTF8);
+  private static final byte[] DATE_TYPE = DbpediaToken.DATE_TYPE_STR.getBytes(ByteSliceInterner.UTF8);
+  private static final byte[] EN_TYPE = DbpediaToken.EN_TYPE_STR.getBytes(ByteSliceInterner.UTF8);
+
+  private ReadableByteChannel ch;   // null if reading a fixed range of a buffer
+  private ByteBuffer bb;
+  private byte[] buf;
+  private int pos;      // start of un-read data
+  private int lim;      // end of valid data
+  private int scan;     // position we've already checked for '\n' up to
+  private boolean eof;
+  private long bytesRead;
+
+  // Location of the current line, buf[lineStart,lineEnd)
+  private int lineStart, lineEnd;
+
+  // The current triple
+  private int[] start = new int[3];
+  private int[] end = new int[3];
+  private Type[] type = new Type[3];
+
+  private ByteSliceInterner ids;
+  private ByteSliceInterner keepPred;   // 1 for keep, 0 for skip
+
+  private long numTriples, numSkipped, numFiltered;
+
+  public TtlStreamReader(File f) throws IOException {
+    this(open(f));
+  }
+
+  public TtlStreamReader(InputStream is) {
+    this(Channels.newChannel(is));
+  }
+
+  public TtlStreamReader(ReadableByteChannel ch) {
+    this.ch = ch;
+    this.buf = new byte[1 << 16];
+    this.bb = ByteBuffer.wrap(buf);
+  }
+
+  /** Reads the lines in b[from, to), where from is the start of a line */
+  public TtlStreamReader(byte[] b, int from, int to) {
+    this.buf = b;
+    this.pos = this.scan = from;
+    this.lim = to;
+    this.eof = true;
+  }
+
+  /** Reads plain files through a {@link FileChannel}, stream decompresses .gz and .bz2 files */
+  public static ReadableByteChannel open(File f) throws IOException {
+    String n = f.getName().toLowerCase();
+    if (n.endsWith(".gz") || n.endsWith(".bz2"))
+      return Channels.newChannel(FileUtil.getInputStream(f));
+    return FileChannel.open(f.toPath(), StandardOpenOption.READ);
+  }
+
+  /**
+   * Every term becomes an id via alph (e.g. {@code Alphabet::lookupIndex}),
+   * see {@link #id(int)}. alph is called once per distinct term.
+   */
+  public void setAlphabet(ToIntFunction<String> alph) {
+    this.ids = new ByteSliceInterner(alph, 1 << 16);
+  }
+
+  /** Only read triples whose predicate (without brackets) is in keep, or all triples if keep is null */
+  public void setPredicateFilter(Collection<String> keep) {
+    if (keep == null) {
+      this.keepPred = null;
+      return;
+    }
+    Set<String> k = new HashSet<>(keep);
+    this.keepPred = new ByteSliceInterner(p -> k.contains(p) ? 1 : 0, 1024);
+  }
+
+  /** Triples returned by {@link #next()} so far */
+  public long getNumTriples() {
+    return numTriples;
+  }
+
+  /** Comment, blank, and un-parseable lines seen so far */
+  public long getNumSkipped() {
+    return numSkipped;
+  }
+
+  /** Triples dropped by the predicate filter so far */
+  public long getNumFiltered() {
+    return numFiltered;
+  }
+
+  /** Same as {@link DbpediaTtl.LineIterator#getProportionSkipped()} */
+  public double getProportionSkipped() {
+    return ((double) numSkipped) / (numSkipped + numTriples);
+  }
+
+  /** Number of bytes consumed from the underlying channel so far */
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
+  /**
+   * Advances to the next triple.
+   * @return false if there are no more.
+   */
+  public boolean next() throws IOException {
+    while (nextLine()) {
+      int i = skipSpace(lineStart);
+      if (i == lineEnd || buf[i] == '#') {
+        numSkipped++;
+        continue;
+      }
+      i = term(i, SUBJ);
+      if (i < 0) {
+        numSkipped++;
+        continue;
+      }
+      i = term(skipSpace(i), PRED);
+      if (i < 0 || type[PRED] != Type.DBPEDIA_ENTITY) {
+        numSkipped++;
+        continue;
+      }
+      if (keepPred != null && keepPred.lookup(buf, start[PRED], end[PRED]) == 0) {
+        numFiltered++;
+        continue;
+      }
+      i = term(skipSpace(i), OBJ);
+      if (i < 0) {
+        numSkipped++;
+        continue;
+      }
+      i = skipSpace(i);
+      if (i == lineEnd || buf[i] != '.' || skipSpace(i + 1) != lineEnd) {
+        numSkipped++;
+        continue;
+      }
+      numTriples++;
+      return true;
+    }
+    return false;
+  }
+
+  private int skipSpace(int i) {
+    while (i < lineEnd && (buf[i] == ' ' || buf[i] == '\t'))
+      i++;
+    return i;
+  }
+
+  private boolean startsWith(int i, byte[] prefix) {
+    if (lineEnd - i < prefix.length)
+      return false;
+    for (int j = 0; j < prefix.length; j++)
+      if (buf[i + j] != prefix[j])
+        return false;
+    return true;
+  }
+
+  /**
+   * Finds the term starting at buf[i] and sets start/end/type[t].
+   * @return the index right after the term or -1 if it can't be parsed.
+   */
+  private int term(int i, int t) {
+    if (i >= lineEnd)
+      return -1;
+    if (buf[i] == '<') {
+      int j = i + 1;
+      while (j < lineEnd && buf[j] != '>')
+        j++;
+      if (j == lineEnd)
+        return -1;
+      start[t] = i + 1;
+      end[t] = j;
+      type[t] = Type.DBPEDIA_ENTITY;
+      return j + 1;
+    }
+    if (buf[i] == '"') {
+      int j = i + 1;
+      while (j < lineEnd && buf[j] != '"')
+        j += buf[j] == '\\' ? 2 : 1;
+      if (j >= lineEnd)
+        return -1;
+      start[t] = i + 1;
+      end[t] = j;
+      j++;
+      if (startsWith(j, INT_TYPE)) {
+        type[t] = Type.INTEGER;
+        return j + INT_TYPE.length;
+      }
+      if (startsWith(j, DATE_TYPE)) {
+        type[t] = Type.DATE;
+        return j + DATE_TYPE.length;
+      }
+      int k = j;
+      while (k < lineEnd && buf[k] != ' ' && buf[k] != '\t')
+        k++;
+      boolean en = k - j == EN_TYPE.length && startsWith(j, EN_TYPE);
+      type[t] = en ? Type.STRING_ENGLISH : Type.OTHER;
+      return k;
+    }
+    return -1;
+  }
+
+  /** Finds the next line, returns false at EOF */
+  private boolean nextLine() throws IOException {
+    while (true) {
+      for (int i = scan; i < lim; i++) {
+        if (buf[i] == '\n') {
+          lineStart = pos;
+          lineEnd = i;
+          if (lineEnd > lineStart && buf[lineEnd - 1] == '\r')
+            lineEnd--;
+          pos = i + 1;
+          scan = pos;
+          return true;
+        }
+      }
+      scan = lim;
+      if (eof) {
+        if (pos == lim)
+          return false;
+        // Last line with no trailing newline
+        lineStart = pos;
+        lineEnd = lim;
+        if (lineEnd > lineStart && buf[lineEnd - 1] == '\r')
+          lineEnd--;
+        pos = scan = lim;
+        return true;
+      }
+      fill();
+    }
+  }
+
+  private void fill() throws IOException {
+    if (pos > 0) {
+      // Compact: move the partial line to the front
+      int r = lim - pos;
+      System.arraycopy(buf, pos, buf, 0, r);
+      scan -= pos;
+      lim = r;
+      pos = 0;
+    }
+    if (lim == buf.length) {
+      // Line is longer than the buffer
+      buf = Arrays.copyOf(buf, buf.length * 2);
+      bb = ByteBuffer.wrap(buf);
+    }
+    bb.limit(buf.length);
+    bb.position(lim);
+    int r = ch.read(bb);
+    if (r < 0) {
+      eof = true;
+    } else {
+      lim += r;
+      bytesRead += r;
+    }
+  }
+
+  /* CURRENT TRIPLE ***********************************************************/
+
+  /** The buffer the current triple's terms are slices of */
+  public byte[] buf() { return buf; }
+  /** @param t is {@link #SUBJ}, {@link #PRED}, or {@link #OBJ} */
+  public int start(int t) { return start[t]; }
+  public int end(int t) { return end[t]; }
+  public Type type(int t) { return type[t]; }
+
+  /** Decodes the value of a term, e.g. "Autism" for {@code "Autism"@en} */
+  public String value(int t) {
+    return new String(buf, start[t], end[t] - start[t], ByteSliceInterner.UTF8);
+  }
+
+  /** The id of the value of a term, requires {@link #setAlphabet(ToIntFunction)} */
+  public int id(int t) {
+    if (ids == null)
+      throw new IllegalStateException("call setAlphabet first");
+    return ids.lookup(buf, start[t], end[t]);
+  }
+
+  /** The current line, e.g. for error messages */
+  public String line() {
+    return new String(buf, lineStart, lineEnd - lineStart, ByteSliceInterner.UTF8);
+  }
+
+  public DbpediaTtl toDbpediaTtl(boolean keepLine) {
+    return new DbpediaTtl(
+        new DbpediaToken(type[SUBJ], value(SUBJ)),
+        new DbpediaToken(type[PRED], value(PRED)),
+        new DbpediaToken(type[OBJ], value(OBJ)),
+        keepLine ? line() : null);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (ch != null)
+      ch.close();
+  }
+
+  /* PARALLEL *****************************************************************/
+
+  /**
+   * Calls h on every triple in f, on many threads (the common fork-join pool).
+   * The file is read in blocks of whole lines by a background thread (see
+   * {@link LineBlockReader}), each block is cut into pieces which are read by
+   * their own {@link TtlStreamReader}, and h is called with that reader once
+   * per triple. So h must be thread safe, and triples aren't in file order.
+   *
+   * @param keepPredicates see {@link #setPredicateFilter(Collection)}, may be null.
+   * @return the number of triples.
+   */
+  public static long forEachParallel(File f, Collection<String> keepPredicates, Consumer<TtlStreamReader> h) throws IOException {
+    return forEachParallel(f, keepPredicates, h, DEFAULT_BLOCK_BYTES, MIN_PIECE_BYTES);
+  }
+
+  /** With given block and (smallest) piece sizes, e.g. small ones for tests */
+  static long forEachParallel(File f, Collection<String> keepPredicates, Consumer<TtlStreamReader> h,
+      int blockBytes, int minPieceBytes) throws IOException {
+    Set<String> keep = keepPredicates == null ? null : new HashSet<>(keepPredicates);
+    AtomicLong n = new AtomicLong();
+    try (LineBlockReader blocks = new LineBlockReader(FileUtil.getInputStream(f), blockBytes, "TtlStreamReader-io")) {
+      for (LineBlockReader.Block blk = blocks.next(); blk != null; blk = blocks.next()) {
+        LineBlockReader.Block b = blk;
+        int[] starts = LineBlockReader.cut(b, minPieceBytes);
+        IntStream.range(0, starts.length - 1).parallel().forEach(p -> {
+          TtlStreamReader r = new TtlStreamReader(b.b, starts[p], starts[p + 1]);
+          r.setPredicateFilter(keep);
+          try {
+            while (r.next())
+              h.accept(r);
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+          n.addAndGet(r.getNumTriples());
+        });
+      }
+    }
+    return n.get();
+  }
+
+  public interface IdBlockHandler {
+    /**
+     * Triple i is ids[4*i] (subject), ids[4*i+1] (predicate), ids[4*i+2]
+     * (object), and ids[4*i+3] is the object's {@link Type#ordinal()}.
+     * ids is only valid for the duration of the call.
+     */
+    void accept(int[] ids, int numTriples);
+  }
+
+  /**
+   * A piece of a block read with local ids, which are given to distinct byte
+   * slices of the block (no decoding), with the slice for each id kept so that
+   * it can be looked up in the global alphabet later.
+   */
+  private static class IdPiece {
+    final byte[] b;
+    int[] ids = new int[4 * 1024];   // see IdBlockHandler
+    int n;
+
+    // Open addressing table from slice to local id+1 (0 for empty)
+    int[] table = new int[1 << 12];
+    int[] start = new int[1 << 11];
+    int[] end = new int[1 << 11];
+    int[] hash = new int[1 << 11];
+    int size;
+
+    IdPiece(byte[] b) {
+      this.b = b;
+    }
+
+    int local(int s, int e) {
+      int h = MurmurHash3.murmurhash3_x86_32(b, s, e - s, 9001);
+      int mask = table.length - 1;
+      for (int i = h & mask; ; i = (i + 1) & mask) {
+        int v = table[i] - 1;
+        if (v < 0) {
+          v = size++;
+          if (v == start.length) {
+            int c = (int) (v * 1.6 + 2.5);
+            start = Arrays.copyOf(start, c);
+            end = Arrays.copyOf(end, c);
+            hash = Arrays.copyOf(hash, c);
+          }
+          start[v] = s;
+          end[v] = e;
+          hash[v] = h;
+          table[i] = v + 1;
+          if (2 * size > table.length)
+            rehash();
+          return v;
+        }
+        if (hash[v] == h && end[v] - start[v] == e - s && equal(start[v], s, e - s))
+          return v;
+      }
+    }
+
+    private boolean equal(int s1, int s2, int len) {
+      for (int i = 0; i < len; i++)
+        if (b[s1 + i] != b[s2 + i])
+          return false;
+      return true;
+    }
+
+    private void rehash() {
+      table = new int[table.length * 2];
+      int mask = table.length - 1;
+      for (int v = 0; v < size; v++) {
+        int i = hash[v] & mask;
+        while (table[i] != 0)
+          i = (i + 1) & mask;
+        table[i] = v + 1;
+      }
+    }
+  }
+
+  /**
+   * Reads f on many threads, calling h with every triple as ids in file order
+   * (on this thread). Each piece of a block (see
+   * {@link #forEachParallel(File, Collection, Consumer)}) gets its own local
+   * ids for the byte slices of its terms, and then local ids are mapped to
+   * alph (through a {@link ByteSliceInterner}) in order of first occurrence,
+   * so alph assigns the same ids as reading the file serially would, and it
+   * needn't be thread safe.
+   *
+   * @param keepPredicates see {@link #setPredicateFilter(Collection)}, may be null.
+   * @return the number of triples.
+   */
+  public static long readIdsParallel(File f, ToIntFunction<String> alph, Collection<String> keepPredicates, IdBlockHandler h) throws IOException {
+    return readIdsParallel(f, alph, keepPredicates, h, DEFAULT_BLOCK_BYTES, MIN_PIECE_BYTES);
+  }
+
+  /** With given block and (smallest) piece sizes, e.g. small ones for tests */
+  static long readIdsParallel(File f, ToIntFunction<String> alph, Collection<String> keepPredicates, IdBlockHandler h,
+      int blockBytes, int minPieceBytes) throws IOException {
+    Set<String> keep = keepPredicates == null ? null : new HashSet<>(keepPredicates);
+    long n = 0;
+    int[] map = new int[0];
+    ByteSliceInterner global = new ByteSliceInterner(alph, 1 << 16);
+    try (LineBlockReader blocks = new LineBlockReader(FileUtil.getInputStream(f), blockBytes, "TtlStreamReader-io")) {
+      for (LineBlockReader.Block blk = blocks.next(); blk != null; blk = blocks.next()) {
+        LineBlockReader.Block b = blk;
+        int[] starts = LineBlockReader.cut(b, minPieceBytes);
+        IdPiece[] pieces = new IdPiece[starts.length - 1];
+        IntStream.range(0, pieces.length).parallel().forEach(p -> {
+          IdPiece pc = new IdPiece(b.b);
+          TtlStreamReader r = new TtlStreamReader(b.b, starts[p], starts[p + 1]);
+          r.setPredicateFilter(keep);
+          try {
+            while (r.next()) {
+              if (pc.ids.length < 4 * (pc.n + 1))
+                pc.ids = Arrays.copyOf(pc.ids, (int) (pc.ids.length * 1.6 + 2.5) & ~3);
+              int o = 4 * pc.n++;
+              for (int t = 0; t < 3; t++)
+                pc.ids[o + t] = pc.local(r.start[t], r.end[t]);
+              pc.ids[o + 3] = r.type[OBJ].ordinal();
+            }
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+          pieces[p] = pc;
+        });
+        for (int p = 0; p < pieces.length; p++) {
+          IdPiece pc = pieces[p];
+          pieces[p] = null;
+          if (map.length < pc.size)
+            map = new int[Math.max(pc.size, (int) (map.length * 1.6 + 2.5))];
+          Arrays.fill(map, 0, pc.size, -1);
+          int[] ids = pc.ids;
+          for (int i = 0; i < pc.n; i++) {
+            for (int t = 0; t < 3; t++) {
+              int l = ids[4 * i + t];
+              int g = map[l];
+              if (g < 0)
+                g = map[l] = global.lookup(b.b, pc.start[l], pc.end[l]);
+              ids[4 * i + t] = g;
+            }
+          }
+          if (pc.n > 0)
+            h.accept(ids, pc.n);
+          n += pc.n;
+        }
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Writes a random DBpedia-like file (or uses "input"), then times
+   * {@link DbpediaTtl.LineIterator}, this reader (values and ids), the
+   * parallel readers, and a predicate filter which keeps 1 in "keepEvery"
+   * predicates.
+   *
+   * 3M triples (322MB, 700k distinct terms), one core: LineIterator 1.35s
+   * (but drops the 25% of lines with escaped quotes), values 0.87s, ids
+   * 4.8s serial and 5.7s parallel (most of it interning), filtered to 1/50
+   * predicates 0.73s.
+   */
+  public static void benchmark(ExperimentProperties config) throws IOException {
+    File f = config.getFile("input", null);
+    int numPreds = config.getInt("numPredicates", 200);
+    if (f == null) {
+      int n = config.getInt("numTriples", 2_000_000);
+      int numEnts = config.getInt("numEntities", 500_000);
+      f = File.createTempFile("ttl-bench", config.getBoolean("gzip", false) ? ".ttl.gz" : ".ttl");
+      f.deleteOnExit();
+      Random rand = new Random(9001);
+      try (BufferedWriter w = FileUtil.getWriter(f)) {
+        w.write("# started 2016-01-01\n");
+        for (int i = 0; i < n; i++) {
+          w.write("<http://dbpedia.org/resource/E" + rand.nextInt(numEnts) + "> ");
+          w.write("<http://dbpedia.org/property/p" + rand.nextInt(numPreds) + "> ");
+          switch (rand.nextInt(4)) {
+          case 0:
+            w.write("\"" + rand.nextInt(100_000) + "\"" + DbpediaToken.INT_TYPE_STR);
+            break;
+          case 1:
+            w.write("\"Some \\\"thing\\\" " + rand.nextInt(100_000) + "\"" + DbpediaToken.EN_TYPE_STR);
+            break;
+          default:
+            w.write("<http://dbpedia.org/resource/E" + rand.nextInt(numEnts) + ">");
+          }
+          w.write(" .\n");
+        }
+      }
+      Log.info("wrote " + n + " triples to " + f.getPath() + " (" + (f.length() >> 20) + "MB)");
+    }
+    int keepEvery = config.getInt("keepEvery", 50);
+    List<String> keep = new ArrayList<>();
+    for (int i = 0; i < numPreds; i += keepEvery)
+      keep.add("http://dbpedia.org/property/p" + i);
+    MultiTimer t = new MultiTimer();
+
+    long n0 = 0;
+    t.start("DbpediaTtl.LineIterator");
+    try (DbpediaTtl.LineIterator iter = new DbpediaTtl.LineIterator(f, false)) {
+      while (iter.hasNext()) {
+        iter.next();
+        n0++;
+      }
+    }
+    t.stop("DbpediaTtl.LineIterator");
+
+    long n1 = 0, h1 = 0;
+    t.start("serial/value");
+    try (TtlStreamReader r = new TtlStreamReader(f)) {
+      while (r.next()) {
+        h1 += r.value(OBJ).length();
+        n1++;
+      }
+    }
+    t.stop("serial/value");
+
+    long n2 = 0, h2 = 0;
+    Alphabet<String> a2 = new Alphabet<>();
+    t.start("serial/id");
+    try (TtlStreamReader r = new TtlStreamReader(f)) {
+      r.setAlphabet(a2::lookupIndex);
+      while (r.next()) {
+        h2 += r.id(SUBJ) + r.id(PRED) + r.id(OBJ);
+        n2++;
+      }
+    }
+    t.stop("serial/id");
+
+    long[] h3 = new long[1];
+    Alphabet<String> a3 = new Alphabet<>();
+    t.start("parallel/id");
+    long n3 = readIdsParallel(f, a3::lookupIndex, null, (ids, n) -> {
+      for (int i = 0; i < n; i++)
+        h3[0] += ids[4 * i] + ids[4 * i + 1] + ids[4 * i + 2];
+    });
+    t.stop("parallel/id");
+
+    t.start("parallel/forEach");
+    long n4 = forEachParallel(f, null, r -> {});
+    t.stop("parallel/forEach");
+
+    long n5 = 0;
+    t.start("serial/filtered");
+    try (TtlStreamReader r = new TtlStreamReader(f)) {
+      r.setPredicateFilter(keep);
+      while (r.next())
+        n5++;
+    }
+    t.stop("serial/filtered");
+
+    t.start("parallel/filtered");
+    long n6 = forEachParallel(f, keep, r -> {});
+    t.stop("parallel/filtered");
+
+    // n0 is lower when there are escaped quotes, which make DbpediaTtl lines invalid
+    if (n1 != n2 || n2 != n3 || n3 != n4 || h2 != h3[0] || n5 != n6)
+      throw new RuntimeException("mismatch: n=" + Arrays.asList(n0, n1, n2, n3, n4, n5, n6) + " h2=" + h2 + " h3=" + h3[0]);
+    Log.info(String.format("file=%s (%dMB) triples=%d (DbpediaTtl: %d) filtered=%d objChars=%d\n%s",
+        f.getPath(), f.length() >> 20, n1, n0, n5, h1, t));
+  }
+
+  public static void main(String[] args) throws IOException {
+    ExperimentProperties config = ExperimentProperties.init(args);
+    benchmark(config);
+  }
+}
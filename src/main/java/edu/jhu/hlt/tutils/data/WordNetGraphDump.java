@@ -5,6 +5,8 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -40,7 +42,7 @@ public class WordNetGraphDump {
   public int maxPathLength = 3;
 
   private BufferedWriter emitter;
-  private int emitCounter = 0;
+  private long emitCounter = 0;    // reset by dump and dumpRecursive
   public int emitCounterInterval = 500_000;
 
   // Not very good, mostly "derivationally related forms"
@@ -108,13 +110,71 @@ public class WordNetGraphDump {
     return words;
   }
 
+  /**
+   * Compiles the loaded dictionary, following the edges selected by
+   * emitRelatedWords, emitSynset, and emitRelatedSynsets.
+   */
+  public WordNetGraph compile() {
+    if (dict == null)
+      throw new IllegalStateException("you must call load first");
+    return WordNetGraph.compile(dict, emitRelatedWords, emitSynset, emitRelatedSynsets);
+  }
+
   /**
    * Dump all paths through the WordNet graph (up to a given length) to the
-   * given file. Will contain duplicates, will not be sorted (i.e. you probably
-   * want to hit the resulting file with `sort -u`.
+   * given file. Will contain duplicates (paths from different words in the
+   * same synset), will not be sorted (i.e. you probably want to hit the
+   * resulting file with `sort -u`).
+   *
+   * Uses a {@link WordNetGraph} and all cores, lines from different source
+   * words are interleaved.
    */
   public void dump(File f) throws IOException {
+    dump(compile(), f);
+  }
+
+  public void dump(WordNetGraph g, File f) throws IOException {
+    System.err.println("writing to " + f.getPath());
+    emitCounter = 0;
+    try (OutputStream os = FileUtil.getOutputStream(f)) {
+      long n = g.paths(maxPathLength, 1 << 14, b -> {
+        // Format on the worker thread, write under a lock
+        StringBuilder sb = new StringBuilder();
+        String prev = null;
+        for (int i = 0; i < b.size; i++) {
+          String emission = g.synsetId(g.synset(b.source[i]))
+              + "\t" + g.synsetId(g.synset(b.dest[i]))
+              + "\t" + g.pathString(b.path[i]) + "\n";
+          if (!emission.equals(prev))   // uniq
+            sb.append(emission);
+          prev = emission;
+        }
+        byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+        synchronized (os) {
+          try {
+            os.write(bytes);
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+          long before = emitCounter / emitCounterInterval;
+          emitCounter += b.size;
+          if (emitCounter / emitCounterInterval > before)
+            System.err.println("emitted " + emitCounter + " triples");
+        }
+      });
+      assert n == emitCounter;
+    }
+  }
+
+  /**
+   * The original, single threaded version of {@link #dump(File)}, which walks
+   * the JWI dictionary recursively. Emits the same lines, but doesn't remove
+   * duplicate paths found from the same word.
+   */
+  public void dumpRecursive(File f) throws IOException {
     System.err.println("writing to " + f.getPath());
+    emitCounter = 0;
+    prevEmission = null;
     emitter = new BufferedWriter(new FileWriter(f));
     //emitter = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(f))));
     List<WordWithRel> path = new ArrayList<>();
@@ -227,7 +287,8 @@ public class WordNetGraphDump {
       System.err.println("emitted " + emitCounter + " triples");
   }
 
-  public int numEmitted() {
+  /** Number of paths found by the last call to dump or dumpRecursive */
+  public long numEmitted() {
     return emitCounter;
   }
 
@@ -243,7 +304,10 @@ public class WordNetGraphDump {
     WordNetGraphDump gd = new WordNetGraphDump();
     gd.maxPathLength = Integer.parseInt(args[2]);
     gd.load(new File(args[0]));
-    gd.dump(new File(args[1]));
+    if (Boolean.getBoolean("recursive"))
+      gd.dumpRecursive(new File(args[1]));
+    else
+      gd.dump(new File(args[1]));
     gd.close();
     long time = System.currentTimeMillis() - start;
     System.err.println("emitted " + gd.numEmitted() + " triples in " + (time/1000d) + " seconds");
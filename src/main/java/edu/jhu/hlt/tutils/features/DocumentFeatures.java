@@ -1,7 +1,11 @@
 package edu.jhu.hlt.tutils.features;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 import edu.jhu.hlt.tutils.Document;
@@ -22,13 +26,61 @@ public class DocumentFeatures<T extends Serializable> implements Serializable {
   private final Map<Object, T> feats;
   private final Document doc;
 
+  // Token and constituent features are stored densely for the tokens and
+  // constituents in doc when this was created or last fit (and in feats after
+  // that), so that different threads can set different indices, see
+  // FeatureSet#extractParallel and fitDocument. Not final so that readObject can fill them in
+  // for instances serialized before they existed.
+  private Object[] tokenFeats;
+  private Object[] consFeats;
+
   // Value returned by get when the key does not appear in the map
   private T missing = null;
 
   public DocumentFeatures(Document doc) {
     this.doc = doc;
-    int n = Math.max(16, Math.max(doc.numConstituents(), doc.numTokens()));
-    this.feats = new HashMap<>(n);
+    this.feats = new HashMap<>(16);
+    this.tokenFeats = new Object[doc.numTokens()];
+    this.consFeats = new Object[doc.numConstituents()];
+  }
+
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    if (tokenFeats == null) {
+      // Written before the dense arrays, move the token/constituent features
+      // stored in feats into them
+      tokenFeats = new Object[0];
+      consFeats = new Object[0];
+      fitDocument();
+    }
+  }
+
+  /**
+   * Grows the dense token/constituent storage to the current size of the
+   * document (which may have gained tokens or constituents since this was
+   * created), moving any features for those items out of the map.
+   */
+  void fitDocument() {
+    int nt = doc.numTokens(), nc = doc.numConstituents();
+    if (nt <= tokenFeats.length && nc <= consFeats.length)
+      return;
+    if (nt > tokenFeats.length)
+      tokenFeats = Arrays.copyOf(tokenFeats, nt);
+    if (nc > consFeats.length)
+      consFeats = Arrays.copyOf(consFeats, nc);
+    Iterator<Map.Entry<Object, T>> iter = feats.entrySet().iterator();
+    while (iter.hasNext()) {
+      Map.Entry<Object, T> e = iter.next();
+      if (!(e.getKey() instanceof IntPair))
+        continue;
+      IntPair k = (IntPair) e.getKey();
+      Object[] dense = k.first == TOKEN_FEAT ? tokenFeats
+          : k.first == CONS_FEAT ? consFeats : null;
+      if (dense != null && k.second >= 0 && k.second < dense.length) {
+        dense[k.second] = e.getValue();
+        iter.remove();
+      }
+    }
   }
 
   /**
@@ -45,10 +97,34 @@ public class DocumentFeatures<T extends Serializable> implements Serializable {
 
   public void clear() {
     feats.clear();
+    Arrays.fill(tokenFeats, null);
+    Arrays.fill(consFeats, null);
   }
 
   public int size() {
-    return feats.size();
+    int n = feats.size();
+    for (Object f : tokenFeats)
+      if (f != null) n++;
+    for (Object f : consFeats)
+      if (f != null) n++;
+    return n;
+  }
+
+  @SuppressWarnings("unchecked")
+  private T get(Object[] dense, int i, int kind) {
+    if (i < 0 || i >= dense.length)
+      return get(new IntPair(kind, i));
+    T val = (T) dense[i];
+    return val == null ? missing : val;
+  }
+
+  @SuppressWarnings("unchecked")
+  private T set(Object[] dense, int i, int kind, T value) {
+    if (i < 0 || i >= dense.length)
+      return set(new IntPair(kind, i), value);
+    T old = (T) dense[i];
+    dense[i] = value;
+    return old;
   }
 
   private T get(Object key) {
@@ -64,18 +140,18 @@ public class DocumentFeatures<T extends Serializable> implements Serializable {
 
   public static final int TOKEN_FEAT = 0;
   public T setTokenFeatures(int tokenIndex, T features) {
-    return set(new IntPair(TOKEN_FEAT, tokenIndex), features);
+    return set(tokenFeats, tokenIndex, TOKEN_FEAT, features);
   }
   public T getTokenFeatures(int tokenIndex) {
-    return get(new IntPair(TOKEN_FEAT, tokenIndex));
+    return get(tokenFeats, tokenIndex, TOKEN_FEAT);
   }
 
   public static final int CONS_FEAT = 1;
   public T setConstituentFeatures(int consIndex, T features) {
-    return set(new IntPair(CONS_FEAT, consIndex), features);
+    return set(consFeats, consIndex, CONS_FEAT, features);
   }
   public T getConstituentFeatures(int consIndex) {
-    return get(new IntPair(CONS_FEAT, consIndex));
+    return get(consFeats, consIndex, CONS_FEAT);
   }
 
   public static final int TOKEN2_FEAT = 2;
@@ -1,8 +1,11 @@
 package edu.jhu.hlt.tutils.features;
 
+import java.io.Serializable;
 import java.util.HashMap;
 import java.util.Map;
 
+import edu.jhu.hlt.tutils.Document;
+
 /**
  * Supposed to be a singleton which holds all the features in the system.
  *
@@ -87,6 +90,34 @@ public class TemplateManager {
         }
       });
     }
+
+    // Constituent templates (for FeatureSet.Mode.CONSTITUENT)
+    SINGLETON.add(consTemplate("cons.lhs", (d, c) -> d.getLhs(c)));
+    SINGLETON.add(consTemplate("cons.width", (d, c) -> d.getFirstToken(c) < 0 ? -1 : d.getLastToken(c) - d.getFirstToken(c) + 1));
+    SINGLETON.add(consTemplate("cons.first.word", (d, c) -> d.getFirstToken(c) < 0 ? -1 : d.getWord(d.getFirstToken(c))));
+    SINGLETON.add(consTemplate("cons.last.word", (d, c) -> d.getLastToken(c) < 0 ? -1 : d.getWord(d.getLastToken(c))));
+    SINGLETON.add(consTemplate("cons.first.pos", (d, c) -> d.getFirstToken(c) < 0 ? -1 : d.getPosH(d.getFirstToken(c))));
+    SINGLETON.add(consTemplate("cons.last.pos", (d, c) -> d.getLastToken(c) < 0 ? -1 : d.getPosH(d.getLastToken(c))));
     return SINGLETON;
   }
+
+  /** Reads an int off of a constituent, negative values mean "doesn't fire" */
+  public interface ConsValue extends Serializable {
+    int get(Document doc, int cons);
+  }
+
+  /** A template which cancels if there is no {@link Context#cons} or value */
+  public static Template consTemplate(String name, ConsValue value) {
+    return new Template(name) {
+      private static final long serialVersionUID = -2390458371542810953L;
+      @Override
+      public void accept(Context c) {
+        int v = c.cons < 0 ? -1 : value.get(c.doc, c.cons);
+        if (v < 0)
+          c.cancel();
+        else
+          c.templateValueBuffer = v;
+      }
+    };
+  }
 }
\ No newline at end of file
@@ -16,6 +16,7 @@ public class TemplateTree extends TemplateM {
   protected List<TemplateM> children;
   protected Template template;
   protected int templateRange;
+  transient int nodeId;   // pre-order index within a FeatureSet, see number
 
   public TemplateTree(Template t) {
     if (t == null)
@@ -74,4 +75,87 @@ public class TemplateTree extends TemplateM {
   @Override
   public void unapply(Context c) {
   }
+
+  /**
+   * Gives this node and its {@link TemplateTree} descendants pre-order ids
+   * starting at next, returns the next unused id.
+   */
+  int number(int next) {
+    nodeId = next++;
+    for (TemplateM child : children)
+      if (child instanceof TemplateTree)
+        next = ((TemplateTree) child).number(next);
+    return next;
+  }
+
+  /**
+   * Visits the same nodes as {@link #apply(Context)} and records the largest
+   * value each template takes in maxValue (indexed by {@link #number(int)}
+   * ids), without extracting anything or changing this tree. Safe to call
+   * concurrently with different contexts and arrays.
+   */
+  void observe(Context c, int[] maxValue) {
+    template.accept(c);
+    if (!c.isViable())
+      return;
+    if (c.templateValueBuffer > maxValue[nodeId])
+      maxValue[nodeId] = c.templateValueBuffer;
+    for (TemplateM child : children)
+      if (child instanceof TemplateTree)
+        ((TemplateTree) child).observe(c, maxValue);
+  }
+
+  /**
+   * Like {@link #apply(Context)}, but never grows templateRange, so it can be
+   * called concurrently. The largest value each template takes is recorded in
+   * maxValue (see {@link #observe(Context, int[])}), and if any of them don't
+   * fit in their templateRange the extraction is wrong and must be re-done
+   * after {@link #grow(int[])}.
+   */
+  void applyFixed(Context c, int[] maxValue) {
+    template.accept(c);
+    if (!c.isViable())
+      return;
+    int x = c.templateValueBuffer;
+    if (x > maxValue[nodeId])
+      maxValue[nodeId] = x;
+    if (x >= templateRange) {
+      // Can't be indexed yet, find out what the rest of the tree needs
+      for (TemplateM child : children)
+        if (child instanceof TemplateTree)
+          ((TemplateTree) child).observe(c, maxValue);
+      return;
+    }
+    int Nc = children.size();
+    int R = templateRange * Nc;
+    for (int ci = 0; ci < Nc; ci++) {
+      c.add(x + ci * templateRange, R);
+      TemplateM child = children.get(ci);
+      if (child instanceof TemplateTree)
+        ((TemplateTree) child).applyFixed(c, maxValue);
+      else
+        child.apply(c);
+      if (c.isViable())
+        child.unapply(c);
+      c.unAdd();
+    }
+  }
+
+  /**
+   * Grows templateRange to cover the values recorded by
+   * {@link #observe(Context, int[])}, after which {@link #apply(Context)}
+   * won't modify this tree on those contexts.
+   * @return true if any range in this tree changed.
+   */
+  boolean grow(int[] maxValue) {
+    boolean changed = false;
+    if (maxValue[nodeId] >= templateRange) {
+      templateRange = maxValue[nodeId] + 1;
+      changed = true;
+    }
+    for (TemplateM child : children)
+      if (child instanceof TemplateTree)
+        changed |= ((TemplateTree) child).grow(maxValue);
+    return changed;
+  }
 }
\ No newline at end of file
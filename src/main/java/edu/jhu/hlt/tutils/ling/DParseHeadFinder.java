@@ -30,7 +30,7 @@ import edu.jhu.hlt.tutils.MultiAlphabet;
  */
 public class DParseHeadFinder implements HeadFinder {
 
-  public Function<Document, LabeledDirectedGraph> parse = d -> d.stanfordDepsBasic;
+  public Function<Document, LabeledDirectedGraph> parse = d -> d.getStanfordDepsBasic();
   private BitSet edgesToSkip;
   
   /**
@@ -0,0 +1,258 @@
+package edu.jhu.hlt.tutils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.jhu.hlt.tutils.DepNode.ConllxFileReader;
+
+public class ConllxStreamReaderTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static final String[] FORMS = new String[] {
+      "the", "dog", "_", "caf\u00e9", "\u00dcber", "\u65e5\u672c", "na\u00efve", ".", "a-b", "3.5",
+  };
+  private static final String[] UPOS = new String[] {"NOUN", "VERB", "DET", "ADP", "PUNCT", "_"};
+  private static final String[] XPOS = new String[] {"NN", "VBZ", "DT", "IN", ".", "_"};
+  private static final String[] DEPS = new String[] {"nsubj", "obj", "det", "case", "punct", "_"};
+  private static final String[] FEATS = new String[] {"_", "Number=Sing", "Number=Plur|Person=3", "Case=Acc|Definite=Def|PronType=Art"};
+
+  /**
+   * Random CoNLL-U style text: comments, multiword ranges, empty nodes,
+   * "_" fields, non-ASCII forms, \r\n, runs of blank lines, a line longer
+   * than the reader's buffer, and no blank line (or newline) at the end.
+   */
+  private static String randomText(int numSentences, Random r) {
+    StringBuilder sb = new StringBuilder();
+    for (int s = 0; s < numSentences; s++) {
+      if (r.nextInt(3) == 0)
+        sb.append("# sent_id = " + s + "\n# text = caf\u00e9 \u00dcber\n");
+      int n = 1 + r.nextInt(20);
+      int root = r.nextInt(n);
+      for (int i = 0; i < n; i++) {
+        if (r.nextInt(8) == 0 && i < n - 1)
+          sb.append((i + 1) + "-" + (i + 2) + "\tdel\t_\t_\t_\t_\t_\t_\t_\t_\n");
+        int h = i == root ? 0 : 1 + r.nextInt(n);
+        if (h == i + 1)
+          h = root + 1;
+        String form = FORMS[r.nextInt(FORMS.length)];
+        if (s == 7 && i == 0) {
+          char[] c = new char[100_000];
+          Arrays.fill(c, '\u00e9');
+          form = new String(c);
+        }
+        sb.append((i + 1) + "\t" + form
+            + "\t" + (r.nextBoolean() ? "_" : "lem" + r.nextInt(5))
+            + "\t" + UPOS[r.nextInt(UPOS.length)]
+            + "\t" + XPOS[r.nextInt(XPOS.length)]
+            + "\t" + FEATS[r.nextInt(FEATS.length)]
+            + "\t" + h
+            + "\t" + (h == 0 ? "root" : DEPS[r.nextInt(DEPS.length)])
+            + "\t" + (r.nextBoolean() ? "_" : h + ":dep")
+            + "\t" + (r.nextBoolean() ? "_" : "SpaceAfter=No")
+            + (r.nextInt(10) == 0 ? "\r\n" : "\n"));
+        if (r.nextInt(10) == 0)
+          sb.append((i + 1) + "." + 1 + "\tgone\tgo\tVERB\t_\t_\t_\t_\t" + (i + 1) + ":conj\t_\n");
+      }
+      if (s < numSentences - 1) {
+        for (int k = r.nextInt(3); k >= 0; k--)
+          sb.append("\n");
+      }
+    }
+    // No trailing newline
+    sb.setLength(sb.length() - 1);
+    return sb.toString();
+  }
+
+  /** The old way: split into sentences on blank lines, drop comments, ranges, and empty nodes */
+  private static List<List<String>> sentences(String text) {
+    List<List<String>> sents = new ArrayList<>();
+    List<String> cur = new ArrayList<>();
+    for (String line : text.split("\n", -1)) {
+      if (line.endsWith("\r"))
+        line = line.substring(0, line.length() - 1);
+      if (line.isEmpty()) {
+        if (!cur.isEmpty())
+          sents.add(cur);
+        cur = new ArrayList<>();
+        continue;
+      }
+      String id = line.split("\t", 2)[0];
+      if (line.startsWith("#") || id.contains("-") || id.contains("."))
+        continue;
+      cur.add(line);
+    }
+    if (!cur.isEmpty())
+      sents.add(cur);
+    return sents;
+  }
+
+  private File write(String text) throws Exception {
+    File f = tmp.newFile();
+    try (PrintWriter w = new PrintWriter(f, "UTF-8")) {
+      w.print(text);
+    }
+    return f;
+  }
+
+  private static void assertDepNodesEqual(DepNode[] expected, MultiAlphabet ea, DepNode[] actual, MultiAlphabet aa) {
+    assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++) {
+      DepNode e = expected[i], a = actual[i];
+      assertEquals(ea.word(e.word), aa.word(a.word));
+      assertEquals(ea.pos(e.pos), aa.pos(a.pos));
+      assertEquals(ea.dep(e.depParentLabel), aa.dep(a.depParentLabel));
+      assertEquals(e.depParentNode, a.depParentNode);
+      assertEquals(e.depLeftChildNode, a.depLeftChildNode);
+      assertEquals(e.depRightSibNode, a.depRightSibNode);
+    }
+  }
+
+  @Test
+  public void streamVsLineSplit() throws Exception {
+    String text = randomText(300, new Random(1));
+    List<List<String>> expected = sentences(text);
+    MultiAlphabet ea = new MultiAlphabet();
+    MultiAlphabet aa = new MultiAlphabet();
+    try (ConllxStreamReader r = new ConllxStreamReader(
+        new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)), aa)) {
+      for (List<String> lines : expected) {
+        int n = r.nextSentence();
+        assertEquals(lines.size(), n);
+        assertEquals(n, r.numTokens());
+        assertDepNodesEqual(DepNode.readConllx_0IndexedNoRoot(lines, ea), ea, r.toDepNodes(false), aa);
+        DepNode[] hidden = r.toDepNodes(true);
+        for (DepNode d : hidden)
+          assertEquals("unk", aa.dep(d.depParentLabel));
+      }
+      assertEquals(-1, r.nextSentence());
+      assertEquals(-1, r.nextSentence());
+    }
+  }
+
+  /** CPOSTAG, lemmas, and feats (CoNLL-U columns) */
+  @Test
+  public void conlluColumns() throws Exception {
+    String text = randomText(200, new Random(2));
+    List<List<String>> expected = sentences(text);
+    MultiAlphabet a = new MultiAlphabet();
+    try (ConllxStreamReader r = new ConllxStreamReader(write(text), a)) {
+      r.posColumn = ConllxStreamReader.CPOSTAG;
+      r.readLemmas = true;
+      r.readFeats = true;
+      for (List<String> lines : expected) {
+        assertEquals(lines.size(), r.nextSentence());
+        for (int i = 0; i < lines.size(); i++) {
+          String[] c = lines.get(i).split("\t");
+          assertEquals(c[1], a.word(r.getWord(i)));
+          assertEquals(c[2], a.word(r.getLemma(i)));
+          assertEquals(c[3], a.pos(r.getPos(i)));
+          assertEquals(Integer.parseInt(c[6]) - 1, r.getHead(i));
+          assertEquals(c[7], a.dep(r.getDeprel(i)));
+          List<String> feats = new ArrayList<>();
+          for (int k = 0; k < r.numFeats(i); k++)
+            feats.add(a.feat(r.getFeat(i, k)));
+          assertEquals(c[5].equals("_") ? Arrays.asList() : Arrays.asList(c[5].split("\\|")), feats);
+        }
+      }
+      assertEquals(-1, r.nextSentence());
+    }
+  }
+
+  @Test
+  public void conllFileReader() throws Exception {
+    String text = randomText(100, new Random(3));
+    List<List<String>> expected = sentences(text);
+    File f = write(text);
+    MultiAlphabet ea = new MultiAlphabet();
+    MultiAlphabet aa = new MultiAlphabet();
+    try (ConllxFileReader r = new ConllxFileReader(f, aa, false)) {
+      List<DepNode[]> all = r.readAll();
+      assertEquals(expected.size(), all.size());
+      for (int s = 0; s < all.size(); s++)
+        assertDepNodesEqual(DepNode.readConllx_0IndexedNoRoot(expected.get(s), ea), ea, all.get(s), aa);
+    }
+    try (ConllxFileReader r = new ConllxFileReader(f, aa, true)) {
+      for (DepNode[] parse : r.readAll())
+        for (DepNode d : parse)
+          assertEquals("unk", aa.dep(d.depParentLabel));
+    }
+  }
+
+  @Test
+  public void conllxToDocument() throws Exception {
+    String text = randomText(100, new Random(4));
+    List<List<String>> expected = sentences(text);
+    MultiAlphabet a = new MultiAlphabet();
+    Document d = new ConllxToDocument(a).parse("doc", write(text));
+    LabeledDirectedGraph g = d.parseyMcParseFace;
+    assertNotNull(g);
+    int t = 0;
+    Document.Constituent sent = d.getConstituent(d.cons_sentences);
+    for (List<String> lines : expected) {
+      assertEquals(t, sent.getFirstToken());
+      assertEquals(t + lines.size() - 1, sent.getLastToken());
+      for (String line : lines) {
+        String[] c = line.split("\t");
+        assertEquals(c[1], a.word(d.getWord(t)));
+        assertEquals(c[4], a.pos(d.getPosH(t)));
+        int head = Integer.parseInt(c[6]);
+        checkParent(g, t, head == 0 ? -1 : t - Integer.parseInt(c[0]) + head, c[7], a);
+        t++;
+      }
+      if (sent.getRightSib() >= 0)
+        sent = d.getConstituent(sent.getRightSib());
+    }
+    assertEquals(t, d.numTokens());
+  }
+
+  @Test
+  public void conlluToDocument() throws Exception {
+    String text = randomText(100, new Random(5));
+    List<List<String>> expected = sentences(text);
+    MultiAlphabet a = new MultiAlphabet();
+    Document d = new ConlluToDocument(a).parse("doc", write(text));
+    LabeledDirectedGraph g = d.universalDependencies;
+    assertNotNull(g);
+    int t = 0;
+    for (List<String> lines : expected) {
+      for (String line : lines) {
+        String[] c = line.split("\t");
+        assertEquals(c[1], a.word(d.getWord(t)));
+        assertEquals(c[2], a.word(d.getLemma(t)));
+        assertEquals(c[3], a.pos(d.getPosG(t)));
+        int head = Integer.parseInt(c[6]);
+        checkParent(g, t, head == 0 ? -1 : t - Integer.parseInt(c[0]) + head, c[7], a);
+        t++;
+      }
+    }
+    assertEquals(t, d.numTokens());
+  }
+
+  /** parent is the absolute (document) token index, or -1 for root */
+  private static void checkParent(LabeledDirectedGraph g, int token, int parent, String deprel, MultiAlphabet a) {
+    LabeledDirectedGraph.Node n = g.getNode(token);
+    if (parent < 0) {
+      // No edges in or out past the last node with one
+      assertEquals(0, n == null ? 0 : n.numParents());
+      return;
+    }
+    assertEquals(1, n.numParents());
+    assertEquals(parent, n.getParent(0));
+    assertEquals(deprel, a.dep(n.getParentEdgeLabel(0)));
+  }
+}
@@ -0,0 +1,85 @@
+package edu.jhu.hlt.tutils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class ConstituentSpanIndexTest {
+
+  /** Random (possibly overlapping, crossing, and duplicate) spans vs brute force */
+  @Test
+  public void bruteForce() {
+    Random r = new Random(1);
+    for (int trial = 0; trial < 100; trial++) {
+      Document d = new Document("doc" + trial, trial, new MultiAlphabet());
+      int T = 1 + r.nextInt(30);
+      for (int i = 0; i < T; i++)
+        d.newToken();
+      int n = r.nextInt(40);
+      int[] u = new int[n];
+      for (int k = 0; k < n; k++) {
+        Document.Constituent c = d.newConstituent();
+        int f = r.nextInt(T), l = f + r.nextInt(T - f);
+        if (k > 0 && r.nextInt(5) == 0) {
+          // same span as the previous one
+          f = d.getFirstToken(u[k - 1]);
+          l = d.getLastToken(u[k - 1]);
+        }
+        c.setFirstToken(f);
+        c.setLastToken(l);
+        u[k] = c.getIndex();
+      }
+      ConstituentSpanIndex idx = new ConstituentSpanIndex(d, u);
+      assertEquals(n, idx.size());
+
+      for (int i = 0; i < T; i++) {
+        for (int j = i; j < T; j++) {
+          Set<Integer> covering = new HashSet<>();
+          int smallest = Document.NONE, exact = Document.NONE;
+          for (int c : u) {
+            int f = d.getFirstToken(c), l = d.getLastToken(c);
+            if (f <= i && l >= j) {
+              covering.add(c);
+              if (smallest == Document.NONE) {
+                smallest = c;
+              } else {
+                int w = l - f;
+                int ws = d.getLastToken(smallest) - d.getFirstToken(smallest);
+                if (w < ws || (w == ws && f < d.getFirstToken(smallest)))
+                  smallest = c;
+              }
+            }
+            if (f == i && l == j && exact == Document.NONE)
+              exact = c;
+          }
+          Set<Integer> got = new HashSet<>();
+          assertEquals(covering.size(), idx.forEachCovering(i, j, got::add));
+          assertEquals(covering, got);
+          assertEquals(covering.size(), idx.countCovering(i, j));
+          assertEquals(smallest, idx.smallestCovering(i, j));
+          assertEquals(exact, idx.find(i, j));
+        }
+      }
+
+      for (int i = 0; i < T; i++) {
+        int count = 0;
+        for (int c : u)
+          if (d.getFirstToken(c) == i)
+            count++;
+        List<Integer> got = new ArrayList<>();
+        assertEquals(count, idx.forEachStartingAt(i, got::add));
+        assertEquals(count, got.size());
+        assertEquals(count, idx.countStartingAt(i));
+        // widest first
+        for (int k = 1; k < got.size(); k++)
+          assertEquals(true, d.getLastToken(got.get(k - 1)) >= d.getLastToken(got.get(k)));
+      }
+    }
+  }
+}
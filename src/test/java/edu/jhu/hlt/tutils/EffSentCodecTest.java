@@ -0,0 +1,170 @@
+package edu.jhu.hlt.tutils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.jhu.hlt.tutils.EffSent.Mention;
+
+public class EffSentCodecTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  /**
+   * Random sentences: multi-byte varints, negative bytes, roots, null vs
+   * empty mention lists, and a mid longer than the codec's buffer.
+   */
+  private static List<EffSent> random(int numSentences, Random r) {
+    List<EffSent> l = new ArrayList<>();
+    for (int s = 0; s < numSentences; s++) {
+      int n = r.nextInt(r.nextInt(20) == 0 ? 2000 : 40);
+      DepNode[] p = new DepNode[n];
+      for (int i = 0; i < n; i++) {
+        DepNode d = new DepNode();
+        d.word = r.nextBoolean() ? r.nextInt(100) : r.nextInt(Integer.MAX_VALUE);
+        d.pos = (byte) r.nextInt(256);
+        d.depParentLabel = (byte) r.nextInt(256);
+        d.depParentNode = (short) (r.nextInt(n + 1) - 1);
+        d.depLeftChildNode = (short) (r.nextInt(n + 1) - 1);
+        d.depRightSibNode = (short) (r.nextInt(n + 1) - 1);
+        p[i] = d;
+      }
+      EffSent e = new EffSent(p);
+      int nm = r.nextInt(5) - 1;
+      if (nm >= 0) {
+        Mention[] ms = new Mention[nm];
+        for (int i = 0; i < nm; i++) {
+          Mention m = new Mention();
+          m.mid = new byte[s == 3 && i == 0 ? 100_000 : r.nextInt(12)];
+          r.nextBytes(m.mid);
+          m.head = (short) (r.nextInt(n + 1) - 1);
+          m.start = (short) r.nextInt(n + 1);
+          m.end = (short) (m.start + r.nextInt(n + 1 - m.start));
+          ms[i] = m;
+        }
+        e.setEntities(ms);
+      }
+      l.add(e);
+    }
+    return l;
+  }
+
+  private static void assertSentEquals(EffSent expected, EffSent actual) {
+    assertTrue(DepNode.equals(expected.parse(), actual.parse()));
+    assertEquals(expected.hasMentions(), actual.hasMentions());
+    if (!expected.hasMentions())
+      return;
+    assertEquals(expected.numMentions(), actual.numMentions());
+    for (int i = 0; i < expected.numMentions(); i++) {
+      Mention e = expected.mention(i), a = actual.mention(i);
+      assertArrayEquals(e.mid, a.mid);
+      assertEquals(e.head, a.head);
+      assertEquals(e.start, a.start);
+      assertEquals(e.end, a.end);
+    }
+  }
+
+  @Test
+  public void roundTrip() throws Exception {
+    List<EffSent> sents = random(500, new Random(1));
+    File f = tmp.newFile();
+    MultiAlphabet a = new MultiAlphabet();
+    a.word("foo");
+    a.pos("NN");
+    EffSentCodec.write(sents, a, f);
+    assertEquals("foo", MultiAlphabet.deserialize(EffSentCodec.alphabetFile(f)).word(0));
+
+    List<EffSent> read = EffSentCodec.readAll(f);
+    assertEquals(sents.size(), read.size());
+    for (int i = 0; i < sents.size(); i++)
+      assertSentEquals(sents.get(i), read.get(i));
+
+    // Nothing
+    File empty = tmp.newFile();
+    EffSentCodec.write(new ArrayList<>(), null, empty);
+    assertTrue(EffSentCodec.readAll(empty).isEmpty());
+    assertFalse(EffSentCodec.alphabetFile(empty).exists());
+  }
+
+  @Test
+  public void seek() throws Exception {
+    Random r = new Random(2);
+    List<EffSent> sents = random(500, r);
+    File f = tmp.newFile();
+    EffSentCodec.write(sents, null, f);
+    try (EffSentCodec.Reader rd = new EffSentCodec.Reader(f)) {
+      assertEquals(sents.size(), rd.numSentences());
+
+      // From the middle to the end
+      int mid = sents.size() / 2;
+      rd.seek(mid);
+      for (int i = mid; i < sents.size(); i++) {
+        assertTrue(rd.hasNext());
+        assertSentEquals(sents.get(i), rd.next());
+      }
+      assertFalse(rd.hasNext());
+
+      // Backwards, then a few steps forward (some within the buffer)
+      for (int i = sents.size() - 1; i >= 0; i -= 7) {
+        rd.seek(i);
+        for (int j = i; j < Math.min(i + 3, sents.size()); j++)
+          assertSentEquals(sents.get(j), rd.next());
+      }
+
+      // Random access
+      for (int t = 0; t < 200; t++) {
+        int i = r.nextInt(sents.size());
+        assertSentEquals(sents.get(i), rd.get(i));
+      }
+
+      rd.seek(sents.size());
+      assertFalse(rd.hasNext());
+      try {
+        rd.seek(sents.size() + 1);
+        fail();
+      } catch (IndexOutOfBoundsException e) {}
+      try {
+        rd.seek(-1);
+        fail();
+      } catch (IndexOutOfBoundsException e) {}
+    }
+  }
+
+  @Test
+  public void notAnEffSentFile() throws Exception {
+    File f = tmp.newFile();
+    EffSentCodec.write(random(10, new Random(3)), null, f);
+    try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+      raf.seek(raf.length() - 1);
+      raf.write(0);
+    }
+    try (EffSentCodec.Reader rd = new EffSentCodec.Reader(f)) {
+      fail();
+    } catch (IOException e) {}
+
+    File g = tmp.newFile();
+    byte[] junk = new byte[100];
+    Arrays.fill(junk, (byte) 'x');
+    try (RandomAccessFile raf = new RandomAccessFile(g, "rw")) {
+      raf.write(junk);
+    }
+    try (EffSentCodec.Reader rd = new EffSentCodec.Reader(g)) {
+      fail();
+    } catch (IOException e) {}
+  }
+}
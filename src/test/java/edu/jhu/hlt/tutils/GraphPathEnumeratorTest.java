@@ -0,0 +1,146 @@
+package edu.jhu.hlt.tutils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class GraphPathEnumeratorTest {
+
+  /**
+   * All simple paths from u of at most maxEdges edges (ending at sink, or
+   * anywhere if sink < 0), as "[nodes][edges]" in the order the enumerator
+   * should visit them.
+   */
+  private static void brute(LabeledDirectedGraph g, int u, int sink, int maxEdges, boolean bi,
+      List<Integer> path, List<Long> edges, List<String> out) {
+    if (path.size() - 1 == maxEdges)
+      return;
+    LabeledDirectedGraph.Node n = g.getNode(u);
+    // Edge array order: parents (stored in reverse) then children
+    List<Long> es = new ArrayList<>();
+    for (int i = n.numParents() - 1; i >= 0; i--)
+      es.add(n.getParentEdge(i));
+    for (int i = 0; i < n.numChildren(); i++)
+      es.add(n.getChildEdge(i));
+    for (long e : es) {
+      if (!bi && !LabeledDirectedGraph.unpackDirection(e))
+        continue;
+      int w = LabeledDirectedGraph.unpackConode(e);
+      if (path.contains(w))
+        continue;
+      path.add(w);
+      edges.add(e);
+      if (sink < 0 || w == sink)
+        out.add(path + "" + edges);
+      if (w != sink)
+        brute(g, w, sink, maxEdges, bi, path, edges, out);
+      path.remove(path.size() - 1);
+      edges.remove(edges.size() - 1);
+    }
+  }
+
+  private static List<String> brute(LabeledDirectedGraph g, int source, int sink, int maxEdges, boolean bi) {
+    List<String> out = new ArrayList<>();
+    List<Integer> path = new ArrayList<>();
+    path.add(source);
+    brute(g, source, sink, maxEdges, bi, path, new ArrayList<>(), out);
+    return out;
+  }
+
+  private static LabeledDirectedGraph randomGraph(Random r) {
+    int n = 2 + r.nextInt(8);
+    LabeledDirectedGraph.Builder b = new LabeledDirectedGraph().new Builder();
+    Set<Long> seen = new HashSet<>();
+    for (int i = 0; i < n; i++) {
+      for (int k = 0; k < 2; k++) {
+        int p = r.nextInt(n);
+        if (p != i && seen.add((long) p * n + i))
+          b.add(p, i, r.nextInt(3));
+      }
+    }
+    b.add(n - 1, n - 1, 0);
+    return b.freeze();
+  }
+
+  @Test
+  public void allPathsVsBruteForce() {
+    Random r = new Random(1);
+    for (int trial = 0; trial < 100; trial++) {
+      LabeledDirectedGraph g = randomGraph(r);
+      GraphPathEnumerator pe = new GraphPathEnumerator(g);
+      int N = g.getNumNodes();
+      for (int s = 0; s < N; s++) {
+        for (int t = -1; t < N; t++) {
+          for (boolean bi : new boolean[] {true, false}) {
+            int maxEdges = 1 + r.nextInt(6);
+            List<String> expected = brute(g, s, t, maxEdges, bi);
+            List<String> got = new ArrayList<>();
+            long c = pe.allPaths(s, t, maxEdges, bi, (nodes, edges, len) -> {
+              List<Integer> np = new ArrayList<>();
+              List<Long> ep = new ArrayList<>();
+              for (int i = 0; i <= len; i++)
+                np.add(nodes[i]);
+              for (int i = 0; i < len; i++)
+                ep.add(edges[i]);
+              got.add(np + "" + ep);
+              return true;
+            });
+            assertEquals(expected, got);
+            assertEquals(got.size(), c);
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void kShortestPathsVsBruteForce() {
+    Random r = new Random(2);
+    for (int trial = 0; trial < 100; trial++) {
+      LabeledDirectedGraph g = randomGraph(r);
+      GraphPathEnumerator pe = new GraphPathEnumerator(g);
+      int N = g.getNumNodes();
+      for (int s = 0; s < N; s++) {
+        for (int t = 0; t < N; t++) {
+          if (s == t)
+            continue;
+          for (boolean bi : new boolean[] {true, false}) {
+            List<Integer> lengths = new ArrayList<>();
+            for (String p : brute(g, s, t, N, bi))
+              lengths.add(p.split("\\]")[0].split(",").length - 1);
+            Collections.sort(lengths);
+            int k = 1 + r.nextInt(6);
+            List<Integer> got = new ArrayList<>();
+            Set<String> unique = new HashSet<>();
+            final int source = s, sink = t;
+            pe.kShortestPaths(s, t, k, bi, (nodes, edges, len) -> {
+              got.add(len);
+              assertEquals(source, nodes[0]);
+              assertEquals(sink, nodes[len]);
+              StringBuilder sb = new StringBuilder();
+              Set<Integer> seen = new HashSet<>();
+              for (int i = 0; i <= len; i++)
+                assertTrue("not simple", seen.add(nodes[i]));
+              for (int i = 0; i < len; i++) {
+                assertEquals(nodes[i], LabeledDirectedGraph.unpackNode(edges[i]));
+                assertEquals(nodes[i + 1], LabeledDirectedGraph.unpackConode(edges[i]));
+                sb.append(edges[i]).append(',');
+              }
+              assertTrue("duplicate path", unique.add(sb.toString()));
+              return true;
+            });
+            assertEquals(lengths.subList(0, Math.min(k, lengths.size())), got);
+          }
+        }
+      }
+    }
+  }
+}
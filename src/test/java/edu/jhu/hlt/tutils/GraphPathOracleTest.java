@@ -0,0 +1,104 @@
+package edu.jhu.hlt.tutils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class GraphPathOracleTest {
+
+  /** Random forest, parent[i] < i or -1 for roots */
+  private static LabeledDirectedGraph forest(int n, int[] parent, Random r) {
+    LabeledDirectedGraph.Builder b = new LabeledDirectedGraph().new Builder();
+    for (int i = 0; i < n; i++) {
+      parent[i] = i > 0 && r.nextInt(8) > 0 ? r.nextInt(i) : -1;
+      if (parent[i] >= 0)
+        b.add(parent[i], i, r.nextInt(5));
+    }
+    return b.freeze();
+  }
+
+  /** Random graph with cycles (and a self loop, so it's never a forest) */
+  private static LabeledDirectedGraph graph(int n, Random r) {
+    LabeledDirectedGraph.Builder b = new LabeledDirectedGraph().new Builder();
+    Set<Long> seen = new HashSet<>();
+    for (int i = 0; i < n; i++) {
+      for (int k = 0; k < 2; k++) {
+        int p = r.nextInt(n);
+        if (p != i && seen.add((long) p * n + i))
+          b.add(p, i, r.nextInt(5));
+      }
+    }
+    b.add(n - 1, n - 1, 0);
+    return b.freeze();
+  }
+
+  private static void checkAllPairs(LabeledDirectedGraph g, GraphPathOracle o) {
+    int N = g.getNumNodes();
+    int[] buf = new int[N + 1];
+    for (int s = 0; s < N; s++) {
+      for (int t = 0; t < N; t++) {
+        for (boolean bi : new boolean[] {true, false}) {
+          for (boolean inc : new boolean[] {true, false}) {
+            int[] expected = g.shortestPath(s, t, bi, inc);
+            assertArrayEquals(s + "->" + t + " bi=" + bi + " inc=" + inc, expected, o.shortestPath(s, t, bi, inc));
+            int k = o.path(s, t, bi, inc, buf);
+            if (expected == null) {
+              assertEquals(-1, k);
+              assertEquals(-1, o.distance(s, t, bi));
+            } else {
+              assertArrayEquals(expected, Arrays.copyOf(buf, k));
+            }
+          }
+        }
+      }
+    }
+  }
+
+  @Test
+  public void forestsVsBfs() {
+    Random r = new Random(1);
+    for (int trial = 0; trial < 100; trial++) {
+      int n = 2 + r.nextInt(25);
+      int[] parent = new int[n];
+      LabeledDirectedGraph g = forest(n, parent, r);
+      GraphPathOracle o = g.getPathOracle(0, g.getNumNodes() - 1);
+      assertTrue(o.isForest());
+      checkAllPairs(g, o);
+
+      // lca vs walking up the parent pointers (trailing roots with no
+      // children aren't in the graph)
+      int N = g.getNumNodes();
+      for (int a = 0; a < N; a++) {
+        Set<Integer> ancestors = new HashSet<>();
+        for (int u = a; u >= 0; u = parent[u])
+          ancestors.add(u);
+        for (int b = 0; b < N; b++) {
+          int lca = -1;
+          for (int u = b; u >= 0 && lca < 0; u = parent[u])
+            if (ancestors.contains(u))
+              lca = u;
+          assertEquals(a + " " + b, lca, o.lca(a, b));
+        }
+      }
+    }
+  }
+
+  @Test
+  public void graphsVsBfs() {
+    Random r = new Random(2);
+    for (int trial = 0; trial < 100; trial++) {
+      LabeledDirectedGraph g = graph(2 + r.nextInt(25), r);
+      GraphPathOracle o = g.getPathOracle(0, g.getNumNodes() - 1);
+      assertFalse(o.isForest());
+      checkAllPairs(g, o);
+    }
+  }
+}
@@ -0,0 +1,104 @@
+package edu.jhu.hlt.tutils;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LabeledDirectedGraphCorpusTest {
+
+  static void assertSameGraph(LabeledDirectedGraph a, LabeledDirectedGraph b) {
+    assertEquals(a.getNumNodes(), b.getNumNodes());
+    assertEquals(a.getNumEdges(), b.getNumEdges());
+    for (int i = 0; i < a.getNumEdges(); i++)
+      assertEquals(a.getEdge(i), b.getEdge(i));
+    for (int i = 0; i < a.getNumNodes(); i++) {
+      LabeledDirectedGraph.Node x = a.getNode(i), y = b.getNode(i);
+      assertEquals(x.numParents(), y.numParents());
+      assertEquals(x.numChildren(), y.numChildren());
+      for (int j = 0; j < x.numParents(); j++) {
+        assertEquals(x.getParent(j), y.getParent(j));
+        assertEquals(x.getParentEdgeLabel(j), y.getParentEdgeLabel(j));
+      }
+      for (int j = 0; j < x.numChildren(); j++)
+        assertEquals(x.getChild(j), y.getChild(j));
+      for (int k = 0; k < a.getNumNodes(); k++)
+        assertArrayEquals(a.shortestPath(i, k, true, true), b.shortestPath(i, k, true, true));
+    }
+  }
+
+  /** Views into a corpus vs the same sentences built as separate graphs */
+  @Test
+  public void viewsVsGraphs() throws Exception {
+    int oldMin = LabeledDirectedGraphCorpus.PARALLEL_SORT_MIN_EDGES;
+    LabeledDirectedGraphCorpus.PARALLEL_SORT_MIN_EDGES = 50;
+    try {
+      Random r = new Random(1);
+      int numSentences = 100;
+      LabeledDirectedGraphCorpus.Builder cb = new LabeledDirectedGraphCorpus.Builder(4);
+      List<LabeledDirectedGraph> graphs = new ArrayList<>();
+      for (int s = 0; s < numSentences; s++) {
+        // trees plus some extra (possibly cyclic) edges, some sentences are empty
+        int n = r.nextInt(40);
+        LabeledDirectedGraph.Builder b = new LabeledDirectedGraph().new Builder();
+        for (int i = 1; i < n; i++) {
+          int h = r.nextInt(i), l = r.nextInt(30);
+          b.add(h, i, l);
+          cb.add(h, i, l);
+          if (r.nextInt(5) == 0) {
+            int x = r.nextInt(n), y = r.nextInt(n);
+            b.add(x, y, 3);
+            cb.add(x, y, 3);
+          }
+        }
+        cb.endSentence();
+        graphs.add(n <= 1 ? null : b.freeze());
+      }
+      LabeledDirectedGraphCorpus c = cb.freeze();
+
+      for (int s = 0; s < numSentences; s++) {
+        LabeledDirectedGraph g = graphs.get(s);
+        LabeledDirectedGraph v = c.get(s);
+        if (g == null) {
+          assertEquals(0, v.getNumEdges());
+          continue;
+        }
+        assertSameGraph(g, v);
+
+        // A view serializes as a standalone graph
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+          oos.writeObject(v);
+        }
+        LabeledDirectedGraph w;
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+          w = (LabeledDirectedGraph) ois.readObject();
+        }
+        assertFalse(w.isView());
+        assertSameGraph(g, w);
+
+        int last = Math.min(10, g.getNumNodes() - 1);
+        assertSameGraph(g.slice(2, last), v.slice(2, last));
+      }
+
+      List<LabeledDirectedGraph> nonEmpty = new ArrayList<>();
+      for (LabeledDirectedGraph g : graphs)
+        if (g != null)
+          nonEmpty.add(g);
+      LabeledDirectedGraphCorpus c2 = LabeledDirectedGraphCorpus.fromGraphs(nonEmpty);
+      for (int i = 0; i < nonEmpty.size(); i++)
+        assertSameGraph(nonEmpty.get(i), c2.get(i));
+    } finally {
+      LabeledDirectedGraphCorpus.PARALLEL_SORT_MIN_EDGES = oldMin;
+    }
+  }
+}
@@ -2,10 +2,17 @@ package edu.jhu.hlt.tutils;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Random;
 import java.util.function.IntFunction;
 
 import org.apache.thrift.protocol.TCompactProtocol;
@@ -57,6 +64,59 @@ public class LabeledDirectedGraphTests {
 
   }
   
+  @Test
+  public void lazyTest() throws Exception {
+    // Lazy (also after serialization) should build the same graph as a Builder
+    Random r = new Random(1);
+    for (int t = 0; t < 100; t++) {
+      LabeledDirectedGraph.Builder b = new LabeledDirectedGraph().new Builder();
+      LabeledDirectedGraph.Lazy l = new LabeledDirectedGraph.Lazy();
+      int n = 2 + r.nextInt(40);
+      for (int i = 1; i < n; i++) {
+        int p = r.nextInt(i), label = r.nextInt(50);
+        b.add(p, i, label);
+        l.add(p, i, label);
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+        oos.writeObject(l);
+      }
+      try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()))) {
+        l = (LabeledDirectedGraph.Lazy) ois.readObject();
+      }
+      LabeledDirectedGraph g1 = b.freeze(), g2 = l.build();
+      assertEquals(g1.getNumNodes(), g2.getNumNodes());
+      assertEquals(g1.getNumEdges(), g2.getNumEdges());
+      for (int i = 0; i < g1.getNumEdges(); i++)
+        assertEquals(g1.getEdge(i), g2.getEdge(i));
+      for (int i = 0; i < g1.getNumNodes(); i++) {
+        assertEquals(g1.getNode(i).numParents(), g2.getNode(i).numParents());
+        assertEquals(g1.getNode(i).numChildren(), g2.getNode(i).numChildren());
+      }
+    }
+  }
+
+  @Test
+  public void documentLazyGraphTest() {
+    Document d = new Document("doc", 0, new MultiAlphabet());
+    LabeledDirectedGraph.Lazy l = new LabeledDirectedGraph.Lazy();
+    l.add(0, 1, 3);
+    d.stanfordDepsBasicLazy = l;
+    assertNull(d.stanfordDepsBasic);
+    LabeledDirectedGraph g = d.getStanfordDepsBasic();
+    assertNotNull(g);
+    assertNull(d.stanfordDepsBasicLazy);
+    assertSame(g, d.getStanfordDepsBasic());
+    assertEquals(1, g.getNode(1).numParents());
+
+    d.parseyMcParseFaceLazy = new LabeledDirectedGraph.Lazy();
+    d.parseyMcParseFaceLazy.add(1, 0, 2);
+    d.buildLazyGraphs();
+    assertNotNull(d.parseyMcParseFace);
+    assertNull(d.parseyMcParseFaceLazy);
+    assertNull(d.universalDependencies);
+  }
+
   @Test
   public void concreteInteropTest0() throws Exception {
 
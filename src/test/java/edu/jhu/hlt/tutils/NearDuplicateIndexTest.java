@@ -0,0 +1,120 @@
+package edu.jhu.hlt.tutils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import edu.jhu.hlt.tutils.NearDuplicateIndex.Shingles;
+
+public class NearDuplicateIndexTest {
+
+  private static DepNode[] randomSentence(Random r, int vocab) {
+    DepNode[] p = new DepNode[10 + r.nextInt(20)];
+    for (int j = 0; j < p.length; j++) {
+      p[j] = new DepNode();
+      p[j].word = r.nextInt(vocab);
+      p[j].depParentNode = (short) (j == 0 ? -1 : r.nextInt(j));
+    }
+    return p;
+  }
+
+  private static DepNode[] edit(DepNode[] orig, Random r, int vocab, int numEdits) {
+    DepNode[] p = new DepNode[orig.length];
+    for (int j = 0; j < p.length; j++) {
+      p[j] = new DepNode();
+      p[j].word = orig[j].word;
+      p[j].depParentNode = orig[j].depParentNode;
+    }
+    for (int e = 0; e < numEdits; e++)
+      p[r.nextInt(p.length)].word = r.nextInt(vocab);
+    return p;
+  }
+
+  /** Token n-grams as lists of words, what the TOKENS signature is over */
+  private static Set<List<Integer>> shingles(DepNode[] p, int n) {
+    Set<List<Integer>> s = new HashSet<>();
+    for (int i = 0; i < Math.max(1, p.length - n + 1); i++) {
+      List<Integer> g = new ArrayList<>();
+      for (int j = 0; j < n && i + j < p.length; j++)
+        g.add(p[i + j].word);
+      s.add(g);
+    }
+    return s;
+  }
+
+  /** MinHash agreement vs the exact Jaccard similarity of the shingle sets */
+  @Test
+  public void estimateJaccardVsExact() {
+    Random r = new Random(1);
+    NearDuplicateIndex idx = new NearDuplicateIndex(64, 4, Shingles.TOKENS, 3, 10, 4);
+    double totalError = 0;
+    int trials = 200;
+    for (int t = 0; t < trials; t++) {
+      DepNode[] a = randomSentence(r, 50);
+      DepNode[] b = edit(a, r, 50, r.nextInt(6));
+      Set<List<Integer>> sa = shingles(a, 3), sb = shingles(b, 3);
+      Set<List<Integer>> union = new HashSet<>(sa);
+      union.addAll(sb);
+      sa.retainAll(sb);
+      double exact = sa.size() / (double) union.size();
+      double est = NearDuplicateIndex.estimateJaccard(idx.signature(a, null), idx.signature(b, null));
+      assertEquals(exact, est, 0.25);
+      totalError += Math.abs(exact - est);
+    }
+    // 256 hashes have a standard error of at most ~0.03
+    assertTrue("mean error " + totalError / trials, totalError / trials < 0.05);
+  }
+
+  @Test
+  public void exactDuplicatesAreAlwaysSeen() {
+    Random r = new Random(2);
+    for (Shingles s : Shingles.values()) {
+      NearDuplicateIndex idx = new NearDuplicateIndex(16, 4, s, 3, 20, 4);
+      List<DepNode[]> added = new ArrayList<>();
+      for (int i = 0; i < 500; i++) {
+        DepNode[] p = randomSentence(r, 100_000);
+        idx.add(p);
+        added.add(p);
+      }
+      assertEquals(500, idx.numSentences());
+      for (DepNode[] p : added) {
+        assertTrue(idx.seenSimilar(p));
+        assertTrue(idx.seenSimilar(edit(p, r, 100_000, 0)));
+      }
+    }
+  }
+
+  @Test
+  public void nearDuplicatesVsNewSentences() {
+    Random r = new Random(3);
+    NearDuplicateIndex idx = new NearDuplicateIndex(16, 4, Shingles.TOKENS, 3, 22, 4);
+    List<DepNode[]> originals = new ArrayList<>();
+    int newFlagged = 0;
+    for (int i = 0; i < 1000; i++) {
+      DepNode[] p = randomSentence(r, 100_000);
+      if (!idx.addIfNew(p))
+        newFlagged++;
+      originals.add(p);
+    }
+    int caught = 0;
+    for (DepNode[] p : originals)
+      if (idx.seenSimilar(edit(p, r, 100_000, 1)))
+        caught++;
+    assertTrue("newFlagged=" + newFlagged, newFlagged <= 5);
+    assertTrue("caught=" + caught, caught >= 900);
+    assertFalse(idx.seenSimilar(randomSentence(new Random(4), 100_000)));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void tooManyBits() {
+    new NearDuplicateIndex(16, 4, Shingles.TOKENS, 3, 37, 4);
+  }
+}
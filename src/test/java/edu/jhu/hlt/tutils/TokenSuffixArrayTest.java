@@ -0,0 +1,111 @@
+package edu.jhu.hlt.tutils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TokenSuffixArrayTest {
+
+  /** Occurrences of random n-grams vs a scan, small alphabets so there are many repeats */
+  @Test
+  public void bruteForce() {
+    Random r = new Random(1);
+    for (int trial = 0; trial < 200; trial++) {
+      int n = 1 + r.nextInt(100);
+      int V = 1 + r.nextInt(4);
+      int[] seq = new int[n];
+      for (int i = 0; i < n; i++)
+        seq[i] = r.nextInt(V) - 1;    // include a negative id
+      int start = r.nextInt(n), end = start + r.nextInt(n - start + 1);
+      TokenSuffixArray sa = new TokenSuffixArray(seq, start, end);
+      assertEquals(end - start, sa.size());
+
+      for (int q = 0; q < 20; q++) {
+        int[] pattern = new int[1 + r.nextInt(4)];
+        if (r.nextBoolean() && end - start >= pattern.length) {
+          // one which occurs
+          int s = start + r.nextInt(end - start - pattern.length + 1);
+          System.arraycopy(seq, s, pattern, 0, pattern.length);
+        } else {
+          for (int i = 0; i < pattern.length; i++)
+            pattern[i] = r.nextInt(V) - 1;
+        }
+        int from = r.nextInt(n + 1), to = from + r.nextInt(n - from + 1);
+
+        int count = 0;
+        List<Integer> expected = new ArrayList<>();
+        for (int s = start; s + pattern.length <= end; s++) {
+          boolean match = true;
+          for (int i = 0; i < pattern.length && match; i++)
+            match = seq[s + i] == pattern[i];
+          if (match) {
+            count++;
+            if (s >= from && s + pattern.length <= to)
+              expected.add(s);
+          }
+        }
+        assertEquals(count, sa.count(pattern, 0, pattern.length));
+
+        List<Integer> got = new ArrayList<>();
+        assertEquals(expected.size(), sa.forEachOccurrence(pattern, 0, pattern.length, from, to, got::add));
+        Collections.sort(got);
+        assertEquals(expected, got);
+        assertEquals(expected.size(), sa.forEachOccurrence(pattern, 0, pattern.length, from, to, null));
+      }
+    }
+  }
+
+  /** Document's occurrence queries give the same results before and after building the suffix arrays */
+  @Test
+  public void documentScanVsSuffixArray() {
+    Random r = new Random(2);
+    for (int trial = 0; trial < 50; trial++) {
+      Document d = new Document("doc" + trial, trial, new MultiAlphabet());
+      int T = 1 + r.nextInt(200);
+      int V = 1 + r.nextInt(6);
+      for (int i = 0; i < T; i++) {
+        Document.Token t = d.newToken();
+        t.setWord(r.nextInt(V));
+        t.setWordNocase(r.nextInt(V));
+        t.setPosG(r.nextInt(V));
+        t.setPosH(r.nextInt(V));
+      }
+      List<int[]> queries = new ArrayList<>();
+      for (int q = 0; q < 100; q++) {
+        int nf = r.nextInt(T), ns = nf + r.nextInt(Math.min(5, T - nf) + 1);
+        int af = r.nextInt(T), as = af + r.nextInt(T - af + 1);
+        queries.add(new int[] {nf, ns, af, as, r.nextInt(2)});
+      }
+      List<Object> scan = null;
+      for (int pass = 0; pass < 2; pass++) {
+        List<Object> out = new ArrayList<>();
+        for (int[] q : queries) {
+          boolean b = q[4] == 1;
+          IntPair needle = new IntPair(q[0], q[1]);
+          IntPair area = new IntPair(q[2], q[3]);
+          List<IntPair> strings = new ArrayList<>();
+          out.add(d.stringOccurrences(needle, area, strings, b));
+          out.add(strings.toString());
+          out.add(d.stringOccurrences(needle, area, null, b));
+          List<Integer> pos = new ArrayList<>();
+          out.add(d.posOccurrences(q[0], new IntPair(q[2], Math.min(q[3], T - 1)), pos, b));
+          out.add(pos.toString());
+        }
+        if (pass == 0) {
+          scan = out;
+          d.getWordSuffixArray(true);
+          d.getWordSuffixArray(false);
+          d.getPosSuffixArray(true);
+          d.getPosSuffixArray(false);
+        } else {
+          assertEquals(scan, out);
+        }
+      }
+    }
+  }
+}
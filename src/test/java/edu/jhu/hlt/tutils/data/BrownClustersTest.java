@@ -0,0 +1,151 @@
+package edu.jhu.hlt.tutils.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.jhu.hlt.tutils.Document;
+import edu.jhu.hlt.tutils.MultiAlphabet;
+
+public class BrownClustersTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  /** Writes a random "paths" file, returns word -> (path, count) */
+  private static Map<String, String[]> writePaths(File dir, int n, Random r) throws Exception {
+    Map<String, String[]> words = new HashMap<>();
+    try (PrintWriter w = new PrintWriter(new File(dir, "paths"), "UTF-8")) {
+      for (int i = 0; i < n; i++) {
+        StringBuilder path = new StringBuilder();
+        int len = 1 + r.nextInt(BrownClusters.MAX_PATH_LENGTH + 4);
+        for (int j = 0; j < len; j++)
+          path.append(r.nextBoolean() ? '1' : '0');
+        String word = "w\u00e9" + i;
+        String count = String.valueOf(1 + r.nextInt(6));
+        w.println(path + "\t" + word + "\t" + count);
+        words.put(word, new String[] {path.toString(), count});
+      }
+    }
+    return words;
+  }
+
+  @Test
+  public void lookupVsPathsFile() throws Exception {
+    File dir = tmp.newFolder();
+    Map<String, String[]> words = writePaths(dir, 2000, new Random(1));
+    int minCount = 3;
+    BrownClusters bc = new BrownClusters(dir, minCount);
+    int kept = 0;
+    for (Map.Entry<String, String[]> e : words.entrySet()) {
+      String path = e.getValue()[0];
+      if (path.length() > BrownClusters.MAX_PATH_LENGTH)
+        path = path.substring(0, BrownClusters.MAX_PATH_LENGTH);
+      if (Integer.parseInt(e.getValue()[1]) >= minCount) {
+        kept++;
+        assertEquals(path, bc.getPath(e.getKey()));
+        assertEquals(path.substring(0, Math.min(4, path.length())), bc.getPath(e.getKey(), 4));
+        long p = bc.lookup(e.getKey());
+        assertEquals(BrownClusters.pack(path), p);
+        assertEquals(path, BrownClusters.toString(p));
+        assertEquals(BrownClusters.pack(path.substring(0, Math.min(5, path.length()))), BrownClusters.prefix(p, 5));
+      } else {
+        assertEquals(BrownClusters.MISSING, bc.lookup(e.getKey()));
+      }
+    }
+    assertEquals(kept, bc.numWords());
+    assertEquals(BrownClusters.MISSING, bc.lookup("not a word"));
+  }
+
+  /** A stale or partial compiled file is replaced, and no temp files are left behind */
+  @Test
+  public void recompileReplacesStaleFile() throws Exception {
+    File dir = tmp.newFolder();
+    Map<String, String[]> words = writePaths(dir, 100, new Random(2));
+    File bin = new File(dir, "paths.minCount1.bin");
+    // e.g. what a crash while compiling used to leave behind
+    try (FileOutputStream out = new FileOutputStream(bin)) {
+      out.write(new byte[128]);
+    }
+    bin.setLastModified(System.currentTimeMillis() - 60_000);
+    new File(dir, "paths").setLastModified(System.currentTimeMillis());
+
+    BrownClusters bc = new BrownClusters(dir, 1);
+    assertEquals(bin, bc.binaryFile());
+    assertEquals(words.size(), bc.numWords());
+    String[] files = dir.list();
+    Arrays.sort(files);
+    assertArrayEquals(new String[] {"paths", bin.getName()}, files);
+
+    // Compiled once, so a second instance just maps it
+    long modified = bin.lastModified();
+    BrownClusters bc2 = new BrownClusters(dir, 1);
+    assertEquals(bc.numWords(), bc2.numWords());
+    assertEquals(modified, bin.lastModified());
+    for (String w : words.keySet())
+      assertTrue(bc2.lookup(w) != BrownClusters.MISSING);
+  }
+
+  /** Word id caches for two alphabets (with different ids) used at the same time */
+  @Test
+  public void twoAlphabetsTwoThreads() throws Exception {
+    File dir = tmp.newFolder();
+    Map<String, String[]> words = writePaths(dir, 1000, new Random(3));
+    BrownClusters bc = new BrownClusters(dir, 1);
+    List<String> vocab = new ArrayList<>(words.keySet());
+    for (int i = 0; i < 200; i++)
+      vocab.add("not a word " + i);
+    MultiAlphabet a1 = new MultiAlphabet();
+    MultiAlphabet a2 = new MultiAlphabet();
+    for (String w : vocab)
+      a1.word(w);
+    Collections.shuffle(vocab, new Random(4));
+    for (String w : vocab)
+      a2.word(w);
+
+    List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+    List<Thread> threads = new ArrayList<>();
+    for (MultiAlphabet alph : Arrays.asList(a1, a2)) {
+      Random r = new Random(threads.size());
+      Thread t = new Thread(() -> {
+        try {
+          for (int round = 0; round < 20; round++) {
+            Document doc = new Document("doc" + round, round, alph);
+            for (int i = 0; i < 1000; i++) {
+              String w = vocab.get(r.nextInt(vocab.size()));
+              doc.newToken().setWord(alph.word(w));
+              assertEquals(w, bc.lookup(w), bc.getPath(alph, alph.word(w)));
+            }
+            BrownClusters.setClusters(doc, bc, bc);
+            for (int i = 0; i < doc.numTokens(); i++) {
+              Document.Token tok = doc.getToken(i);
+              assertEquals(alph.shape(bc.getPath(tok.getWordStr())), tok.getBc256());
+            }
+          }
+        } catch (Throwable e) {
+          errors.add(e);
+        }
+      });
+      threads.add(t);
+      t.start();
+    }
+    for (Thread t : threads)
+      t.join();
+    assertEquals(Collections.emptyList(), errors);
+  }
+}
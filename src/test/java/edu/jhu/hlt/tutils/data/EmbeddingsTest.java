@@ -0,0 +1,80 @@
+package edu.jhu.hlt.tutils.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.jhu.hlt.tutils.MultiAlphabet;
+
+public class EmbeddingsTest {
+
+  private static Embeddings random(int n, int dim, Random r) {
+    Embeddings e = Embeddings.randomClustered(n, dim, 5, 0.1, r);
+    // randomClustered leaves the alphabet empty, row i is word i
+    for (int i = 0; i < n; i++)
+      assertEquals(i, e.getAlphabet().word("w" + i));
+    return e;
+  }
+
+  /** The mapped (native file) storage vs the in memory contiguous storage */
+  @Test
+  public void mappedVsInMemory() throws Exception {
+    int n = 500, dim = 17;
+    Embeddings e = random(n, dim, new Random(1));
+    File f = File.createTempFile("embeddingsTest", ".bin");
+    f.deleteOnExit();
+    e.writeNative(f);
+    Embeddings m = Embeddings.mmapNative(f, new MultiAlphabet());
+    assertTrue(m.isMapped());
+    assertEquals(n, m.numRows());
+    assertEquals(dim, m.dimension());
+    for (int i = 0; i < n; i++) {
+      String w = "w" + i;
+      int mi = m.getAlphabet().word(w);
+      assertArrayEquals(e.getVectorF(w), m.getVectorF(mi), 0f);
+      int j = (i * 7) % n;
+      int mj = m.getAlphabet().word("w" + j);
+      assertEquals(e.cosineSim(i, j), m.cosineSim(mi, mj), 1e-6);
+      assertEquals(i * dim, e.rowOffset(i));
+    }
+    assertEquals(-1, e.rowOffset(n + 3));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void noRowOffsetWhenMapped() throws Exception {
+    Embeddings e = random(10, 4, new Random(2));
+    File f = File.createTempFile("embeddingsTest", ".bin");
+    f.deleteOnExit();
+    e.writeNative(f);
+    Embeddings.mmapNative(f, new MultiAlphabet()).rowOffset(0);
+  }
+
+  /** Words without a vector don't contribute to sums (rather than using row 0) */
+  @Test
+  public void sumSkipsMissingWords() {
+    int n = 50, dim = 9;
+    Embeddings e = random(n, dim, new Random(3));
+    int missing = e.getAlphabet().word("notInTheEmbeddings");
+    float[] expected = new float[dim];
+    for (int i : new int[] {3, 7, 7}) {
+      float[] v = e.getVectorF(i);
+      for (int j = 0; j < dim; j++)
+        expected[j] += v[j];
+    }
+    assertArrayEquals(expected, e.getVectorSumF(3, missing, 7, 7), 1e-6f);
+    assertArrayEquals(expected, e.getVectorSumF("w3", "w7", "notInTheEmbeddings", "w7"), 1e-6f);
+    double[] d = e.getVectorSum(missing, 3, 7, 7);
+    for (int j = 0; j < dim; j++)
+      assertEquals(expected[j], d[j], 1e-6);
+    assertArrayEquals(new float[dim], e.getVectorSumF(missing), 0f);
+
+    float[] sum = new float[dim];
+    assertEquals(3, e.getVectorSum(new int[] {missing, 3, 7, 7, missing}, 0, 5, sum));
+    assertArrayEquals(expected, sum, 1e-6f);
+  }
+}
@@ -0,0 +1,107 @@
+package edu.jhu.hlt.tutils.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class HnswIndexTest {
+
+  private static float[] randomVectors(int n, int d, Random r) {
+    float[] v = new float[n * d];
+    for (int i = 0; i < v.length; i++)
+      v[i] = (float) r.nextGaussian();
+    return v;
+  }
+
+  /** Recall of the k nearest neighbors vs brute force */
+  @Test
+  public void recallVsBruteForce() {
+    Random r = new Random(3);
+    int n = 2000, d = 16, k = 10;
+    float[] v = randomVectors(n, d, r);
+    HnswIndex idx = new HnswIndex(v, null, d, 8, 50, r);
+    idx.setEfSearch(100);
+    assertEquals(n, idx.numRows());
+    assertEquals(d, idx.dimension());
+    int hits = 0, numQueries = 100;
+    for (int q = 0; q < numQueries; q++) {
+      float[] query = randomVectors(1, d, r);
+      HnswIndex.Neighbors approx = idx.search(query, k);
+      HnswIndex.Neighbors exact = idx.bruteForce(query, k);
+      assertEquals(k, approx.size());
+      assertEquals(k, exact.size());
+      for (int i = 1; i < k; i++) {
+        assertTrue(approx.sims[i] <= approx.sims[i - 1]);
+        assertTrue(exact.sims[i] <= exact.sims[i - 1]);
+      }
+      for (int a : approx.rows)
+        for (int e : exact.rows)
+          if (a == e)
+            hits++;
+      // nothing can beat the exact answer
+      assertTrue(approx.sims[0] <= exact.sims[0] + 1e-6);
+    }
+    double recall = hits / (double) (numQueries * k);
+    assertTrue("recall=" + recall, recall >= 0.9);
+  }
+
+  /** searchWord skips the query word and survives save/load */
+  @Test
+  public void searchWordAndSaveLoad() throws Exception {
+    Random r = new Random(4);
+    int n = 500, d = 8;
+    float[] v = randomVectors(n, d, r);
+    int[] words = new int[n];
+    for (int i = 0; i < n; i++)
+      words[i] = 2 * i + 5;
+    HnswIndex idx = new HnswIndex(v, words, d, 6, 40, r);
+    idx.setEfSearch(80);
+
+    File f = File.createTempFile("hnswIndexTest", ".jser");
+    f.deleteOnExit();
+    idx.save(f);
+    HnswIndex loaded = HnswIndex.load(f);
+    assertEquals(idx.getEfSearch(), loaded.getEfSearch());
+
+    int hits = 0;
+    for (int q = 0; q < 50; q++) {
+      HnswIndex.Neighbors nb = idx.searchWord(words[q], 5);
+      HnswIndex.Neighbors nb2 = loaded.searchWord(words[q], 5);
+      assertArrayEquals(nb.rows, nb2.rows);
+      assertArrayEquals(nb.sims, nb2.sims, 0f);
+      for (int w : nb.words)
+        assertTrue(w != words[q]);
+      // v was normalized in place by the constructor
+      HnswIndex.Neighbors exact = idx.bruteForce(Arrays.copyOfRange(v, q * d, (q + 1) * d), 6);
+      assertEquals(words[q], exact.words[0]);
+      for (int i = 1; i < 6; i++)
+        for (int w : nb.words)
+          if (w == exact.words[i])
+            hits++;
+    }
+    assertTrue("hits=" + hits, hits >= 0.9 * 50 * 5);
+    // not a word in the index
+    assertNull(idx.searchWord(4, 5));
+  }
+
+  @Test
+  public void buildFromEmbeddings() {
+    Embeddings e = Embeddings.randomClustered(300, 12, 5, 0.1, new Random(5));
+    HnswIndex idx = HnswIndex.build(e, 8, 40);
+    assertEquals(e.numRows(), idx.numRows());
+    float[] row = new float[12];
+    for (int i = 0; i < 20; i++) {
+      e.getRow(i, row);
+      HnswIndex.Neighbors nb = idx.search(row, 1);
+      assertEquals(i, nb.rows[0]);
+      assertEquals(1, nb.sims[0], 1e-5);
+    }
+  }
+}
@@ -0,0 +1,160 @@
+package edu.jhu.hlt.tutils.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import edu.jhu.hlt.tutils.data.PropbankFrameIndex.PropbankFrame;
+import edu.jhu.hlt.tutils.data.PropbankFrameIndex.PropbankRole;
+
+public class PropbankFrameIndexTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private static void write(File dir, String name, String xml) throws Exception {
+    try (PrintWriter w = new PrintWriter(new File(dir, name), "UTF-8")) {
+      w.print(xml);
+    }
+  }
+
+  /** A few frame files like the ones in OntoNotes */
+  private File frames() throws Exception {
+    File dir = tmp.newFolder();
+    write(dir, "steal-v.xml", ""
+        + "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<frameset>\n"
+        + "  <note>Frames file for 'steal'</note>\n"
+        + "  <predicate lemma=\"steal\">\n"
+        + "    <roleset id=\"steal.01\" name=\"take illegally\" vncls=\"10.5\">\n"
+        + "      <roles>\n"
+        + "        <note>some text</note>\n"
+        + "        <role descr=\"thief\" n=\"0\"><vnrole vncls=\"10.5\" vntheta=\"Agent\"/></role>\n"
+        + "        <role descr=\"stuff stolen\" n=\"1\">\n"
+        + "          <vnrole vncls=\"10.5\" vntheta=\"Theme\"/>\n"
+        + "          <vnrole vncls=\"10.6\" vntheta=\"Theme\"/>\n"
+        + "        </role>\n"
+        + "        <role descr=\"m\u00e9thode\" f=\"mnr\" n=\"m\"/>\n"
+        + "        <role descr=\"no name\" n=\"\"/>\n"
+        + "      </roles>\n"
+        + "      <example name=\"ex\"><text>John stole a car</text><arg n=\"0\">John</arg></example>\n"
+        + "    </roleset>\n"
+        + "    <roleset id=\"steal.02\" name=\"move quietly\">\n"
+        + "      <roles><role descr=\"mover\" n=\"0\"/></roles>\n"
+        + "    </roleset>\n"
+        + "  </predicate>\n"
+        + "  <predicate lemma=\"steal_away\">\n"
+        + "    <roleset id=\"steal_away.03\" name=\"leave\" vncls=\"-\"><roles/></roleset>\n"
+        + "  </predicate>\n"
+        + "</frameset>\n");
+    write(dir, "cease-v.xml", ""
+        + "<frameset><predicate lemma=\"cease\">"
+        + "<roleset id=\"cease.01\" name=\"stop\" vncls=\"55.4\"><roles>"
+        + "<role descr=\"agent\" n=\"0\"><vnrole vncls=\"55.4\" vntheta=\"Agent\"/></role>"
+        + "<role descr=\"thing stopped\" n=\"1\"/>"
+        + "</roles></roleset></predicate></frameset>");
+    write(dir, "take-n.xml", ""
+        + "<frameset><predicate lemma=\"take\">\n"
+        + "<roleset id=\"take.LV\" name=\"light verb\"><roles>"
+        + "<role descr=\"taker\" n=\"0\"/><role descr=\"loc\" f=\"LOC\" n=\"M\"/>"
+        + "</roles></roleset></predicate></frameset>\n");
+    write(dir, ".hidden.xml", "not xml");
+    write(dir, "README", "not a frame file");
+    return dir;
+  }
+
+  private static Map<String, String> asStrings(Iterable<PropbankFrame> frames) {
+    Map<String, String> m = new TreeMap<>();
+    for (PropbankFrame f : frames)
+      m.put(f.id, f.toString());
+    return m;
+  }
+
+  @Test
+  public void staxVsDom() throws Exception {
+    File dir = frames();
+    Map<String, String> stax = asStrings(new PropbankFrameIndex(dir).getAllFrames());
+    Map<String, String> dom = asStrings(PropbankFrameIndex.parseDom(dir).values());
+    assertEquals(dom, stax);
+    assertEquals(5, stax.size());
+
+    Map<String, PropbankFrame> byId = new TreeMap<>();
+    for (PropbankFrame f : new PropbankFrameIndex(dir).getAllFrames())
+      byId.put(f.id, f);
+    PropbankFrame f = byId.get("steal-v-1");
+    assertEquals("take illegally", f.name);
+    assertEquals("10.5", f.vncls);
+    // the role with no name is dropped
+    assertEquals(3, f.numRoles());
+    PropbankRole r = f.getRole(1);
+    assertEquals("ARG1", r.getLabel());
+    assertEquals(2, r.numVerbNetMappings());
+    assertEquals("10.6", r.getVncls(1));
+    assertEquals("ARGM-MNR", f.getRole(2).getLabel());
+    assertEquals("m\u00e9thode", f.getRole(2).description);
+    assertNull(byId.get("steal-v-2").vncls);
+    assertEquals(0, byId.get("steal-v-3").numRoles());
+    assertEquals("ARGM-LOC", byId.get("take-n-LV").getRole(1).getLabel());
+  }
+
+  @Test
+  public void cacheRoundTrip() throws Exception {
+    File dir = frames();
+    Map<String, String> expected = asStrings(new PropbankFrameIndex(dir).getAllFrames());
+    File cache = new File(tmp.newFolder(), "frames.bin");
+    assertEquals(expected, asStrings(PropbankFrameIndex.load(dir, cache).getAllFrames()));
+    assertTrue(cache.isFile());
+    long modified = cache.lastModified();
+    assertEquals(expected, asStrings(PropbankFrameIndex.load(dir, cache).getAllFrames()));
+    assertEquals(modified, cache.lastModified());
+
+    // A changed frame file invalidates the cache
+    write(dir, "cease-v.xml", "<frameset><predicate lemma=\"cease\">"
+        + "<roleset id=\"cease.01\" name=\"halt\"><roles/></roleset></predicate></frameset>");
+    Map<String, String> changed = asStrings(PropbankFrameIndex.load(dir, cache).getAllFrames());
+    assertEquals("<cease-v-1 halt vn=null roles=[]>", changed.get("cease-v-1"));
+    assertEquals(changed, asStrings(PropbankFrameIndex.load(dir, cache).getAllFrames()));
+  }
+
+  /** A corrupt cache is re-built rather than failing */
+  @Test
+  public void corruptCache() throws Exception {
+    File dir = frames();
+    Map<String, String> expected = asStrings(new PropbankFrameIndex(dir).getAllFrames());
+    File cache = new File(tmp.newFolder(), "frames.bin");
+    PropbankFrameIndex.load(dir, cache);
+    long len = cache.length();
+
+    // The last string index (out of bounds)
+    try (RandomAccessFile raf = new RandomAccessFile(cache, "rw")) {
+      raf.seek(len - 4);
+      raf.writeInt(Integer.MAX_VALUE);
+    }
+    assertEquals(expected, asStrings(PropbankFrameIndex.load(dir, cache).getAllFrames()));
+    assertEquals(len, cache.length());
+
+    // The number of strings (right after magic, version, key)
+    try (RandomAccessFile raf = new RandomAccessFile(cache, "rw")) {
+      raf.seek(16);
+      raf.writeInt(Integer.MAX_VALUE);
+    }
+    assertEquals(expected, asStrings(PropbankFrameIndex.load(dir, cache).getAllFrames()));
+
+    // Truncated
+    try (RandomAccessFile raf = new RandomAccessFile(cache, "rw")) {
+      raf.setLength(len / 2);
+    }
+    assertEquals(expected, asStrings(PropbankFrameIndex.load(dir, cache).getAllFrames()));
+    assertEquals(len, cache.length());
+  }
+}
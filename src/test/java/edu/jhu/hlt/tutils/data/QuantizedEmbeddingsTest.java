@@ -0,0 +1,129 @@
+package edu.jhu.hlt.tutils.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class QuantizedEmbeddingsTest {
+
+  private static double dot(float[] a, float[] b) {
+    return Embeddings.dot(a, 0, b, 0, a.length);
+  }
+
+  /** Top k rows of e by cosine similarity to query, best first */
+  private static int[] exactTopK(Embeddings e, float[] query, int k) {
+    int n = e.numRows();
+    double[] sims = new double[n];
+    float[] row = new float[e.dimension()];
+    Integer[] rows = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      e.getRow(i, row);
+      sims[i] = Embeddings.cosineSim(query, row);
+      rows[i] = i;
+    }
+    Arrays.sort(rows, (a, b) -> Double.compare(sims[b], sims[a]));
+    int[] top = new int[k];
+    for (int i = 0; i < k; i++)
+      top[i] = rows[i];
+    return top;
+  }
+
+  /**
+   * Every component is off by at most scale/2, so the dot product is off by
+   * at most (scale_a/2) * |b|_1 + (scale_b/2) * |a|_1 (plus float rounding).
+   */
+  @Test
+  public void int8ErrorBound() {
+    Random r = new Random(1);
+    int d = 37;
+    Embeddings e = Embeddings.randomClustered(300, d, 10, 0.3, r);
+    QuantizedEmbeddings q = QuantizedEmbeddings.int8(e);
+    assertEquals(QuantizedEmbeddings.Mode.INT8, q.mode());
+    assertEquals(300, q.numRows());
+    float[] a = new float[d], b = new float[d], qa = new float[d], qb = new float[d];
+    for (int t = 0; t < 2000; t++) {
+      int i = r.nextInt(300), j = r.nextInt(300);
+      e.getRow(i, a);
+      e.getRow(j, b);
+      q.getRow(i, qa);
+      q.getRow(j, qb);
+      double l1a = 0, l1b = 0, sa = 0, sb = 0;
+      for (int k = 0; k < d; k++) {
+        l1a += Math.abs(a[k]);
+        l1b += Math.abs(b[k]);
+        sa = Math.max(sa, Math.abs(a[k]) / 127);
+        sb = Math.max(sb, Math.abs(b[k]) / 127);
+      }
+      for (int k = 0; k < d; k++)
+        assertEquals(a[k], qa[k], sa / 2 + 1e-6);
+      double bound = sa / 2 * l1b + sb / 2 * l1a + 1e-4;
+      assertEquals(dot(a, b), q.dotRows(i, j), bound);
+      // dotRows is exactly the dot product of the reconstructed rows
+      assertEquals(dot(qa, qb), q.dotRows(i, j), 1e-4);
+      assertEquals(Embeddings.cosineSim(qa, qb), q.cosineSimRows(i, j), 1e-4);
+      assertEquals(q.cosineSimRows(i, j), q.cosineSim(i, j), 0);
+    }
+    // no vector
+    assertEquals(0, q.cosineSim(0, 300), 0);
+    assertEquals(-1, q.row(-1));
+  }
+
+  @Test
+  public void pqRecall() {
+    Random r = new Random(2);
+    int n = 2000, d = 32, k = 10;
+    Embeddings e = Embeddings.randomClustered(n, d, 50, 0.3, r);
+    QuantizedEmbeddings q = QuantizedEmbeddings.productQuantized(e, 8, n, 10, r);
+    assertEquals(QuantizedEmbeddings.Mode.PQ, q.mode());
+    // 8 bytes of codes per row vs 128 bytes of floats
+    assertTrue(q.bytesUsed() < 4L * n * d / 4);
+    int hits = 0, hitsRerank = 0, numQueries = 50;
+    float[] query = new float[d];
+    for (int t = 0; t < numQueries; t++) {
+      e.getRow(r.nextInt(n), query);
+      int[] exact = exactTopK(e, query, k);
+      int[] approx = q.mostSimilar(query, k);
+      int[] approx100 = q.mostSimilar(query, 100);
+      for (int x : exact) {
+        for (int y : approx)
+          if (x == y) hits++;
+        for (int y : approx100)
+          if (x == y) hitsRerank++;
+      }
+    }
+    double recall = hits / (double) (numQueries * k);
+    double recall100 = hitsRerank / (double) (numQueries * k);
+    assertTrue("recall@10=" + recall, recall >= 0.5);
+    // top 100 of PQ as a first pass for re-ranking
+    assertTrue("recall@100=" + recall100, recall100 >= 0.95);
+  }
+
+  /** The query table gives the same scores as decoding the row and taking the dot product */
+  @Test
+  public void queryTableVsDecoding() {
+    Random r = new Random(3);
+    int d = 30;
+    Embeddings e = Embeddings.randomClustered(500, d, 10, 0.3, r);
+    for (QuantizedEmbeddings q : new QuantizedEmbeddings[] {
+        QuantizedEmbeddings.int8(e),
+        // doesn't divide the dimension
+        QuantizedEmbeddings.productQuantized(e, 7, 500, 5, r)}) {
+      float[] query = new float[d], row = new float[d];
+      for (int t = 0; t < 20; t++) {
+        for (int j = 0; j < d; j++)
+          query[j] = (float) r.nextGaussian();
+        float[] table = q.queryTable(query);
+        double qn = Math.sqrt(dot(query, query));
+        for (int i = 0; i < q.numRows(); i++) {
+          q.getRow(i, row);
+          assertEquals(dot(query, row), q.dot(table, i), 1e-4);
+          assertEquals(Embeddings.cosineSim(query, row), q.cosineSim(table, qn, i), 1e-4);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,164 @@
+package edu.jhu.hlt.tutils.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.jhu.hlt.tutils.data.SvmLightDataIO.Csr;
+import edu.jhu.hlt.tutils.data.SvmLightDataIO.CsrReader;
+
+public class SvmLightDataIOTest {
+
+  private static double parse(String s) {
+    byte[] b = s.getBytes(StandardCharsets.US_ASCII);
+    return SvmLightDataIO.parseNumber(b, 0, b.length);
+  }
+
+  private static void check(String s) {
+    double expected = Double.parseDouble(s);
+    double got = parse(s);
+    // Exact up to 15 significant digits, after that only as a float
+    assertEquals(s, (float) expected, (float) got, 0f);
+    if (s.replaceAll("[^0-9]", "").replaceFirst("^0+", "").length() <= 15)
+      assertEquals(s, expected, got, 0d);
+  }
+
+  @Test
+  public void parseNumberVsParseDouble() {
+    for (String s : Arrays.asList(
+        "0", "1", "-1", "+1", "42", "-0", "007", "1234567890",
+        "0.5", ".5", "-.5", "+.25", "5.", "3.14159", "-2.000",
+        "1e3", "1E3", "1e+3", "1e-3", "-1.5e-7", ".5e2", "2.5E-10", "1e22", "1e-22",
+        "1e23", "1e-23", "1e300", "4.9e-324", "1e-400", "1e400",
+        "123456789012345", "1234567890123456789", "0.1234567890123456789",
+        "3.4028235e38", "1.17549435e-38", "0.000000000000000000001234567",
+        "99999999999999999999999", "NaN", "-Infinity", "0x1p3")) {
+      check(s);
+    }
+    Random r = new Random(1);
+    for (int t = 0; t < 100_000; t++) {
+      StringBuilder sb = new StringBuilder();
+      if (r.nextInt(4) == 0)
+        sb.append(r.nextBoolean() ? '-' : '+');
+      int intDigits = r.nextInt(4) == 0 ? 0 : 1 + r.nextInt(12);
+      for (int i = 0; i < intDigits; i++)
+        sb.append((char) ('0' + r.nextInt(10)));
+      if (intDigits == 0 || r.nextBoolean()) {
+        sb.append('.');
+        int fracDigits = 1 + r.nextInt(r.nextInt(5) == 0 ? 25 : 8);
+        for (int i = 0; i < fracDigits; i++)
+          sb.append((char) ('0' + r.nextInt(10)));
+      }
+      if (r.nextInt(3) == 0)
+        sb.append(r.nextBoolean() ? 'e' : 'E').append(r.nextInt(3) == 0 ? "-" : "").append(r.nextInt(40));
+      check(sb.toString());
+    }
+  }
+
+  /** Random rows with qid:, comments, blank lines, and no newline at the end */
+  private static List<String> writeRandom(File f, int numRows, Random r) throws Exception {
+    List<String> lines = new ArrayList<>();
+    for (int i = 0; i < numRows; i++) {
+      if (r.nextInt(20) == 0)
+        lines.add(r.nextBoolean() ? "" : "# a comment line");
+      StringBuilder sb = new StringBuilder();
+      sb.append(r.nextBoolean() ? "+1" : "-1");
+      if (r.nextInt(3) == 0)
+        sb.append(" qid:").append(r.nextInt(100));
+      int n = r.nextInt(40);
+      for (int j = 0; j < n; j++) {
+        sb.append(r.nextInt(3) == 0 ? "\t" : " ");
+        sb.append(r.nextInt(1_000_000)).append(':');
+        switch (r.nextInt(4)) {
+        case 0: sb.append(r.nextInt(5)); break;
+        case 1: sb.append(r.nextGaussian()); break;
+        case 2: sb.append(String.format("%.3e", r.nextGaussian())); break;
+        default: sb.append((float) r.nextDouble());
+        }
+      }
+      if (r.nextInt(4) == 0)
+        sb.append(" # comment ").append(i).append(" 1:2");
+      lines.add(sb.toString());
+    }
+    try (PrintWriter w = new PrintWriter(f, "UTF-8")) {
+      for (int i = 0; i < lines.size(); i++) {
+        w.print(lines.get(i));
+        if (i < lines.size() - 1)
+          w.print('\n');
+      }
+    }
+    return lines;
+  }
+
+  private static void assertRowEquals(Csr a, int i, Csr b, int j) {
+    assertEquals(a.y[i], b.y[j]);
+    assertArrayEquals(Arrays.copyOfRange(a.col, a.rowPtr[i], a.rowPtr[i + 1]),
+        Arrays.copyOfRange(b.col, b.rowPtr[j], b.rowPtr[j + 1]));
+    assertArrayEquals(Arrays.copyOfRange(a.val, a.rowPtr[i], a.rowPtr[i + 1]),
+        Arrays.copyOfRange(b.val, b.rowPtr[j], b.rowPtr[j + 1]), 0f);
+  }
+
+  @Test
+  public void miniBatchesVsParseCsr() throws Exception {
+    File f = File.createTempFile("svmLightTest", ".txt");
+    f.deleteOnExit();
+    List<String> lines = writeRandom(f, 3000, new Random(2));
+    Csr all = SvmLightDataIO.parseCsr(f);
+
+    // parseCsr vs the lines, without qid, comments, or zeros
+    int row = 0;
+    for (String line : lines) {
+      String data = line.split("#", 2)[0].trim();
+      if (data.isEmpty())
+        continue;
+      String[] toks = data.split("\\s+");
+      List<Integer> col = new ArrayList<>();
+      List<Float> val = new ArrayList<>();
+      for (int k = 1; k < toks.length; k++) {
+        String[] kv = toks[k].split(":");
+        float v = Float.parseFloat(kv[1]);
+        if (kv[0].equals("qid") || v == 0)
+          continue;
+        col.add(Integer.parseInt(kv[0]));
+        val.add(v);
+      }
+      assertEquals(Double.parseDouble(toks[0]) == 1, all.y[row]);
+      assertEquals(col.size(), all.rowLength(row));
+      for (int k = 0; k < col.size(); k++) {
+        assertEquals((int) col.get(k), all.col[all.rowPtr[row] + k]);
+        assertEquals(val.get(k), all.val[all.rowPtr[row] + k], 0f);
+      }
+      row++;
+    }
+    assertEquals(row, all.numRows);
+
+    for (int blockBytes : new int[] {1, 100, 4096, 300_000, CsrReader.DEFAULT_BLOCK_BYTES}) {
+      for (int batchRows : new int[] {1, 7, 1000, 100_000}) {
+        int n = 0;
+        try (CsrReader r = new CsrReader(f, batchRows, blockBytes)) {
+          while (r.hasNext()) {
+            Csr c = r.next();
+            assertFalse(c.numRows == 0);
+            if (n + c.numRows < all.numRows)
+              assertEquals(batchRows, c.numRows);
+            for (int i = 0; i < c.numRows; i++)
+              assertRowEquals(all, n + i, c, i);
+            n += c.numRows;
+          }
+          assertEquals(all.numRows, r.rowsReturned());
+        }
+        assertEquals("blockBytes=" + blockBytes + " batchRows=" + batchRows, all.numRows, n);
+      }
+    }
+  }
+}
@@ -0,0 +1,122 @@
+package edu.jhu.hlt.tutils.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import edu.jhu.hlt.tutils.data.DbpediaToken.Type;
+
+public class TripleStoreTest {
+
+  /** Every combination of bound/wildcard s, p, o vs filtering a set of triples */
+  @Test
+  public void findVsBruteForce() throws Exception {
+    Random r = new Random(1);
+    File f = File.createTempFile("tripleStoreTest", ".bin");
+    f.deleteOnExit();
+    int numTerms = 300;
+    int[] ids = new int[numTerms];
+    Set<List<Integer>> truth = new HashSet<>();
+    TripleStore ts;
+    try (TripleStore.Builder b = new TripleStore.Builder()) {
+      for (int i = 0; i < numTerms; i++) {
+        // The same value with different types are different terms
+        Type t = i % 3 == 0 ? Type.INTEGER : Type.DBPEDIA_ENTITY;
+        ids[i] = b.term(t, "t\u00e9" + (i % 3 == 0 ? i / 3 : i));
+      }
+      for (int i = 0; i < 3000; i++) {
+        int s = ids[r.nextInt(40)], p = ids[r.nextInt(10)], o = ids[r.nextInt(numTerms)];
+        b.add(s, p, o);
+        truth.add(Arrays.asList(s, p, o));
+      }
+      assertEquals(numTerms, b.numTerms());
+      ts = b.build(f);
+    }
+    assertEquals(truth.size(), ts.numTriples());
+    assertEquals(numTerms, ts.numTerms());
+    for (int i = 0; i < numTerms; i++)
+      assertEquals(ids[i], ts.id(ts.type(ids[i]), ts.value(ids[i])));
+    assertEquals(ids[0], ts.id(Type.INTEGER, "t\u00e90"));
+    assertEquals(TripleStore.NOT_FOUND, ts.id(Type.DATE, "t\u00e90"));
+    assertEquals(0, ts.find(TripleStore.NOT_FOUND, TripleStore.ANY, TripleStore.ANY).size());
+
+    TripleStore.Range reuse = null;
+    for (int q = 0; q < 1000; q++) {
+      int s = r.nextBoolean() ? TripleStore.ANY : ids[r.nextInt(40)];
+      int p = r.nextBoolean() ? TripleStore.ANY : ids[r.nextInt(10)];
+      int o = r.nextBoolean() ? TripleStore.ANY : ids[r.nextInt(numTerms)];
+      Set<List<Integer>> expected = new HashSet<>();
+      for (List<Integer> t : truth)
+        if ((s < 0 || t.get(0) == s) && (p < 0 || t.get(1) == p) && (o < 0 || t.get(2) == o))
+          expected.add(t);
+      reuse = ts.find(s, p, o, reuse);
+      Set<List<Integer>> got = new HashSet<>();
+      for (int i = 0; i < reuse.size(); i++)
+        got.add(Arrays.asList(reuse.s(i), reuse.p(i), reuse.o(i)));
+      assertEquals(reuse.size(), got.size());
+      assertEquals(expected, got);
+      assertEquals(expected.size(), ts.count(s, p, o));
+      if (s >= 0 && p >= 0 && o >= 0)
+        assertEquals(!expected.isEmpty(), ts.contains(s, p, o));
+    }
+
+    // Re-open from disk
+    TripleStore ts2 = new TripleStore(f);
+    assertEquals(ts.numTriples(), ts2.numTriples());
+    for (int i = 0; i < 40; i++)
+      assertEquals(ts.count(ids[i], TripleStore.ANY, TripleStore.ANY), ts2.count(ids[i], TripleStore.ANY, TripleStore.ANY));
+    ts.close();
+    ts2.close();
+  }
+
+  @Test
+  public void fromTtl() throws Exception {
+    File ttl = File.createTempFile("tripleStoreTest", ".ttl");
+    ttl.deleteOnExit();
+    try (PrintWriter w = new PrintWriter(ttl, "UTF-8")) {
+      w.println("<http://dbpedia.org/resource/A> <http://dbpedia.org/ontology/p> \"12\"^^<http://www.w3.org/2001/XMLSchema#integer> .");
+      w.println("<http://dbpedia.org/resource/A> <http://dbpedia.org/ontology/q> <http://dbpedia.org/resource/B> .");
+      w.println("<http://dbpedia.org/resource/A> <http://dbpedia.org/ontology/q> <http://dbpedia.org/resource/B> .");
+      w.println("<http://dbpedia.org/resource/B> <http://dbpedia.org/ontology/r> <http://dbpedia.org/resource/A> .");
+    }
+    File f = File.createTempFile("tripleStoreTest", ".bin");
+    f.deleteOnExit();
+    TripleStore ts;
+    try (TripleStore.Builder b = new TripleStore.Builder()) {
+      assertEquals(4, b.addAll(ttl, null));
+      ts = b.build(f);
+    }
+    // the duplicate is stored once
+    assertEquals(3, ts.numTriples());
+    int a = ts.entity("http://dbpedia.org/resource/A");
+    int bb = ts.entity("http://dbpedia.org/resource/B");
+    assertTrue(a >= 0 && bb >= 0);
+    assertEquals(2, ts.count(a, TripleStore.ANY, TripleStore.ANY));
+    assertEquals(1, ts.count(TripleStore.ANY, TripleStore.ANY, a));
+    assertEquals(1, ts.count(bb, TripleStore.ANY, a));
+    assertEquals(0, ts.count(a, TripleStore.ANY, a));
+    int q = ts.entity("http://dbpedia.org/ontology/q");
+    assertTrue(ts.contains(a, q, bb));
+    assertFalse(ts.contains(bb, q, a));
+    // wildcards aren't allowed
+    assertFalse(ts.contains(bb, TripleStore.ANY, a));
+    List<Type> objectTypes = new ArrayList<>();
+    TripleStore.Range r = ts.find(a, TripleStore.ANY, TripleStore.ANY);
+    for (int i = 0; i < r.size(); i++)
+      objectTypes.add(ts.type(r.o(i)));
+    assertTrue(objectTypes.contains(Type.INTEGER));
+    assertTrue(objectTypes.contains(Type.DBPEDIA_ENTITY));
+    ts.close();
+  }
+}
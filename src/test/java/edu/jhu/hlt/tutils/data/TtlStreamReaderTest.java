@@ -0,0 +1,177 @@
+package edu.jhu.hlt.tutils.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.jhu.hlt.tutils.Alphabet;
+import edu.jhu.hlt.tutils.data.DbpediaToken.Type;
+
+public class TtlStreamReaderTest {
+
+  private static final String R = "http://dbpedia.org/resource/";
+  private static final String O = "http://dbpedia.org/ontology/";
+
+  private static TtlStreamReader reader(String text) {
+    return new TtlStreamReader(new ByteArrayInputStream(text.getBytes(StandardCharsets.UTF_8)));
+  }
+
+  private static void assertTriple(TtlStreamReader r, String s, String p, String o, Type ot) throws Exception {
+    assertTrue(r.next());
+    assertEquals(s, r.value(TtlStreamReader.SUBJ));
+    assertEquals(Type.DBPEDIA_ENTITY, r.type(TtlStreamReader.SUBJ));
+    assertEquals(p, r.value(TtlStreamReader.PRED));
+    assertEquals(o, r.value(TtlStreamReader.OBJ));
+    assertEquals(ot, r.type(TtlStreamReader.OBJ));
+  }
+
+  @Test
+  public void terms() throws Exception {
+    String text = ""
+        + "# a comment\n"
+        + "\n"
+        + "<" + R + "A> <" + O + "p> <" + R + "B> .\n"
+        + "<" + R + "A> <" + O + "p> \"say \\\"hi\\\" now\"@en .\n"
+        + "<" + R + "A>\t<" + O + "p>   \"12\"^^<http://www.w3.org/2001/XMLSchema#integer>\t.\r\n"
+        + "<" + R + "A> <" + O + "p> \"2001-01-01\"^^<http://www.w3.org/2001/XMLSchema#date> .\n"
+        + "<" + R + "A> <" + O + "p> \"Caf\u00e9\"@en-US .\n"
+        + "<" + R + "A> <" + O + "p> \"x\"^^<http://example.org/type> .\n"
+        + "<" + R + "A> <" + O + "q> \"\\\\\" .\n"
+        // malformed
+        + "<" + R + "A> <" + O + "p> <" + R + "B>\n"
+        + "<" + R + "A> <" + O + "p> <" + R + "B> . extra\n"
+        + "<" + R + "A> <" + O + "p <" + R + "B> .\n"
+        + "_:b1 <" + O + "p> <" + R + "B> .\n"
+        + "<" + R + "A> \"p\" <" + R + "B> .\n"
+        + "<" + R + "A> <" + O + "p> \"unterminated .\n"
+        + "<" + R + "A> <" + O + "p> \"escaped end\\\" .\n"
+        // no newline at the end
+        + "<" + R + "\u00c9> <" + O + "q> <" + R + "B> .";
+    try (TtlStreamReader r = reader(text)) {
+      assertTriple(r, R + "A", O + "p", R + "B", Type.DBPEDIA_ENTITY);
+      // escapes are left in the value
+      assertTriple(r, R + "A", O + "p", "say \\\"hi\\\" now", Type.STRING_ENGLISH);
+      assertTriple(r, R + "A", O + "p", "12", Type.INTEGER);
+      assertTriple(r, R + "A", O + "p", "2001-01-01", Type.DATE);
+      assertTriple(r, R + "A", O + "p", "Caf\u00e9", Type.OTHER);
+      assertTriple(r, R + "A", O + "p", "x", Type.OTHER);
+      assertTriple(r, R + "A", O + "q", "\\\\", Type.OTHER);
+      assertTriple(r, R + "\u00c9", O + "q", R + "B", Type.DBPEDIA_ENTITY);
+      assertFalse(r.next());
+      assertEquals(8, r.getNumTriples());
+      // 2 comment/blank + 7 malformed
+      assertEquals(9, r.getNumSkipped());
+      assertEquals(0, r.getNumFiltered());
+    }
+  }
+
+  @Test
+  public void predicateFilter() throws Exception {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 100; i++)
+      sb.append("<" + R + "S" + i + "> <" + O + "p" + (i % 5) + "> \"v" + i + "\"@en .\n");
+    try (TtlStreamReader r = reader(sb.toString())) {
+      r.setPredicateFilter(Arrays.asList(O + "p1", O + "p3", O + "notUsed"));
+      int n = 0;
+      while (r.next()) {
+        String p = r.value(TtlStreamReader.PRED);
+        assertTrue(p, p.equals(O + "p1") || p.equals(O + "p3"));
+        n++;
+      }
+      assertEquals(40, n);
+      assertEquals(40, r.getNumTriples());
+      assertEquals(60, r.getNumFiltered());
+      assertEquals(0, r.getNumSkipped());
+    }
+  }
+
+  /** Random triples, some with long objects, and some bad lines */
+  private static File writeRandom(int numLines, Random rand) throws Exception {
+    File f = File.createTempFile("ttlStreamReaderTest", ".ttl");
+    f.deleteOnExit();
+    try (PrintWriter w = new PrintWriter(f, "UTF-8")) {
+      for (int i = 0; i < numLines; i++) {
+        String s = "<" + R + "E" + (int) Math.pow(500, rand.nextDouble()) + ">";
+        String p = "<" + O + "p" + rand.nextInt(8) + ">";
+        String o;
+        switch (rand.nextInt(5)) {
+        case 0: o = "\"" + rand.nextInt(1000) + "\"^^<http://www.w3.org/2001/XMLSchema#integer>"; break;
+        case 1: o = "\"w\u00e9 \\\"" + rand.nextInt(300) + "\\\"\"@en"; break;
+        case 2:
+          // longer than the blocks used below
+          char[] c = new char[100 + rand.nextInt(600)];
+          Arrays.fill(c, (char) ('a' + rand.nextInt(26)));
+          o = "\"" + new String(c) + "\"@de";
+          break;
+        default: o = "<" + R + "E" + rand.nextInt(500) + ">";
+        }
+        if (rand.nextInt(50) == 0)
+          w.print("# comment\n");
+        if (rand.nextInt(50) == 0)
+          w.print(s + " " + p + " \"bad\n");
+        w.print(s + " " + p + " " + o + " .");
+        if (i < numLines - 1)
+          w.print('\n');
+      }
+    }
+    return f;
+  }
+
+  private static List<String> values(TtlStreamReader r) {
+    return Arrays.asList(r.value(TtlStreamReader.SUBJ), r.value(TtlStreamReader.PRED),
+        r.value(TtlStreamReader.OBJ), r.type(TtlStreamReader.OBJ).name());
+  }
+
+  @Test
+  public void parallelVsSerial() throws Exception {
+    File f = writeRandom(5000, new Random(1));
+    for (List<String> keep : Arrays.asList(null, Arrays.asList(O + "p0", O + "p5"))) {
+      // Serial: ids in first-occurrence order
+      Alphabet<String> serialAlph = new Alphabet<>();
+      List<Integer> serialIds = new ArrayList<>();
+      List<List<String>> serialValues = new ArrayList<>();
+      try (TtlStreamReader r = new TtlStreamReader(f)) {
+        r.setAlphabet(serialAlph::lookupIndex);
+        r.setPredicateFilter(keep);
+        while (r.next()) {
+          for (int t = 0; t < 3; t++)
+            serialIds.add(r.id(t));
+          serialIds.add(r.type(TtlStreamReader.OBJ).ordinal());
+          serialValues.add(values(r));
+        }
+      }
+      Collections.sort(serialValues, (a, b) -> a.toString().compareTo(b.toString()));
+
+      // Block sizes smaller than some lines, and many pieces per block
+      for (int[] sizes : new int[][] {{64, 1}, {4096, 512}, {1 << 20, 16 * 1024}, {TtlStreamReader.DEFAULT_BLOCK_BYTES, 1 << 20}}) {
+        Alphabet<String> alph = new Alphabet<>();
+        List<Integer> ids = new ArrayList<>();
+        long n = TtlStreamReader.readIdsParallel(f, alph::lookupIndex, keep, (block, numTriples) -> {
+          for (int i = 0; i < 4 * numTriples; i++)
+            ids.add(block[i]);
+        }, sizes[0], sizes[1]);
+        assertEquals(serialIds.size() / 4, n);
+        assertEquals(Arrays.toString(sizes), serialIds, ids);
+        assertEquals(serialAlph.getObjects(), alph.getObjects());
+
+        List<List<String>> parallelValues = Collections.synchronizedList(new ArrayList<>());
+        long n2 = TtlStreamReader.forEachParallel(f, keep, r -> parallelValues.add(values(r)), sizes[0], sizes[1]);
+        Collections.sort(parallelValues, (a, b) -> a.toString().compareTo(b.toString()));
+        assertEquals(n, n2);
+        assertEquals(serialValues, parallelValues);
+      }
+    }
+  }
+}
@@ -0,0 +1,235 @@
+package edu.jhu.hlt.tutils.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class WordNetGraphTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  /**
+   * Noun synsets in the WordNet database format, with {i} standing for the
+   * offset of the i^th synset:
+   *   0 {dog, domestic_dog} --hypernym--> 1 {canine, canid}
+   *   1 --hyponym--> 0, 3
+   *   2 {doggy} (dog --derivation--> doggy, a lexical pointer)
+   *   3 {wolf, gray_wolf, Canis_lupus} --hypernym--> 1
+   *   4 {canine, eyetooth} (a second sense of canine)
+   *   5 {cat} (no edges)
+   * e.g. dog -> canine -> wolf and dog -> canid -> wolf are the same path.
+   */
+  private static final String[] NOUNS = new String[] {
+      "{0} 05 n 02 dog 0 domestic_dog 0 002 @ {1} n 0000 + {2} n 0101 | a dog  ",
+      "{1} 05 n 02 canine 0 canid 0 002 ~ {0} n 0000 ~ {3} n 0000 | a canine  ",
+      "{2} 05 n 01 doggy 0 001 + {0} n 0101 | a small dog  ",
+      "{3} 05 n 03 wolf 0 gray_wolf 0 Canis_lupus 0 001 @ {1} n 0000 | a wolf  ",
+      "{4} 08 n 02 canine 1 eyetooth 0 000 | a tooth  ",
+      "{5} 05 n 01 cat 0 000 | a cat  ",
+  };
+
+  /** lemma -> synsets */
+  private static final String[][] NOUN_INDEX = new String[][] {
+      {"canid", "1"}, {"canine", "1", "4"}, {"canis_lupus", "3"}, {"cat", "5"},
+      {"dog", "0"}, {"doggy", "2"}, {"domestic_dog", "0"}, {"eyetooth", "4"},
+      {"gray_wolf", "3"}, {"wolf", "3"},
+  };
+
+  private static String fill(String template, long[] offsets) {
+    for (int i = 0; i < offsets.length; i++)
+      template = template.replace("{" + i + "}", String.format("%08d", offsets[i]));
+    return template;
+  }
+
+  /** Files start with a comment line (two spaces) */
+  private static final String HEADER = "  test dictionary\n";
+
+  /** Writes data.pos and index.pos */
+  private static void write(File dir, String pos, String[] data, String[][] index) throws Exception {
+    // All offsets are 8 digits, so the line lengths don't depend on them
+    long[] offsets = new long[data.length];
+    long o = HEADER.length();
+    for (int i = 0; i < data.length; i++) {
+      offsets[i] = o;
+      o += fill(data[i], new long[data.length]).length() + 1;
+    }
+    try (PrintWriter w = new PrintWriter(new File(dir, "data." + pos), "US-ASCII")) {
+      w.print(HEADER);
+      for (String line : data)
+        w.print(fill(line, offsets) + "\n");
+    }
+    try (PrintWriter w = new PrintWriter(new File(dir, "index." + pos), "US-ASCII")) {
+      w.print(HEADER);
+      for (String[] x : index) {
+        Set<String> ptrs = new TreeSet<>();
+        for (int i = 1; i < x.length; i++)
+          for (String t : data[Integer.parseInt(x[i])].split(" "))
+            if (t.equals("@") || t.equals("~") || t.equals("+"))
+              ptrs.add(t);
+        StringBuilder sb = new StringBuilder();
+        sb.append(x[0] + " " + data[0].split(" ")[2] + " " + (x.length - 1) + " " + ptrs.size());
+        for (String p : ptrs)
+          sb.append(" " + p);
+        sb.append(" " + (x.length - 1) + " 0");
+        for (int i = 1; i < x.length; i++)
+          sb.append(" " + fill("{" + x[i] + "}", offsets));
+        w.print(sb + "  \n");
+      }
+    }
+  }
+
+  /** JWI needs at least one synset in every data file, the exception files, and index.sense */
+  private File dict() throws Exception {
+    File dir = tmp.newFolder();
+    for (String pos : Arrays.asList("noun", "verb", "adj", "adv")) {
+      try (PrintWriter w = new PrintWriter(new File(dir, pos + ".exc"), "US-ASCII")) {
+        w.print("wolves wolf\n");
+      }
+    }
+    try (PrintWriter w = new PrintWriter(new File(dir, "index.sense"), "US-ASCII")) {
+      w.print("bark%2:29:00:: " + String.format("%08d", HEADER.length()) + " 1 0\n");
+    }
+    write(dir, "noun", NOUNS, NOUN_INDEX);
+    write(dir, "verb", new String[] {"{0} 29 v 01 bark 0 000 01 + 02 00 | make a sound  "}, new String[][] {{"bark", "0"}});
+    write(dir, "adj", new String[] {"{0} 00 a 01 big 0 000 | large  "}, new String[][] {{"big", "0"}});
+    write(dir, "adv", new String[] {"{0} 02 r 01 fast 0 000 | quickly  "}, new String[][] {{"fast", "0"}});
+    return dir;
+  }
+
+  private static Set<String> lines(File f) throws Exception {
+    List<String> l = Files.readAllLines(f.toPath());
+    return new HashSet<>(l);
+  }
+
+  /** The lines from the recursive and CSR versions of the dump are the same */
+  @Test
+  public void dumpVsDumpRecursive() throws Exception {
+    WordNetGraphDump d = new WordNetGraphDump();
+    d.load(dict());
+    for (boolean relatedWords : new boolean[] {false, true}) {
+      d.emitRelatedWords = relatedWords;
+      WordNetGraph g = d.compile();
+      assertEquals(9, g.numSynsets());
+      assertEquals(14, g.numWords());
+      for (int k = 1; k <= 4; k++) {
+        d.maxPathLength = k;
+        File rec = tmp.newFile();
+        d.dumpRecursive(rec);
+        File par = tmp.newFile();
+        d.dump(g, par);
+        long n = d.numEmitted();
+        assertEquals("k=" + k + " relatedWords=" + relatedWords, lines(rec), lines(par));
+        // numEmitted is the number of paths from this call, not all calls
+        d.dump(g, par);
+        assertEquals(n, d.numEmitted());
+      }
+    }
+    d.close();
+  }
+
+  private static Map<String, Integer> wordIds(WordNetGraph g) {
+    Map<String, Integer> m = new HashMap<>();
+    for (int i = 0; i < g.numWords(); i++)
+      m.put(g.lemma(i) + "/" + g.synset(i), i);
+    return m;
+  }
+
+  /** (source, dest, path) triples from word source */
+  private static List<String> paths(WordNetGraph g, int maxEdges, int source) {
+    List<String> l = new ArrayList<>();
+    g.paths(maxEdges, 3, b -> {
+      synchronized (l) {
+        for (int i = 0; i < b.size; i++)
+          if (b.source[i] == source)
+            l.add(g.lemma(b.dest[i]) + "/" + g.synset(b.dest[i]) + " " + g.pathString(b.path[i]));
+      }
+    });
+    return l;
+  }
+
+  @Test
+  public void backEdgesAndDedup() throws Exception {
+    WordNetGraphDump d = new WordNetGraphDump();
+    d.load(dict());
+    WordNetGraph g = d.compile();
+    d.close();
+    Map<String, Integer> w = wordIds(g);
+    int dog = w.get("dog/0");
+
+    List<String> p1 = paths(g, 1, dog);
+    assertEquals(new TreeSet<>(Arrays.asList(
+        "domestic_dog/0 synonym",
+        "canine/1 syn/hypernym",
+        "canid/1 syn/hypernym")), new TreeSet<>(p1));
+
+    List<String> p2 = paths(g, 2, dog);
+    assertEquals(new HashSet<>(p2).size(), p2.size());
+    // dog -> canine -> wolf and dog -> canid -> wolf: once
+    assertTrue(p2.contains("wolf/3 syn/hypernym_syn/hyponym"));
+    // Not straight back to dog...
+    assertFalse(p2.contains("dog/0 synonym_synonym"));
+    assertFalse(p2.contains("dog/0 syn/hypernym_syn/hyponym"));
+    // ...but to another word in dog's synset
+    assertTrue(p2.contains("domestic_dog/0 syn/hypernym_syn/hyponym"));
+    assertTrue(p2.contains("canid/1 syn/hypernym_synonym"));
+    // Three edges may come back to the source
+    assertTrue(paths(g, 3, dog).contains("dog/0 synonym_syn/hypernym_syn/hyponym"));
+
+    long total = g.paths(3, 1 << 10, b -> {});
+    long sum = 0;
+    for (int i = 0; i < g.numWords(); i++)
+      sum += paths(g, 3, i).size();
+    assertEquals(total, sum);
+  }
+
+  @Test
+  public void saveLoad() throws Exception {
+    WordNetGraphDump d = new WordNetGraphDump();
+    d.load(dict());
+    d.emitRelatedWords = true;
+    WordNetGraph g = d.compile();
+    d.close();
+    for (String name : Arrays.asList("wng.bin", "wng.bin.gz")) {
+      File f = new File(tmp.getRoot(), name);
+      g.save(f);
+      WordNetGraph h = WordNetGraph.load(f);
+      assertEquals(g.numWords(), h.numWords());
+      assertEquals(g.numSynsets(), h.numSynsets());
+      assertEquals(g.numEdges(), h.numEdges());
+      assertEquals(g.numRelations(), h.numRelations());
+      for (int r = 0; r < g.numRelations(); r++)
+        assertEquals(g.relationName(r), h.relationName(r));
+      for (int s = 0; s < g.numSynsets(); s++)
+        assertEquals(g.synsetId(s), h.synsetId(s));
+      for (int i = 0; i < g.numWords(); i++) {
+        assertEquals(g.lemma(i), h.lemma(i));
+        assertEquals(g.synset(i), h.synset(i));
+        assertEquals(g.edgeStart(i), h.edgeStart(i));
+      }
+      assertEquals(g.edgeStart(g.numWords()), h.edgeStart(h.numWords()));
+      for (int e = 0; e < g.numEdges(); e++) {
+        assertEquals(g.target(e), h.target(e));
+        assertEquals(g.relation(e), h.relation(e));
+      }
+      for (int i = 0; i < g.numWords(); i++)
+        assertEquals(new TreeSet<>(paths(g, 3, i)), new TreeSet<>(paths(h, 3, i)));
+    }
+  }
+}
@@ -0,0 +1,271 @@
+package edu.jhu.hlt.tutils.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+import edu.jhu.hlt.tutils.ConcreteToDocument;
+import edu.jhu.hlt.tutils.Document;
+import edu.jhu.hlt.tutils.MultiAlphabet;
+import edu.jhu.hlt.tutils.ling.Language;
+import edu.mit.jwi.IRAMDictionary;
+import edu.mit.jwi.item.IIndexWord;
+import edu.mit.jwi.item.IndexWord;
+import edu.mit.jwi.item.POS;
+import edu.mit.jwi.item.SynsetID;
+import edu.mit.jwi.item.WordID;
+
+public class WordNetSynsetCacheTest {
+
+  /** A dictionary which only has index words, and counts getIndexWord calls */
+  private static class FakeDictionary {
+    Map<String, IIndexWord> index = new HashMap<>();
+    int lookups = 0;
+
+    /** synsets are offsets of the senses, most frequent first */
+    FakeDictionary add(String lemma, POS pos, int... synsets) {
+      WordID[] ids = new WordID[synsets.length];
+      for (int i = 0; i < synsets.length; i++)
+        ids[i] = new WordID(new SynsetID(synsets[i], pos), lemma);
+      index.put(lemma + "/" + pos, new IndexWord(lemma, pos, 0, ids));
+      return this;
+    }
+
+    IRAMDictionary proxy() {
+      return (IRAMDictionary) Proxy.newProxyInstance(getClass().getClassLoader(),
+          new Class<?>[] {IRAMDictionary.class}, (p, m, args) -> {
+            if (m.getName().equals("getIndexWord") && args.length == 2) {
+              lookups++;
+              return index.get(args[0] + "/" + args[1]);
+            }
+            throw new UnsupportedOperationException(m.getName());
+          });
+    }
+  }
+
+  private static FakeDictionary dictionary() {
+    return new FakeDictionary()
+        .add("dog", POS.NOUN, 2084071, 10114209)
+        .add("run", POS.VERB, 1926311, 2075049)
+        .add("run", POS.NOUN, 189565)
+        .add("big", POS.ADJECTIVE, 1382086)
+        .add("fast", POS.ADVERB, 85811);
+  }
+
+  private static String sid(int offset, char pos) {
+    return String.format("SID-%08d-%c", offset, pos);
+  }
+
+  @Test
+  public void firstSenseOrUnknown() {
+    FakeDictionary fd = dictionary();
+    MultiAlphabet a = new MultiAlphabet();
+    WordNetSynsetCache c = new WordNetSynsetCache(fd.proxy(), a, 1000);
+    assertEquals(1024, c.capacity());
+    assertSame(a, c.getAlphabet());
+    int unk = a.wnSynset(MultiAlphabet.UNKNOWN);
+    assertEquals(sid(2084071, 'N'), a.wnSynset(c.synset(a.word("dog"), a.pos("NN"))));
+    assertEquals(sid(2084071, 'N'), a.wnSynset(c.synset(a.word("dog"), a.pos("NNS"))));
+    assertEquals(sid(1926311, 'V'), a.wnSynset(c.synset(a.word("run"), a.pos("VBD"))));
+    assertEquals(sid(189565, 'N'), a.wnSynset(c.synset(a.word("run"), a.pos("NN"))));
+    assertEquals(sid(1382086, 'A'), a.wnSynset(c.synset(a.word("big"), a.pos("JJR"))));
+    assertEquals(sid(85811, 'R'), a.wnSynset(c.synset(a.word("fast"), a.pos("RB"))));
+    // Not in WordNet, or not a content word tag
+    assertEquals(unk, c.synset(a.word("cat"), a.pos("NN")));
+    assertEquals(unk, c.synset(a.word("big"), a.pos("NN")));
+    assertEquals(unk, c.synset(a.word("dog"), a.pos("DT")));
+    assertEquals(unk, c.synset(a.word("the"), a.pos("DT")));
+    // DT never goes to the dictionary, and dog/NNS is dog/n like dog/NN
+    assertEquals(7, fd.lookups);
+  }
+
+  @Test
+  public void counters() {
+    FakeDictionary fd = dictionary();
+    MultiAlphabet a = new MultiAlphabet();
+    WordNetSynsetCache c = new WordNetSynsetCache(fd.proxy(), a, 64);
+    int dog = a.word("dog"), the = a.word("the"), nn = a.pos("NN"), dt = a.pos("DT");
+    assertEquals(0, c.getHitRate(), 0);
+    c.synset(dog, nn);
+    c.synset(dog, nn);
+    c.synset(the, dt);
+    c.synset(the, dt);
+    c.synset(dog, nn);
+    assertEquals(3, c.getHits());
+    assertEquals(2, c.getMisses());
+    assertEquals(1, c.getDictionaryLookups());
+    assertEquals(0.6, c.getHitRate(), 1e-9);
+    assertEquals(1, fd.lookups);
+    assertEquals("(WordNetSynsetCache capacity=64 hits=3 misses=2 dictLookups=1 hitRate=0.600)", c.toString());
+    c.resetStats();
+    assertEquals(0, c.getHits());
+    assertEquals(0, c.getMisses());
+    assertEquals(0, c.getDictionaryLookups());
+    // Still cached
+    c.synset(dog, nn);
+    assertEquals(1, c.getHits());
+  }
+
+  /** With 2 slots keys evict each other, but the answers are the same */
+  @Test
+  public void collisions() {
+    FakeDictionary fd = dictionary();
+    MultiAlphabet a = new MultiAlphabet();
+    WordNetSynsetCache small = new WordNetSynsetCache(fd.proxy(), a, 1);
+    WordNetSynsetCache big = new WordNetSynsetCache(fd.proxy(), new MultiAlphabet(), 1 << 10);
+    assertEquals(2, small.capacity());
+    Random r = new Random(1);
+    String[] lemmas = {"dog", "run", "big", "fast", "cat"};
+    String[] tags = {"NN", "VB", "JJ", "RB", "IN"};
+    for (int t = 0; t < 500; t++) {
+      String l = lemmas[r.nextInt(lemmas.length)], p = tags[r.nextInt(tags.length)];
+      MultiAlphabet b = big.getAlphabet();
+      assertEquals(l + "/" + p, b.wnSynset(big.synset(b.word(l), b.pos(p))),
+          a.wnSynset(small.synset(a.word(l), a.pos(p))));
+    }
+    assertEquals(500, small.getHits() + small.getMisses());
+  }
+
+  private static List<Document> randomDocs(MultiAlphabet a, Random r) {
+    String[] words = {"dog", "dogs", "run", "ran", "big", "fast", "the", "cat"};
+    String[] lemmas = {"dog", "dog", "run", "run", "big", "fast", "the", "cat"};
+    String[] tags = {"NN", "NNS", "VB", "VBD", "JJ", "RB", "DT", "IN"};
+    List<Document> docs = new ArrayList<>();
+    for (int d = 0; d < 20; d++) {
+      Document doc = new Document("doc" + d, d, a);
+      for (int i = 0; i < 100; i++) {
+        Document.Token t = doc.newToken();
+        int w = r.nextInt(words.length);
+        t.setWord(a.word(words[w]));
+        if (r.nextBoolean())
+          t.setLemma(a.word(lemmas[w]));
+        switch (r.nextInt(4)) {
+        case 0: t.setPosG(a.pos(tags[r.nextInt(tags.length)])); break;
+        case 1: t.setPosH(a.pos(tags[r.nextInt(tags.length)])); break;
+        case 2:
+          t.setPosG(a.pos(tags[r.nextInt(tags.length)]));
+          t.setPosH(a.pos("DT"));
+          break;
+        default:    // no tag
+        }
+      }
+      docs.add(doc);
+    }
+    return docs;
+  }
+
+  private static long tagged(List<Document> docs) {
+    long n = 0;
+    for (Document d : docs)
+      for (int i = 0; i < d.numTokens(); i++)
+        if (d.getPosG(i) >= 0 || d.getPosH(i) >= 0)
+          n++;
+    return n;
+  }
+
+  @Test
+  public void tagDocumentsVsSynsetToken() {
+    MultiAlphabet a = new MultiAlphabet();
+    List<Document> docs = randomDocs(a, new Random(2));
+    WordNetSynsetCache perToken = new WordNetSynsetCache(dictionary().proxy(), a, 1 << 10);
+    FakeDictionary fd = dictionary();
+    WordNetSynsetCache batch = new WordNetSynsetCache(fd.proxy(), a, 1 << 10);
+    batch.tagDocuments(docs);
+
+    long numTagged = 0;
+    Map<Long, Integer> keys = new HashMap<>();
+    for (Document d : docs) {
+      for (int i = 0; i < d.numTokens(); i++) {
+        Document.Token t = d.getToken(i);
+        int expected = perToken.synset(t);
+        assertEquals(expected, t.getWnSynset());
+        if (expected == Document.UNINITIALIZED)
+          continue;
+        numTagged++;
+        int pos = t.getPosG() >= 0 ? t.getPosG() : t.getPosH();
+        int lemma = t.getLemma() >= 0 ? t.getLemma() : t.getWord();
+        keys.put(((long) lemma << 32) | pos, expected);
+      }
+    }
+    // Each distinct key is a miss once, everything else in the batch is a hit
+    assertEquals(keys.size(), batch.getMisses());
+    assertEquals(numTagged - keys.size(), batch.getHits());
+    assertEquals(fd.lookups, batch.getDictionaryLookups());
+
+    // Nothing new the second time (keys which collided are misses again,
+    // but don't go back to the dictionary)
+    int lookups = fd.lookups;
+    batch.resetStats();
+    batch.tagDocuments(docs.subList(0, 10));
+    assertEquals(0, batch.getDictionaryLookups());
+    assertEquals(lookups, fd.lookups);
+    assertEquals(tagged(docs.subList(0, 10)), batch.getHits() + batch.getMisses());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void tagDocumentsOtherAlphabet() {
+    WordNetSynsetCache c = new WordNetSynsetCache(dictionary().proxy(), new MultiAlphabet(), 16);
+    c.tagDocuments(Arrays.asList(new Document("doc", 0, new MultiAlphabet())));
+  }
+
+  /** A cache for a new alphabet doesn't go back to the dictionary */
+  @Test
+  public void sharedAcrossAlphabets() {
+    FakeDictionary fd = dictionary();
+    MultiAlphabet a1 = new MultiAlphabet();
+    WordNetSynsetCache c1 = new WordNetSynsetCache(fd.proxy(), a1, 1 << 10);
+    c1.synset(a1.word("dog"), a1.pos("NN"));
+    c1.synset(a1.word("cat"), a1.pos("NN"));
+    assertEquals(2, fd.lookups);
+
+    MultiAlphabet a2 = new MultiAlphabet();
+    a2.word("padding");
+    WordNetSynsetCache c2 = new WordNetSynsetCache(c1, a2);
+    assertSame(a2, c2.getAlphabet());
+    assertEquals(c1.capacity(), c2.capacity());
+    assertEquals(sid(2084071, 'N'), a2.wnSynset(c2.synset(a2.word("dog"), a2.pos("NNS"))));
+    assertEquals(a2.wnSynset(MultiAlphabet.UNKNOWN), c2.synset(a2.word("cat"), a2.pos("NN")));
+    assertEquals(2, fd.lookups);
+    assertEquals(2, c1.getDictionaryLookups());
+    assertEquals(4, c2.getMisses());
+    c2.synset(a2.word("run"), a2.pos("VB"));
+    assertEquals(3, fd.lookups);
+  }
+
+  @Test
+  public void concreteToDocumentCache() {
+    ConcreteToDocument none = new ConcreteToDocument(null, null, null, Language.EN);
+    assertNull(none.getWordNetCache(new MultiAlphabet()));
+
+    FakeDictionary fd = dictionary();
+    ConcreteToDocument c2d = new ConcreteToDocument(null, null, fd.proxy(), Language.EN);
+    assertNull(c2d.getWordNetCache(null));
+    MultiAlphabet a1 = new MultiAlphabet();
+    WordNetSynsetCache c1 = c2d.getWordNetCache(a1);
+    assertSame(c1, c2d.getWordNetCache(a1));
+    assertSame(c1, c2d.getWordNetCache(null));
+    c1.synset(a1.word("dog"), a1.pos("NN"));
+    assertEquals(1, fd.lookups);
+
+    // One alphabet per document
+    for (int i = 0; i < 5; i++) {
+      MultiAlphabet a = new MultiAlphabet();
+      WordNetSynsetCache c = c2d.getWordNetCache(a);
+      assertNotSame(c1, c);
+      assertSame(a, c.getAlphabet());
+      assertEquals(sid(2084071, 'N'), a.wnSynset(c.synset(a.word("dog"), a.pos("NN"))));
+    }
+    assertEquals(1, fd.lookups);
+  }
+}
@@ -0,0 +1,133 @@
+package edu.jhu.hlt.tutils.features;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Test;
+
+import edu.jhu.hlt.tutils.Document;
+import edu.jhu.hlt.tutils.MultiAlphabet;
+import edu.jhu.prim.vector.IntDoubleVector;
+
+public class FeatureSetTest {
+
+  private static final List<String> TOKEN_FEATS = Arrays.asList(
+      "word[0]", "pos[0]", "word[-1]", "word[0] * pos[1]", "pos[0] * pos[1]", "pos[-1] * word[0]");
+  private static final List<String> CONS_FEATS = Arrays.asList(
+      "cons.lhs", "cons.lhs * cons.width", "cons.lhs * cons.first.word",
+      "cons.lhs * cons.last.word", "cons.first.pos * cons.lhs * cons.last.pos");
+
+  private boolean multiThreaded = Template.MULTI_THREADED;
+
+  @After
+  public void restore() {
+    Template.MULTI_THREADED = multiThreaded;
+  }
+
+  private static List<Document> randomDocuments(int numDocs, MultiAlphabet alph, Random rand) {
+    List<Document> docs = new ArrayList<>();
+    for (int d = 0; d < numDocs; d++) {
+      Document doc = new Document("doc" + d, d, alph);
+      int numTokens = 1 + rand.nextInt(100);
+      for (int i = 0; i < numTokens; i++) {
+        Document.Token t = doc.newToken();
+        t.setWord(alph.word("w" + (int) Math.pow(2000, rand.nextDouble())));
+        t.setPosH(alph.pos("p" + rand.nextInt(20)));
+      }
+      int numCons = rand.nextInt(60);
+      for (int i = 0; i < numCons; i++) {
+        Document.Constituent c = doc.newConstituent();
+        int first = rand.nextInt(numTokens);
+        c.setLhs(alph.cfg("X" + rand.nextInt(10)));
+        c.setFirstToken(first);
+        c.setLastToken(Math.min(numTokens - 1, first + rand.nextInt(8)));
+      }
+      docs.add(doc);
+    }
+    return docs;
+  }
+
+  private static IntDoubleVector get(DocumentFeatures<IntDoubleVector> df, String mode, int i) {
+    return mode.equals("TOKEN") ? df.getTokenFeatures(i) : df.getConstituentFeatures(i);
+  }
+
+  /**
+   * Parallel extraction should give the same vectors as extracting one
+   * document at a time once the templates have seen every document (the
+   * first serial pass sizes them).
+   */
+  @Test
+  public void parallelVsSerial() {
+    Template.MULTI_THREADED = true;
+    List<Document> docs = randomDocuments(50, new MultiAlphabet(), new Random(1));
+    for (String mode : Arrays.asList("TOKEN", "CONSTITUENT")) {
+      List<String> feats = mode.equals("TOKEN") ? TOKEN_FEATS : CONS_FEATS;
+      FeatureSet serial = FeatureSet.fromLines(mode, feats);
+      FeatureSet parallel = FeatureSet.fromLines(mode, feats);
+      for (Document d : docs)
+        serial.extract(d);
+      List<DocumentFeatures<IntDoubleVector>> expected = new ArrayList<>();
+      for (Document d : docs)
+        expected.add(serial.extract(d));
+      // The first call has to size the templates, the second doesn't
+      for (int pass = 0; pass < 2; pass++) {
+        List<DocumentFeatures<IntDoubleVector>> got = parallel.extractParallel(docs);
+        assertEquals(docs.size(), got.size());
+        for (int i = 0; i < docs.size(); i++) {
+          Document d = docs.get(i);
+          assertEquals(expected.get(i).size(), got.get(i).size());
+          int n = mode.equals("TOKEN") ? d.numTokens() : d.numConstituents();
+          for (int j = 0; j < n; j++) {
+            IntDoubleVector e = get(expected.get(i), mode, j);
+            IntDoubleVector g = get(got.get(i), mode, j);
+            assertNotNull(g);
+            assertEquals(mode + " doc=" + i + " item=" + j, e.toString(), g.toString());
+          }
+        }
+      }
+    }
+  }
+
+  /** Documents which gained tokens after their DocumentFeatures were created */
+  @Test
+  public void parallelIntoGrownDocuments() {
+    Template.MULTI_THREADED = true;
+    MultiAlphabet alph = new MultiAlphabet();
+    List<Document> docs = randomDocuments(20, alph, new Random(3));
+    List<DocumentFeatures<IntDoubleVector>> addTo = new ArrayList<>();
+    for (Document d : docs)
+      addTo.add(new DocumentFeatures<>(d));
+    Random r = new Random(4);
+    for (Document d : docs) {
+      for (int i = 0; i < 300; i++) {
+        Document.Token t = d.newToken();
+        t.setWord(alph.word("w" + r.nextInt(50)));
+        t.setPosH(alph.pos("p" + r.nextInt(20)));
+      }
+    }
+    FeatureSet serial = FeatureSet.fromLines("TOKEN", TOKEN_FEATS);
+    FeatureSet parallel = FeatureSet.fromLines("TOKEN", TOKEN_FEATS);
+    for (Document d : docs)
+      serial.extract(d);
+    parallel.extractParallelInto(addTo);
+    for (int i = 0; i < docs.size(); i++) {
+      DocumentFeatures<IntDoubleVector> expected = serial.extract(docs.get(i));
+      assertEquals(docs.get(i).numTokens(), addTo.get(i).size());
+      for (int j = 0; j < docs.get(i).numTokens(); j++)
+        assertEquals(expected.getTokenFeatures(j).toString(), addTo.get(i).getTokenFeatures(j).toString());
+    }
+  }
+
+  @Test(expected = IllegalStateException.class)
+  public void parallelRequiresMultiThreaded() {
+    Template.MULTI_THREADED = false;
+    List<Document> docs = randomDocuments(2, new MultiAlphabet(), new Random(2));
+    FeatureSet.fromLines("TOKEN", TOKEN_FEATS).extractParallel(docs);
+  }
+}